@@ -6,11 +6,14 @@ import totoro.ocelot.brain.entity.machine.luac.{LuaStateFactory, NativeLua52Arch
 import totoro.ocelot.brain.entity.machine.luaj.LuaJLuaArchitecture
 import totoro.ocelot.brain.entity.machine.{MachineAPI, Registry}
 import totoro.ocelot.brain.loot.Loot
+import totoro.ocelot.brain.nbt.CompressionCodec
 import totoro.ocelot.brain.nbt.persistence.NBTPersistence
 import totoro.ocelot.brain.nbt.persistence.NBTPersistence.{MemoryConstructor, TieredConstructor}
 import totoro.ocelot.brain.util.{FontUtils, ThreadPoolFactory}
 
 import java.nio.file.{Path, Paths}
+import java.util.concurrent.{CompletableFuture, CompletionException}
+import scala.collection.mutable
 
 object Ocelot {
   final val Name = "Ocelot"
@@ -34,71 +37,122 @@ object Ocelot {
   private def preInit(): Unit = {
     log.info("Loading configuration...")
     Settings.load(configPath.map(_.toFile))
+    CompressionCodec.setDefault(Settings.get.saveCompression)
   }
 
-  private def init(): Unit = {
-    log.info("Loading Lua libraries...")
-    LuaStateFactory.init(librariesPath.getOrElse(Paths.get("./")))
-
-    log.info("Registering available machine architectures...")
+  /**
+    * A step of the initialization. It runs as soon as all of its dependencies have finished,
+    * in parallel to all other phases that do not depend on each other.
+    */
+  private class Phase(val name: String, val dependencies: Phase*)(body: => Unit) {
+    def run(): Unit = body
+  }
 
-    if (LuaStateFactory.isAvailable) {
-      if (LuaStateFactory.include53) {
-        MachineAPI.add(classOf[NativeLua53Architecture], "Lua 5.3")
+  private def init(): Unit = {
+    val nativeLibraries = new Phase("native libraries")({
+      log.info("Loading Lua libraries...")
+      LuaStateFactory.init(librariesPath.getOrElse(Paths.get("./")))
+    })
+
+    val architectures = new Phase("architectures", nativeLibraries)({
+      log.info("Registering available machine architectures...")
+
+      if (LuaStateFactory.isAvailable) {
+        if (LuaStateFactory.include53) {
+          MachineAPI.add(classOf[NativeLua53Architecture], "Lua 5.3")
+        }
+        if (LuaStateFactory.include54) {
+          MachineAPI.add(classOf[NativeLua54Architecture], "Lua 5.4")
+        }
+        if (LuaStateFactory.include52) {
+          MachineAPI.add(classOf[NativeLua52Architecture], "Lua 5.2")
+        }
       }
-      if (LuaStateFactory.include54) {
-        MachineAPI.add(classOf[NativeLua54Architecture], "Lua 5.4")
+      if (LuaStateFactory.includeLuaJ) {
+        MachineAPI.add(classOf[LuaJLuaArchitecture], "LuaJ")
       }
-      if (LuaStateFactory.include52) {
-        MachineAPI.add(classOf[NativeLua52Architecture], "Lua 5.2")
+    })
+
+    val loot = new Phase("loot")({
+      log.info("Registering loot (floppies and EEPROMs with standard OpenComputers software)...")
+      Loot.init()
+    })
+
+    val constructors = new Phase("constructors")({
+      log.info("Registering entity constructors (for persistence purposes)...")
+      val tieredConstructor = new TieredConstructor()
+
+      NBTPersistence.registerConstructor(classOf[Case].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[Server].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[Microcontroller].getName, tieredConstructor)
+
+      NBTPersistence.registerConstructor(classOf[Screen].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[HologramProjector].getName, tieredConstructor)
+
+      NBTPersistence.registerConstructor(classOf[CPU].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[APU].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[GraphicsCard].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[HDDManaged].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[HDDUnmanaged].getName, tieredConstructor)
+      NBTPersistence.registerConstructor(classOf[Memory].getName, new MemoryConstructor())
+      NBTPersistence.registerConstructor(classOf[ComponentBus].getName, tieredConstructor)
+    })
+
+    val fonts = new Phase("fonts")({
+      FontUtils.init()
+    })
+
+    val threadPools = new Phase("thread pools")({
+      ThreadPoolFactory.safePools.foreach(_.newThreadPool())
+    })
+
+    val internetRules = new Phase("internet rules")({
+      if (Settings.get.internetAccessConfigured) {
+        if (Settings.get.internetFilteringRulesInvalid) {
+          Ocelot.log.warn("####################################################")
+          Ocelot.log.warn("#                                                  #")
+          Ocelot.log.warn("#  Could not parse Internet Card filtering rules!  #")
+          Ocelot.log.warn("#  Review the server log and adjust the filtering  #")
+          Ocelot.log.warn("#  list to ensure it is appropriately configured.  #")
+          Ocelot.log.warn("#          (brain.conf => filteringRules)          #")
+          Ocelot.log.warn("# Internet access has been automatically disabled. #")
+          Ocelot.log.warn("#                                                  #")
+          Ocelot.log.warn("####################################################")
+        } else {
+          Ocelot.log.info(
+            f"Successfully applied ${Settings.get.internetFilteringRules.length} Internet Card filtering rules."
+          )
+        }
       }
-    }
-    if (LuaStateFactory.includeLuaJ) {
-      MachineAPI.add(classOf[LuaJLuaArchitecture], "LuaJ")
-    }
+    })
+
+    runPhases(Seq(nativeLibraries, architectures, loot, constructors, fonts, threadPools, internetRules))
+  }
 
-    log.info("Registering loot (floppies and EEPROMs with standard OpenComputers software)...")
-    Loot.init()
-
-    log.info("Registering entity constructors (for persistence purposes)...")
-    val tieredConstructor = new TieredConstructor()
-
-    NBTPersistence.registerConstructor(classOf[Case].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[Server].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[Microcontroller].getName, tieredConstructor)
-
-    NBTPersistence.registerConstructor(classOf[Screen].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[HologramProjector].getName, tieredConstructor)
-
-    NBTPersistence.registerConstructor(classOf[CPU].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[APU].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[GraphicsCard].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[HDDManaged].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[HDDUnmanaged].getName, tieredConstructor)
-    NBTPersistence.registerConstructor(classOf[Memory].getName, new MemoryConstructor())
-    NBTPersistence.registerConstructor(classOf[ComponentBus].getName, tieredConstructor)
-
-    FontUtils.init()
-
-    ThreadPoolFactory.safePools.foreach(_.newThreadPool())
-
-    if (Settings.get.internetAccessConfigured) {
-      if (Settings.get.internetFilteringRulesInvalid) {
-        Ocelot.log.warn("####################################################")
-        Ocelot.log.warn("#                                                  #")
-        Ocelot.log.warn("#  Could not parse Internet Card filtering rules!  #")
-        Ocelot.log.warn("#  Review the server log and adjust the filtering  #")
-        Ocelot.log.warn("#  list to ensure it is appropriately configured.  #")
-        Ocelot.log.warn("#          (brain.conf => filteringRules)          #")
-        Ocelot.log.warn("# Internet access has been automatically disabled. #")
-        Ocelot.log.warn("#                                                  #")
-        Ocelot.log.warn("####################################################")
-      } else {
-        Ocelot.log.info(
-          f"Successfully applied ${Settings.get.internetFilteringRules.length} Internet Card filtering rules."
-        )
+  // Phases have to be listed after their dependencies.
+  private def runPhases(phases: Seq[Phase]): Unit = {
+    val executor = ThreadPoolFactory.create("Init", phases.size min Runtime.getRuntime.availableProcessors() max 1)
+    try {
+      val futures = mutable.Map.empty[Phase, CompletableFuture[Void]]
+      for (phase <- phases) {
+        futures(phase) = CompletableFuture.allOf(phase.dependencies.map(futures): _*).thenRunAsync(() => {
+          timed(phase.name)(phase.run())
+        }, executor)
       }
+      CompletableFuture.allOf(futures.values.toSeq: _*).join()
+    }
+    catch {
+      case e: CompletionException if e.getCause != null => throw e.getCause
     }
+    finally {
+      executor.shutdown()
+    }
+  }
+
+  private def timed(name: String)(f: => Unit): Unit = {
+    val start = System.nanoTime()
+    f
+    log.info(f"Initialization phase '$name' took ${(System.nanoTime() - start) / 1e6}%.1f ms.")
   }
 
   private def postInit(): Unit = {
@@ -114,10 +168,12 @@ object Ocelot {
   def initialize(): Unit = {
     log.info("Brain initialization...")
     log.info(s"Version: ${Ocelot.Version}")
-    preInit()
+    val start = System.nanoTime()
+    // everything else depends on the configuration
+    timed("configuration")(preInit())
     init()
     postInit()
-    log.info("Initialization finished.")
+    log.info(f"Initialization finished in ${(System.nanoTime() - start) / 1e6}%.1f ms.")
   }
 
   def shutdown(): Unit = {
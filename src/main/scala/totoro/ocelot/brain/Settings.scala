@@ -3,7 +3,8 @@ package totoro.ocelot.brain
 import com.google.common.net.InetAddresses
 import com.typesafe.config._
 import totoro.ocelot.brain.Settings.{DefaultTapeLengths, TapeMinuteSize, loadTapeSizes}
-import totoro.ocelot.brain.util.{ColorDepth, InternetFilteringRule}
+import totoro.ocelot.brain.nbt.CompressionCodec
+import totoro.ocelot.brain.util.{ColorDepth, InternetFilter, InternetFilteringRule}
 
 import java.io._
 import java.net.{Inet4Address, InetAddress}
@@ -86,6 +87,7 @@ class Settings(val config: Config) {
   val tmpSize: Int = config.getInt("filesystem.tmpSize") max 0
   val maxHandles: Int = config.getInt("filesystem.maxHandles") max 0
   val maxReadBuffer: Int = config.getInt("filesystem.maxReadBuffer") max 0
+  val maxCopyChunk: Int = (if (config.hasPath("filesystem.maxCopyChunk")) config.getInt("filesystem.maxCopyChunk") else 1024 * 1024) max 1
   val sectorSeekThreshold: Int = config.getInt("filesystem.sectorSeekThreshold")
   val sectorSeekTime: Double = config.getDouble("filesystem.sectorSeekTime")
 
@@ -99,11 +101,16 @@ class Settings(val config: Config) {
     .filter(p => !p.equals("removeme"))
     .map(new InternetFilteringRule(_))
     .toArray
+  val internetFilter: InternetFilter = new InternetFilter(internetFilteringRules)
   val internetFilteringRulesObserved: Boolean = !config.getStringList("internet.filteringRules")
     .contains("removeme")
   val httpTimeout: Int = (config.getInt("internet.requestTimeout") max 0) * 1000
   val maxConnections: Int = config.getInt("internet.maxTcpConnections") max 0
+  val maxHttpRequests: Int = (if (config.hasPath("internet.maxHttpRequests")) config.getInt("internet.maxHttpRequests") else 4) max 0
   val internetThreads: Int = config.getInt("internet.threads") max 1
+  val dnsCacheTtl: Int = (if (config.hasPath("internet.dnsCacheTtl")) config.getInt("internet.dnsCacheTtl") else 30) max 0
+  val dnsNegativeCacheTtl: Int =
+    (if (config.hasPath("internet.dnsNegativeCacheTtl")) config.getInt("internet.dnsNegativeCacheTtl") else 10) max 0
 
   // ----------------------------------------------------------------------- //
   // switch
@@ -163,6 +170,7 @@ class Settings(val config: Config) {
   val dataCardSoftLimit: Int = config.getInt("misc.dataCardSoftLimit") max 0
   val dataCardHardLimit: Int = config.getInt("misc.dataCardHardLimit") max 0
   val dataCardTimeout: Double = config.getDouble("misc.dataCardTimeout") max 0
+  val dataCardThreads: Int = (if (config.hasPath("misc.dataCardThreads")) config.getInt("misc.dataCardThreads") else 2) max 1
 
   // ----------------------------------------------------------------------- //
   // debug
@@ -198,6 +206,18 @@ class Settings(val config: Config) {
 
   val diskActivitySoundDelay: Int = config.getInt("misc.diskActivitySoundDelay") max -1
 
+  val persistenceThreads: Int =
+    if (config.hasPath("misc.persistenceThreads")) config.getInt("misc.persistenceThreads") max 1 else 1
+
+  val fileSystemFlushThreads: Int =
+    if (config.hasPath("misc.fileSystemFlushThreads")) config.getInt("misc.fileSystemFlushThreads") max 1 else 2
+
+  val saveCompression: CompressionCodec = {
+    val name = if (config.hasPath("misc.saveCompression")) config.getString("misc.saveCompression") else "gzip"
+    val level = if (config.hasPath("misc.saveCompressionLevel")) config.getInt("misc.saveCompressionLevel") max -1 min 9 else -1
+    Option(CompressionCodec.byName(name, level)).getOrElse(CompressionCodec.gzip(level))
+  }
+
   // sound card
   val soundCardSampleRate: Int = if (config.hasPath("soundCard.sampleRate")) config.getInt("soundCard.sampleRate") else 44100
   val soundCardMaxDelay: Int = if (config.hasPath("soundCard.maxDelay")) config.getInt("soundCard.maxDelay") else 5000
@@ -9,16 +9,20 @@ import totoro.ocelot.brain.entity.traits.DeviceInfo.{DeviceAttribute, DeviceClas
 import totoro.ocelot.brain.entity.traits.{DeviceInfo, Entity, Environment, Tiered}
 import totoro.ocelot.brain.nbt.NBTTagCompound
 import totoro.ocelot.brain.network.{Network, Node, Visibility}
-import totoro.ocelot.brain.util.Tier
 import totoro.ocelot.brain.util.Tier.Tier
+import totoro.ocelot.brain.util.{ResumableDigest, ThreadPoolFactory, Tier}
 import totoro.ocelot.brain.workspace.Workspace
 
 import java.security._
 import java.security.interfaces.ECPublicKey
 import java.security.spec.{PKCS8EncodedKeySpec, X509EncodedKeySpec}
-import java.util.zip.{DeflaterOutputStream, InflaterOutputStream}
+import java.util.UUID
+import java.util.zip.{Deflater, DeflaterOutputStream, Inflater, InflaterOutputStream}
 import javax.crypto.spec.{IvParameterSpec, SecretKeySpec}
 import javax.crypto.{Cipher, KeyAgreement, Mac}
+import scala.collection.mutable
+import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success}
 
 abstract class DataCard extends Entity with Environment with DeviceInfo with Tiered {
   override val node: Node = Network.newNode(this, Visibility.Neighbors).
@@ -27,12 +31,7 @@ abstract class DataCard extends Entity with Environment with DeviceInfo with Tie
 
   // ----------------------------------------------------------------------- //
 
-  protected def check(context: Context, args: Arguments): Array[Byte] = {
-    val data = args.checkByteArray(0)
-    if (data.length > Settings.get.dataCardHardLimit) throw new IllegalArgumentException("data size limit exceeded")
-    if (data.length > Settings.get.dataCardSoftLimit) context.pause(Settings.get.dataCardTimeout)
-    data
-  }
+  protected def check(context: Context, args: Arguments): Array[Byte] = DataCard.checkData(context, args, 0)
 
   // ----------------------------------------------------------------------- //
 
@@ -47,6 +46,29 @@ object DataCard {
     override def initialValue: SecureRandom = SecureRandom.getInstance("SHA1PRNG")
   }
 
+  // Looking up the providers of these is expensive, so every thread keeps its own instances.
+  // All of them are initialized again before they are used.
+  private def pooled[T](create: => T): ThreadLocal[T] = new ThreadLocal[T]() {
+    override def initialValue: T = create
+  }
+
+  private val AesCipher = pooled(Cipher.getInstance("AES/CBC/PKCS5Padding"))
+  private val Macs = pooled(mutable.Map.empty[String, Mac])
+  private val EcKeyFactory = pooled(KeyFactory.getInstance("EC"))
+  private val EcKeyPairGenerator = pooled(KeyPairGenerator.getInstance("EC"))
+  private val EcKeyAgreement = pooled(KeyAgreement.getInstance("ECDH"))
+  private val EcSignature = pooled(Signature.getInstance("SHA256withECDSA"))
+
+  private lazy val threadPool = ThreadPoolFactory.create("DataCard", Settings.get.dataCardThreads)
+  private lazy val executionContext = ExecutionContext.fromExecutor(threadPool)
+
+  private def checkData(context: Context, args: Arguments, index: Int): Array[Byte] = {
+    val data = args.checkByteArray(index)
+    if (data.length > Settings.get.dataCardHardLimit) throw new IllegalArgumentException("data size limit exceeded")
+    if (data.length > Settings.get.dataCardSoftLimit) context.pause(Settings.get.dataCardTimeout)
+    data
+  }
+
   class Tier1 extends DataCard {
     private final lazy val deviceInfo = Map(
       DeviceAttribute.Class -> DeviceClass.Processor,
@@ -91,6 +113,20 @@ object DataCard {
       result(baos.toByteArray)
     }
 
+    @Callback(direct = true, limit = 8, doc = """function(algorithm:string):userdata -- Starts a hash of data that is passed in chunks. Supported algorithms: crc32, md5, sha256.""")
+    def hasher(context: Context, args: Arguments): Array[AnyRef] = {
+      val algorithm = args.checkString(0)
+      if (ResumableDigest(algorithm).isEmpty)
+        throw new IllegalArgumentException(s"unsupported algorithm, must be one of ${ResumableDigest.Names.mkString(", ")}")
+      result(new HashStream(algorithm))
+    }
+
+    @Callback(direct = true, limit = 8, doc = """function():userdata -- Starts a deflate compression of data that is passed in chunks.""")
+    def deflater(context: Context, args: Arguments): Array[AnyRef] = result(new DeflateStream)
+
+    @Callback(direct = true, limit = 8, doc = """function():userdata -- Starts an inflate decompression of data that is passed in chunks.""")
+    def inflater(context: Context, args: Arguments): Array[AnyRef] = result(new InflateStream)
+
     @Callback(direct = true, limit = 32, doc = """function(data:string):string -- Computes CRC-32 hash of the data. Result is binary data.""")
     def crc32(context: Context, args: Arguments): Array[AnyRef] = {
       val data = check(context, args)
@@ -174,13 +210,13 @@ object DataCard {
       if (iv.length != 16)
         throw new IllegalArgumentException("expected a 128-bit AES IV")
 
-      val cipher = Cipher.getInstance("AES/CBC/PKCS5Padding")
+      val cipher = AesCipher.get
       cipher.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv))
       result(cipher.doFinal(data))
     }
 
     private def hash(data: Array[Byte], key: Array[Byte], mode: String, hmacMode: String): Array[AnyRef] = {
-      val hmac = Mac.getInstance(hmacMode)
+      val hmac = Macs.get.getOrElseUpdate(hmacMode, Mac.getInstance(hmacMode))
       hmac.init(new SecretKeySpec(key, hmacMode))
       result(hmac.doFinal(data))
     }
@@ -200,18 +236,20 @@ object DataCard {
 
     // ----------------------------------------------------------------------- //
 
-    @Callback(direct = true, limit = 1, doc = """function([bitLen:number]):userdata, userdata -- Generates key pair. Returns: public, private keys. Allowed key lengths: 256, 384 bits.""")
+    @Callback(direct = true, limit = 1, doc = """function([bitLen:number[, async:boolean]]):userdata, userdata -- Generates key pair. Returns: public, private keys. Allowed key lengths: 256, 384 bits. If async is true, returns a task instead, see `data_ready` signals.""")
     def generateKeyPair(context: Context, args: Arguments): Array[AnyRef] = {
 
       val bitLen = args.optInteger(0, 384)
       if (bitLen != 256 && bitLen != 384)
         throw new IllegalArgumentException("invalid key length, must be 256 or 384")
 
-      val kpg = KeyPairGenerator.getInstance("EC")
-      kpg.initialize(bitLen, SecureRandomInstance.get)
-      val kp = kpg.generateKeyPair()
+      run(args, 1) {
+        val kpg = EcKeyPairGenerator.get
+        kpg.initialize(bitLen, SecureRandomInstance.get)
+        val kp = kpg.generateKeyPair()
 
-      result(new ECUserdata(kp.getPublic), new ECUserdata(kp.getPrivate))
+        result(new ECUserdata(kp.getPublic), new ECUserdata(kp.getPrivate))
+      }
     }
 
     @Callback(direct = true, limit = 8, doc = """function(data:string, type:string):userdata -- Restores key from its string representation.""")
@@ -222,31 +260,35 @@ object DataCard {
       result(new ECUserdata(ECUserdata.deserializeKey(t, data)))
     }
 
-    @Callback(direct = true, limit = 1, doc = """function(priv:userdata, pub:userdata):string -- Generates a shared key. ecdh(a.priv, b.pub) == ecdh(b.priv, a.pub)""")
+    @Callback(direct = true, limit = 1, doc = """function(priv:userdata, pub:userdata[, async:boolean]):string -- Generates a shared key. ecdh(a.priv, b.pub) == ecdh(b.priv, a.pub). If async is true, returns a task instead, see `data_ready` signals.""")
     def ecdh(context: Context, args: Arguments): Array[AnyRef] = {
       val privKey = checkUserdata(args, 0, isPublic = Option(false)).value
       val pubKey = checkUserdata(args, 1, isPublic = Option(true)).value
 
-      val ka = KeyAgreement.getInstance("ECDH")
-      ka.init(privKey)
-      ka.doPhase(pubKey, true)
-      result(ka.generateSecret)
+      run(args, 2) {
+        val ka = EcKeyAgreement.get
+        ka.init(privKey)
+        ka.doPhase(pubKey, true)
+        result(ka.generateSecret)
+      }
     }
 
-    @Callback(direct = true, limit = 1, doc = """function(data:string, key:userdata[, sig:string]):string or boolean -- Signs or verifies data.""")
+    @Callback(direct = true, limit = 1, doc = """function(data:string, key:userdata[, sig:string[, async:boolean]]):string or boolean -- Signs or verifies data. If async is true, returns a task instead, see `data_ready` signals.""")
     def ecdsa(context: Context, args: Arguments): Array[AnyRef] = {
       val data = check(context, args)
       val key = checkUserdata(args, 1)
       val sig = args.optByteArray(2, null)
 
-      val sign = Signature.getInstance("SHA256withECDSA")
       if (sig != null) {
         // Verify mode
         key.value match {
           case public: PublicKey =>
-            sign.initVerify(public)
-            sign.update(data)
-            result(sign.verify(sig))
+            run(args, 3) {
+              val sign = EcSignature.get
+              sign.initVerify(public)
+              sign.update(data)
+              result(sign.verify(sig))
+            }
           case _ => throw new IllegalArgumentException("public key expected")
         }
       }
@@ -254,9 +296,12 @@ object DataCard {
         // Sign mode
         key.value match {
           case k: PrivateKey =>
-            sign.initSign(k)
-            sign.update(data)
-            result(sign.sign())
+            run(args, 3) {
+              val sign = EcSignature.get
+              sign.initSign(k)
+              sign.update(data)
+              result(sign.sign())
+            }
           case _ =>
             throw new IllegalArgumentException("private key expected")
         }
@@ -265,6 +310,11 @@ object DataCard {
 
     // ----------------------------------------------------------------------- //
 
+    // Runs the operation right away, or on the data card thread pool if the argument at `index` is true.
+    private def run(args: Arguments, index: Int)(f: => Array[AnyRef]): Array[AnyRef] =
+      if (args.optBoolean(index, false)) result(new CryptoTask(this, () => f))
+      else f
+
     private def checkUserdata(args: Arguments, i: Int, isPublic: Option[Boolean] = None) =
       args.checkAny(i) match {
         case value: ECUserdata =>
@@ -278,6 +328,251 @@ object DataCard {
       }
   }
 
+  /**
+    * The pending result of an operation that runs on the data card thread pool.
+    * Once it has finished, the card sends a `data_ready` signal with the ID of the task.
+    */
+  class CryptoTask extends AbstractValue {
+    // Tasks are not persisted, a loaded task has no result.
+    private var future: Option[Future[Array[AnyRef]]] = None
+    private val id = UUID.randomUUID()
+
+    def this(card: DataCard, task: () => Array[AnyRef]) = {
+      this()
+      val future = Future(task())(executionContext)
+      future.onComplete(_ => card.node.sendToVisible("computer.signal", "data_ready", id.toString))(executionContext)
+      this.future = Some(future)
+    }
+
+    @Callback(direct = true, doc = """function():string -- Returns the ID of the task, as sent with `data_ready` signals.""")
+    def id(context: Context, args: Arguments): Array[AnyRef] = result(id.toString)
+
+    @Callback(direct = true, doc = """function():boolean -- Returns whether the task has finished.""")
+    def finished(context: Context, args: Arguments): Array[AnyRef] = result(future.forall(_.isCompleted))
+
+    @Callback(direct = true, doc = """function():... -- Returns the results of the task, or nil and a message if it has not finished yet. Errors if the task failed.""")
+    def get(context: Context, args: Arguments): Array[AnyRef] = future match {
+      case Some(future) => future.value match {
+        case Some(Success(values)) => values
+        case Some(Failure(e)) => throw e
+        case None => result((), "not finished")
+      }
+      case None => throw new IllegalStateException("task was lost")
+    }
+  }
+
+  /**
+    * Base class of the data card's streams, which process data that is passed in chunks.
+    */
+  abstract class DataStream extends AbstractValue {
+    protected var finished = false
+
+    protected def checkChunk(context: Context, args: Arguments, cost: Double): Array[Byte] = {
+      if (finished) throw new IllegalStateException("stream is finished")
+      context.consumeCallBudget(cost)
+      checkData(context, args, 0)
+    }
+
+    override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+      super.load(nbt, workspace)
+      finished = nbt.getBoolean(FinishedTag)
+    }
+
+    override def save(nbt: NBTTagCompound): Unit = {
+      super.save(nbt)
+      nbt.setBoolean(FinishedTag, finished)
+    }
+  }
+
+  class HashStream(private var algorithm: String) extends DataStream {
+    // Empty constructor for deserialization.
+    def this() = this("crc32")
+
+    private var digest = ResumableDigest(algorithm).get
+
+    // the same as the limits of the callbacks hashing all data at once
+    private def cost = algorithm match {
+      case "crc32" => 1.0 / 32
+      case "md5" => 1.0 / 8
+      case _ => 1.0 / 4
+    }
+
+    @Callback(direct = true, doc = """function(data:string) -- Adds the data to the hash.""")
+    def update(context: Context, args: Arguments): Array[AnyRef] = {
+      digest.update(checkChunk(context, args, cost))
+      null
+    }
+
+    @Callback(direct = true, doc = """function():string -- Returns the hash of all data and ends the stream. Result is binary data.""")
+    def finish(context: Context, args: Arguments): Array[AnyRef] = {
+      if (finished) throw new IllegalStateException("stream is finished")
+      finished = true
+      result(digest.digest())
+    }
+
+    override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+      super.load(nbt, workspace)
+      ResumableDigest(nbt.getString(AlgorithmTag)).foreach(digest => {
+        algorithm = nbt.getString(AlgorithmTag)
+        this.digest = digest
+      })
+      digest.load(nbt.getCompoundTag(DigestTag))
+    }
+
+    override def save(nbt: NBTTagCompound): Unit = {
+      super.save(nbt)
+      nbt.setString(AlgorithmTag, algorithm)
+      val digestNbt = new NBTTagCompound
+      digest.save(digestNbt)
+      nbt.setTag(DigestTag, digestNbt)
+    }
+  }
+
+  /**
+    * Produces the same zlib format as the `deflate` callback.
+    *
+    * To persist the stream, pending output is flushed to a byte boundary, and is returned by the
+    * next call. The last 32 KiB of input are kept, so that a loaded stream can keep referring to
+    * them, as the compressor would have.
+    */
+  class DeflateStream extends DataStream {
+    private var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+    private val checksum = new ResumableDigest.Adler32
+    private var window = Array.emptyByteArray
+    // the zlib header for the default compression level
+    private var pending = Array[Byte](0x78, 0x9c.toByte)
+
+    @Callback(direct = true, doc = """function(data:string):string -- Compresses the data. Returns compressed data that is ready.""")
+    def update(context: Context, args: Arguments): Array[AnyRef] = {
+      val data = checkChunk(context, args, 1.0 / 4)
+      checksum.update(data)
+      window =
+        if (data.length >= WindowSize) data.takeRight(WindowSize)
+        else (window ++ data).takeRight(WindowSize)
+
+      val output = takePending()
+      deflater.setInput(data)
+      while (!deflater.needsInput) {
+        deflate(output, Deflater.NO_FLUSH)
+      }
+      result(output.toByteArray)
+    }
+
+    @Callback(direct = true, doc = """function():string -- Ends the stream. Returns the rest of the compressed data.""")
+    def finish(context: Context, args: Arguments): Array[AnyRef] = {
+      if (finished) throw new IllegalStateException("stream is finished")
+      finished = true
+
+      val output = takePending()
+      deflater.finish()
+      while (!deflater.finished) {
+        deflate(output, Deflater.NO_FLUSH)
+      }
+      deflater.end()
+      output.write(checksum.digest())
+      result(output.toByteArray)
+    }
+
+    private def takePending(): ByteArrayOutputStream = {
+      val output = new ByteArrayOutputStream(512)
+      output.write(pending)
+      pending = Array.emptyByteArray
+      output
+    }
+
+    private def deflate(output: ByteArrayOutputStream, flush: Int): Int = {
+      val buffer = new Array[Byte](8192)
+      val count = deflater.deflate(buffer, 0, buffer.length, flush)
+      output.write(buffer, 0, count)
+      count
+    }
+
+    override def dispose(context: Context): Unit = {
+      super.dispose(context)
+      deflater.end()
+    }
+
+    override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+      super.load(nbt, workspace)
+      pending = nbt.getByteArray(PendingTag)
+      window = nbt.getByteArray(WindowTag)
+      checksum.load(nbt.getCompoundTag(ChecksumTag))
+      deflater.end()
+      deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true)
+      if (window.nonEmpty) deflater.setDictionary(window)
+    }
+
+    override def save(nbt: NBTTagCompound): Unit = {
+      super.save(nbt)
+      if (!finished) {
+        val output = takePending()
+        while (deflate(output, Deflater.SYNC_FLUSH) > 0) {}
+        pending = output.toByteArray
+      }
+      nbt.setByteArray(PendingTag, pending)
+      nbt.setByteArray(WindowTag, window)
+      val checksumNbt = new NBTTagCompound
+      checksum.save(checksumNbt)
+      nbt.setTag(ChecksumTag, checksumNbt)
+    }
+  }
+
+  /**
+    * Reads the same zlib format as the `inflate` callback.
+    *
+    * The state of the decompressor cannot be persisted, so a stream that was loaded before it
+    * finished can only be ended.
+    */
+  class InflateStream extends DataStream {
+    private var inflater: Option[Inflater] = Some(new Inflater())
+
+    @Callback(direct = true, doc = """function(data:string):string -- Decompresses the data. Returns decompressed data that is ready.""")
+    def update(context: Context, args: Arguments): Array[AnyRef] = {
+      val data = checkChunk(context, args, 1.0 / 4)
+      val inflater = this.inflater.getOrElse(throw new IllegalStateException("stream was interrupted"))
+
+      val output = new ByteArrayOutputStream(512)
+      val buffer = new Array[Byte](8192)
+      inflater.setInput(data)
+      while (!inflater.finished && !inflater.needsInput) {
+        val count = inflater.inflate(buffer)
+        if (count == 0 && inflater.needsDictionary) throw new IllegalArgumentException("preset dictionaries are not supported")
+        output.write(buffer, 0, count)
+      }
+      result(output.toByteArray)
+    }
+
+    @Callback(direct = true, doc = """function():boolean -- Ends the stream. Returns whether the end of the compressed data was reached.""")
+    def finish(context: Context, args: Arguments): Array[AnyRef] = {
+      if (finished) throw new IllegalStateException("stream is finished")
+      finished = true
+      val complete = inflater.exists(_.finished)
+      inflater.foreach(_.end())
+      inflater = None
+      result(complete)
+    }
+
+    override def dispose(context: Context): Unit = {
+      super.dispose(context)
+      inflater.foreach(_.end())
+    }
+
+    override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+      super.load(nbt, workspace)
+      inflater.foreach(_.end())
+      inflater = None
+    }
+  }
+
+  private final val FinishedTag = "Finished"
+  private final val AlgorithmTag = "Algorithm"
+  private final val DigestTag = "Digest"
+  private final val PendingTag = "Pending"
+  private final val WindowTag = "Window"
+  private final val ChecksumTag = "Checksum"
+
+  private final val WindowSize = 32 * 1024
+
   class ECUserdata(var value: Key) extends AbstractValue {
     // Empty constructor for deserialization.
     def this() = this(null)
@@ -321,8 +616,8 @@ object DataCard {
     final val PublicTypeName = "ec-public"
 
     def deserializeKey(typeName: String, data: Array[Byte]): Key = {
-      if (typeName == PrivateTypeName) KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(data))
-      else if (typeName == PublicTypeName) KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(data))
+      if (typeName == PrivateTypeName) EcKeyFactory.get.generatePrivate(new PKCS8EncodedKeySpec(data))
+      else if (typeName == PublicTypeName) EcKeyFactory.get.generatePublic(new X509EncodedKeySpec(data))
       else throw new IllegalArgumentException("invalid key type, must be ec-public or ec-private")
     }
   }
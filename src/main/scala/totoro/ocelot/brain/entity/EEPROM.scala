@@ -7,7 +7,7 @@ import totoro.ocelot.brain.entity.traits.DeviceInfo.{DeviceAttribute, DeviceClas
 import totoro.ocelot.brain.entity.traits.{DeviceInfo, Entity, Environment}
 import totoro.ocelot.brain.nbt.NBTTagCompound
 import totoro.ocelot.brain.network.{Component, Network, Visibility}
-import totoro.ocelot.brain.workspace.Workspace
+import totoro.ocelot.brain.workspace.{BlobStore, Workspace}
 import totoro.ocelot.brain.{Constants, Settings}
 
 import java.io.IOException
@@ -110,7 +110,7 @@ class EEPROM extends Entity with Environment with DeviceInfo {
 
   // ----------------------------------------------------------------------- //
 
-  @Callback(direct = true, doc = """function():string -- Get the currently stored byte array.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the currently stored byte array.""")
   def get(context: Context, args: Arguments): Array[AnyRef] = {
     result(getBytes)
   }
@@ -137,7 +137,7 @@ class EEPROM extends Entity with Environment with DeviceInfo {
     null
   }
 
-  @Callback(direct = true, doc = """function():string -- Get the label of the EEPROM.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the label of the EEPROM.""")
   def getLabel(context: Context, args: Arguments): Array[AnyRef] = result(label)
 
   @Callback(doc = """function(data:string):string -- Set the label of the EEPROM.""")
@@ -150,10 +150,10 @@ class EEPROM extends Entity with Environment with DeviceInfo {
     result(label)
   }
 
-  @Callback(direct = true, doc = """function():number -- Get the storage capacity of this EEPROM.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Get the storage capacity of this EEPROM.""")
   def getSize(context: Context, args: Arguments): Array[AnyRef] = result(Settings.get.eepromSize)
 
-  @Callback(direct = true, doc = """function():string -- Get the checksum of the data on this EEPROM.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the checksum of the data on this EEPROM.""")
   def getChecksum(context: Context, args: Arguments): Array[AnyRef] = result(checksum)
 
   @Callback(direct = true, doc = """function(checksum:string):boolean -- Make this EEPROM readonly if it isn't already. This process cannot be reversed!""")
@@ -165,10 +165,10 @@ class EEPROM extends Entity with Environment with DeviceInfo {
     else result((), "incorrect checksum")
   }
 
-  @Callback(direct = true, doc = """function():number -- Get the storage capacity of this EEPROM.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Get the storage capacity of this EEPROM.""")
   def getDataSize(context: Context, args: Arguments): Array[AnyRef] = result(Settings.get.eepromDataSize)
 
-  @Callback(direct = true, doc = """function():string -- Get the currently stored byte array.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the currently stored byte array.""")
   def getData(context: Context, args: Arguments): Array[AnyRef] = result(volatileData)
 
   @Callback(doc = """function(data:string) -- Overwrite the currently stored byte array.""")
@@ -194,7 +194,7 @@ class EEPROM extends Entity with Environment with DeviceInfo {
     super.load(nbt, workspace)
 
     // Raw
-    _codeBytes = Option.when(nbt.hasKey(CodeBytesTag))(nbt.getByteArray(CodeBytesTag))
+    _codeBytes = Option.when(BlobStore.hasByteArray(nbt, CodeBytesTag))(BlobStore.getByteArray(nbt, CodeBytesTag))
 
     // Url
     if (nbt.hasKey(CodeURLTag)) {
@@ -223,9 +223,9 @@ class EEPROM extends Entity with Environment with DeviceInfo {
 
     // Raw bytes
     if (codeBytes.isDefined) {
-      nbt.setByteArray(CodeBytesTag, codeBytes.get)
+      BlobStore.setByteArray(nbt, CodeBytesTag, codeBytes.get)
     } else {
-      nbt.removeTag(CodeBytesTag)
+      BlobStore.removeByteArray(nbt, CodeBytesTag)
     }
 
     // Url
@@ -9,6 +9,7 @@ import totoro.ocelot.brain.util.{GenericTextBuffer, PackedColor}
 import totoro.ocelot.brain.workspace.Workspace
 
 import java.io.InvalidObjectException
+import scala.collection.mutable
 
 class GpuTextBuffer(val owner: String, val id: Int, val data: GenericTextBuffer) extends TextBufferProxy {
 
@@ -24,6 +25,10 @@ class GpuTextBuffer(val owner: String, val id: Int, val data: GenericTextBuffer)
   override def getViewportHeight: Int = data.width
 
   var dirty: Boolean = true
+
+  // the state of the last bitblt from this page into each destination buffer
+  private val blitHistory = new java.util.WeakHashMap[GenericTextBuffer, GpuTextBuffer.BlitRecord]()
+
   override def onBufferSet(col: Int, row: Int, s: String, vertical: Boolean): Unit = dirty = true
   override def onBufferForegroundColorChange(color: PackedColor.Color): Unit = dirty = true
   override def onBufferBackgroundColorChange(color: PackedColor.Color): Unit = dirty = true
@@ -66,7 +71,13 @@ class GpuTextBuffer(val owner: String, val id: Int, val data: GenericTextBuffer)
 object GpuTextBuffer {
   def wrap(owner: String, id: Int, data: GenericTextBuffer): GpuTextBuffer = new GpuTextBuffer(owner, id, data)
 
-  def bitblt(dst: TextBufferProxy, col: Int, row: Int, w: Int, h: Int, src: TextBufferProxy, fromCol: Int, fromRow: Int): Unit = {
+  // a bitblt rectangle, already clipped to both buffers, using zero-based coordinates
+  private[entity] case class BlitArea(x: Int, y: Int, w: Int, h: Int, fx: Int, fy: Int)
+
+  // modification counts of the source page and of the destination right after the last bitblt between them
+  private[entity] case class BlitRecord(area: BlitArea, srcModifications: Long, dstModifications: Long)
+
+  private def clip(dst: TextBufferProxy, col: Int, row: Int, w: Int, h: Int, src: TextBufferProxy, fromCol: Int, fromRow: Int): Option[BlitArea] = {
     val x = col - 1
     val y = row - 1
     val fx = fromCol - 1
@@ -109,23 +120,75 @@ object GpuTextBuffer {
     adjustedHeight -= ((adjustedSourceY + adjustedHeight) - src.getHeight) max 0
 
     // anything left?
-    if (adjustedWidth <= 0 || adjustedHeight <= 0) {
-      return
+    if (adjustedWidth <= 0 || adjustedHeight <= 0) None
+    else Some(BlitArea(adjustedDstX, adjustedDstY, adjustedWidth, adjustedHeight, adjustedSourceX, adjustedSourceY))
+  }
+
+  /**
+    * Runs of rows (as offset into the area and row count) that have to be copied.
+    *
+    * If the same rectangle was blitted from this page to the same destination before,
+    * only rows changed since then on either side are returned. Otherwise the whole area is.
+    */
+  private def pendingRows(dst: TextBufferProxy, area: BlitArea, src: TextBufferProxy): Seq[(Int, Int)] = src match {
+    case page: GpuTextBuffer => page.blitHistory.get(dst.data) match {
+      case BlitRecord(`area`, srcModifications, dstModifications) =>
+        val runs = mutable.ArrayBuffer.empty[(Int, Int)]
+        var start = -1
+        for (offset <- 0 until area.h) {
+          val pending = page.data.isRowModifiedSince(area.fy + offset, srcModifications) ||
+            dst.data.isRowModifiedSince(area.y + offset, dstModifications)
+          if (pending && start < 0) {
+            start = offset
+          } else if (!pending && start >= 0) {
+            runs += start -> (offset - start)
+            start = -1
+          }
+        }
+        if (start >= 0) runs += start -> (area.h - start)
+        runs.toSeq
+      case _ => Seq(0 -> area.h)
+    }
+    case _ => Seq(0 -> area.h)
+  }
+
+  /**
+    * The number of cells a bitblt with these parameters would actually have to copy.
+    */
+  def pendingCells(dst: TextBufferProxy, col: Int, row: Int, w: Int, h: Int, src: TextBufferProxy, fromCol: Int, fromRow: Int): Int =
+    clip(dst, col, row, w, h, src, fromCol, fromRow) match {
+      case Some(area) => pendingRows(dst, area, src).map(_._2).sum * area.w
+      case None => 0
     }
 
-    dst match {
+  def bitblt(dst: TextBufferProxy, col: Int, row: Int, w: Int, h: Int, src: TextBufferProxy, fromCol: Int, fromRow: Int): Unit = {
+    val area = clip(dst, col, row, w, h, src, fromCol, fromRow) match {
+      case Some(area) => area
+      case None => return
+    }
+
+    val write: (Int, Int, Int, Int, Int, Int) => Boolean = dst match {
       case dstScreen: TextBuffer => src match {
-        case srcGpu: GpuTextBuffer => write_vram_to_screen(dstScreen, adjustedDstX, adjustedDstY, adjustedWidth, adjustedHeight, srcGpu, adjustedSourceX, adjustedSourceY)
+        case srcGpu: GpuTextBuffer => write_vram_to_screen(dstScreen, _, _, _, _, srcGpu, _, _)
         case _ => throw new UnsupportedOperationException("Source buffer does not support bitblt operations to a screen")
       }
       case dstGpu: GpuTextBuffer => src match {
-        case srcProxy: TextBufferProxy => write_to_vram(dstGpu, adjustedDstX, adjustedDstY, adjustedWidth, adjustedHeight, srcProxy, adjustedSourceX, adjustedSourceY)
+        case srcProxy: TextBufferProxy => write_to_vram(dstGpu, _, _, _, _, srcProxy, _, _)
         case _ => throw new UnsupportedOperationException("Source buffer does not support bitblt operations")
       }
       case _ => throw new UnsupportedOperationException("Destination buffer does not support bitblt operations")
     }
-  }
 
+    for ((offset, count) <- pendingRows(dst, area, src)) {
+      write(area.x, area.y + offset, area.w, count, area.fx, area.fy + offset)
+    }
+
+    src match {
+      case page: GpuTextBuffer =>
+        page.blitHistory.put(dst.data, BlitRecord(area, page.data.modifications, dst.data.modifications))
+      case _ =>
+    }
+  }
   def write_vram_to_screen(dstScreen: TextBuffer, x: Int, y: Int, w: Int, h: Int, srcRam: GpuTextBuffer, fx: Int, fy: Int): Boolean = {
     if (dstScreen.data.rawcopy(x + 1, y + 1, w, h, srcRam.data, fx + 1, fy + 1)) {
       // rawcopy returns true only if data was modified
@@ -3,12 +3,15 @@ package totoro.ocelot.brain.entity
 import totoro.ocelot.brain.entity.machine.{Arguments, Callback, Context}
 import totoro.ocelot.brain.entity.traits.DeviceInfo.{DeviceAttribute, DeviceClass}
 import totoro.ocelot.brain.entity.traits.{DeviceInfo, Entity, Environment, TieredPersistable, WorkspaceAware}
+import totoro.ocelot.brain.event.{EventBus, HologramVolumeChangeEvent}
 import totoro.ocelot.brain.nbt.NBTTagCompound
 import totoro.ocelot.brain.network.{Network, Node, Visibility}
 import totoro.ocelot.brain.util.Tier.Tier
 import totoro.ocelot.brain.workspace.Workspace
 import totoro.ocelot.brain.{Constants, Settings}
 
+import scala.collection.mutable
+
 //noinspection ScalaUnusedSymbol,ScalaWeakerAccess
 class HologramProjector(override var tier: Tier) extends Entity with Environment with TieredPersistable
   with WorkspaceAware with DeviceInfo
@@ -38,8 +41,20 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
   // Layout is: first half is lower bit, second half is higher bit for the voxels in the cube.
   val volume = new Array[Int](width * width * 2)
 
+  // indices (x + z * width) of the columns changed since the last `HologramVolumeChangeEvent`.
+  // Voxels are set by direct callbacks on the threads of the machines, while `update` runs on the
+  // thread of the workspace, so the volume, the changed columns and `isDirty` are only accessed
+  // while holding the lock of this set.
+  private val dirtyColumns = new mutable.BitSet(width * width)
+
+  private var _isDirty = true
+
   // true if the volume has changed and the mesh needs to be rebuilt
-  var isDirty = true
+  def isDirty: Boolean = dirtyColumns.synchronized(_isDirty)
+
+  def isDirty_=(value: Boolean): Unit = dirtyColumns.synchronized {
+    _isDirty = value
+  }
 
   var scale = 1.0f
 
@@ -56,30 +71,75 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
   var rotationSpeedY = 0f
   var rotationSpeedZ = 0f
 
-  def getColor(x: Int, y: Int, z: Int): Int = {
+  def getColor(x: Int, y: Int, z: Int): Int = dirtyColumns.synchronized {
     val lbit = (volume(x + z * width) >>> y) & 1
     val hbit = (volume(x + z * width + width * width) >>> y) & 1
     lbit | (hbit << 1)
   }
 
-  def setColor(x: Int, y: Int, z: Int, value: Int): Unit = {
-    if ((value & 3) != getColor(x, y, z)) {
-      val lbit = value & 1
-      val hbit = (value >>> 1) & 1
-      volume(x + z * width) = (volume(x + z * width) & ~(1 << y)) | (lbit << y)
-      volume(x + z * width + width * width) = (volume(x + z * width + width * width) & ~(1 << y)) | (hbit << y)
-      isDirty = true
+  def setColor(x: Int, y: Int, z: Int, value: Int): Unit = dirtyColumns.synchronized {
+    val index = x + z * width
+    val lbit = value & 1
+    val hbit = (value >>> 1) & 1
+    setColumn(index, (volume(index) & ~(1 << y)) | (lbit << y), (volume(index + width * width) & ~(1 << y)) | (hbit << y))
+  }
+
+  /**
+    * Replaces both bitplanes of a column, marking it as changed if they differ from the current ones.
+    */
+  def setColumn(index: Int, lbits: Int, hbits: Int): Unit = dirtyColumns.synchronized {
+    if (volume(index) != lbits || volume(index + width * width) != hbits) {
+      volume(index) = lbits
+      volume(index + width * width) = hbits
+      dirtyColumns += index
+      _isDirty = true
+    }
+  }
+
+  /**
+    * Replaces the whole volume with the given voxel colors (nested x, z, y),
+    * only touching the columns that actually differ.
+    */
+  def setVolume(data: Array[Byte]): Unit = {
+    for (x <- 0 until width; z <- 0 until width) {
+      val offset = z * height + x * height * width
+      if (data.length >= offset + height) {
+        var lbit = 0
+        var hbit = 0
+        for (y <- (height - 1) to 0 by -1) {
+          val color = data(offset + y)
+          lbit |= (color & 1) << y
+          hbit |= ((color & 3) >>> 1) << y
+        }
+        setColumn(x + z * width, lbit, hbit)
+      }
     }
   }
 
+  override def needUpdate: Boolean = dirtyColumns.synchronized(dirtyColumns.nonEmpty)
+
+  override def update(): Unit = {
+    // the columns are taken together with their contents, so a column changed afterwards is
+    // marked again and sent with the next event
+    val event = dirtyColumns.synchronized {
+      if (dirtyColumns.isEmpty) None
+      else {
+        val columns = dirtyColumns.toArray
+        dirtyColumns.clear()
+        Some(HologramVolumeChangeEvent(node.address, columns,
+          columns.map(volume(_)), columns.map(index => volume(index + width * width))))
+      }
+    }
+    event.foreach(EventBus.send)
+  }
+
   @Callback(doc = """function() -- Clears the hologram.""")
   def clear(context: Context, args: Arguments): Array[AnyRef] = {
-    for (i <- volume.indices) volume(i) = 0
-    isDirty = true
+    for (index <- 0 until width * width) setColumn(index, 0, 0)
     null
   }
 
-  @Callback(direct = true, doc = """function(x:number, y:number, z:number):number -- Returns the value for the specified voxel.""")
+  @Callback(direct = true, readOnly = true, doc = """function(x:number, y:number, z:number):number -- Returns the value for the specified voxel.""")
   def get(context: Context, args: Arguments): Array[AnyRef] = {
     val (x, y, z) = checkCoordinates(args)
     result(getColor(x, y, z))
@@ -106,36 +166,19 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     val mask = (0xFFFFFFFF >>> (31 - (maxY - minY))) << (minY - 1)
     val lbit = value & 1
     val hbit = (value >>> 1) & 1
-    if (lbit == 0 || height == 0) volume(x + z * width) &= ~mask
-    else volume(x + z * width) |= mask
-    if (hbit == 0 || height == 0) volume(x + z * width + width * width) &= ~mask
-    else volume(x + z * width + width * width) |= mask
+    val index = x + z * width
+    dirtyColumns.synchronized {
+      setColumn(index,
+        if (lbit == 0 || height == 0) volume(index) & ~mask else volume(index) | mask,
+        if (hbit == 0 || height == 0) volume(index + width * width) & ~mask else volume(index + width * width) | mask)
+    }
 
-    isDirty = true
     null
   }
 
   @Callback(doc = """function(data:string) -- Set the raw buffer to the specified byte array, where each byte represents a voxel color. Nesting is x,z,y.""")
   def setRaw(context: Context, args: Arguments): Array[AnyRef] = {
-    val data = args.checkByteArray(0)
-    for (x <- 0 until width; z <- 0 until width) {
-      val offset = z * height + x * height * width
-      if (data.length >= offset + height) {
-        var lbit = 0
-        var hbit = 0
-        for (y <- (height - 1) to 0 by -1) {
-          val color = data(offset + y)
-          lbit |= (color & 1) << y
-          hbit |= ((color & 3) >>> 1) << y
-        }
-        val index = x + z * width
-        if (volume(index) != lbit || volume(index + width * width) != hbit) {
-          volume(index) = lbit
-          volume(index + width * width) = hbit
-          isDirty = true
-        }
-      }
-    }
+    setVolume(args.checkByteArray(0))
     context.pause(Settings.get.hologramSetRawDelay)
     null
   }
@@ -164,19 +207,19 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     }
     val (sx, sz) = (if (tx > 0) -1 else 1, if (tz > 0) -1 else 1)
     // Copy values to destination rectangle if there source is valid.
-    for (nz <- dz0 to dz1 by sz) {
-      nz - tz match {
-        case oz if oz >= 0 && oz < width =>
-          for (nx <- dx0 to dx1 by sx) {
-            nx - tx match {
-              case ox if ox >= 0 && ox < width =>
-                volume(nz * width + nx) = volume(oz * width + ox)
-                volume(nz * width + nx + width * width) = volume(oz * width + ox + width * width)
-                isDirty = true
-              case _ => /* Got no source column. */
+    dirtyColumns.synchronized {
+      for (nz <- dz0 to dz1 by sz) {
+        nz - tz match {
+          case oz if oz >= 0 && oz < width =>
+            for (nx <- dx0 to dx1 by sx) {
+              nx - tx match {
+                case ox if ox >= 0 && ox < width =>
+                  setColumn(nz * width + nx, volume(oz * width + ox), volume(oz * width + ox + width * width))
+                case _ => /* Got no source column. */
+              }
             }
-          }
-        case _ => /* Got no source row. */
+          case _ => /* Got no source row. */
+        }
       }
     }
 
@@ -190,7 +233,7 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     null
   }
 
-  @Callback(direct = true, doc = """function():number -- Returns the render scale of the hologram.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Returns the render scale of the hologram.""")
   def getScale(context: Context, args: Arguments): Array[AnyRef] = {
     result(scale)
   }
@@ -201,7 +244,7 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     null
   }
 
-  @Callback(direct = true, doc = """function():number, number, number -- Returns the relative render projection offsets of the hologram.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number, number, number -- Returns the relative render projection offsets of the hologram.""")
   def getTranslation(context: Context, args: Arguments): Array[AnyRef] = {
     result(translationX, translationY, translationZ)
   }
@@ -217,7 +260,7 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     null
   }
 
-  @Callback(direct = true, doc = """function():number -- The color depth supported by the hologram.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- The color depth supported by the hologram.""")
   def maxDepth(context: Context, args: Arguments): Array[AnyRef] = {
     result(tier.num)
   }
@@ -276,7 +319,7 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     else result((), "not supported")
   }
 
-  @Callback(direct = true, doc = "function():number, number, number -- Get the dimension of the x,y,z axes.")
+  @Callback(direct = true, readOnly = true, doc = "function():number, number, number -- Get the dimension of the x,y,z axes.")
   def getDimensions(context: Context, args: Arguments): Array[AnyRef] = {
     result(width, height, width)
   }
@@ -302,6 +345,7 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
   }
 
   private final val VolumeTag = "volume"
+  private final val VolumeRleTag = "volumeRle"
   private final val ColorsTag = "colors"
   private final val ScaleTag = "scale"
   private final val OffsetXTag = "offsetX"
@@ -318,7 +362,7 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
 
   override def save(nbt: NBTTagCompound): Unit = {
     super.save(nbt)
-    nbt.setIntArray(VolumeTag, volume)
+    nbt.setIntArray(VolumeRleTag, dirtyColumns.synchronized(encodeVolume()))
     nbt.setIntArray(ColorsTag, colors)
     nbt.setFloat(ScaleTag, scale)
     nbt.setFloat(OffsetXTag, translationX)
@@ -336,7 +380,11 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
 
   override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
     super.load(nbt, workspace)
-    nbt.getIntArray(VolumeTag).copyToArray(volume)
+    dirtyColumns.synchronized {
+      if (nbt.hasKey(VolumeRleTag)) decodeVolume(nbt.getIntArray(VolumeRleTag))
+      else nbt.getIntArray(VolumeTag).copyToArray(volume)
+      dirtyColumns.clear()
+    }
     nbt.getIntArray(ColorsTag).copyToArray(colors)
     scale = nbt.getFloat(ScaleTag)
     translationX = nbt.getFloat(OffsetXTag)
@@ -352,4 +400,32 @@ class HologramProjector(override var tier: Tier) extends Entity with Environment
     rotationSpeedZ = nbt.getFloat(RotationSpeedZTag)
     isDirty = true
   }
+
+  // Run-length encoding of both bitplanes as (count, value) pairs.
+  // Holograms are mostly empty, so this is a lot smaller than the raw volume.
+  private def encodeVolume(): Array[Int] = {
+    val encoded = mutable.ArrayBuilder.make[Int]
+    var i = 0
+    while (i < volume.length) {
+      val value = volume(i)
+      var count = 1
+      while (i + count < volume.length && volume(i + count) == value) count += 1
+      encoded += count
+      encoded += value
+      i += count
+    }
+    encoded.result()
+  }
+
+  private def decodeVolume(encoded: Array[Int]): Unit = {
+    var i = 0
+    var pair = 0
+    while (pair + 1 < encoded.length && i < volume.length) {
+      val end = math.min(volume.length, i + math.max(0, encoded(pair)))
+      java.util.Arrays.fill(volume, i, end, encoded(pair + 1))
+      i = end
+      pair += 2
+    }
+    java.util.Arrays.fill(volume, i, volume.length, 0)
+  }
 }
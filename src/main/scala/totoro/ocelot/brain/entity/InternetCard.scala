@@ -1,6 +1,8 @@
 package totoro.ocelot.brain.entity
 
+import com.google.common.cache.CacheBuilder
 import com.google.common.net.InetAddresses
+import com.google.common.util.concurrent.UncheckedExecutionException
 import totoro.ocelot.brain.entity.machine.{AbstractValue, Arguments, Callback, Context}
 import totoro.ocelot.brain.entity.traits.DeviceInfo.{DeviceAttribute, DeviceClass}
 import totoro.ocelot.brain.entity.traits.{DeviceInfo, Entity, Environment, Tiered}
@@ -13,10 +15,12 @@ import java.io._
 import java.net._
 import java.nio.ByteBuffer
 import java.nio.channels.{CancelledKeyException, SelectionKey, Selector, SocketChannel}
+import java.util
 import java.util.UUID
-import java.util.concurrent.{Callable, ConcurrentLinkedQueue, ExecutionException, Future}
+import java.util.concurrent.{Callable, ConcurrentLinkedQueue, ExecutionException, Future, TimeUnit}
 import scala.collection.mutable
 import scala.jdk.CollectionConverters._
+import scala.reflect.ClassTag
 
 class InternetCard extends Entity with Environment with DeviceInfo with Tiered {
   override val node: Component = Network.newNode(this, Visibility.Network).
@@ -55,8 +59,8 @@ class InternetCard extends Entity with Environment with DeviceInfo with Tiered {
     if (!Settings.get.httpEnabled) {
       return result((), "http requests are unavailable")
     }
-    if (connections.size >= Settings.get.maxConnections) {
-      throw new IOException("too many open connections")
+    if (count[InternetCard.HTTPRequest] >= Settings.get.maxHttpRequests) {
+      throw new IOException("too many open requests")
     }
     val post = if (args.isString(1)) Option(args.checkString(1)) else None
     val headers: Map[String, String] = if (args.isTable(2)) args.checkTable(2).asScala.collect {
@@ -86,7 +90,7 @@ class InternetCard extends Entity with Environment with DeviceInfo with Tiered {
     if (!Settings.get.tcpEnabled) {
       return result((), "tcp connections are unavailable")
     }
-    if (connections.size >= Settings.get.maxConnections) {
+    if (count[InternetCard.TCPSocket] >= Settings.get.maxConnections) {
       throw new IOException("too many open connections")
     }
     val uri = checkUri(address, port)
@@ -95,6 +99,11 @@ class InternetCard extends Entity with Environment with DeviceInfo with Tiered {
     result(socket)
   }
 
+  private def count[T <: InternetCard.Closable : ClassTag]: Int = connections.count {
+    case _: T => true
+    case _ => false
+  }
+
   private def checkOwner(context: Context): Unit = {
     if (owner.isEmpty || context.node != owner.get.node) {
       throw new IllegalArgumentException("can only be used by the owning computer")
@@ -173,61 +182,114 @@ class InternetCard extends Entity with Environment with DeviceInfo with Tiered {
 object InternetCard {
   private val threadPool = ThreadPoolFactory.create("Internet", Settings.get.internetThreads)
 
+  // Host name lookups, and the ones that failed, shared by all cards.
+  private val resolvedHosts = CacheBuilder.newBuilder().
+    expireAfterWrite(Settings.get.dnsCacheTtl, TimeUnit.SECONDS).
+    maximumSize(1024).
+    asInstanceOf[CacheBuilder[String, InetAddress]].
+    build[String, InetAddress]()
+
+  private val unknownHosts = CacheBuilder.newBuilder().
+    expireAfterWrite(Settings.get.dnsNegativeCacheTtl, TimeUnit.SECONDS).
+    maximumSize(1024).
+    asInstanceOf[CacheBuilder[String, UnknownHostException]].
+    build[String, UnknownHostException]()
+
+  /**
+    * Looks up the address of a host name, or returns the one looked up recently.
+    */
+  @throws[UnknownHostException]
+  def resolve(host: String): InetAddress = {
+    if (unknownHosts.getIfPresent(host) != null) throw new UnknownHostException(host)
+    try resolvedHosts.get(host, () => InetAddress.getByName(host)) catch {
+      case e: ExecutionException => e.getCause match {
+        case unknown: UnknownHostException =>
+          unknownHosts.put(host, unknown)
+          throw unknown
+        case cause => throw cause
+      }
+      case e: UncheckedExecutionException => throw e.getCause
+    }
+  }
+
   trait Closable {
     def close(): Unit
   }
 
+  /**
+    * The event loop of all TCP sockets, with one long-lived selector.
+    *
+    * Sockets are registered the first time they are armed, and stay registered until they are
+    * closed. Arming a socket adds interest in reading from or writing to it. Once it is ready, the
+    * interest is dropped again and its callback is run, which signals `internet_ready`.
+    */
   object TCPNotifier extends Thread {
-    private var selector = Selector.open()
-    private val toAccept = new ConcurrentLinkedQueue[(SocketChannel, () => Unit)]
+    private val selector = Selector.open()
+    // changes of registrations and interests, which have to be done on the loop's thread
+    private val pending = new ConcurrentLinkedQueue[Runnable]
+
+    setName("Ocelot-TCPNotifier")
+    setDaemon(true)
+    start()
 
-    //noinspection ScalaUnnecessaryParentheses
     override def run(): Unit = {
       while (true) {
         try {
-          LazyList.continually(toAccept.poll).takeWhile(_ != null).foreach({
-            case (channel: SocketChannel, action: (() => Unit)) =>
-              channel.register(selector, SelectionKey.OP_READ, action)
-            case (a, b) =>
-              Ocelot.log.error("Caught something unusual in InternetCard TCPNotifier: " + a + ", " + b)
-          })
+          var task = pending.poll()
+          while (task != null) {
+            task.run()
+            task = pending.poll()
+          }
 
           selector.select()
 
-          import scala.jdk.CollectionConverters._
-          val selectedKeys = selector.selectedKeys
-          val readableKeys = mutable.HashSet[SelectionKey]()
-          selectedKeys.asScala.filter(_.isReadable).foreach(key => {
-            key.attachment.asInstanceOf[() => Unit].apply()
-            readableKeys += key
-          })
-
-          if (readableKeys.nonEmpty) {
-            val newSelector = Selector.open()
-            selector.keys.asScala.filter(!readableKeys.contains(_)).foreach(key => {
-              key.channel.register(newSelector, SelectionKey.OP_READ, key.attachment)
-            })
-            selector.close()
-            selector = newSelector
+          val keys = selector.selectedKeys.iterator
+          while (keys.hasNext) {
+            val key = keys.next()
+            keys.remove()
+            if (key.isValid) {
+              val ready = key.readyOps & key.interestOps
+              if (ready != 0) {
+                key.interestOps(key.interestOps & ~ready)
+                key.attachment.asInstanceOf[() => Unit].apply()
+              }
+            }
           }
         } catch {
           case e: IOException =>
             Ocelot.log.error("Error in TCP selector loop.", e)
-            
+
           case e: CancelledKeyException =>
             Ocelot.log.error("Error in TCP selector loop.", e)
         }
       }
     }
 
-    def add(e: (SocketChannel, () => Unit)): Unit = {
-      toAccept.offer(e)
+    /**
+      * Runs `callback` once `channel` is ready for any of `ops` (`SelectionKey.OP_READ`,
+      * `SelectionKey.OP_WRITE`). The callback of a channel is the one it was first armed with.
+      */
+    def arm(channel: SocketChannel, ops: Int, callback: () => Unit): Unit = {
+      pending.offer(() => {
+        if (channel.isOpen) {
+          val key = channel.keyFor(selector)
+          if (key == null) channel.register(selector, ops, callback)
+          else if (key.isValid) key.interestOps(key.interestOps | ops)
+        }
+      })
+      selector.wakeup()
+    }
+
+    /**
+      * Closes `channel`. Its key is only deregistered, and the socket released, by the next
+      * selection, so the loop is woken up for that instead of waiting for an event of another socket.
+      */
+    def close(channel: SocketChannel): Unit = {
+      channel.close()
       selector.wakeup()
     }
   }
 
-  TCPNotifier.start()
-
   class TCPSocket extends AbstractValue with Closable {
     def this(owner: InternetCard, uri: URI, port: Int) {
       this()
@@ -242,17 +304,22 @@ object InternetCard {
     private var channel: SocketChannel = _
     private var isAddressResolved = false
     private val id = UUID.randomUUID()
+    // reused by all reads, grows to the largest size requested
+    private var readBuffer = ByteBuffer.allocate(0)
+
+    private val notifyReady: () => Unit = () => {
+      owner match {
+        case Some(internetCard) =>
+          internetCard.node.sendToVisible("computer.signal", "internet_ready", id.toString)
+        case _ =>
+          val channel = this.channel
+          if (channel != null) TCPNotifier.close(channel)
+      }
+    }
 
     private def setupSelector(): Unit = {
       if (channel == null) return
-      TCPNotifier.add((channel, () => {
-        owner match {
-          case Some(internetCard) =>
-            internetCard.node.sendToVisible("computer.signal", "internet_ready", id.toString)
-          case _ =>
-            channel.close()
-        }
-      }))
+      TCPNotifier.arm(channel, SelectionKey.OP_READ, notifyReady)
     }
 
     @Callback(doc = """function():boolean -- Ensures a socket is connected. Errors if the connection failed.""")
@@ -266,22 +333,27 @@ object InternetCard {
     def read(context: Context, args: Arguments): Array[AnyRef] = this.synchronized {
       val n = math.min(Settings.get.maxReadBuffer, math.max(0, args.optInteger(0, Int.MaxValue)))
       if (checkConnected()) {
-        val buffer = ByteBuffer.allocate(n)
-        val read = channel.read(buffer)
+        if (readBuffer.capacity < n) readBuffer = ByteBuffer.allocate(n)
+        readBuffer.clear()
+        readBuffer.limit(n)
+        val read = channel.read(readBuffer)
         if (read == -1) result(())
         else {
           setupSelector()
-          result(buffer.array.view.slice(0, read).toArray)
+          result(util.Arrays.copyOf(readBuffer.array, read))
         }
       }
       else result(Array.empty[Byte])
     }
 
-    @Callback(doc = """function(data:string):number -- Tries to write data to the socket stream. Returns the number of bytes written.""")
+    @Callback(doc = """function(data:string):number -- Tries to write data to the socket stream. Returns the number of bytes written. If not all data was written, an `internet_ready` signal follows once there is room for more.""")
     def write(context: Context, args: Arguments): Array[AnyRef] = this.synchronized {
       if (checkConnected()) {
-        val value = args.checkByteArray(0)
-        result(channel.write(ByteBuffer.wrap(value)))
+        val buffer = ByteBuffer.wrap(args.checkByteArray(0))
+        val written = channel.write(buffer)
+        // the send buffer is full, signal once there is room again
+        if (buffer.hasRemaining) TCPNotifier.arm(channel, SelectionKey.OP_WRITE, notifyReady)
+        result(written)
       }
       else result(0)
     }
@@ -306,7 +378,7 @@ object InternetCard {
       owner.foreach(card => {
         card.connections.remove(this)
         address.cancel(true)
-        channel.close()
+        TCPNotifier.close(channel)
         owner = None
         address = null
         channel = null
@@ -343,7 +415,7 @@ object InternetCard {
     // because the scala compiler breaks otherwise. Yay for compiler bugs.
     private class AddressResolver(val uri: URI, val port: Int) extends Callable[InetAddress] {
       override def call(): InetAddress = {
-        val resolved = InetAddress.getByName(uri.getHost)
+        val resolved = resolve(uri.getHost)
         checkLists(resolved, uri.getHost)
         val address = new InetSocketAddress(resolved, if (uri.getPort != -1) uri.getPort else port)
         channel.connect(address)
@@ -357,7 +429,7 @@ object InternetCard {
     if (!settings.internetAccessAllowed) {
       false
     } else {
-      val rules = settings.internetFilteringRules
+      val filter = settings.internetFilter
       inetAddress match {
         // IPv6 handling
         case inet6Address: Inet6Address =>
@@ -365,17 +437,17 @@ object InternetCard {
           // block this request.
           if (InetAddresses.hasEmbeddedIPv4ClientAddress(inet6Address)) {
             val inet4in6Address = InetAddresses.getEmbeddedIPv4ClientAddress(inet6Address)
-            if (!rules.map(r => r.apply(inet4in6Address, host)).collectFirst({ case Some(r) => r }).getOrElse(true)) {
+            if (!filter(inet4in6Address, host).getOrElse(true)) {
               return false
             }
           }
 
           // Process address as an IPv6 address.
-          rules.map(r => r.apply(inet6Address, host)).collectFirst({ case Some(r) => r }).getOrElse(false)
+          filter(inet6Address, host).getOrElse(false)
         // IPv4 handling
         case inet4Address: Inet4Address =>
           // Process address as an IPv4 address.
-          rules.map(r => r.apply(inet4Address, host)).collectFirst({ case Some(r) => r }).getOrElse(false)
+          filter(inet4Address, host).getOrElse(false)
         case _ =>
           // Unrecognized address type - block.
           Ocelot.log.warn("Internet Card blocked unrecognized address type: " + inetAddress.toString)
@@ -400,7 +472,12 @@ object InternetCard {
     private var owner: Option[InternetCard] = None
     private var response: Option[(Int, String, AnyRef)] = None
     private var stream: Future[InputStream] = _
-    private val queue = new ConcurrentLinkedQueue[Byte]()
+    // The last part of the body that was read, of which `chunkStart` until `chunkEnd` was not
+    // returned yet. The next part is read into `spare`, then the two are swapped.
+    private var chunk = Array.emptyByteArray
+    private var chunkStart = 0
+    private var chunkEnd = 0
+    private var spare: Array[Byte] = _
     private var reader: Future[_] = _
     private var eof = false
 
@@ -419,18 +496,15 @@ object InternetCard {
     def read(context: Context, args: Arguments): Array[AnyRef] = this.synchronized {
       val n = math.min(Settings.get.maxReadBuffer, math.max(0, args.optInteger(0, Int.MaxValue)))
       if (checkResponse()) {
-        if (eof && queue.isEmpty) result(())
+        if (eof && chunkStart == chunkEnd) result(())
         else {
-          val buffer = ByteBuffer.allocate(n)
-          var read = 0
-          while (!queue.isEmpty && read < n) {
-            buffer.put(queue.poll())
-            read += 1
-          }
-          if (read == 0) {
+          val count = math.min(n, chunkEnd - chunkStart)
+          val data = util.Arrays.copyOfRange(chunk, chunkStart, chunkStart + count)
+          chunkStart += count
+          if (chunkStart == chunkEnd) {
             readMore()
           }
-          result(buffer.array.view.slice(0, read).toArray)
+          result(data)
         }
       }
       else result(Array.empty[Byte])
@@ -450,10 +524,18 @@ object InternetCard {
     override def close(): Unit = {
       owner.foreach(card => {
         card.connections.remove(this)
-        stream.cancel(true)
         if (reader != null) {
           reader.cancel(true)
         }
+        if (stream.isDone) {
+          // closing the stream returns the connection for reuse, if the rest of the body is short;
+          // how many are kept per host is up to the JDK (`http.maxConnections`)
+          val stream = this.stream
+          if (!eof) threadPool.execute(() => try stream.get.close() catch {
+            case _: Throwable =>
+          })
+        }
+        else stream.cancel(true)
         owner = None
         stream = null
         reader = null
@@ -477,24 +559,43 @@ object InternetCard {
 
     private def readMore(): Unit = {
       if (reader == null || reader.isCancelled || reader.isDone) {
-        if (!eof) reader = threadPool.submit(new Runnable {
-          override def run(): Unit = {
-            val buffer = new Array[Byte](Settings.get.maxReadBuffer)
-            val count = stream.get.read(buffer)
-            if (count < 0) {
-              eof = true
+        if (!eof) {
+          val input = stream.get
+          val buffer = if (spare != null) spare else new Array[Byte](Settings.get.maxReadBuffer max 1)
+          spare = null
+          reader = threadPool.submit(new Runnable {
+            override def run(): Unit = {
+              val count = try input.read(buffer) catch {
+                case _: IOException => -1
+              }
+              HTTPRequest.this.synchronized {
+                if (count < 0) {
+                  eof = true
+                  // the body was read completely, so this returns the connection for reuse
+                  try input.close() catch {
+                    case _: IOException =>
+                  }
+                }
+                else {
+                  if (chunk.nonEmpty) spare = chunk
+                  chunk = buffer
+                  chunkStart = 0
+                  chunkEnd = count
+                }
+              }
             }
-            for (i <- 0 until count) {
-              queue.add(buffer(i))
-            }
-          }
-        })
+          })
+        }
       }
     }
 
     // This one doesn't (see comment in TCP socket), but I like to keep it consistent.
     private class RequestSender(val url: URL, val post: Option[String], val headers: Map[String, String], val method: Option[String]) extends Callable[InputStream] {
       override def call(): InputStream = try {
+        checkLists(resolve(url.getHost), url.getHost)
+        // The connection looks the host up again through the JDK, which may return another
+        // address than the cached one (e.g. of a host rebinding its name to a private address),
+        // so that address is checked as well.
         checkLists(InetAddress.getByName(url.getHost), url.getHost)
         url.openConnection() match {
           case http: HttpURLConnection => try {
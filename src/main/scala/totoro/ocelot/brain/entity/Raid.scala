@@ -51,6 +51,7 @@ class Raid
       nbtToSetAddress.setString("address", raidAddress)
       fs.node.load(nbtToSetAddress)
       fs.node.setVisibility(Visibility.Network)
+      fs.owner = Some(this)
       // Ensure we're in a network before connecting the raid fs.
       Network.joinNewNetwork(node)
       node.connect(fs.node)
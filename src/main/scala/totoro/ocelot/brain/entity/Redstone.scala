@@ -74,7 +74,7 @@ object Redstone {
       nbt.setIntArray(Tier1.RedstoneInputTag, _redstoneInput)
     }
 
-    @Callback(direct = true, doc = """function([side:number]):number or table -- Get the redstone input (all sides, or optionally on the specified side)""")
+    @Callback(direct = true, readOnly = true, doc = """function([side:number]):number or table -- Get the redstone input (all sides, or optionally on the specified side)""")
     def getInput(context: Context, args: Arguments): Array[AnyRef] = {
       getOptionalSide(args) match {
         case Some(side: Int) => result(_redstoneInput(side))
@@ -82,7 +82,7 @@ object Redstone {
       }
     }
 
-    @Callback(direct = true, doc = """function([side:number]):number or table -- Get the redstone output (all sides, or optionally on the specified side)""")
+    @Callback(direct = true, readOnly = true, doc = """function([side:number]):number or table -- Get the redstone output (all sides, or optionally on the specified side)""")
     def getOutput(context: Context, args: Arguments): Array[AnyRef] = {
       getOptionalSide(args) match {
         case Some(side: Int) => result(_redstoneOutput(side))
@@ -113,7 +113,7 @@ object Redstone {
       result(ret)
     }
 
-    @Callback(direct = true, doc = """function(side:number):number -- Get the comparator input on the specified side.""")
+    @Callback(direct = true, readOnly = true, doc = """function(side:number):number -- Get the comparator input on the specified side.""")
     def getComparatorInput(context: Context, args: Arguments): Array[AnyRef] = {
       checkSide(args, 0)
       result(0)
@@ -274,7 +274,7 @@ object Redstone {
       }
     }
 
-    @Callback(direct = true, doc = "function([side:number[, color:number]]):number or table -- Fewer params returns set of inputs")
+    @Callback(direct = true, readOnly = true, doc = "function([side:number[, color:number]]):number or table -- Fewer params returns set of inputs")
     def getBundledInput(context: Context, args: Arguments): Array[AnyRef] = {
       val (side, color) = getBundleKey(args)
 
@@ -287,7 +287,7 @@ object Redstone {
       }
     }
 
-    @Callback(direct = true, doc = "function([side:number[, color:number]]):number or table -- Fewer params returns set of outputs")
+    @Callback(direct = true, readOnly = true, doc = "function([side:number[, color:number]]):number or table -- Fewer params returns set of outputs")
     def getBundledOutput(context: Context, args: Arguments): Array[AnyRef] = {
       val (side, color) = getBundleKey(args)
 
@@ -89,6 +89,9 @@ class TapeDrive extends Entity with Environment with DeviceInfo with Inventory {
   override def update(): Unit = {
     super.update()
 
+    // playing, winding and seeking move the tape
+    if (enumState != State.Stopped) markModified()
+
     for (pkt <- state.update()) {
       EventBus.send(TapeDriveAudioEvent(node.address, pkt))
     }
@@ -198,17 +201,17 @@ class TapeDrive extends Entity with Environment with DeviceInfo with Inventory {
     result(isEnd)
   }
 
-  @Callback(doc = "function():boolean; Returns true if there is a tape inserted", direct = true)
+  @Callback(doc = "function():boolean; Returns true if there is a tape inserted", direct = true, readOnly = true)
   def isReady(context: Context, args: Arguments): Array[AnyRef] = {
     result(isReady)
   }
 
-  @Callback(doc = "function():number; Returns the size of the tape, in bytes", direct = true)
+  @Callback(doc = "function():number; Returns the size of the tape, in bytes", direct = true, readOnly = true)
   def getSize(context: Context, args: Arguments): Array[AnyRef] = {
     result(size)
   }
 
-  @Callback(doc = "function():number; Returns the position of the tape, in bytes", direct = true)
+  @Callback(doc = "function():number; Returns the position of the tape, in bytes", direct = true, readOnly = true)
   def getPosition(context: Context, args: Arguments): Array[AnyRef] = {
     result(position)
   }
@@ -296,7 +299,7 @@ class TapeDrive extends Entity with Environment with DeviceInfo with Inventory {
     result()
   }
 
-  @Callback(doc = "function():string; Returns the current state of the tape drive", direct = true)
+  @Callback(doc = "function():string; Returns the current state of the tape drive", direct = true, readOnly = true)
   def getState(context: Context, args: Arguments): Array[AnyRef] = {
     result(state.state.toString)
   }
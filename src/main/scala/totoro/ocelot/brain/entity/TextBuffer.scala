@@ -2,7 +2,7 @@ package totoro.ocelot.brain.entity
 
 import totoro.ocelot.brain.entity.machine.{Arguments, Callback, Context}
 import totoro.ocelot.brain.entity.traits.DeviceInfo.{DeviceAttribute, DeviceClass}
-import totoro.ocelot.brain.entity.traits.{DeviceInfo, Environment, TextBufferProxy, TieredPersistable, VideoRamRasterizer}
+import totoro.ocelot.brain.entity.traits.{DeviceInfo, Entity, Environment, TextBufferProxy, TieredPersistable, VideoRamRasterizer}
 import totoro.ocelot.brain.event._
 import totoro.ocelot.brain.nbt.NBTTagCompound
 import totoro.ocelot.brain.network.{Component, Network, Visibility}
@@ -39,7 +39,7 @@ class TextBuffer(var bufferTier: Tier = Tier.One)
 
   private var isDisplaying: Boolean = true
 
-  var _data = new GenericTextBuffer(maxResolution, PackedColor.Depth.format(maxDepth))
+  var _data: GenericTextBuffer = newData()
 
   override def data: GenericTextBuffer = _data
 
@@ -61,7 +61,20 @@ class TextBuffer(var bufferTier: Tier = Tier.One)
     bufferTier = value
     maxResolution = Settings.screenResolutionsByTier(bufferTier.id)
     maxDepth = Settings.screenDepthsByTier(bufferTier.id)
-    _data = new GenericTextBuffer(maxResolution, PackedColor.Depth.format(maxDepth))
+    _data = newData()
+  }
+
+  private def newData(): GenericTextBuffer = {
+    val data = new GenericTextBuffer(maxResolution, PackedColor.Depth.format(maxDepth))
+    data.onModified = () => markEntityModified()
+    data
+  }
+
+  // GPUs change the buffer directly instead of through the callbacks of this component,
+  // so changes have to mark the entity owning the buffer (e.g. a screen) modified here.
+  private def markEntityModified(): Unit = this match {
+    case entity: Entity => entity.markModified()
+    case _ =>
   }
 
   // ----------------------------------------------------------------------- //
@@ -122,6 +135,7 @@ class TextBuffer(var bufferTier: Tier = Tier.One)
     */
   def setPowerState(value: Boolean): Unit = {
     isDisplaying = value
+    markEntityModified()
   }
 
   /**
@@ -142,7 +156,10 @@ class TextBuffer(var bufferTier: Tier = Tier.One)
 
   override def getMaximumHeight: Int = maxResolution._2
 
-  override def setAspectRatio(width: Double, height: Double): Unit = this.synchronized(this.aspectRatio = (width, height))
+  override def setAspectRatio(width: Double, height: Double): Unit = this.synchronized {
+    this.aspectRatio = (width, height)
+    markEntityModified()
+  }
 
   override def getAspectRatio: Double = aspectRatio._1 / aspectRatio._2
 
@@ -171,6 +188,7 @@ class TextBuffer(var bufferTier: Tier = Tier.One)
     val (cw, ch) = viewport
     if (width != cw || height != ch) {
       viewport = (width, height)
+      markEntityModified()
       if (node != null) node.sendToReachable("computer.signal", "screen_resized", Int.box(width), Int.box(height))
       true
     }
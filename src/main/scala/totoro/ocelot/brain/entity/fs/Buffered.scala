@@ -1,26 +1,37 @@
 package totoro.ocelot.brain.entity.fs
 
 import org.apache.commons.io.FileUtils
-import totoro.ocelot.brain.Ocelot
 import totoro.ocelot.brain.nbt.NBTTagCompound
 import totoro.ocelot.brain.util.{SafeThreadPool, ThreadPoolFactory}
 import totoro.ocelot.brain.workspace.Workspace
+import totoro.ocelot.brain.{Ocelot, Settings}
 
 import java.io
-import java.io.FileNotFoundException
-import java.nio.ByteBuffer
+import java.io.IOException
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.{CancellationException, Future, TimeUnit, TimeoutException}
 import scala.collection.mutable
 
 object Buffered {
-  val fileSaveHandler: SafeThreadPool = ThreadPoolFactory.createSafePool("FileSystem", 1)
+  val fileSaveHandler: SafeThreadPool = ThreadPoolFactory.createSafePool("FileSystem", Settings.get.fileSystemFlushThreads)
 }
 
-trait Buffered extends OutputStreamFileSystem {
+/**
+  * A virtual file system that mirrors a directory of the host file system.
+  *
+  * Host files are only read when they are first accessed. On save, only the files that were
+  * written to, created or moved since the previous save are written back, spread over the
+  * threads of the `FileSystem` pool.
+  */
+trait Buffered extends VirtualFileSystem {
   protected def fileRoot: io.File
 
   private val deletions = mutable.Map.empty[String, Long]
 
+  // paths that were created, opened for writing or moved here since the last save
+  private val pending = mutable.Set.empty[String]
+
   // ----------------------------------------------------------------------- //
 
   override def delete(path: String): Boolean = {
@@ -34,22 +45,66 @@ trait Buffered extends OutputStreamFileSystem {
   override def rename(from: String, to: String): Boolean = {
     if (super.rename(from, to)) {
       deletions += from -> System.currentTimeMillis()
+      markMoved(to)
+      true
+    }
+    else false
+  }
+
+  override def makeDirectory(path: String): Boolean = {
+    if (super.makeDirectory(path)) {
+      pending += path
+      true
+    }
+    else false
+  }
+
+  override def setLastModified(path: String, time: Long): Boolean = {
+    if (super.setLastModified(path, time)) {
+      pending += path
       true
     }
     else false
   }
 
+  override protected def openOutputHandle(id: Int, path: String, mode: Mode.Value): Option[OutputHandle] = {
+    val result = super.openOutputHandle(id, path, mode)
+    if (result.isDefined) pending += path
+    result
+  }
+
+  // Everything below a moved path has to be written to its new location, and the
+  // contents must not be read lazily anymore, since the old host files will be deleted.
+  private def markMoved(path: String): Unit = {
+    root.get(segments(path)) match {
+      case Some(file: VirtualFile) =>
+        file.data
+        file.dirty = true
+        pending += path
+      case Some(directory: VirtualDirectory) =>
+        pending += path
+        val prefix = if (path.endsWith("/")) path else path + "/"
+        directory.children.keys.foreach(name => markMoved(prefix + name))
+      case _ =>
+    }
+  }
+
   // ----------------------------------------------------------------------- //
 
-  private var saving: Option[Future[_]] = None
+  private var saving: Seq[Future[_]] = Seq.empty
 
-  override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+  private def awaitSaving(): Unit = {
     saving.foreach(f => try {
       f.get(120L, TimeUnit.SECONDS)
     } catch {
       case _: TimeoutException => Ocelot.log.warn("Waiting for filesystem to save took two minutes! Aborting.")
       case _: CancellationException => // NO-OP
     })
+    saving = Seq.empty
+  }
+
+  override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+    awaitSaving()
     loadFiles(nbt)
     super.load(nbt, workspace)
   }
@@ -59,32 +114,19 @@ trait Buffered extends OutputStreamFileSystem {
       makeDirectory(path)
       for (child <- directory.listFiles() if FileSystemAPI.isValidFilename(child.getName)) {
         val childPath = path + child.getName
-        val childFile = new io.File(directory, child.getName)
-        if (child.exists() && child.isDirectory && child.list() != null) {
-          recurse(childPath + "/", childFile)
+        if (child.isDirectory && child.list() != null) {
+          recurse(childPath + "/", child)
         }
         else if (!exists(childPath) || !isDirectory(childPath)) {
-          openOutputHandle(0, childPath, Mode.Write) match {
-            case Some(stream) =>
-              try {
-                val in = new io.FileInputStream(childFile)
-                val buffer = new Array[Byte](8 * 1024)
-                var read = 0
-                do {
-                  read = in.read(buffer)
-                  if (read > 0) {
-                    if (read == buffer.length) stream.write(buffer)
-                    else stream.write(buffer.view.slice(0, read).toArray)
-                  }
-                } while (read >= 0)
-                in.close()
-              }
-              catch {
-                case _: FileNotFoundException => // File got deleted in the meantime.
-              }
-              stream.close()
-              setLastModified(childPath, childFile.lastModified())
-            case _ => // File is open for writing.
+          val parts = segments(childPath)
+          root.get(parts.dropRight(1)) match {
+            case Some(parent: VirtualDirectory) => parent.touch(parts.last) match {
+              case Some(file) if file.handle.isEmpty =>
+                file.loadLazily(child.length(), () => readHostFile(child))
+                file.lastModified = child.lastModified()
+              case _ => // File is open for writing.
+            }
+            case _ =>
           }
         }
       }
@@ -97,68 +139,96 @@ trait Buffered extends OutputStreamFileSystem {
     else {
       recurse("", fileRoot)
     }
+
+    // everything that was just loaded matches the host files already
+    pending.clear()
+  }
+
+  private def readHostFile(file: io.File): Array[Byte] = {
+    try Files.readAllBytes(file.toPath)
+    catch {
+      case e: IOException =>
+        Ocelot.log.warn(s"Failed loading file '$file'.", e)
+        Array.empty
+    }
   }
 
   override def save(nbt: NBTTagCompound): Unit = {
     super.save(nbt)
-    saving = Buffered.fileSaveHandler.withPool(_.submit(new Runnable {
-      override def run(): Unit = saveFiles()
-    }))
+    saveFiles()
   }
 
-  def saveFiles(): Unit = this.synchronized {
-    for ((path, time) <- deletions) {
-      val file = new io.File(fileRoot, path)
-      if (FileUtils.isFileOlder(file, time))
-        FileUtils.deleteQuietly(file)
+  /**
+    * Writes the changes made since the previous call back to the host file system.
+    * Deletions are applied right away, files are written by the `FileSystem` pool.
+    */
+  def saveFiles(): Unit = {
+    awaitSaving()
+
+    val writes = mutable.ArrayBuffer.empty[(io.File, Array[Byte], Long)]
+    val directories = mutable.Map.empty[io.File, Long]
+
+    this.synchronized {
+      for ((path, time) <- deletions) {
+        val file = new io.File(fileRoot, path)
+        if (FileUtils.isFileOlder(file, time))
+          FileUtils.deleteQuietly(file)
+      }
+      deletions.clear()
+
+      if (list("") == null || list("").isEmpty) {
+        fileRoot.delete()
+      }
+      else {
+        for (path <- pending) {
+          val parts = segments(path)
+          val hostFile = new io.File(fileRoot, parts.mkString("/"))
+          root.get(parts) match {
+            case Some(file: VirtualFile) if file.dirty =>
+              writes += ((hostFile, file.data.toArray, file.lastModified))
+              file.dirty = false
+              root.get(parts.dropRight(1)).foreach(parent => directories(hostFile.getParentFile) = parent.lastModified)
+            case Some(directory: VirtualDirectory) =>
+              hostFile.mkdirs()
+              directories(hostFile) = directory.lastModified
+            case _ =>
+          }
+        }
+      }
+      // files that are still open for writing may be written to again, so check them next time, too
+      pending.filterInPlace(path => root.get(segments(path)) match {
+        case Some(file: VirtualFile) => file.handle.isDefined
+        case _ => false
+      })
     }
-    deletions.clear()
-
-    val buffer = ByteBuffer.allocateDirect(16 * 1024)
-    def recurse(path: String): Boolean = {
-      val directory = new io.File(fileRoot, path)
-      directory.mkdirs()
-      var dirChanged = false
-      for (child <- list(path)) {
-        val childPath = path + child
-        if (isDirectory(childPath))
-          dirChanged = recurse(childPath) || dirChanged
-        else {
-          val childFile = new io.File(fileRoot, childPath)
-          val time = lastModified(childPath)
-          if (time == 0 || !childFile.exists() || FileUtils.isFileOlder(childFile, time)) {
-            FileUtils.deleteQuietly(childFile)
-            childFile.createNewFile()
-            val out = new io.FileOutputStream(childFile).getChannel
-            val in = openInputChannel(childPath).get
-
-            buffer.clear()
-            while (in.read(buffer) != -1) {
-              buffer.flip()
-              out.write(buffer)
-              buffer.compact()
-            }
 
-            buffer.flip()
-            while (buffer.hasRemaining) {
-              out.write(buffer)
-            }
+    // directory times are set last, since writing files into them changes them
+    def setDirectoryTimes(): Unit = directories.foreach {
+      case (directory, time) => directory.setLastModified(time)
+    }
 
-            out.close()
-            in.close()
-            childFile.setLastModified(time)
-            dirChanged = true
+    if (writes.isEmpty) setDirectoryTimes()
+    else {
+      val remaining = new AtomicInteger(writes.size)
+      saving = writes.toSeq.flatMap {
+        case (file, data, time) => Buffered.fileSaveHandler.withPool(_.submit(new Runnable {
+          override def run(): Unit = {
+            try writeHostFile(file, data, time)
+            finally if (remaining.decrementAndGet() == 0) setDirectoryTimes()
           }
-        }
+        }))
       }
-      if (dirChanged) {
-        directory.setLastModified(lastModified(path))
-        true
-      } else false
     }
-    if (list("") == null || list("").isEmpty) {
-      fileRoot.delete()
+  }
+
+  private def writeHostFile(file: io.File, data: Array[Byte], time: Long): Unit = {
+    try {
+      file.getParentFile.mkdirs()
+      Files.write(file.toPath, data)
+      file.setLastModified(time)
+    }
+    catch {
+      case e: IOException => Ocelot.log.warn(s"Failed saving file '$file'.", e)
     }
-    else recurse("")
   }
 }
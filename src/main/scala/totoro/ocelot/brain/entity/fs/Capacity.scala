@@ -2,6 +2,7 @@ package totoro.ocelot.brain.entity.fs
 
 import totoro.ocelot.brain.Settings
 import totoro.ocelot.brain.nbt.NBTTagCompound
+import totoro.ocelot.brain.util.ChunkedByteArray
 import totoro.ocelot.brain.workspace.Workspace
 
 import java.io
@@ -117,7 +118,8 @@ trait Capacity extends OutputStreamFileSystem {
         list(path).foldLeft(0L)((acc, child) => acc + computeSize(path + child))
       else 0)
 
-  protected class CountingOutputHandle(override val owner: Capacity, val inner: OutputHandle) extends OutputHandle(inner.owner, inner.handle, inner.path) {
+  protected class CountingOutputHandle(override val owner: Capacity, val inner: OutputHandle)
+    extends OutputHandle(inner.owner, inner.handle, inner.path) with VirtualFileSystem.SharingOutputHandle {
     override def isClosed: Boolean = inner.isClosed
 
     override def length: Long = inner.length
@@ -128,11 +130,23 @@ trait Capacity extends OutputStreamFileSystem {
 
     override def seek(to: Long): Long = inner.seek(to)
 
-    override def write(b: Array[Byte]): Unit = {
-      if (owner.capacity - owner.used < b.length && !ignoreCapacity)
+    override def write(b: Array[Byte]): Unit = write(b, 0, b.length)
+
+    override def write(b: Array[Byte], offset: Int, count: Int): Unit = {
+      if (owner.capacity - owner.used < count && !ignoreCapacity)
         throw new io.IOException("not enough space")
-      inner.write(b)
-      owner.used = owner.used + b.length
+      inner.write(b, offset, count)
+      owner.used = owner.used + count
+    }
+
+    override def writeShared(data: ChunkedByteArray): Unit = {
+      if (owner.capacity - owner.used < data.length && !ignoreCapacity)
+        throw new io.IOException("not enough space")
+      inner match {
+        case sharing: VirtualFileSystem.SharingOutputHandle => sharing.writeShared(data)
+        case _ => inner.write(data.toArray)
+      }
+      owner.used = owner.used + data.length
     }
   }
 
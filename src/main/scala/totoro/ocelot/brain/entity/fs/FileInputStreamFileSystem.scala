@@ -1,7 +1,7 @@
 package totoro.ocelot.brain.entity.fs
 
 import java.io
-import java.nio.channels
+import java.nio.{ByteBuffer, channels}
 
 trait FileInputStreamFileSystem extends InputStreamFileSystem {
   protected def root: io.File
@@ -61,7 +61,36 @@ trait FileInputStreamFileSystem extends InputStreamFileSystem {
 
     override def isOpen: Boolean = channel.isOpen
 
-    override def read(dst: Array[Byte]): Int = channel.read(java.nio.ByteBuffer.wrap(dst))
+    override def read(dst: Array[Byte]): Int = read(dst, 0, dst.length)
+
+    // Positional reads through a reused direct buffer, which spares the
+    // channel from allocating a temporary one for every read.
+    override def read(dst: Array[Byte], offset: Int, count: Int): Int = {
+      val buffer = FileInputStreamFileSystem.readBuffer.get()
+      var position = channel.position
+      var done = 0
+      var eof = false
+      while (done < count && !eof) {
+        buffer.clear()
+        buffer.limit(math.min(buffer.capacity, count - done))
+        val n = channel.read(buffer, position)
+        if (n <= 0) eof = true
+        else {
+          buffer.flip()
+          buffer.get(dst, offset + done, n)
+          position += n
+          done += n
+        }
+      }
+      channel.position(position)
+      if (done == 0 && eof && count > 0) -1 else done
+    }
   }
 
 }
+
+object FileInputStreamFileSystem {
+  private final val ReadBufferSize = 64 * 1024
+
+  private val readBuffer = ThreadLocal.withInitial(() => ByteBuffer.allocateDirect(ReadBufferSize))
+}
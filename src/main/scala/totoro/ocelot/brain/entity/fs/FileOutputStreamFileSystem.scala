@@ -74,6 +74,8 @@ trait FileOutputStreamFileSystem extends FileInputStreamFileSystem with OutputSt
     }
 
     override def write(value: Array[Byte]): Unit = file.write(value)
+
+    override def write(value: Array[Byte], offset: Int, count: Int): Unit = file.write(value, offset, count)
   }
 
 }
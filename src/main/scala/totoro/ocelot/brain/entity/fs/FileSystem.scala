@@ -3,7 +3,7 @@ package totoro.ocelot.brain.entity.fs
 import totoro.ocelot.brain.entity.machine.{Arguments, Callback, Context}
 import totoro.ocelot.brain.entity.result
 import totoro.ocelot.brain.entity.traits.DeviceInfo.{DeviceAttribute, DeviceClass}
-import totoro.ocelot.brain.entity.traits.{DeviceInfo, DiskActivityAware, Environment}
+import totoro.ocelot.brain.entity.traits.{DeviceInfo, DiskActivityAware, Entity, Environment}
 import totoro.ocelot.brain.event.EventBus
 import totoro.ocelot.brain.event.FileSystemActivityType.ActivityType
 import totoro.ocelot.brain.nbt.ExtendedNBT._
@@ -29,6 +29,11 @@ class FileSystem(val fileSystem: FileSystemTrait, var label: Label, val speed: I
 
   private val owners = mutable.Map.empty[String, mutable.Set[Int]]
 
+  /**
+    * The entity that saves this file system, marked modified whenever one of its callbacks is invoked.
+    */
+  var owner: Option[Entity] = None
+
   final val readCosts = Array(1.0 / 1, 1.0 / 4, 1.0 / 7, 1.0 / 10, 1.0 / 13, 1.0 / 15)
   final val seekCosts = Array(1.0 / 1, 1.0 / 4, 1.0 / 7, 1.0 / 10, 1.0 / 13, 1.0 / 15)
   final val writeCosts = Array(1.0 / 1, 1.0 / 2, 1.0 / 3, 1.0 / 4, 1.0 / 5, 1.0 / 6)
@@ -50,7 +55,7 @@ class FileSystem(val fileSystem: FileSystemTrait, var label: Label, val speed: I
 
   // ----------------------------------------------------------------------- //
 
-  @Callback(direct = true, doc = """function():string -- Get the current label of the drive.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the current label of the drive.""")
   def getLabel(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     if (label != null) result(label.getLabel) else null
   }
@@ -63,42 +68,42 @@ class FileSystem(val fileSystem: FileSystemTrait, var label: Label, val speed: I
     result(label.getLabel)
   }
 
-  @Callback(direct = true, doc = """function():boolean -- Returns whether the file system is read-only.""")
+  @Callback(direct = true, readOnly = true, doc = """function():boolean -- Returns whether the file system is read-only.""")
   def isReadOnly(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     result(fileSystem.isReadOnly)
   }
 
-  @Callback(direct = true, doc = """function():number -- The overall capacity of the file system, in bytes.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- The overall capacity of the file system, in bytes.""")
   def spaceTotal(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     val space = fileSystem.spaceTotal
     if (space < 0) result(Double.PositiveInfinity)
     else result(space)
   }
 
-  @Callback(direct = true, doc = """function():number -- The currently used capacity of the file system, in bytes.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- The currently used capacity of the file system, in bytes.""")
   def spaceUsed(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     result(fileSystem.spaceUsed)
   }
 
-  @Callback(direct = true, doc = """function(path:string):boolean -- Returns whether an object exists at the specified absolute path in the file system.""")
+  @Callback(direct = true, readOnly = true, doc = """function(path:string):boolean -- Returns whether an object exists at the specified absolute path in the file system.""")
   def exists(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     diskActivity()
     result(fileSystem.exists(clean(args.checkString(0))))
   }
 
-  @Callback(direct = true, doc = """function(path:string):number -- Returns the size of the object at the specified absolute path in the file system.""")
+  @Callback(direct = true, readOnly = true, doc = """function(path:string):number -- Returns the size of the object at the specified absolute path in the file system.""")
   def size(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     diskActivity()
     result(fileSystem.size(clean(args.checkString(0))))
   }
 
-  @Callback(direct = true, doc = """function(path:string):boolean -- Returns whether the object at the specified absolute path in the file system is a directory.""")
+  @Callback(direct = true, readOnly = true, doc = """function(path:string):boolean -- Returns whether the object at the specified absolute path in the file system is a directory.""")
   def isDirectory(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     diskActivity()
     result(fileSystem.isDirectory(clean(args.checkString(0))))
   }
 
-  @Callback(direct = true, doc = """function(path:string):number -- Returns the (real world) timestamp of when the object at the specified absolute path in the file system was modified.""")
+  @Callback(direct = true, readOnly = true, doc = """function(path:string):number -- Returns the (real world) timestamp of when the object at the specified absolute path in the file system was modified.""")
   def lastModified(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
     diskActivity()
     result(fileSystem.lastModified(clean(args.checkString(0))))
@@ -170,18 +175,18 @@ class FileSystem(val fileSystem: FileSystemTrait, var label: Label, val speed: I
     checkOwner(context.node.address, handle)
     Option(fileSystem.getHandle(handle)) match {
       case Some(file) =>
-        // Limit size of read buffer to avoid crazy allocations.
-        val buffer = new Array[Byte](n)
-        val read = file.read(buffer)
-        if (read >= 0) {
-          val bytes =
-            if (read == buffer.length)
-              buffer
-            else {
-              val bytes = new Array[Byte](read)
-              Array.copy(buffer, 0, bytes, 0, read)
-              bytes
-            }
+        // Limit size of read buffer to avoid crazy allocations, and to what is left of the file,
+        // so the buffer can be filled completely and passed on as is.
+        val remaining = file.length - file.position
+        val buffer = new Array[Byte](if (remaining > 0) math.min(n.toLong, remaining).toInt else math.min(n, 1))
+        var filled = 0
+        var read = 0
+        while (read >= 0 && filled < buffer.length) {
+          read = file.read(buffer, filled, buffer.length - filled)
+          if (read > 0) filled += read
+        }
+        if (filled > 0 || read >= 0) {
+          val bytes = if (filled == buffer.length) buffer else java.util.Arrays.copyOf(buffer, filled)
           diskActivity()
           result(bytes)
         }
@@ -227,6 +232,26 @@ class FileSystem(val fileSystem: FileSystemTrait, var label: Label, val speed: I
     }
   }
 
+  @Callback(doc = """function(from:string, to:string[, target:string[, offset:number]]):number, boolean -- Copies a file to the specified absolute path, in this file system or in the one with the specified address. Each call copies a limited amount of data, so for large files call this again with the offset increased by the number of bytes copied, until the second result is true. Returns the number of bytes copied and whether the end of the file was reached.""")
+  def copy(context: Context, args: Arguments): Array[AnyRef] = fileSystem.synchronized {
+    val from = clean(args.checkString(0))
+    val to = clean(args.checkString(1))
+    val target =
+      if (args.count() < 3 || args.checkAny(2) == null) this
+      else node.network.node(args.checkString(2)) match {
+        case component: Component if component.host.isInstanceOf[FileSystem] && component.canBeSeenFrom(context.node) =>
+          component.host.asInstanceOf[FileSystem]
+        case _ => throw new IllegalArgumentException("no such file system")
+      }
+    val offset = args.optLong(3, 0) max 0
+    val copied = target.fileSystem.synchronized {
+      fileSystem.copy(from, target.fileSystem, to, offset, Settings.get.maxCopyChunk)
+    }
+    diskActivity()
+    if (target ne this) target.diskActivity()
+    result(copied, offset + copied >= fileSystem.size(from))
+  }
+
   // ----------------------------------------------------------------------- //
 
   def checkHandle(args: Arguments, index: Int): Int = {
@@ -2,7 +2,7 @@ package totoro.ocelot.brain.entity.fs
 
 import totoro.ocelot.brain.util.Persistable
 
-import java.io.FileNotFoundException
+import java.io.{FileNotFoundException, IOException}
 
 /**
   * Interface for file system driver compatible file systems.
@@ -227,6 +227,51 @@ trait FileSystemTrait extends Persistable {
     */
   def getHandle(handle: Int): Handle
 
+  /**
+    * Copies a file to another file system, or to another path of this one.
+    *
+    * The target file is created or replaced, or appended to when continuing
+    * a copy at an offset. The data is moved in large chunks through handles
+    * of both file systems, so capacity limits and read-only file systems are
+    * respected as usual.
+    *
+    * @param from   the path to the file to copy.
+    * @param target the file system to copy the file to, may be this one.
+    * @param to     the path to copy the file to, in the target file system.
+    * @param offset the offset in the source to start copying at. If it is
+    *               not zero, the data is appended to the target file.
+    * @param limit  the maximum number of bytes to copy.
+    * @return the number of bytes copied.
+    * @throws FileNotFoundException if the source is not a file, or the
+    *                               target cannot be opened for writing.
+    */
+  @throws[IOException]
+  def copy(from: String, target: FileSystemTrait, to: String, offset: Long = 0, limit: Long = Long.MaxValue): Long = {
+    if ((target eq this) && from == to) throw new IOException("cannot copy a file onto itself")
+    val input = open(from, Mode.Read)
+    try {
+      val output = target.open(to, if (offset > 0) Mode.Append else Mode.Write)
+      try {
+        val source = getHandle(input)
+        val destination = target.getHandle(output)
+        if (offset > 0) source.seek(offset)
+        val buffer = new Array[Byte](64 * 1024)
+        var copied = 0L
+        var read = 0
+        while (read >= 0 && copied < limit) {
+          read = source.read(buffer, 0, math.min(buffer.length.toLong, limit - copied).toInt)
+          if (read > 0) {
+            destination.write(buffer, 0, read)
+            copied += read
+          }
+        }
+        copied
+      }
+      finally Option(target.getHandle(output)).foreach(_.close())
+    }
+    finally Option(getHandle(input)).foreach(_.close())
+  }
+
   /**
     * Called when the file system is destroyed.
     *
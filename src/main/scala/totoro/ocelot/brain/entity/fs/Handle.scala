@@ -41,6 +41,26 @@ trait Handle {
   @throws[IOException]
   def read(into: Array[Byte]): Int
 
+  /**
+    * Like `read(into)`, but reads at most `count` bytes into `into`,
+    * starting at `offset`.
+    *
+    * The default implementation reads into a temporary array, handles that
+    * can read into a part of an array directly should override this.
+    *
+    * @return the number of bytes read; -1 if there are no more bytes (EOF).
+    */
+  @throws[IOException]
+  def read(into: Array[Byte], offset: Int, count: Int): Int = {
+    if (offset == 0 && count == into.length) read(into)
+    else {
+      val buffer = new Array[Byte](count)
+      val read = this.read(buffer)
+      if (read > 0) System.arraycopy(buffer, 0, into, offset, read)
+      read
+    }
+  }
+
   /**
     * Jump to the specified position in the file, if possible.
     *
@@ -66,4 +86,17 @@ trait Handle {
     */
   @throws[IOException]
   def write(value: Array[Byte]): Unit
+
+  /**
+    * Like `write(value)`, but only writes the `count` bytes of `value`
+    * starting at `offset`.
+    *
+    * The default implementation copies them into a temporary array, handles
+    * that can write a part of an array directly should override this.
+    */
+  @throws[IOException]
+  def write(value: Array[Byte], offset: Int, count: Int): Unit = {
+    if (offset == 0 && count == value.length) write(value)
+    else write(java.util.Arrays.copyOfRange(value, offset, offset + count))
+  }
 }
@@ -100,9 +100,21 @@ trait InputStreamFileSystem extends FileSystemTrait {
 
     def read(dst: Array[Byte]): Int
 
+    def read(dst: Array[Byte], offset: Int, count: Int): Int = {
+      if (offset == 0 && count == dst.length) read(dst)
+      else {
+        val buffer = new Array[Byte](count)
+        val n = read(buffer)
+        if (n > 0) System.arraycopy(buffer, 0, dst, offset, n)
+        n
+      }
+    }
+
     override def read(dst: ByteBuffer): Int = {
       if (dst.hasArray) {
-        read(dst.array())
+        val n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining())
+        if (n > 0) dst.position(dst.position() + n)
+        n
       }
       else {
         val count = math.max(0, dst.limit() - dst.position())
@@ -137,6 +149,12 @@ trait InputStreamFileSystem extends FileSystemTrait {
       position_ += read
       read
     }
+
+    override def read(dst: Array[Byte], offset: Int, count: Int): Int = {
+      val read = inputStream.read(dst, offset, count)
+      if (read > 0) position_ += read
+      read
+    }
   }
 
   // ----------------------------------------------------------------------- //
@@ -153,6 +171,8 @@ trait InputStreamFileSystem extends FileSystemTrait {
 
     override def read(into: Array[Byte]): Int = channel.read(into)
 
+    override def read(into: Array[Byte], offset: Int, count: Int): Int = channel.read(into, offset, count)
+
     override def seek(to: Long): Long = channel.position(to)
 
     override def write(value: Array[Byte]): Unit = throw new IOException("bad file descriptor")
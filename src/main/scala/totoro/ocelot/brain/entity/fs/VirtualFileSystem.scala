@@ -1,12 +1,12 @@
 package totoro.ocelot.brain.entity.fs
 
 import totoro.ocelot.brain.nbt.{NBT, NBTTagCompound, NBTTagList}
-import totoro.ocelot.brain.workspace.Workspace
+import totoro.ocelot.brain.util.ChunkedByteArray
+import totoro.ocelot.brain.workspace.{BlobStore, Workspace}
 
 import java.io
 import java.io.{FileNotFoundException, InputStream}
 import scala.collection.mutable
-import scala.collection.mutable.ArrayBuffer
 
 trait VirtualFileSystem extends OutputStreamFileSystem {
   protected val root = new VirtualDirectory
@@ -100,6 +100,23 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
       case _ => false
     }
 
+  // Files copied to a virtual file system as a whole share their pages with the copy, until either
+  // of them is written to. The target is still opened for writing as usual, so it is charged for
+  // the full size up front and everything else that tracks writes sees the copy.
+  override def copy(from: String, target: FileSystemTrait, to: String, offset: Long, limit: Long): Long =
+    (root.get(segments(from)), target) match {
+      case (Some(file: VirtualFile), _: VirtualFileSystem) if offset == 0 && file.size <= limit && !((target eq this) && from == to) =>
+        val data = file.data
+        val output = target.open(to, Mode.Write)
+        try target.getHandle(output) match {
+          case handle: VirtualFileSystem.SharingOutputHandle => handle.writeShared(data)
+          case handle => handle.write(data.toArray)
+        }
+        finally Option(target.getHandle(output)).foreach(_.close())
+        data.length
+      case _ => super.copy(from, target, to, offset, limit)
+    }
+
   // ----------------------------------------------------------------------- //
 
   protected def openInputChannel(path: String): Option[InputStreamChannel] =
@@ -165,13 +182,70 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
   // ----------------------------------------------------------------------- //
 
   protected class VirtualFile extends VirtualObject {
-    val data: ArrayBuffer[Byte] = mutable.ArrayBuffer.empty[Byte]
+    private var contents = new ChunkedByteArray()
+
+    // Reads the contents on first access, for files that are loaded lazily.
+    private var loader: Option[() => Array[Byte]] = None
+    private var loaderSize = 0L
 
     var handle: Option[VirtualOutputHandle] = None
 
+    /**
+      * Whether the contents were changed since whoever persists them last did so.
+      * New files are dirty, since they do not exist anywhere else yet.
+      */
+    var dirty = true
+
+    // The hash the contents were stored with in the blob store of the workspace, until they change.
+    private var blobHash: Option[String] = None
+
+    /**
+      * To be called after every change of the contents.
+      */
+    def changed(): Unit = {
+      dirty = true
+      blobHash = None
+    }
+
+    def data: ChunkedByteArray = {
+      loader.foreach(load => {
+        loader = None
+        contents = ChunkedByteArray(load())
+      })
+      contents
+    }
+
+    /**
+      * Defers loading the contents until they are accessed for the first time.
+      */
+    def loadLazily(size: Long, load: () => Array[Byte]): Unit = {
+      contents.clear()
+      loader = Some(load)
+      loaderSize = size
+      dirty = false
+      blobHash = None
+    }
+
+    def isLoaded: Boolean = loader.isEmpty
+
+    def truncate(): Unit = {
+      loader = None
+      contents.clear()
+      changed()
+    }
+
+    /**
+      * Replaces the contents with a copy of `data` that shares its pages until either is written to.
+      */
+    def share(data: ChunkedByteArray): Unit = {
+      loader = None
+      contents = data.copy()
+      changed()
+    }
+
     override def isDirectory = false
 
-    override def size: Long = data.length
+    override def size: Long = if (loader.isDefined) loaderSize else contents.length
 
     def openInputStream(): Option[InputStream] = Some(new VirtualFileInputStream(this))
 
@@ -179,7 +253,7 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
       if (handle.isDefined) None
       else {
         if (mode == Mode.Write) {
-          data.clear()
+          truncate()
           lastModified = System.currentTimeMillis()
         }
         handle = Some(new VirtualOutputHandle(this, owner, id, path))
@@ -188,13 +262,17 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
 
     override def load(nbt: NBTTagCompound): Unit = {
       super.load(nbt)
-      data.clear()
-      data ++= nbt.getByteArray("data")
+      loader = None
+      contents = ChunkedByteArray(BlobStore.getByteArray(nbt, "data"))
+      dirty = false
+      blobHash = None
     }
 
     override def save(nbt: NBTTagCompound): Unit = {
       super.save(nbt)
-      nbt.setByteArray("data", data.toArray)
+      if (!blobHash.exists(hash => BlobStore.setStoredByteArray(nbt, "data", hash))) {
+        blobHash = BlobStore.setByteArray(nbt, "data", data.toArray)
+      }
     }
 
     override def canDelete: Boolean = handle.isEmpty
@@ -300,7 +378,7 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
         if (available == 0) -1
         else {
           position += 1
-          file.data(position - 1)
+          file.data(position - 1) & 0xFF
         }
       }
       else throw new io.IOException("file is closed")
@@ -310,8 +388,7 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
         val count = available()
         if (count == 0) -1
         else {
-          val n = math.min(len, count)
-          file.data.view.slice(position, file.data.length).copyToArray(b, off, n)
+          val n = file.data.read(position, b, off, math.min(len, count))
           position += n
           n
         }
@@ -335,7 +412,7 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
   // ----------------------------------------------------------------------- //
 
   protected class VirtualOutputHandle(val file: VirtualFile, owner: OutputStreamFileSystem, handle: Int, path: String)
-    extends OutputHandle(owner, handle, path) {
+    extends OutputHandle(owner, handle, path) with VirtualFileSystem.SharingOutputHandle {
 
     override def length: Long = file.size
 
@@ -353,16 +430,39 @@ trait VirtualFileSystem extends OutputStreamFileSystem {
       position
     }
 
-    override def write(b: Array[Byte]): Unit =
+    override def write(b: Array[Byte]): Unit = write(b, 0, b.length)
+
+    override def write(b: Array[Byte], offset: Int, count: Int): Unit =
       if (!isClosed) {
         val pos = position.toInt
-        file.data.insertAll(file.data.length, Seq.fill[Byte]((pos + b.length) - file.data.length)(0))
-        for (i <- b.indices) {
-          file.data(pos + i) = b(i)
-        }
-        position += b.length
+        file.data.write(pos, b, offset, count)
+        position += count
         file.lastModified = System.currentTimeMillis()
+        file.changed()
       }
       else throw new io.IOException("file is closed")
+
+    override def writeShared(data: ChunkedByteArray): Unit =
+      if (isClosed) throw new io.IOException("file is closed")
+      else if (position != 0 || file.size != 0) write(data.toArray)
+      else {
+        file.share(data)
+        position = data.length
+        file.lastModified = System.currentTimeMillis()
+      }
+  }
+}
+
+object VirtualFileSystem {
+
+  /**
+    * An output handle that can take the whole contents of a virtual file without copying them.
+    */
+  trait SharingOutputHandle extends Handle {
+    /**
+      * Writes all of `data`, sharing its pages where possible.
+      */
+    @throws[io.IOException]
+    def writeShared(data: ChunkedByteArray): Unit
   }
 }
@@ -1,126 +1,105 @@
 package totoro.ocelot.brain.entity.fs
 
-import com.google.common.cache.CacheBuilder
+import com.google.common.cache.{CacheBuilder, Weigher}
+import org.apache.commons.io.IOUtils
 import totoro.ocelot.brain.Ocelot
-import totoro.ocelot.brain.entity.fs.ZipFileInputStreamFileSystem.{ArchiveDirectory, ArchiveFile}
+import totoro.ocelot.brain.entity.fs.ZipFileInputStreamFileSystem.{Archive, ArchiveIndex}
 
 import java.io
 import java.io.ByteArrayInputStream
-import java.util.concurrent.Callable
+import java.util.concurrent.{Callable, ExecutionException}
 import java.util.zip.{ZipEntry, ZipFile}
-import scala.collection.mutable
-import scala.language.postfixOps
-
-class ZipFileInputStreamFileSystem(private val archive: ArchiveDirectory) extends InputStreamFileSystem {
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+/**
+  * A read-only file system backed by a directory in a ZIP file.
+  *
+  * The index of the archive is immutable and shared by all file systems of the same archive and
+  * directory, so none of the methods lock. File contents are read from the ZIP file when a file is
+  * opened, and kept in a cache of limited size shared by all archives.
+  */
+class ZipFileInputStreamFileSystem(private val index: ArchiveIndex) extends InputStreamFileSystem {
 
   def spaceTotal: Long = spaceUsed
 
-  def spaceUsed: Long = spaceUsed_
-
-  private lazy val spaceUsed_ = ZipFileInputStreamFileSystem.synchronized {
-    def recurse(d: ArchiveDirectory): Long = d.children.foldLeft(0L)((acc, c) => acc + (c match {
-      case directory: ArchiveDirectory => recurse(directory)
-      case file: ArchiveFile => file.size
-    }))
-
-    recurse(archive)
-  }
+  def spaceUsed: Long = index.size
 
   // ----------------------------------------------------------------------- //
 
-  override def exists(path: String): Boolean = ZipFileInputStreamFileSystem.synchronized {
-    entry(path).isDefined
-  }
+  override def exists(path: String): Boolean = entry(path).isDefined
 
-  override def size(path: String): Long = ZipFileInputStreamFileSystem.synchronized {
-    entry(path) match {
-      case Some(file) if !file.isDirectory => file.size
-      case _ => 0L
-    }
+  override def size(path: String): Long = entry(path) match {
+    case Some(file) if !file.isDirectory => file.size
+    case _ => 0L
   }
 
-  override def isDirectory(path: String): Boolean = ZipFileInputStreamFileSystem.synchronized {
-    entry(path).exists(_.isDirectory)
-  }
+  override def isDirectory(path: String): Boolean = entry(path).exists(_.isDirectory)
 
-  def lastModified(path: String): Long = ZipFileInputStreamFileSystem.synchronized {
-    entry(path) match {
-      case Some(file) => file.lastModified
-      case _ => 0L
-    }
+  def lastModified(path: String): Long = entry(path) match {
+    case Some(file) => file.lastModified
+    case _ => 0L
   }
 
-  override def list(path: String): Array[String] = ZipFileInputStreamFileSystem.synchronized {
-    entry(path) match {
-      case Some(entry) if entry.isDirectory => entry.list()
-      case _ => null
-    }
+  override def list(path: String): Array[String] = entry(path) match {
+    case Some(entry) if entry.isDirectory => entry.list()
+    case _ => null
   }
 
   // ----------------------------------------------------------------------- //
 
-  override protected def openInputChannel(path: String): Option[InputStreamChannel] = ZipFileInputStreamFileSystem.synchronized {
-    entry(path).map(entry => new InputStreamChannel(entry.openStream()))
-  }
+  override protected def openInputChannel(path: String): Option[InputStreamChannel] =
+    entry(path).filterNot(_.isDirectory).map(entry => new InputStreamChannel(index.openStream(entry)))
 
   // ----------------------------------------------------------------------- //
 
-  private def entry(path: String) = {
-    val cleanPath = "/" + path.replace("\\", "/").replace("//", "/").stripPrefix("/").stripSuffix("/")
-    if (cleanPath == "/") Some(archive)
-    else archive.find(cleanPath.split("/"))
+  private def entry(path: String): Option[Archive] = {
+    val cleanPath = path.replace("\\", "/").replace("//", "/").stripPrefix("/").stripSuffix("/")
+    index.entries.get(cleanPath)
   }
 }
 
 object ZipFileInputStreamFileSystem {
-  private val cache = com.google.common.cache.CacheBuilder.newBuilder().
-    weakValues().
-    asInstanceOf[CacheBuilder[String, ArchiveDirectory]].
-    build[String, ArchiveDirectory]()
+  /**
+    * Maximum total size of the file contents kept in memory, over all archives.
+    */
+  final val MaxCachedBytes: Long = 16 * 1024 * 1024
 
-  def fromFile(file: io.File, innerPath: String): ZipFileInputStreamFileSystem = ZipFileInputStreamFileSystem.synchronized {
+  private val cache = CacheBuilder.newBuilder().
+    weakValues().
+    asInstanceOf[CacheBuilder[String, ArchiveIndex]].
+    build[String, ArchiveIndex]()
+
+  private val dataCache = CacheBuilder.newBuilder().
+    maximumWeight(MaxCachedBytes).
+    weigher(new Weigher[ArchiveFile, Array[Byte]] {
+      override def weigh(key: ArchiveFile, value: Array[Byte]): Int = value.length
+    }).
+    asInstanceOf[CacheBuilder[ArchiveFile, Array[Byte]]].
+    weakKeys().
+    build[ArchiveFile, Array[Byte]]()
+
+  def fromFile(file: io.File, innerPath: String): ZipFileInputStreamFileSystem = {
     try {
-      Option(cache.get(file.getPath + ":" + innerPath, new Callable[ArchiveDirectory] {
-        def call: ArchiveDirectory = {
+      Option(cache.get(file.getPath + ":" + innerPath, new Callable[ArchiveIndex] {
+        def call: ArchiveIndex = {
           val zip = new ZipFile(file.getPath)
           try {
             val cleanedPath = innerPath.stripPrefix("/").stripSuffix("/") + "/"
-            val rootEntry = zip.getEntry(cleanedPath)
-            if (rootEntry == null || !rootEntry.isDirectory) {
+            val zipEntries = zip.entries().asScala.filter(_.getName.startsWith(cleanedPath)).toSeq
+            if (zipEntries.isEmpty) {
               throw new IllegalArgumentException(s"Root path $innerPath doesn't exist or is not a directory in ZIP file ${file.getName}.")
             }
-            val directories = mutable.Set.empty[ArchiveDirectory]
-            val files = mutable.Set.empty[ArchiveFile]
-            val iterator = zip.entries()
-            while (iterator.hasMoreElements) {
-              val entry = iterator.nextElement()
-              if (entry.getName.startsWith(cleanedPath)) {
-                if (entry.isDirectory) directories += new ArchiveDirectory(entry, cleanedPath)
-                else files += new ArchiveFile(zip, entry, cleanedPath)
-              }
-            }
-            var root: ArchiveDirectory = null
-            for (entry <- directories ++ files) {
-              if (entry.path.nonEmpty) {
-                val parent = entry.path.substring(0, math.max(entry.path.lastIndexOf('/'), 0))
-                directories.find(d => d.path == parent) match {
-                  case Some(directory) => directory.children += entry
-                  case _ =>
-                }
-              }
-              else {
-                assert(entry.isInstanceOf[ArchiveDirectory])
-                root = entry.asInstanceOf[ArchiveDirectory]
-              }
-            }
-            root
+            new ArchiveIndex(zip, zipEntries, cleanedPath)
           }
-          finally {
-            zip.close()
+          catch {
+            case e: Throwable =>
+              zip.close()
+              throw e
           }
         }
       })) match {
-        case Some(archive) => new ZipFileInputStreamFileSystem(archive)
+        case Some(index) => new ZipFileInputStreamFileSystem(index)
         case _ => null
       }
     }
@@ -131,61 +110,75 @@ object ZipFileInputStreamFileSystem {
     }
   }
 
+  /**
+    * The entries below a directory of a ZIP file, by their path relative to it.
+    *
+    * ZIP files do not need to contain entries for directories, those without one (including the
+    * root) are implied by the paths of the entries below them.
+    *
+    * The ZIP file stays open as long as the index is in use, it is closed once the index has been
+    * garbage collected.
+    */
+  class ArchiveIndex(zip: ZipFile, zipEntries: Seq[ZipEntry], root: String) {
+    val entries: Map[String, Archive] = {
+      def path(entry: ZipEntry) = entry.getName.stripPrefix(root).stripSuffix("/")
+
+      def parent(path: String) = path.substring(0, math.max(path.lastIndexOf('/'), 0))
+
+      val explicit = zipEntries.map(entry => path(entry) -> entry).toMap
+      val implied = explicit.keys.filter(_.nonEmpty).flatMap(path => {
+        Iterator.iterate(parent(path))(parent).takeWhile(_.nonEmpty).toSeq :+ ""
+      }).toSet.diff(explicit.keySet).map(path => path -> new ZipEntry(root + path + (if (path.isEmpty) "" else "/")))
+      val allEntries = explicit ++ implied
+
+      val children = allEntries.filter(_._1.nonEmpty).groupMap(entry => parent(entry._1)) {
+        case (childPath, entry) => childPath.substring(childPath.lastIndexOf('/') + 1) + (if (entry.isDirectory) "/" else "")
+      }
+
+      allEntries.map {
+        case (path, entry) =>
+          path -> (
+            if (entry.isDirectory) new ArchiveDirectory(entry, root, children.getOrElse(path, Seq.empty).toArray)
+            else new ArchiveFile(entry, root))
+      }
+    }
+
+    val size: Long = entries.valuesIterator.map(entry => if (entry.isDirectory) 0L else entry.size).sum
+
+    def openStream(entry: Archive): io.InputStream = entry match {
+      case file: ArchiveFile => new ByteArrayInputStream(try dataCache.get(file, () => {
+        Using.resource(zip.getInputStream(file.entry))(in => IOUtils.toByteArray(in))
+      }) catch {
+        case e: ExecutionException => throw e.getCause
+      })
+      case _ => null
+    }
+  }
+
   abstract class Archive(entry: ZipEntry, root: String) {
     val path: String = entry.getName.stripPrefix(root).stripSuffix("/")
 
     val name: String = path.substring(path.lastIndexOf('/') + 1)
 
-    val lastModified: Long = entry.getTime
+    val lastModified: Long = entry.getTime max 0L
 
     val isDirectory: Boolean = entry.isDirectory
 
-    def size: Int
+    def size: Long
 
     def list(): Array[String]
-
-    def openStream(): io.InputStream
-
-    def find(path: Iterable[String]): Option[Archive]
   }
 
-  private class ArchiveFile(zip: ZipFile, entry: ZipEntry, root: String) extends Archive(entry, root) {
-    val data: Array[Byte] = {
-      val in = zip.getInputStream(entry)
-      Iterator.continually(in.read).takeWhile(-1 !=).map(_.toByte).toArray
-    }
-
-    val size: Int = data.length
+  private class ArchiveFile(val entry: ZipEntry, root: String) extends Archive(entry, root) {
+    val size: Long = entry.getSize max 0L
 
     def list(): Null = null
-
-    def openStream() = new ByteArrayInputStream(data)
-
-    def find(path: Iterable[String]): Option[ArchiveFile] =
-      if (path.size == 1 && path.head == name) Some(this)
-      else None
   }
 
-  private class ArchiveDirectory(entry: ZipEntry, root: String) extends Archive(entry, root) {
-    val children = mutable.Set.empty[Archive]
-
-    val size = 0
-
-    def list(): Array[String] = children.map(c => c.name + (if (c.isDirectory) "/" else "")).toArray
+  private class ArchiveDirectory(entry: ZipEntry, root: String, names: Array[String]) extends Archive(entry, root) {
+    val size = 0L
 
-    def openStream(): Null = null
-
-    def find(path: Iterable[String]): Option[Archive] =
-      if (path.head == name) {
-        if (path.size == 1) Some(this)
-        else {
-          val subPath = path.drop(1)
-          children.map(_.find(subPath)).collectFirst {
-            case Some(a) => a
-          }
-        }
-      }
-      else None
+    def list(): Array[String] = names.clone()
   }
 
 }
@@ -141,4 +141,15 @@ public @interface Callback {
      * userdata, use the <tt>unapply</tt> method instead.
      */
     boolean setter() default false;
+
+    /**
+     * Whether this callback never changes the persisted state of its environment.
+     * <br>
+     * Calling a component marks its environment as modified for the workspace
+     * journal, so that it is saved with the next checkpoint. Callbacks that
+     * only read state, like the getters a program polls in a loop, should set
+     * this to <tt>true</tt>, so that polling does not make the environment
+     * appear in every journal record.
+     */
+    boolean readOnly() default false;
 }
@@ -1,19 +1,21 @@
 package totoro.ocelot.brain.entity.machine.luac
 
 import com.google.common.base.Strings
+import com.google.common.hash.Hashing
 import com.google.common.io.PatternFilenameFilter
 import li.cil.repack.com.naef.jnlua
 import li.cil.repack.com.naef.jnlua.{LuaState, LuaStateFiveFour, LuaStateFiveThree}
+import org.apache.commons.io.IOUtils
 import org.apache.commons.lang3.SystemUtils
 import totoro.ocelot.brain.entity.machine.ExtendedLuaState._
 import totoro.ocelot.brain.entity.machine.Machine
 import totoro.ocelot.brain.{Ocelot, Settings}
 
-import java.io.{BufferedInputStream, File, FileInputStream, FileOutputStream}
-import java.nio.channels.Channels
-import java.nio.file.{Files, Path, Paths}
+import java.io.{File, IOException}
+import java.nio.channels.{FileChannel, OverlappingFileLockException}
+import java.nio.file.{Files, Path, Paths, StandardCopyOption, StandardOpenOption}
 import java.util.regex.Pattern
-import scala.util.Random
+import scala.util.{Random, Using}
 
 object LuaStateFactory {
   def isAvailable: Boolean = {
@@ -155,6 +157,27 @@ abstract class LuaStateFactory {
     "libjnlua" + version + "-" + platformName + libExtension
   }
 
+  // Deletes the extracted copies of this library with the given prefix, except `current`. Files that
+  // are locked, e.g. because another running instance has loaded them on Windows, are kept.
+  private def pruneLibraries(directory: File, prefix: String, current: File): Unit = {
+    if (!directory.isDirectory) return
+    val filter = new PatternFilenameFilter("^" + Pattern.quote(prefix) + ".*" + Pattern.quote("-" + libraryName) + "$")
+    for (file <- directory.listFiles(filter) if file.compareTo(current) != 0) {
+      try {
+        val unlocked = Using.resource(FileChannel.open(file.toPath, StandardOpenOption.WRITE)) { channel =>
+          Option(channel.tryLock()).exists(lock => {
+            lock.release()
+            true
+          })
+        }
+        if (unlocked) file.delete()
+      }
+      catch {
+        case _: IOException | _: OverlappingFileLockException => // In use, keep it.
+      }
+    }
+  }
+
   protected def create(maxMemory: Option[Int] = None): jnlua.LuaState
 
   protected def openLibs(state: jnlua.LuaState): Unit
@@ -207,7 +230,9 @@ abstract class LuaStateFactory {
         return
       }
 
-      val tmpLibName = s"Ocelot-${Ocelot.Version}-$version-$libraryName"
+      val libraryData = Using.resource(libraryUrl.openStream())(stream => IOUtils.toByteArray(stream))
+      val libraryHash = Hashing.sha256().hashBytes(libraryData).toString.take(16)
+      val tmpLibName = s"Ocelot-${Ocelot.Version}-$version-$libraryHash-$libraryName"
 
       val tmpBasePath: Path =
         if (Settings.get.nativeInTmpDir) {
@@ -224,93 +249,37 @@ abstract class LuaStateFactory {
 
       tmpLibFile = tmpBasePath.resolve(tmpLibName).toFile
 
-      // Clean up old library files when not in tmp dir.
-      if (!Settings.get.nativeInTmpDir) {
-        val libDir = tmpBasePath.toFile
-
-        if (libDir.isDirectory) {
-          for (file <- libDir.listFiles(new PatternFilenameFilter("^" + Pattern.quote("Ocelot-") + ".*" + Pattern.quote("-" + libraryName) + "$"))) {
-            if (file.compareTo(tmpLibFile) != 0) {
-              file.delete()
-            }
-          }
-        }
-      }
-
-      // If the file, already exists, make sure it's the same we need, if it's
-      // not disable use of the natives.
-      if (tmpLibFile.exists()) {
-        var matching = true
-        try {
-          val inCurrent = new BufferedInputStream(libraryUrl.openStream())
-          val inExisting = new BufferedInputStream(new FileInputStream(tmpLibFile))
-          var inCurrentByte = 0
-          var inExistingByte = 0
-
-          do {
-            inCurrentByte = inCurrent.read()
-            inExistingByte = inExisting.read()
-            if (inCurrentByte != inExistingByte) {
-              matching = false
-              inCurrentByte = -1
-              inExistingByte = -1
-            }
-          }
-          while (inCurrentByte != -1 && inExistingByte != -1)
-
-          inCurrent.close()
-          inExisting.close()
-        }
-        catch {
-          case _: Throwable =>
-            matching = false
-        }
-        if (!matching) {
-          // Try to delete an old instance of the library, in case we have an update
-          // and deleteOnExit fails (which it regularly does on Windows it seems).
-          // Note that this should only ever be necessary for dev-builds, where the
-          // version number didn't change (since the version number is part of the name).
-          try {
-            tmpLibFile.delete()
-          }
-          catch {
-            case _: Throwable => // Ignore.
-          }
-          if (tmpLibFile.exists()) {
-            Ocelot.log.warn(s"Could not update native library '${tmpLibFile.getName}'!")
-          }
-        }
-      }
+      // Clean up old library files. The tmp dir may be shared with instances of other versions,
+      // so there only the files of other builds of this version are removed.
+      pruneLibraries(tmpBasePath.toFile, if (Settings.get.nativeInTmpDir) s"Ocelot-${Ocelot.Version}-$version-" else "Ocelot-", tmpLibFile)
 
-      // Copy the file contents to the temporary file.
-      try {
-        val in = Channels.newChannel(libraryUrl.openStream())
+      // The name of the file contains the hash of its contents, and it is only ever created
+      // by moving a completely written file into place. So if it exists, it is up to date,
+      // and the library is only extracted on the first start with a new build of it.
+      if (!tmpLibFile.exists()) {
         try {
-          val out = new FileOutputStream(tmpLibFile).getChannel
+          val tmpPath = Files.createTempFile(tmpBasePath, tmpLibName, ".tmp")
           try {
-            out.transferFrom(in, 0, Long.MaxValue)
-            tmpLibFile.deleteOnExit()
+            Files.write(tmpPath, libraryData)
             // Set file permissions more liberally for multi-user+instance servers.
-            tmpLibFile.setReadable(true, false)
-            tmpLibFile.setWritable(true, false)
-            tmpLibFile.setExecutable(true, false)
+            tmpPath.toFile.setReadable(true, false)
+            tmpPath.toFile.setWritable(true, false)
+            tmpPath.toFile.setExecutable(true, false)
+            Files.move(tmpPath, tmpLibFile.toPath, StandardCopyOption.ATOMIC_MOVE)
           }
           finally {
-            out.close()
+            Files.deleteIfExists(tmpPath)
           }
         }
-        finally {
-          in.close()
+        catch {
+          // Another instance may have extracted the same library in the meantime.
+          // Otherwise, the directory could not be written to.
+          case t: Throwable if !tmpLibFile.exists() =>
+            Ocelot.log.warn(s"Could not extract native library '${tmpLibFile.getName}'.", t)
+          case _: Throwable => // Nothing.
         }
       }
-      catch {
-        // Java (or Windows?) locks the library file when opening it, so any
-        // further tries to update it while another instance is still running
-        // will fail. We still want to try each time, since the files may have
-        // been updated.
-        // Alternatively, the file could not be opened for reading/writing.
-        case _: Throwable => // Nothing.
-      }
+
       // Try to load the lib.
       currentLib = tmpLibFile.getAbsolutePath
     }
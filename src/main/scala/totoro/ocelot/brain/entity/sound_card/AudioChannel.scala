@@ -3,6 +3,8 @@ package totoro.ocelot.brain.entity.sound_card
 import totoro.ocelot.brain.Settings
 import totoro.ocelot.brain.nbt.NBTTagCompound
 
+import java.util
+
 class AudioChannel {
   var generator: SignalGenerator = SignalGenerator.Square
   var frequency: Float = 0
@@ -23,12 +25,44 @@ class AudioChannel {
     if (!isOpen && (envelope.isEmpty || envelope.get.isClosed))
       return 0
 
+    nextSample(process, Settings.get.soundCardSampleRate)
+  }
+
+  /**
+    * Writes the next `count` samples to `out`, starting at `from`.
+    *
+    * The result is the same as that of `count` calls of `generate`, but channels that are silent
+    * for the whole block are not processed sample by sample. Modulators are still advanced one
+    * sample at a time, when their carrier needs the next value.
+    */
+  def render(process: AudioProcess, out: Array[Float], from: Int, count: Int): Unit = {
+    val end = from + count
+    val env = envelope.orNull
+    // channels are only opened and envelopes only triggered between blocks
+    if (isFmMod || isAmMod || !isOpen && (env == null || env.isClosed)) {
+      util.Arrays.fill(out, from, end, 0f)
+      return
+    }
+
+    val sampleRate = Settings.get.soundCardSampleRate
+    var i = from
+    while (i < end) {
+      if (!isOpen && env.isClosed) {
+        util.Arrays.fill(out, i, end, 0f)
+        return
+      }
+      out(i) = nextSample(process, sampleRate)
+      i += 1
+    }
+  }
+
+  private def nextSample(process: AudioProcess, sampleRate: Int): Float = {
     var value = generator.generate(offset)
 
     if (frequencyMod.isDefined && !isFmMod && !isAmMod) {
       value = frequencyMod.get.modulate(process, this, value)
     } else {
-      offset += frequency / Settings.get.soundCardSampleRate
+      offset += frequency / sampleRate
     }
 
     if (offset > 1f) {
@@ -45,7 +45,7 @@ object Instruction {
     }
   }
 
-  class Delay(delay: Int) extends Instruction {
+  class Delay(val delay: Int) extends Instruction {
     def this(nbt: NBTTagCompound) = this(nbt.getInteger("d"))
 
     override def save(nbt: NBTTagCompound): Unit = {
@@ -105,27 +105,34 @@ class SoundBoard extends Persistable {
 
   private def sendSound(address: String, instructions: Array[Instruction]): Unit = {
     val sampleRate = Settings.get.soundCardSampleRate
-    val data = new mutable.ArrayBuffer[Byte]
-    val cleanData = Array.fill(process.channels.length) {
-      new mutable.ArrayBuffer[Float]
+    def sampleCount(delay: Int): Int = if (delay > 0) delay * sampleRate / 1000 else 0
+
+    // only delays produce samples, so the length of the output is known in advance
+    var total = sampleCount(process.delay)
+    for (inst <- instructions) inst match {
+      case delay: Instruction.Delay => total += sampleCount(delay.delay)
+      case _ =>
     }
 
+    val channels = process.channels
+    val cleanData = Array.fill(channels.length)(new Array[Float](total))
+    val data = ByteBuffer.allocateDirect(total)
+    var position = 0
+
     var i = 0
     while (i < instructions.length || process.delay > 0) {
       if (process.delay > 0) {
-        val sampleCount = process.delay * sampleRate / 1000
-        for (_ <- 0 until sampleCount) {
-          var sample = 0f
-          for ((channel, i) <- process.channels.zipWithIndex) {
-            val x = channel.generate(process)
-            sample += x
-            cleanData(i) += x
+        val end = position + sampleCount(process.delay)
+        val blockSize = if (hasSharedModulators) 1 else SoundBoard.BlockSize
+        while (position < end) {
+          val count = math.min(blockSize, end - position)
+          var channel = 0
+          while (channel < channels.length) {
+            channels(channel).render(process, cleanData(channel), position, count)
+            channel += 1
           }
-
-          val value = sample.min(1).max(-1) * 127 + process.error
-          process.error = value - value.floor
-
-          data += (value.floor.toByte ^ 0x80).toByte
+          mix(cleanData, position, count, data)
+          position += count
         }
         process.delay = 0
       } else {
@@ -135,12 +142,45 @@ class SoundBoard extends Persistable {
       }
     }
 
-    if (data.nonEmpty) {
-      val buf = ByteBuffer.allocateDirect(data.length)
-      buf.put(data.toArray)
-      buf.flip()
-      EventBus.send(SoundCardAudioEvent(address, buf, cleanData.map(_.toArray), soundVolume, instructions))
+    if (position > 0) {
+      data.flip()
+      EventBus.send(SoundCardAudioEvent(address, data, cleanData, soundVolume, instructions))
+    }
+  }
+
+  private def mix(cleanData: Array[Array[Float]], from: Int, count: Int, data: ByteBuffer): Unit = {
+    var index = from
+    while (index < from + count) {
+      var sample = 0f
+      var channel = 0
+      while (channel < cleanData.length) {
+        sample += cleanData(channel)(index)
+        channel += 1
+      }
+
+      val value = sample.min(1).max(-1) * 127 + process.error
+      process.error = value - value.floor
+
+      data.put((value.floor.toByte ^ 0x80).toByte)
+      index += 1
+    }
+  }
+
+  /**
+    * Whether some channel is advanced while rendering more than one other channel, e.g. a modulator
+    * shared by several carriers. Then the channels are rendered one sample at a time, so that the
+    * modulator produces its samples in the same order as it would if they were generated one by one.
+    */
+  private def hasSharedModulators: Boolean = {
+    val users = new Array[Int](process.channels.length)
+    for ((channel, index) <- process.channels.zipWithIndex if !channel.isFmMod && !channel.isAmMod) {
+      val fm = channel.frequencyMod.fold(index)(_.modulatorIndex)
+      val am = channel.amplitudeMod.fold(index)(_.modulatorIndex)
+      users(index) += 1
+      if (fm != index) users(fm) += 1
+      if (am != index && am != fm) users(am) += 1
     }
+    users.exists(_ > 1)
   }
 
   override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
@@ -192,4 +232,11 @@ class SoundBoard extends Persistable {
       }).toList.asJava
     }
   }
-}
\ No newline at end of file
+}
+
+object SoundBoard {
+  /**
+    * The number of samples every channel renders at once.
+    */
+  final val BlockSize = 1024
+}
@@ -3,15 +3,33 @@ package totoro.ocelot.brain.entity.tape
 import java.nio.ByteBuffer
 
 case class AudioPacketDfpwm(volume: Byte, frequency: Int, data: Array[Byte]) {
+  /**
+    * The number of PCM samples in this packet.
+    */
+  def sampleCount: Int = data.length * 8
+
   def decode(codec: Dfpwm): ByteBuffer = {
-    val audio = ByteBuffer.allocate(data.length * 8)
-    codec.decompress(audio, ByteBuffer.wrap(data))
+    val audio = ByteBuffer.allocate(sampleCount)
+    decode(codec, audio.array(), 0)
+    audio
+  }
+
+  /**
+    * Decodes the packet into unsigned 8-bit samples in `into`, starting at `offset`.
+    *
+    * @return the number of samples written.
+    */
+  def decode(codec: Dfpwm, into: Array[Byte], offset: Int): Int = {
+    codec.decompress(data, 0, into, offset, data.length)
 
     // supposedly converts signed data to unsigned.
     // but to me it looks like it just flips the sign bit. weird. whatever.
-    audio.array().mapInPlace(b => ((b & 0xff) ^ 0x80).toByte)
-    audio.flip()
+    var i = offset
+    while (i < offset + sampleCount) {
+      into(i) = (into(i) ^ 0x80).toByte
+      i += 1
+    }
 
-    audio
+    sampleCount
   }
 }
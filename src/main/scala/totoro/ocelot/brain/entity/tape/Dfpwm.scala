@@ -1,9 +1,15 @@
 package totoro.ocelot.brain.entity.tape
 
-import totoro.ocelot.brain.entity.tape.Dfpwm.{LPF_STRENGTH, RESP_PREC}
+import totoro.ocelot.brain.entity.tape.Dfpwm.{LPF_STRENGTH, RESP_PREC, ScratchSize}
 
-import java.nio.ByteBuffer
+import java.nio.{BufferOverflowException, BufferUnderflowException, ByteBuffer}
 
+/**
+  * The state of a DFPWM1a stream, for one direction: an instance either decompresses or
+  * compresses, as the encoder and the decoder have to track the stream separately.
+  *
+  * PCM samples are signed 8-bit values, every DFPWM byte holds eight of them.
+  */
 class Dfpwm {
   private var response = 0
   private var level = 0
@@ -12,6 +18,10 @@ class Dfpwm {
   private var lastLevel = 0
   private var lpfLevel = 0
 
+  // for buffers without an accessible array
+  private lazy val srcScratch = new Array[Byte](ScratchSize)
+  private lazy val dstScratch = new Array[Byte](ScratchSize * 8)
+
   private def update(curBit: Boolean): Unit = {
     val target = if (curBit) 127 else -128
     var nextLevel = level + ((response * (target - level) + (1 << RESP_PREC - 1)) >> RESP_PREC)
@@ -39,11 +49,18 @@ class Dfpwm {
     level = nextLevel
   }
 
-  def decompress(dst: ByteBuffer, src: ByteBuffer, len: Int): Unit = {
-    for (_ <- 0 until len) {
-      var byte = src.get()
-
-      for (_ <- 0 until 8) {
+  /**
+    * Decompresses `len` bytes from `src` at `srcOffset` into `len * 8` samples in `dst` at `dstOffset`.
+    */
+  def decompress(src: Array[Byte], srcOffset: Int, dst: Array[Byte], dstOffset: Int, len: Int): Unit = {
+    var in = srcOffset
+    var out = dstOffset
+    val end = srcOffset + len
+    while (in < end) {
+      var byte = src(in)
+
+      var i = 0
+      while (i < 8) {
         val curBit = (byte & 1) != 0
         val lastBit = this.lastBit
         update(curBit)
@@ -58,15 +75,109 @@ class Dfpwm {
         // low-pass filtering
         lpfLevel += LPF_STRENGTH * (bitLevel - lpfLevel) + 0x80 >> 8
 
-        dst.put(lpfLevel.toByte)
+        dst(out) = lpfLevel.toByte
+        out += 1
+        i += 1
+      }
+      in += 1
+    }
+  }
+
+  def decompress(dst: ByteBuffer, src: ByteBuffer, len: Int): Unit = {
+    if (src.remaining() < len) throw new BufferUnderflowException
+    if (dst.remaining() < len * 8) throw new BufferOverflowException
+
+    if (src.hasArray && dst.hasArray) {
+      decompress(src.array(), src.arrayOffset() + src.position(), dst.array(), dst.arrayOffset() + dst.position(), len)
+      src.position(src.position() + len)
+      dst.position(dst.position() + len * 8)
+    } else {
+      var done = 0
+      while (done < len) {
+        val chunk = math.min(len - done, ScratchSize)
+        src.get(srcScratch, 0, chunk)
+        decompress(srcScratch, 0, dstScratch, 0, chunk)
+        dst.put(dstScratch, 0, chunk * 8)
+        done += chunk
       }
     }
   }
 
   def decompress(dst: ByteBuffer, src: ByteBuffer): Unit = decompress(dst, src, src.remaining())
+
+  /**
+    * Compresses `len * 8` samples from `src` at `srcOffset` into `len` bytes in `dst` at `dstOffset`.
+    */
+  def compress(src: Array[Byte], srcOffset: Int, dst: Array[Byte], dstOffset: Int, len: Int): Unit = {
+    var in = srcOffset
+    var out = dstOffset
+    val end = dstOffset + len
+    while (out < end) {
+      var byte = 0
+
+      var i = 0
+      while (i < 8) {
+        val inLevel = src(in)
+        val curBit = inLevel > level || (inLevel == level && level == 127)
+        byte = if (curBit) (byte >> 1) + 128 else byte >> 1
+        update(curBit)
+        in += 1
+        i += 1
+      }
+
+      dst(out) = byte.toByte
+      out += 1
+    }
+  }
+
+  def compress(dst: ByteBuffer, src: ByteBuffer, len: Int): Unit = {
+    if (src.remaining() < len * 8) throw new BufferUnderflowException
+    if (dst.remaining() < len) throw new BufferOverflowException
+
+    if (src.hasArray && dst.hasArray) {
+      compress(src.array(), src.arrayOffset() + src.position(), dst.array(), dst.arrayOffset() + dst.position(), len)
+      src.position(src.position() + len * 8)
+      dst.position(dst.position() + len)
+    } else {
+      var done = 0
+      while (done < len) {
+        val chunk = math.min(len - done, ScratchSize)
+        src.get(dstScratch, 0, chunk * 8)
+        compress(dstScratch, 0, srcScratch, 0, chunk)
+        dst.put(srcScratch, 0, chunk)
+        done += chunk
+      }
+    }
+  }
+
+  /**
+    * Compresses all remaining samples of `src`, which must be a multiple of eight.
+    */
+  def compress(dst: ByteBuffer, src: ByteBuffer): Unit = compress(dst, src, src.remaining() / 8)
 }
 
 object Dfpwm {
   private val RESP_PREC = 10
   private val LPF_STRENGTH = 140
+
+  private final val ScratchSize = 1024
+
+  /**
+    * Compresses signed 8-bit PCM samples into a new array, starting a new stream.
+    * Trailing samples that do not fill a whole byte are dropped.
+    */
+  def compress(samples: Array[Byte]): Array[Byte] = {
+    val result = new Array[Byte](samples.length / 8)
+    new Dfpwm().compress(samples, 0, result, 0, result.length)
+    result
+  }
+
+  /**
+    * Decompresses DFPWM data into a new array of signed 8-bit PCM samples, starting a new stream.
+    */
+  def decompress(data: Array[Byte]): Array[Byte] = {
+    val result = new Array[Byte](data.length * 8)
+    new Dfpwm().decompress(data, 0, result, 0, data.length)
+    result
+  }
 }
@@ -0,0 +1,36 @@
+package totoro.ocelot.brain.entity.tape
+
+import java.nio.ByteBuffer
+
+/**
+  * Decodes the audio packets of one tape drive, one after another, as a continuous stream.
+  *
+  * All packets are decoded into the same buffer, which only grows when a packet is larger than
+  * any before it. The buffer returned by `decode` is only valid until the next call.
+  */
+class DfpwmDecoder {
+  private val codec = new Dfpwm
+  private var buffer = ByteBuffer.allocate(0)
+
+  /**
+    * Decodes `packet` into unsigned 8-bit PCM samples.
+    *
+    * @return the shared buffer, with the samples between its position and limit.
+    */
+  def decode(packet: AudioPacketDfpwm): ByteBuffer = {
+    if (buffer.capacity() < packet.sampleCount) {
+      buffer = ByteBuffer.allocate(packet.sampleCount)
+    }
+
+    buffer.clear()
+    buffer.limit(packet.decode(codec, buffer.array(), 0))
+    buffer
+  }
+
+  /**
+    * Decodes `packet` into `into`, starting at `offset`, which must have room for `packet.sampleCount` bytes.
+    *
+    * @return the number of samples written.
+    */
+  def decode(packet: AudioPacketDfpwm, into: Array[Byte], offset: Int): Int = packet.decode(codec, into, offset)
+}
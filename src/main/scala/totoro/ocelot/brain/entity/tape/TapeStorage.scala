@@ -1,11 +1,35 @@
 package totoro.ocelot.brain.entity.tape
 
 import totoro.ocelot.brain.Ocelot
-
-import java.io.{File, FileInputStream, FileOutputStream, IOException}
-import java.util.zip.{GZIPInputStream, GZIPOutputStream}
+import totoro.ocelot.brain.entity.tape.TapeStorage._
+import totoro.ocelot.brain.nbt.CompressionCodec
+
+import java.io.{File, FileInputStream, IOException, InputStream}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, StandardCopyOption, StandardOpenOption}
+import java.util
+import java.util.zip.{CRC32, DataFormatException, Deflater, Inflater}
+import scala.collection.mutable
 import scala.util.Using
 
+/**
+  * A tape image, stored as a sequence of independently compressed blocks.
+  *
+  * Blocks are only read and decompressed once they are accessed, and kept in a small LRU cache.
+  * Saving compresses only the modified blocks, which are appended to the file together with a new
+  * index. Once more than half of the file is taken up by outdated blocks and indexes, it is
+  * compacted.
+  *
+  * The file starts with two header slots, each referring to an index by its offset and checksum.
+  * A save is committed by overwriting the older slot only after everything it refers to is on
+  * disk, and the newest valid slot is used when the file is opened. So a save interrupted at any
+  * point, even while writing the header, leaves the previously saved contents readable.
+  *
+  * Images in the older format (a single compressed stream) are read completely when they are
+  * opened, and only converted once the tape is saved after a change.
+  */
 class TapeStorage(
   val uniqueId: String,
   file: => File,
@@ -13,16 +37,40 @@ class TapeStorage(
   private var _position: Int,
 ) extends traits.TapeStorage {
 
-  private var data = Array.ofDim[Byte](size)
+  private val blockCount = (size + BlockSize - 1) / BlockSize
+
+  // where the blocks are stored in `source`, a length of 0 meaning that the block is empty
+  private val offsets = new Array[Long](blockCount)
+  private val lengths = new Array[Int](blockCount)
+  private val methods = new Array[Byte](blockCount)
+
+  private var source: File = _
+  private var end = 0L
+  private var garbage = 0L
+
+  // the header slot written last, and the index it refers to
+  private var generation = 0L
+  private var indexOffset = 0L
+
+  private val cache = new util.LinkedHashMap[Integer, Array[Byte]](CachedBlocks, 0.75f, true) {
+    override def removeEldestEntry(eldest: util.Map.Entry[Integer, Array[Byte]]): Boolean = size() > CachedBlocks
+  }
+
+  // blocks written since the last save, never evicted
+  private val dirty = mutable.LongMap.empty[Array[Byte]]
+
   private var modified = false
 
+  // whether the whole file has to be rewritten on the next save of a change, since it is in the
+  // older format or its index does not fit the size of the tape
+  private var outdated = false
+
   {
     // so we only evaluate `file` once in this block
     val f = file
 
     if (!f.exists()) {
       try {
-        f.createNewFile()
         writeFile(f)
       } catch {
         case e: Exception => Ocelot.log.error(s"Could not create tape storage $f", e)
@@ -64,10 +112,10 @@ class TapeStorage(
 
   override def read(simulate: Boolean): Int = {
     if (position >= size) 0
-    else if (simulate) data(position) & 0xff
+    else if (simulate) readByte(position) & 0xff
     else {
       modified = true
-      val result = data(position)
+      val result = readByte(position)
       _position += 1
 
       result & 0xff
@@ -75,8 +123,8 @@ class TapeStorage(
   }
 
   def read(v: Array[Byte], offset: Int, simulate: Boolean): Int = {
-    val len = v.length.min(size - (position + offset) - 1)
-    Array.copy(data, position + offset, v, 0, len)
+    val len = v.length.min(size - (position + offset) - 1) max 0
+    copy(position + offset, v, len, toTape = false)
 
     if (!simulate) {
       _position += len
@@ -96,70 +144,377 @@ class TapeStorage(
     }
 
     modified = true
-    data(position) = b
+    writableBlock(position >>> BlockBits)(position & BlockMask) = b
     _position += 1
   }
 
   override def write(array: Array[Byte]): Int = {
     val len = array.length.min(size - position - 1)
 
-    if (len == 0) {
+    if (len <= 0) {
       return 0
     }
 
-    Array.copy(array, 0, data, position, len)
+    copy(position, array, len, toTape = true)
     _position += len
     modified = true
 
     len
   }
 
+  // ----------------------------------------------------------------------- //
+
+  private def readByte(offset: Int): Byte = block(offset >>> BlockBits)(offset & BlockMask)
+
+  private def copy(offset: Int, array: Array[Byte], count: Int, toTape: Boolean): Unit = {
+    var done = 0
+    while (done < count) {
+      val index = offset + done
+      val blockOffset = index & BlockMask
+      val chunk = math.min(count - done, BlockSize - blockOffset)
+      if (toTape) System.arraycopy(array, done, writableBlock(index >>> BlockBits), blockOffset, chunk)
+      else System.arraycopy(block(index >>> BlockBits), blockOffset, array, done, chunk)
+      done += chunk
+    }
+  }
+
+  // the contents of a block, which must not be modified
+  private def block(index: Int): Array[Byte] = this.synchronized {
+    dirty.get(index) match {
+      case Some(data) => data
+      case None if lengths(index) == 0 => EmptyBlock
+      case None =>
+        var data = cache.get(index)
+        if (data == null) {
+          data = try loadBlock(index) catch {
+            case e: Exception =>
+              Ocelot.log.error(s"Could not read block $index of tape storage $uniqueId", e)
+              new Array[Byte](BlockSize)
+          }
+          cache.put(index, data)
+        }
+        data
+    }
+  }
+
+  private def writableBlock(index: Int): Array[Byte] = this.synchronized {
+    dirty.getOrElseUpdate(index, {
+      val data = block(index)
+      cache.remove(index)
+      if (data eq EmptyBlock) new Array[Byte](BlockSize) else data
+    })
+  }
+
+  private def blockLength(index: Int): Int = math.min(BlockSize, size - index * BlockSize)
+
+  @throws[IOException]
+  private def loadBlock(index: Int): Array[Byte] = {
+    val stored = Using.resource(FileChannel.open(source.toPath, StandardOpenOption.READ)) { channel =>
+      readStored(channel, index)
+    }
+    val data = new Array[Byte](BlockSize)
+    methods(index) match {
+      case MethodStored => System.arraycopy(stored, 0, data, 0, math.min(stored.length, BlockSize))
+      case MethodDeflate =>
+        val inflater = new Inflater(true)
+        try {
+          inflater.setInput(stored)
+          var filled = 0
+          while (filled < BlockSize && !inflater.finished() && !inflater.needsInput()) {
+            filled += inflater.inflate(data, filled, BlockSize - filled)
+          }
+        } catch {
+          case e: DataFormatException => throw new IOException(s"corrupted block $index", e)
+        } finally inflater.end()
+      case method => throw new IOException(s"unknown compression method $method of block $index")
+    }
+    data
+  }
+
+  @throws[IOException]
+  private def readStored(channel: FileChannel, index: Int): Array[Byte] = {
+    val buffer = ByteBuffer.allocate(lengths(index))
+    while (buffer.hasRemaining) {
+      if (channel.read(buffer, offsets(index) + buffer.position()) < 0)
+        throw new IOException(s"unexpected end of block $index")
+    }
+    buffer.array()
+  }
+
+  // ----------------------------------------------------------------------- //
+
   @throws[IOException]
   private def readFile(file: File = file): Unit = {
-    Using.resource(new FileInputStream(file)) { fileStream =>
-      Using.resource(new GZIPInputStream(fileStream)) { stream =>
-        val version = stream.read()
-
-        if (version >= 1) {
-          val b1 = stream.read() & 0xff
-          val b2 = stream.read() & 0xff
-          val b3 = stream.read() & 0xff
-          val b4 = stream.read() & 0xff
-          _position = b1 | b2 << 8 | b3 << 16 | b4 << 24
+    val isBlocked = Using.resource(FileChannel.open(file.toPath, StandardOpenOption.READ)) { channel =>
+      val slots = ByteBuffer.allocate(HeaderSize)
+      while (slots.hasRemaining && channel.read(slots) >= 0) {}
+      slots.flip()
+      val present = (0 until SlotCount).filter(slot => slots.limit() >= (slot + 1) * SlotSize && hasMagic(slots, slot * SlotSize))
+      if (present.isEmpty) false
+      else {
+        val header = present.flatMap(slot => readSlot(channel, slots, slot * SlotSize)).maxByOption(_.generation).getOrElse {
+          throw new IOException("no valid header")
         }
+        _position = header.position
+        for (i <- 0 until math.min(header.blockCount, blockCount)) {
+          offsets(i) = header.index.getLong
+          lengths(i) = header.index.getInt
+          methods(i) = header.index.get()
+        }
+        generation = header.generation
+        indexOffset = header.indexOffset
+        end = channel.size()
+        garbage = end - HeaderSize - header.blockCount * IndexEntrySize - lengths.foldLeft(0L)(_ + _)
+        outdated = header.blockCount != blockCount
+        true
+      }
+    }
+
+    if (isBlocked) {
+      source = file
+    }
+    else {
+      Using.resource(new FileInputStream(file))(importImage)
+      // all blocks were imported into `dirty`, nothing is read from the old file anymore
+      source = file
+      outdated = true
+    }
+  }
 
-        data = Array.ofDim(size)
+  private def hasMagic(slots: ByteBuffer, offset: Int): Boolean = Magic.indices.forall(i => slots.get(offset + i) == Magic(i))
+
+  // the header in the slot at `offset`, if the slot and the index it refers to are intact
+  private def readSlot(channel: FileChannel, slots: ByteBuffer, offset: Int): Option[Header] = {
+    val crc = new CRC32()
+    crc.update(slots.array(), offset, SlotDataSize)
+    val slot = ByteBuffer.wrap(slots.array(), offset + Magic.length, SlotSize - Magic.length)
+    if (slot.get() != Version) return None
+    val generation = slot.getLong
+    val position = slot.getInt
+    slot.getInt // size
+    val blockSize = slot.getInt
+    val storedBlocks = slot.getInt
+    val indexOffset = slot.getLong
+    val indexChecksum = slot.getInt
+    if (slot.getInt != crc.getValue.toInt || blockSize != BlockSize || storedBlocks < 0 ||
+      indexOffset < HeaderSize || indexOffset + storedBlocks.toLong * IndexEntrySize > channel.size()) return None
+
+    val index = ByteBuffer.allocate(storedBlocks * IndexEntrySize)
+    while (index.hasRemaining) {
+      if (channel.read(index, indexOffset + index.position()) < 0) return None
+    }
+    crc.reset()
+    crc.update(index.array())
+    if (crc.getValue.toInt != indexChecksum) return None
+    index.flip()
+    Some(Header(generation, position, storedBlocks, indexOffset, index))
+  }
 
-        var position = 0
+  // reads a whole image of the older format into the dirty blocks
+  @throws[IOException]
+  private def importImage(fileStream: InputStream): Unit = {
+    Using.resource(CompressionCodec.decompress(fileStream)) { stream =>
+      val version = stream.read()
+
+      if (version >= 1) {
+        val b1 = stream.read() & 0xff
+        val b2 = stream.read() & 0xff
+        val b3 = stream.read() & 0xff
+        val b4 = stream.read() & 0xff
+        _position = b1 | b2 << 8 | b3 << 16 | b4 << 24
+      }
 
-        while (position < data.length) {
-          position += stream.read(data, position, data.length - position)
+      util.Arrays.fill(lengths, 0)
+      for (index <- 0 until blockCount) {
+        val data = new Array[Byte](BlockSize)
+        val length = blockLength(index)
+        var filled = 0
+        var read = 0
+        while (read >= 0 && filled < length) {
+          read = stream.read(data, filled, length - filled)
+          if (read > 0) filled += read
         }
+        if (!isEmpty(data, length)) dirty(index) = data
       }
     }
   }
 
+  // writes a complete, compacted image, replacing `file`
   @throws[IOException]
   private def writeFile(file: File = file): Unit = {
-    Using.resource(new FileOutputStream(file)) { fileStream =>
-      Using.resource(new GZIPOutputStream(fileStream)) { stream =>
-        stream.write(1)
-        stream.write(position & 0xff)
-        stream.write(position >>> 8 & 0xff)
-        stream.write(position >>> 16 & 0xff)
-        stream.write(position >>> 24 & 0xff)
-        stream.write(data)
-        stream.finish()
-        stream.flush()
+    val newOffsets = new Array[Long](blockCount)
+    val newLengths = new Array[Int](blockCount)
+    val newMethods = methods.clone()
+    var newIndexOffset = 0L
+
+    file.getAbsoluteFile.getParentFile.mkdirs()
+    val temp = File.createTempFile(file.getName, ".tmp", file.getAbsoluteFile.getParentFile)
+    try {
+      val previous = if (source != null && source.isFile) Some(FileChannel.open(source.toPath, StandardOpenOption.READ)) else None
+      try {
+        Using.resource(FileChannel.open(temp.toPath, StandardOpenOption.WRITE)) { target =>
+          val deflater = new Deflater(Deflater.BEST_SPEED, true)
+          try {
+            var offset = HeaderSize.toLong
+            for (index <- 0 until blockCount) {
+              val stored = dirty.get(index) match {
+                case Some(data) => encodeBlock(deflater, index, data, newMethods)
+                case None if lengths(index) > 0 && previous.isDefined => readStored(previous.get, index)
+                case None => Array.emptyByteArray
+              }
+              writeFully(target, ByteBuffer.wrap(stored), offset)
+              newOffsets(index) = offset
+              newLengths(index) = stored.length
+              offset += stored.length
+            }
+            newIndexOffset = offset
+          } finally deflater.end()
+
+          val checksum = writeIndex(target, newIndexOffset, newOffsets, newLengths, newMethods)
+          writeSlot(target, 0, newIndexOffset, checksum)
+          target.force(true)
+        }
+      } finally previous.foreach(_.close())
+      Files.move(temp.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } finally Files.deleteIfExists(temp.toPath)
+
+    Array.copy(newOffsets, 0, offsets, 0, blockCount)
+    Array.copy(newLengths, 0, lengths, 0, blockCount)
+    Array.copy(newMethods, 0, methods, 0, blockCount)
+    source = file
+    generation = 0
+    indexOffset = newIndexOffset
+    end = newIndexOffset + blockCount * IndexEntrySize
+    garbage = 0
+    outdated = false
+    afterSave()
+  }
+
+  // writes the modified blocks and a new index at the end of the image, then commits them by
+  // writing the header slot that was not written last
+  @throws[IOException]
+  private def appendBlocks(): Unit = {
+    val newOffsets = offsets.clone()
+    val newLengths = lengths.clone()
+    val newMethods = methods.clone()
+    var newEnd = end
+    var freed = 0L
+
+    Using.resource(FileChannel.open(source.toPath, StandardOpenOption.WRITE)) { target =>
+      var newIndexOffset = indexOffset
+      if (dirty.nonEmpty) {
+        val deflater = new Deflater(Deflater.BEST_SPEED, true)
+        try {
+          for (index <- dirty.keys.map(_.toInt).toSeq.sorted) {
+            val stored = encodeBlock(deflater, index, dirty(index), newMethods)
+            freed += newLengths(index)
+            if (stored.length > 0) {
+              writeFully(target, ByteBuffer.wrap(stored), newEnd)
+              newOffsets(index) = newEnd
+              newEnd += stored.length
+            }
+            newLengths(index) = stored.length
+          }
+        } finally deflater.end()
+        newIndexOffset = newEnd
+        freed += blockCount * IndexEntrySize
+        newEnd += blockCount * IndexEntrySize
       }
+
+      // An index only refers to data that is on disk already, and becomes effective with the
+      // slot, which is checked when it is read, so writing it may be interrupted at any point.
+      val checksum = writeIndex(target, newIndexOffset, newOffsets, newLengths, newMethods)
+      target.force(false)
+      writeSlot(target, generation + 1, newIndexOffset, checksum)
+      target.force(false)
+      indexOffset = newIndexOffset
     }
 
-    modified = true
+    Array.copy(newOffsets, 0, offsets, 0, blockCount)
+    Array.copy(newLengths, 0, lengths, 0, blockCount)
+    Array.copy(newMethods, 0, methods, 0, blockCount)
+    generation += 1
+    end = newEnd
+    garbage += freed
+    afterSave()
+  }
+
+  private def afterSave(): Unit = {
+    for ((index, data) <- dirty) cache.put(index.toInt, data)
+    dirty.clear()
+    modified = false
+  }
+
+  // sets the compression method of the block and returns its stored data, which is empty for empty blocks
+  private def encodeBlock(deflater: Deflater, index: Int, data: Array[Byte], methods: Array[Byte]): Array[Byte] = {
+    val length = blockLength(index)
+    if (isEmpty(data, length)) {
+      methods(index) = MethodStored
+      return Array.emptyByteArray
+    }
+
+    deflater.reset()
+    deflater.setInput(data, 0, length)
+    deflater.finish()
+    val buffer = new Array[Byte](length)
+    var compressed = 0
+    while (!deflater.finished() && compressed < buffer.length) {
+      compressed += deflater.deflate(buffer, compressed, buffer.length - compressed)
+    }
+
+    if (deflater.finished() && compressed < length) {
+      methods(index) = MethodDeflate
+      util.Arrays.copyOf(buffer, compressed)
+    }
+    else {
+      methods(index) = MethodStored
+      util.Arrays.copyOf(data, length)
+    }
+  }
+
+  // writes the index at `offset`, unless it is there already, and returns its checksum
+  private def writeIndex(target: FileChannel, offset: Long, offsets: Array[Long], lengths: Array[Int], methods: Array[Byte]): Int = {
+    val index = ByteBuffer.allocate(blockCount * IndexEntrySize)
+    for (i <- 0 until blockCount) {
+      index.putLong(offsets(i)).putInt(lengths(i)).put(methods(i))
+    }
+    val crc = new CRC32()
+    crc.update(index.array())
+    index.flip()
+    if (target.size() < offset + index.remaining()) writeFully(target, index, offset)
+    crc.getValue.toInt
+  }
+
+  private def writeSlot(target: FileChannel, generation: Long, indexOffset: Long, indexChecksum: Int): Unit = {
+    val slot = ByteBuffer.allocate(SlotSize)
+    slot.put(Magic).put(Version)
+    slot.putLong(generation).putInt(_position).putInt(size).putInt(BlockSize).putInt(blockCount)
+    slot.putLong(indexOffset).putInt(indexChecksum)
+    val crc = new CRC32()
+    crc.update(slot.array(), 0, SlotDataSize)
+    slot.putInt(crc.getValue.toInt)
+    slot.clear()
+    writeFully(target, slot, (generation % SlotCount) * SlotSize)
+  }
+
+  private def writeFully(target: FileChannel, buffer: ByteBuffer, offset: Long): Unit = {
+    val start = buffer.position()
+    while (buffer.hasRemaining) {
+      target.write(buffer, offset + buffer.position() - start)
+    }
   }
 
   @throws[IOException]
-  private def writeFileIfModified(): Unit = if (modified) {
-    writeFile()
+  private def writeFileIfModified(): Unit = this.synchronized {
+    val f = file
+    if (source == null || source.getAbsoluteFile != f.getAbsoluteFile || !source.isFile) writeFile(f)
+    else if (outdated) {
+      if (modified) writeFile(f)
+    }
+    else if (modified || dirty.nonEmpty) {
+      appendBlocks()
+      if (garbage > BlockSize && garbage > end / 2) writeFile(f)
+    }
   }
 
   override def save(): Unit = try {
@@ -170,3 +525,39 @@ class TapeStorage(
 
   override def onStorageUnload(): Unit = save()
 }
+
+object TapeStorage {
+  final val BlockBits = 16
+  final val BlockSize: Int = 1 << BlockBits
+  final val BlockMask: Int = BlockSize - 1
+
+  /**
+    * Number of decompressed, unmodified blocks kept in memory per tape.
+    */
+  final val CachedBlocks = 16
+
+  // Header slots: magic, version, generation, position, size, block size, block count,
+  // index offset, index checksum and the checksum of all these.
+  private[tape] final val SlotSize = 64
+  private[tape] final val SlotCount = 2
+  private final val SlotDataSize = 40
+  private final val HeaderSize = SlotSize * SlotCount
+  // offset, stored length, method
+  private final val IndexEntrySize = 13
+
+  private final val Magic = "OCT".getBytes(StandardCharsets.US_ASCII)
+  private final val Version: Byte = 3
+
+  private case class Header(generation: Long, position: Int, blockCount: Int, indexOffset: Long, index: ByteBuffer)
+
+  private final val MethodStored: Byte = 0
+  private final val MethodDeflate: Byte = 1
+
+  private val EmptyBlock = new Array[Byte](BlockSize)
+
+  private def isEmpty(data: Array[Byte], length: Int): Boolean = {
+    var i = 0
+    while (i < length && data(i) == 0) i += 1
+    i == length
+  }
+}
@@ -30,6 +30,9 @@ trait Computer extends Environment with MachineHost with ComponentInventory {
 
   override def needUpdate: Boolean = true
 
+  // a computer that is turned off only changes through its components
+  override protected def isModifiedContinuously: Boolean = machine.isRunning
+
   override def update(): Unit = {
     // If we're not yet in a network we might have just been loaded from disk,
     // meaning there may be other tile entities that also have not re-joined
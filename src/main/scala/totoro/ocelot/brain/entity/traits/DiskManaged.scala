@@ -55,7 +55,13 @@ trait DiskManaged extends Disk with DiskRealPathAware with WorkspaceAware {
     FileSystemAPI.asManagedEnvironment(address.get, fileSystemTrait, new ReadWriteLabel(), speed, activityType.orNull)
   }
 
-  private def generateAndSetEnvironment(): Unit = _fileSystem = generateEnvironment()
+  private def generateAndSetEnvironment(): Unit = {
+    _fileSystem = generateEnvironment()
+    if (_fileSystem != null) _fileSystem.owner = this match {
+      case entity: Entity => Some(entity)
+      case _ => None
+    }
+  }
 
   // -------------------------------- DiskRealPathAware --------------------------------
 
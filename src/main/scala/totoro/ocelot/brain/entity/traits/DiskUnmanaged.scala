@@ -1,16 +1,16 @@
 package totoro.ocelot.brain.entity.traits
 
-import com.google.common.io.Files
 import totoro.ocelot.brain.entity.fs.Label
 import totoro.ocelot.brain.entity.machine.{Arguments, Callback, Context}
 import totoro.ocelot.brain.event.EventBus
-import totoro.ocelot.brain.nbt.NBTTagCompound
+import totoro.ocelot.brain.nbt.{CompressionCodec, NBTTagCompound}
 import totoro.ocelot.brain.network.{Component, Network, Node, Visibility}
+import totoro.ocelot.brain.util.SectorStorage
 import totoro.ocelot.brain.workspace.Workspace
 import totoro.ocelot.brain.{Ocelot, Settings}
 
-import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File}
-import java.util.zip.{GZIPInputStream, GZIPOutputStream}
+import java.io.{BufferedInputStream, File, FileInputStream}
+import java.nio.file.Files
 
 /**
   * Basic trait for all unmanaged-disk-like entities.
@@ -22,7 +22,10 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     withComponent("drive", Visibility.Neighbors).
     create()
 
-  protected def savePath = new File(workspace.path.toFile, node.address + ".bin")
+  protected def savePath = new File(workspace.path.toFile, node.address + ".img")
+
+  // compressed image written by older versions, imported when there is no sector file yet
+  protected def legacySavePath = new File(workspace.path.toFile, node.address + ".bin")
 
   /**
     * Number of physical platters to pretend a disk has in unmanaged mode. This
@@ -46,7 +49,7 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
 
   protected final val sectorSize = 512
 
-  protected lazy val data = new Array[Byte](capacity)
+  protected lazy val data = new SectorStorage(capacity, sectorSize)
 
   protected def sectorCount: Int = capacity / sectorSize
 
@@ -61,7 +64,7 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
 
   // ----------------------------------------------------------------------- //
 
-  @Callback(direct = true, doc = """function():string -- Get the current label of the drive.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the current label of the drive.""")
   def getLabel(context: Context, args: Arguments): Array[AnyRef] = this.synchronized {
     if (label != null) result(label.getLabel) else null
   }
@@ -75,13 +78,13 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     result(label.getLabel)
   }
 
-  @Callback(direct = true, doc = """function():number -- Returns the total capacity of the drive, in bytes.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Returns the total capacity of the drive, in bytes.""")
   def getCapacity(context: Context, args: Arguments): Array[AnyRef] = result(capacity)
 
-  @Callback(direct = true, doc = """function():number -- Returns the size of a single sector on the drive, in bytes.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Returns the size of a single sector on the drive, in bytes.""")
   def getSectorSize(context: Context, args: Arguments): Array[AnyRef] = result(sectorSize)
 
-  @Callback(direct = true, doc = """function():number -- Returns the number of platters in the drive.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Returns the number of platters in the drive.""")
   def getPlatterCount(context: Context, args: Arguments): Array[AnyRef] = result(platterCount)
 
   @Callback(direct = true, doc = """function(sector:number):string -- Read the current contents of the specified sector.""")
@@ -90,7 +93,7 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     val sector = moveToSector(context, checkSector(args, 0))
     diskActivity()
     val sectorData = new Array[Byte](sectorSize)
-    Array.copy(data, sectorOffset(sector), sectorData, 0, sectorSize)
+    data.read(sectorOffset(sector), sectorData, 0, sectorSize)
     result(sectorData)
   }
 
@@ -101,7 +104,7 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     val sectorData = args.checkByteArray(1)
     val sector = moveToSector(context, checkSector(args, 0))
     diskActivity()
-    Array.copy(sectorData, 0, data, sectorOffset(sector), math.min(sectorSize, sectorData.length))
+    data.write(sectorOffset(sector), sectorData, 0, math.min(sectorSize, sectorData.length))
     null
   }
 
@@ -111,7 +114,7 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     val offset = args.checkInteger(0) - 1
     moveToSector(context, checkSector(offset))
     diskActivity()
-    result(data(offset))
+    result(data.readByte(offset))
   }
 
   @Callback(direct = true, doc = """function(offset:number, value:number) -- Write a single byte to the specified offset.""")
@@ -122,7 +125,7 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     val value = args.checkInteger(1).toByte
     moveToSector(context, checkSector(offset))
     diskActivity()
-    data(offset) = value
+    data.writeByte(offset, value)
     null
   }
 
@@ -164,17 +167,10 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     this.workspace = workspace
 
     if (node.address != null) try {
-      val path = savePath
-      if (path.exists()) {
-        val bin = new ByteArrayInputStream(Files.toByteArray(path))
-        val zin = new GZIPInputStream(bin)
-        var offset = 0
-        var read = 0
-        while (read >= 0 && offset < data.length) {
-          read = zin.read(data, offset, data.length - offset)
-          offset += read
-        }
-      }
+      val legacyPath = legacySavePath
+      data.load(savePath, if (legacyPath.isFile) {
+        Some(CompressionCodec.decompress(new BufferedInputStream(new FileInputStream(legacyPath))))
+      } else None)
     }
     catch {
       case t: Throwable => Ocelot.log.warn(s"Failed loading drive contents for '${node.address}'.", t)
@@ -191,13 +187,8 @@ trait DiskUnmanaged extends Disk with WorkspaceAware {
     super.save(nbt)
 
     if (node.address != null) try {
-      val path = savePath
-      path.getParentFile.mkdirs()
-      val bos = new ByteArrayOutputStream()
-      val zos = new GZIPOutputStream(bos)
-      zos.write(data)
-      zos.close()
-      Files.write(bos.toByteArray, path)
+      data.save(savePath)
+      Files.deleteIfExists(legacySavePath.toPath)
     }
     catch {
       case t: Throwable => Ocelot.log.warn(s"Failed saving drive contents for '${node.address}'.", t)
@@ -7,6 +7,7 @@ import totoro.ocelot.brain.util.Persistable
 import totoro.ocelot.brain.workspace.Workspace
 
 import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
   * Represents a single persistable object, which may be created
@@ -28,6 +29,58 @@ trait Entity extends Persistable with LifeCycle {
 
   def getCustomData: Persistable = customData
 
+  // ----------------------------------------------------------------------- //
+
+  // set from the threads of machines by direct callbacks, while checkpoints clear it
+  private val modified = new AtomicBoolean(true)
+
+  /**
+    * Marks the entity as changed since the last checkpoint of a `WorkspaceJournal`.
+    *
+    * Component callbacks and inventory changes do this automatically.
+    * Code that changes an entity's state directly should call it as well.
+    */
+  def markModified(): Unit = modified.set(true)
+
+  /**
+    * Whether the entity may have changed since the last checkpoint.
+    *
+    * Entities that change on their own (see `isModifiedContinuously`)
+    * and containers of modified entities count as modified, too.
+    */
+  def isModified: Boolean = modified.get || isModifiedContinuously || (this match {
+    case container: Inventory => container.inventory.entities.exists(_.isModified)
+    case _ => false
+  })
+
+  /**
+    * Whether the state of this entity changes without any outside interaction, e.g. every tick.
+    *
+    * Entities that only change in some of their updates should rather call `markModified` there.
+    */
+  protected def isModifiedContinuously: Boolean = false
+
+  /**
+    * Resets the modification flag of this entity and of all entities it contains.
+    */
+  def clearModified(): Unit = testAndClearModified()
+
+  /**
+    * Resets the modification flag of this entity and of all entities it contains,
+    * returning whether the entity counted as modified (see `isModified`) before.
+    *
+    * Each flag is read and reset atomically, so a change marked while this runs is
+    * either reported here or kept for the next call.
+    */
+  def testAndClearModified(): Boolean = {
+    var result = modified.getAndSet(false) | isModifiedContinuously
+    this match {
+      case container: Inventory => container.inventory.entities.foreach(entity => result |= entity.testAndClearModified())
+      case _ =>
+    }
+    result
+  }
+
   override def save(nbt: NBTTagCompound): Unit = {
     super.save(nbt)
 
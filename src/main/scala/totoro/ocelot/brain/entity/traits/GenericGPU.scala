@@ -108,7 +108,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     }
   }
 
-  @Callback(direct = true, doc = """function(): number -- returns the index of the currently selected buffer. 0 is reserved for the screen. Can return 0 even when there is no screen""")
+  @Callback(direct = true, readOnly = true, doc = """function(): number -- returns the index of the currently selected buffer. 0 is reserved for the screen. Can return 0 even when there is no screen""")
   def getActiveBuffer(context: Context, args: Arguments): Array[AnyRef] = {
     result(bufferIndex)
   }
@@ -128,7 +128,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     }
   }
 
-  @Callback(direct = true, doc = """function(): number -- Returns an array of indexes of the allocated buffers""")
+  @Callback(direct = true, readOnly = true, doc = """function(): number -- Returns an array of indexes of the allocated buffers""")
   def buffers(context: Context, args: Arguments): Array[AnyRef] = {
     result(bufferIndexes())
   }
@@ -177,32 +177,34 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
   @Callback(direct = true, doc = """function(): number -- Closes all buffers and returns the count. If the active buffer is closed, index moves to 0""")
   def freeAllBuffers(context: Context, args: Arguments): Array[AnyRef] = result(removeAllBuffers())
 
-  @Callback(direct = true, doc = """function(): number -- returns the total memory size of the gpu vram. This does not include the screen.""")
+  @Callback(direct = true, readOnly = true, doc = """function(): number -- returns the total memory size of the gpu vram. This does not include the screen.""")
   def totalMemory(context: Context, args: Arguments): Array[AnyRef] = {
     result(totalVRAM)
   }
 
-  @Callback(direct = true, doc = """function(): number -- returns the total free memory not allocated to buffers. This does not include the screen.""")
+  @Callback(direct = true, readOnly = true, doc = """function(): number -- returns the total free memory not allocated to buffers. This does not include the screen.""")
   def freeMemory(context: Context, args: Arguments): Array[AnyRef] = {
     result(totalVRAM - calculateUsedMemory())
   }
 
-  @Callback(direct = true, doc = """function(index: number): number, number -- returns the buffer size at index. Returns the screen resolution for index 0. returns nil for invalid indexes""")
+  @Callback(direct = true, readOnly = true, doc = """function(index: number): number, number -- returns the buffer size at index. Returns the screen resolution for index 0. returns nil for invalid indexes""")
   def getBufferSize(context: Context, args: Arguments): Array[AnyRef] = {
     val idx = args.optInteger(0, bufferIndex)
     screen(idx, s => result(s.getWidth, s.getHeight))
   }
 
-  private def determineBitbltBudgetCost(dst: TextBufferProxy, src: TextBufferProxy): Double = {
-    // large dirty buffers need throttling so their budget cost is more
-    // clean buffers have no budget cost.
+  private def determineBitbltBudgetCost(dst: TextBufferProxy, col: Int, row: Int, w: Int, h: Int,
+                                        src: TextBufferProxy, fromCol: Int, fromRow: Int): Double = {
+    // large dirty regions need throttling so their budget cost is more
+    // regions that did not change since the last bitblt have no budget cost.
     src match {
       case page: GpuTextBuffer => dst match {
         case _: GpuTextBuffer => 0.0 // no cost to write to ram
-        case _ if page.dirty => // screen target will need the new buffer
-          // small buffers are cheap, so increase with size of buffer source
-          bitbltCost * (src.getWidth * src.getHeight) / (maxResolution._1 * maxResolution._2)
-        case _ => .001 // bitblt a clean page to screen has a minimal cost
+        case _ => GpuTextBuffer.pendingCells(dst, col, row, w, h, page, fromCol, fromRow) match {
+          case 0 => .001 // bitblt of an unchanged region to screen has a minimal cost
+          // small regions are cheap, so increase with the number of cells that have to be copied
+          case cells => bitbltCost * cells / (maxResolution._1 * maxResolution._2)
+        }
       }
       case _ => 0.0 // from screen is free
     }
@@ -221,7 +223,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
         val fromCol = args.optInteger(6, 1)
         val fromRow = args.optInteger(7, 1)
 
-        var budgetCost: Double = determineBitbltBudgetCost(dst, src)
+        var budgetCost: Double = determineBitbltBudgetCost(dst, col, row, w, h, src, fromCol, fromRow)
         val tierCredit: Double = tier.num * .5
         val overBudget: Double = budgetCost - tierCredit
 
@@ -286,10 +288,10 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     }
   }
 
-  @Callback(direct = true, doc = """function():string -- Get the address of the screen the GPU is currently bound to.""")
+  @Callback(direct = true, readOnly = true, doc = """function():string -- Get the address of the screen the GPU is currently bound to.""")
   def getScreen(context: Context, args: Arguments): Array[AnyRef] = screen(RESERVED_SCREEN_INDEX, s => result(s.node.address))
 
-  @Callback(direct = true, doc = """function():number, boolean -- Get the current background color and whether it's from the palette or not.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number, boolean -- Get the current background color and whether it's from the palette or not.""")
   def getBackground(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => result(s.getBackgroundColor, s.isBackgroundFromPalette))
 
@@ -313,7 +315,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     })
   }
 
-  @Callback(direct = true, doc = """function():number, boolean -- Get the current foreground color and whether it's from the palette or not.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number, boolean -- Get the current foreground color and whether it's from the palette or not.""")
   def getForeground(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => result(s.getForegroundColor, s.isForegroundFromPalette))
 
@@ -337,7 +339,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     })
   }
 
-  @Callback(direct = true, doc = """function(index:number):number -- Get the palette color at the specified palette index.""")
+  @Callback(direct = true, readOnly = true, doc = """function(index:number):number -- Get the palette color at the specified palette index.""")
   def getPaletteColor(context: Context, args: Arguments): Array[AnyRef] = {
     val index = args.checkInteger(0)
     screen(s => try result(s.getPaletteColor(index)) catch {
@@ -363,7 +365,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     })
   }
 
-  @Callback(direct = true, doc = """function():number -- Returns the currently set color depth.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Returns the currently set color depth.""")
   def getDepth(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => result(PackedColor.Depth.bits(s.getColorDepth)))
 
@@ -382,11 +384,11 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     })
   }
 
-  @Callback(direct = true, doc = """function():number -- Get the maximum supported color depth.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number -- Get the maximum supported color depth.""")
   def maxDepth(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => result(PackedColor.Depth.bits(ColorDepth(math.min(maxDepth.id, s.getMaximumColorDepth.id)))))
 
-  @Callback(direct = true, doc = """function():number, number -- Get the current screen resolution.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number, number -- Get the current screen resolution.""")
   def getResolution(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => result(s.getWidth, s.getHeight))
 
@@ -402,7 +404,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     screen(s => result(s.setResolution(w, h)))
   }
 
-  @Callback(direct = true, doc = """function():number, number -- Get the maximum screen resolution.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number, number -- Get the maximum screen resolution.""")
   def maxResolution(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => {
       val (gmw, gmh) = maxResolution
@@ -411,7 +413,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
       result(math.min(gmw, smw), math.min(gmh, smh))
     })
 
-  @Callback(direct = true, doc = """function():number, number -- Get the current viewport resolution.""")
+  @Callback(direct = true, readOnly = true, doc = """function():number, number -- Get the current viewport resolution.""")
   def getViewport(context: Context, args: Arguments): Array[AnyRef] =
     screen(s => result(s.getViewportWidth, s.getViewportHeight))
 
@@ -431,7 +433,7 @@ trait GenericGPU extends Environment with TieredPersistable with VideoRamDevice
     })
   }
 
-  @Callback(direct = true, doc = """function(x:number, y:number):string, number, number, number or nil, number or nil -- Get the value displayed on the screen at the specified index, as well as the foreground and background color. If the foreground or background is from the palette, returns the palette indices as fourth and fifth results, else nil, respectively.""")
+  @Callback(direct = true, readOnly = true, doc = """function(x:number, y:number):string, number, number, number or nil, number or nil -- Get the value displayed on the screen at the specified index, as well as the foreground and background color. If the foreground or background is from the palette, returns the palette indices as fourth and fifth results, else nil, respectively.""")
   def get(context: Context, args: Arguments): Array[AnyRef] = {
     // maybe one day:
     //    if (bufferIndex != RESERVED_SCREEN_INDEX && args.count() == 0) {
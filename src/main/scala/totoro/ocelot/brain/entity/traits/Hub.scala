@@ -62,6 +62,7 @@ trait Hub extends Environment with SidedEnvironment with WorkspaceAware {
 
   override def update(): Unit = {
     super.update()
+    if (relayCooldown >= 0 || queue.nonEmpty) markEntityModified()
     if (relayCooldown > 0) {
       relayCooldown -= 1
     }
@@ -86,6 +87,7 @@ trait Hub extends Environment with SidedEnvironment with WorkspaceAware {
 
   def tryEnqueuePacket(sourceSide: Option[Direction.Value], packet: Packet): Boolean = queue.synchronized {
     if (packet.ttl > 0 && queue.size < maxQueueSize) {
+      markEntityModified()
       queue += sourceSide -> packet.hop()
       if (relayCooldown < 0) {
         relayCooldown = relayDelay - 1
@@ -95,6 +97,12 @@ trait Hub extends Environment with SidedEnvironment with WorkspaceAware {
     else false
   }
 
+  // the queue is saved with the entity, and changes without any of its callbacks
+  private def markEntityModified(): Unit = this match {
+    case entity: Entity => entity.markModified()
+    case _ =>
+  }
+
   protected def relayPacket(sourceSide: Option[Direction.Value], packet: Packet): Unit = {
     for (side <- Direction.values) {
       if (sourceSide.isEmpty || sourceSide.get != side) {
@@ -33,6 +33,7 @@ trait Inventory extends WorkspaceAware with Persistable {
       case e: WorkspaceAware => e.workspace = workspace
       case _ =>
     }
+    entity.markModified()
 
     EventBus.send(InventoryEntityAddedEvent(slot, entity))
   }
@@ -48,6 +49,10 @@ trait Inventory extends WorkspaceAware with Persistable {
       case e: WorkspaceAware => e.workspace = null
       case _ =>
     }
+    this match {
+      case e: Entity => e.markModified()
+      case _ =>
+    }
 
     EventBus.send(InventoryEntityRemovedEvent(slot, entity))
   }
@@ -138,6 +138,7 @@ trait TextBufferProxy extends Environment {
   def setPaletteColor(index: Int, color: Int): Unit = data.format match {
     case palette: PackedColor.MutablePaletteFormat =>
       palette(index) = color
+      data.markDirty()
       onBufferPaletteColorChange(index, color)
     case _ => throw new Exception("palette not available")
   }
@@ -433,6 +434,7 @@ trait TextBufferProxy extends Environment {
       val line = text(y - row)
       Array.copy(line, 0, data.buffer(y), column, line.length min data.width)
     }
+    data.markDirty(row, row + text.length)
   }
 
   /**
@@ -459,6 +461,7 @@ trait TextBufferProxy extends Environment {
       val line = text(y - row)
       Array.copy(line, 0, data.buffer(y), column, line.length min data.width)
     }
+    data.markDirty(row, row + text.length)
   }
 
   /**
@@ -490,6 +493,7 @@ trait TextBufferProxy extends Environment {
         data.color(y)(x) = (packedForeground | packedBackground).toShort
       }
     }
+    data.markDirty(row, row + color.length)
   }
 
   /**
@@ -521,6 +525,7 @@ trait TextBufferProxy extends Environment {
         data.color(y)(x) = (packedForeground | packedBackground).toShort
       }
     }
+    data.markDirty(row, row + color.length)
   }
 
   private def color(column: Int, row: Int): Short = {
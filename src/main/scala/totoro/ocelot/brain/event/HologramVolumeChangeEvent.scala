@@ -0,0 +1,12 @@
+package totoro.ocelot.brain.event
+
+/**
+  * Sent once per tick with the voxel columns of a hologram projector that changed during that tick.
+  *
+  * `columns` holds column indices (`x + z * width`), `lowerBits` and `upperBits`
+  * hold the new bitplane values of the column at the same position.
+  */
+case class HologramVolumeChangeEvent(address: String,
+                                     columns: Array[Int],
+                                     lowerBits: Array[Int],
+                                     upperBits: Array[Int]) extends NodeEvent
@@ -73,10 +73,7 @@ object Loot {
     def this() = this(null, null, DyeColor.Gray, null)
 
     override protected def generateEnvironment(): FileSystem = {
-      FileSystemAPI.asManagedEnvironment(
-        FileSystemAPI.fromClass(Ocelot.getClass, Settings.resourceDomain, "loot/" + path),
-        _label, activityType.orNull
-      )
+      FileSystemAPI.asManagedEnvironment(LootIndex.fileSystem(path), _label, activityType.orNull)
     }
 
     override def save(nbt: NBTTagCompound): Unit = {
@@ -116,9 +113,12 @@ object Loot {
   }
 
   class EEPROMFactory(val label: String, file: String, readonly: Boolean = false) extends LootFactory[EEPROM] {
-    private val code = new Array[Byte](4 * 1024)
-    private val count = Ocelot.getClass.getResourceAsStream(Settings.scriptPath + file).read(code)
-    private val codeData = code.take(count)
+    // read on first use, so registering the factories does not touch the jar
+    private lazy val codeData = {
+      val code = new Array[Byte](4 * 1024)
+      val count = Ocelot.getClass.getResourceAsStream(Settings.scriptPath + file).read(code)
+      code.take(count)
+    }
 
     override def create(): EEPROM = {
       val eeprom = new EEPROM()
@@ -0,0 +1,125 @@
+package totoro.ocelot.brain.loot
+
+import com.google.common.cache.{CacheBuilder, Weigher}
+import org.apache.commons.io.IOUtils
+import totoro.ocelot.brain.entity.fs.{FileSystemAPI, FileSystemTrait, InputStreamFileSystem}
+import totoro.ocelot.brain.{Ocelot, Settings}
+
+import java.io.{ByteArrayInputStream, IOException}
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ExecutionException
+import java.util.zip.CRC32
+import scala.io.Source
+import scala.util.Using
+
+/**
+  * The index of the loot disks, generated by the build and bundled as `loot.index`.
+  *
+  * Every line describes a directory (`d path`) or a file (`f path size crc32`) below the loot
+  * directory, separated by tabs. With the index, loot disks are mounted without scanning the jar.
+  * File contents are only read when a file is opened, and checked against the index.
+  *
+  * When the index is missing (e.g. when running from an IDE without the generated resources), loot
+  * disks are mounted through `FileSystemAPI.fromClass`, as before.
+  */
+object LootIndex {
+  private val LootPath = s"/assets/${Settings.resourceDomain}/loot/"
+  private val IndexPath = s"/assets/${Settings.resourceDomain}/loot.index"
+
+  /**
+    * Maximum total size of the file contents kept in memory, over all loot disks.
+    */
+  final val MaxCachedBytes: Long = 4 * 1024 * 1024
+
+  private class Entry(val size: Long, val checksum: Long, val children: Array[String]) {
+    def isDirectory: Boolean = children != null
+  }
+
+  private lazy val entries: Option[Map[String, Entry]] = {
+    Option(Ocelot.getClass.getResourceAsStream(IndexPath)).flatMap(stream => try {
+      val lines = Using.resource(Source.fromInputStream(stream, StandardCharsets.UTF_8.name()))(_.getLines().map(_.split('\t')).toSeq)
+
+      def parent(path: String) = path.substring(0, math.max(path.lastIndexOf('/'), 0))
+
+      def name(path: String) = path.substring(path.lastIndexOf('/') + 1)
+
+      val children = lines.groupMap(line => parent(line(1)))(line => name(line(1)) + (if (line(0) == "d") "/" else ""))
+      Some(lines.map {
+        case Array("d", path) => path -> new Entry(0, 0, children.getOrElse(path, Seq.empty).toArray)
+        case Array("f", path, size, checksum) => path -> new Entry(size.toLong, java.lang.Long.parseLong(checksum, 16), null)
+        case line => throw new IOException(s"invalid line '${line.mkString("\t")}'")
+      }.toMap)
+    } catch {
+      case e: Exception =>
+        Ocelot.log.warn("Failed reading the loot index.", e)
+        None
+    })
+  }
+
+  private val dataCache = CacheBuilder.newBuilder().
+    maximumWeight(MaxCachedBytes).
+    weigher(new Weigher[String, Array[Byte]] {
+      override def weigh(key: String, value: Array[Byte]): Int = value.length
+    }).
+    asInstanceOf[CacheBuilder[String, Array[Byte]]].
+    build[String, Array[Byte]]()
+
+  /**
+    * A read-only file system for the loot directory at `path`.
+    */
+  def fileSystem(path: String): FileSystemTrait = {
+    val root = path.stripPrefix("/").stripSuffix("/")
+    entries match {
+      case Some(index) if index.get(root).exists(_.isDirectory) => new IndexedFileSystem(index, root)
+      case Some(_) => null
+      case None => FileSystemAPI.fromClass(Ocelot.getClass, Settings.resourceDomain, "loot/" + path)
+    }
+  }
+
+  @throws[IOException]
+  private def read(path: String, entry: Entry): Array[Byte] = try dataCache.get(path, () => {
+    val stream = Ocelot.getClass.getResourceAsStream(LootPath + path)
+    if (stream == null) throw new IOException(s"missing loot file $path")
+    val data = Using.resource(stream)(stream => IOUtils.toByteArray(stream))
+    val crc = new CRC32()
+    crc.update(data)
+    if (data.length != entry.size || crc.getValue != entry.checksum)
+      throw new IOException(s"loot file $path does not match the index")
+    data
+  }) catch {
+    case e: ExecutionException => throw e.getCause
+  }
+
+  private class IndexedFileSystem(index: Map[String, Entry], root: String) extends InputStreamFileSystem {
+    private def resolve(path: String): String = {
+      val cleanPath = path.replace("\\", "/").split("/").filter(_.nonEmpty).mkString("/")
+      if (cleanPath.isEmpty) root else root + "/" + cleanPath
+    }
+
+    private def entry(path: String): Option[Entry] = index.get(resolve(path))
+
+    private lazy val spaceUsed_ = index.iterator.collect {
+      case (path, entry) if !entry.isDirectory && path.startsWith(root + "/") => entry.size
+    }.sum
+
+    override def spaceTotal: Long = spaceUsed
+
+    override def spaceUsed: Long = spaceUsed_
+
+    override def exists(path: String): Boolean = entry(path).isDefined
+
+    override def size(path: String): Long = entry(path).filterNot(_.isDirectory).fold(0L)(_.size)
+
+    override def isDirectory(path: String): Boolean = entry(path).exists(_.isDirectory)
+
+    override def lastModified(path: String): Long = 0L
+
+    override def list(path: String): Array[String] = entry(path).filter(_.isDirectory).map(_.children.clone()).orNull
+
+    override protected def openInputChannel(path: String): Option[InputChannel] = {
+      val fullPath = resolve(path)
+      index.get(fullPath).filterNot(_.isDirectory).map(entry =>
+        new InputStreamChannel(new ByteArrayInputStream(read(fullPath, entry))))
+    }
+  }
+}
@@ -0,0 +1,178 @@
+package totoro.ocelot.brain.nbt;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * Base for codecs that compress independent blocks of up to {@link #BLOCK_SIZE} bytes.
+ * <p>
+ * Every block is written as its raw length, its stored length and the CRC32 of its raw contents,
+ * followed by the stored data. Blocks that do not get smaller are stored as they are, which is
+ * signalled by equal raw and stored lengths. A raw length of zero marks the end of the data,
+ * so a truncated stream is detected as such instead of being silently cut short.
+ */
+abstract class BlockCodec extends CompressionCodec {
+    static final int BLOCK_SIZE = 1 << 16;
+
+    private final byte id;
+
+    BlockCodec(String name, byte id) {
+        super(name);
+        this.id = id;
+    }
+
+    byte getId() {
+        return id;
+    }
+
+    /**
+     * Compresses the first {@code length} bytes of {@code src} into {@code dst},
+     * which has room for at least {@link #maxEncodedLength(int)} bytes.
+     *
+     * @return the encoded length, or -1 if the block should be stored as is.
+     */
+    abstract int encode(byte[] src, int length, byte[] dst);
+
+    /**
+     * Decompresses the first {@code length} bytes of {@code src} into exactly {@code rawLength} bytes of {@code dst}.
+     */
+    abstract void decode(byte[] src, int length, byte[] dst, int rawLength) throws IOException;
+
+    int maxEncodedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    OutputStream wrapOutput(OutputStream outputstream) {
+        return new BlockOutputStream(outputstream);
+    }
+
+    InputStream wrapInput(InputStream inputstream) {
+        return new BlockInputStream(inputstream);
+    }
+
+    private final class BlockOutputStream extends OutputStream {
+        private final DataOutputStream output;
+        private final byte[] block = new byte[BLOCK_SIZE];
+        private final byte[] encoded = new byte[maxEncodedLength(BLOCK_SIZE)];
+        private final CRC32 crc = new CRC32();
+        private int length;
+        private boolean closed;
+
+        BlockOutputStream(OutputStream outputstream) {
+            this.output = new DataOutputStream(outputstream);
+        }
+
+        public void write(int b) throws IOException {
+            if (length == block.length) writeBlock();
+            block[length++] = (byte) b;
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == block.length) writeBlock();
+                int count = Math.min(len, block.length - length);
+                System.arraycopy(b, off, block, length, count);
+                length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            if (length == 0) return;
+            crc.reset();
+            crc.update(block, 0, length);
+            int encodedLength = encode(block, length, encoded);
+            boolean stored = encodedLength < 0 || encodedLength >= length;
+            output.writeInt(length);
+            output.writeInt(stored ? length : encodedLength);
+            output.writeInt((int) crc.getValue());
+            if (stored) output.write(block, 0, length);
+            else output.write(encoded, 0, encodedLength);
+            length = 0;
+        }
+
+        public void flush() throws IOException {
+            writeBlock();
+            output.flush();
+        }
+
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                writeBlock();
+                output.writeInt(0);
+            } finally {
+                output.close();
+            }
+        }
+    }
+
+    private final class BlockInputStream extends InputStream {
+        private final DataInputStream input;
+        private final CRC32 crc = new CRC32();
+        private byte[] block = new byte[0];
+        private byte[] encoded;
+        private int position;
+        private int length;
+        private boolean finished;
+
+        BlockInputStream(InputStream inputstream) {
+            this.input = new DataInputStream(inputstream);
+        }
+
+        private boolean fill() throws IOException {
+            while (position == length) {
+                if (finished) return false;
+                int rawLength = input.readInt();
+                if (rawLength == 0) {
+                    finished = true;
+                    return false;
+                }
+                int storedLength = input.readInt();
+                int checksum = input.readInt();
+                if (rawLength < 0 || rawLength > BLOCK_SIZE || storedLength < 0 || storedLength > rawLength) {
+                    throw new IOException("Corrupted block header");
+                }
+                if (block.length < rawLength) block = new byte[BLOCK_SIZE];
+                if (storedLength == rawLength) {
+                    input.readFully(block, 0, rawLength);
+                } else {
+                    if (encoded == null) encoded = new byte[maxEncodedLength(BLOCK_SIZE)];
+                    input.readFully(encoded, 0, storedLength);
+                    decode(encoded, storedLength, block, rawLength);
+                }
+                crc.reset();
+                crc.update(block, 0, rawLength);
+                if ((int) crc.getValue() != checksum) {
+                    throw new IOException("Block checksum mismatch");
+                }
+                position = 0;
+                length = rawLength;
+            }
+            return true;
+        }
+
+        public int read() throws IOException {
+            return fill() ? block[position++] & 0xFF : -1;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int count = Math.min(len, length - position);
+            System.arraycopy(block, position, b, off, count);
+            position += count;
+            return count;
+        }
+
+        public int available() {
+            return length - position;
+        }
+
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
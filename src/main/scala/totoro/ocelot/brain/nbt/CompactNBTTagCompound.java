@@ -0,0 +1,657 @@
+package totoro.ocelot.brain.nbt;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Memory-compact replacement for {@link NBTTagCompound}, usable wherever a compound is expected.
+ * <p>
+ * Entries are kept in a key array sorted by name, with the tag types in a parallel byte array.
+ * Numbers are stored inline in a parallel {@code long} array instead of as one tag object each,
+ * strings and arrays are stored as they are, and only lists and compounds remain tag objects.
+ * <p>
+ * Compounds created by {@link #view(byte[])} additionally keep large nested tags as undecoded
+ * slices of the source buffer. A slice is only decoded when it is accessed for the first time,
+ * and is written back verbatim if it never was. The buffer must not be modified afterwards.
+ * <p>
+ * Number and string tags returned by {@link #getTag(String)} are created on demand, so unlike with
+ * {@link NBTTagCompound} the same instance is not returned twice. They are immutable, so this is
+ * not observable except by identity.
+ */
+public class CompactNBTTagCompound extends NBTTagCompound {
+    /**
+     * Nested tags of at least this many encoded bytes are kept undecoded by {@link #view(byte[])}.
+     */
+    public static final int LAZY_THRESHOLD = 256;
+
+    private static final String[] NO_KEYS = new String[0];
+    private static final byte[] NO_TYPES = new byte[0];
+    private static final long[] NO_NUMBERS = new long[0];
+    private static final Object[] NO_OBJECTS = new Object[0];
+
+    /**
+     * Encoded payload of a nested tag, not decoded yet.
+     */
+    private static final class Slice {
+        final byte[] buffer;
+        final int offset;
+        final int length;
+
+        Slice(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        Object decode(byte type) {
+            try {
+                switch (type) {
+                    case NBT.TAG_BYTE_ARRAY:
+                        return Arrays.copyOfRange(buffer, offset + 4, offset + length);
+                    case NBT.TAG_INT_ARRAY: {
+                        int[] array = new int[(length - 4) / 4];
+                        ByteBuffer.wrap(buffer, offset + 4, length - 4).asIntBuffer().get(array);
+                        return array;
+                    }
+                    case NBT.TAG_COMPOUND:
+                        return parse(buffer, offset);
+                    default: {
+                        NBTBase tag = NBTBase.createTag(type);
+                        if (tag == null) {
+                            throw new IOException("Unknown NBT tag type " + type);
+                        }
+                        tag.load(new DataInputStream(new ByteArrayInputStream(buffer, offset, length)), 1, NBTReadLimiter.INFINITE);
+                        return tag;
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private String[] keys = NO_KEYS;
+    private byte[] types = NO_TYPES;
+    private long[] numbers = NO_NUMBERS;
+    private Object[] objects = NO_OBJECTS;
+    private int size;
+
+    public CompactNBTTagCompound() {}
+
+    /**
+     * Creates a compact copy of the given compound. Nested compounds are converted as well.
+     */
+    public static CompactNBTTagCompound from(NBTTagCompound nbttagcompound) {
+        if (nbttagcompound instanceof CompactNBTTagCompound) {
+            return (CompactNBTTagCompound) nbttagcompound.clone();
+        }
+        CompactNBTTagCompound result = new CompactNBTTagCompound();
+        for (String key : nbttagcompound.getKeySet()) {
+            NBTBase tag = nbttagcompound.getTag(key);
+            if (tag instanceof NBTTagCompound) {
+                result.setTag(key, from((NBTTagCompound) tag));
+            } else if (tag != null) {
+                result.setTag(key, tag.clone());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a lazily decoded compound over uncompressed data in the format written by
+     * {@link CompressedStreamTools#write(NBTTagCompound, DataOutput)}.
+     */
+    public static CompactNBTTagCompound view(byte[] data) throws IOException {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.get() != NBT.TAG_COMPOUND) {
+                throw new IOException("Root tag must be a named compound tag");
+            }
+            skip(buffer, buffer.getShort() & 0xFFFF);
+            int offset = buffer.position();
+            skipPayload(buffer, (byte) NBT.TAG_COMPOUND, 0);
+            return parse(data, offset);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException();
+        }
+    }
+
+    // reads the entries of a compound payload that has already been validated by skipPayload
+    private static CompactNBTTagCompound parse(byte[] data, int offset) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(offset);
+        CompactNBTTagCompound compound = new CompactNBTTagCompound();
+        byte type;
+        while ((type = buffer.get()) != 0) {
+            String key = readUTF(buffer);
+            int index = compound.slot(key, type);
+            switch (type) {
+                case NBT.TAG_BYTE:
+                    compound.numbers[index] = buffer.get();
+                    break;
+                case NBT.TAG_SHORT:
+                    compound.numbers[index] = buffer.getShort();
+                    break;
+                case NBT.TAG_INT:
+                case NBT.TAG_FLOAT:
+                    compound.numbers[index] = buffer.getInt();
+                    break;
+                case NBT.TAG_LONG:
+                case NBT.TAG_DOUBLE:
+                    compound.numbers[index] = buffer.getLong();
+                    break;
+                case NBT.TAG_STRING:
+                    compound.objects[index] = readUTF(buffer);
+                    break;
+                default: {
+                    int start = buffer.position();
+                    skipPayload(buffer, type, 1);
+                    Slice slice = new Slice(data, start, buffer.position() - start);
+                    compound.objects[index] = slice.length >= LAZY_THRESHOLD ? slice : slice.decode(type);
+                }
+            }
+        }
+        return compound;
+    }
+
+    private static String readUTF(ByteBuffer buffer) throws IOException {
+        int length = 2 + (buffer.getShort(buffer.position()) & 0xFFFF);
+        if (length > buffer.remaining()) {
+            throw new EOFException();
+        }
+        String value = new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), length)).readUTF();
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static void skip(ByteBuffer buffer, long count) throws IOException {
+        if (count < 0 || count > buffer.remaining()) {
+            throw new EOFException();
+        }
+        buffer.position(buffer.position() + (int) count);
+    }
+
+    private static void skipPayload(ByteBuffer buffer, byte type, int depth) throws IOException {
+        if (depth > 512) {
+            throw new IOException("Tried to read NBT tag with too high complexity, depth > 512");
+        }
+        switch (type) {
+            case 0: // end tag, only occurs as the element type of empty lists
+                break;
+            case NBT.TAG_BYTE:
+                skip(buffer, 1);
+                break;
+            case NBT.TAG_SHORT:
+                skip(buffer, 2);
+                break;
+            case NBT.TAG_INT:
+            case NBT.TAG_FLOAT:
+                skip(buffer, 4);
+                break;
+            case NBT.TAG_LONG:
+            case NBT.TAG_DOUBLE:
+                skip(buffer, 8);
+                break;
+            case NBT.TAG_BYTE_ARRAY:
+                skip(buffer, buffer.getInt());
+                break;
+            case NBT.TAG_INT_ARRAY:
+                skip(buffer, 4L * buffer.getInt());
+                break;
+            case NBT.TAG_STRING:
+                skip(buffer, buffer.getShort() & 0xFFFF);
+                break;
+            case NBT.TAG_LIST: {
+                byte elementType = buffer.get();
+                int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    skipPayload(buffer, elementType, depth + 1);
+                }
+                break;
+            }
+            case NBT.TAG_COMPOUND: {
+                byte entryType;
+                while ((entryType = buffer.get()) != 0) {
+                    skip(buffer, buffer.getShort() & 0xFFFF);
+                    skipPayload(buffer, entryType, depth + 1);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown NBT tag type " + type);
+        }
+    }
+
+    private int indexOf(String key) {
+        return Arrays.binarySearch(keys, 0, size, key);
+    }
+
+    // finds or inserts the entry for the key and resets it to an empty value of the given type
+    private int slot(String key, byte type) {
+        int index = indexOf(key);
+        if (index < 0) {
+            index = -index - 1;
+            if (size == keys.length) {
+                int capacity = Math.max(4, size * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                types = Arrays.copyOf(types, capacity);
+                numbers = Arrays.copyOf(numbers, capacity);
+                objects = Arrays.copyOf(objects, capacity);
+            }
+            int tail = size - index;
+            System.arraycopy(keys, index, keys, index + 1, tail);
+            System.arraycopy(types, index, types, index + 1, tail);
+            System.arraycopy(numbers, index, numbers, index + 1, tail);
+            System.arraycopy(objects, index, objects, index + 1, tail);
+            keys[index] = key;
+            size++;
+        }
+        types[index] = type;
+        numbers[index] = 0;
+        objects[index] = null;
+        return index;
+    }
+
+    private static boolean isIntegral(byte type) {
+        return type == NBT.TAG_BYTE || type == NBT.TAG_SHORT || type == NBT.TAG_INT || type == NBT.TAG_LONG;
+    }
+
+    private static boolean isNumber(byte type) {
+        return isIntegral(type) || type == NBT.TAG_FLOAT || type == NBT.TAG_DOUBLE;
+    }
+
+    private Object decoded(int index) {
+        Object value = objects[index];
+        if (value instanceof Slice) {
+            value = ((Slice) value).decode(types[index]);
+            objects[index] = value;
+        }
+        return value;
+    }
+
+    private NBTBase tag(int index) {
+        switch (types[index]) {
+            case NBT.TAG_BYTE:
+                return new NBTTagByte((byte) numbers[index]);
+            case NBT.TAG_SHORT:
+                return new NBTTagShort((short) numbers[index]);
+            case NBT.TAG_INT:
+                return new NBTTagInt((int) numbers[index]);
+            case NBT.TAG_LONG:
+                return new NBTTagLong(numbers[index]);
+            case NBT.TAG_FLOAT:
+                return new NBTTagFloat(Float.intBitsToFloat((int) numbers[index]));
+            case NBT.TAG_DOUBLE:
+                return new NBTTagDouble(Double.longBitsToDouble(numbers[index]));
+            case NBT.TAG_STRING:
+                return new NBTTagString((String) objects[index]);
+            case NBT.TAG_BYTE_ARRAY:
+                return new NBTTagByteArray((byte[]) decoded(index));
+            case NBT.TAG_INT_ARRAY:
+                return new NBTTagIntArray((int[]) decoded(index));
+            default:
+                return (NBTBase) decoded(index);
+        }
+    }
+
+    // the entry as a number tag, or null if it does not hold a number
+    private NBTNumber number(String s) {
+        int index = indexOf(s);
+        return index >= 0 && isNumber(types[index]) ? (NBTNumber) tag(index) : null;
+    }
+
+    void write(DataOutput dataoutput) throws IOException {
+        for (int i = 0; i < size; i++) {
+            if (types[i] == 0) continue;
+            dataoutput.writeByte(types[i]);
+            dataoutput.writeUTF(keys[i]);
+            Object value = objects[i];
+            switch (types[i]) {
+                case NBT.TAG_BYTE:
+                    dataoutput.writeByte((int) numbers[i]);
+                    break;
+                case NBT.TAG_SHORT:
+                    dataoutput.writeShort((int) numbers[i]);
+                    break;
+                case NBT.TAG_INT:
+                case NBT.TAG_FLOAT:
+                    dataoutput.writeInt((int) numbers[i]);
+                    break;
+                case NBT.TAG_LONG:
+                case NBT.TAG_DOUBLE:
+                    dataoutput.writeLong(numbers[i]);
+                    break;
+                case NBT.TAG_STRING:
+                    dataoutput.writeUTF((String) value);
+                    break;
+                default:
+                    if (value instanceof Slice) {
+                        Slice slice = (Slice) value;
+                        dataoutput.write(slice.buffer, slice.offset, slice.length);
+                    } else if (value instanceof byte[]) {
+                        byte[] array = (byte[]) value;
+                        dataoutput.writeInt(array.length);
+                        dataoutput.write(array);
+                    } else if (value instanceof int[]) {
+                        int[] array = (int[]) value;
+                        dataoutput.writeInt(array.length);
+                        for (int element : array) {
+                            dataoutput.writeInt(element);
+                        }
+                    } else {
+                        ((NBTBase) value).write(dataoutput);
+                    }
+            }
+        }
+
+        dataoutput.writeByte(0);
+    }
+
+    void load(DataInput datainput, int i, NBTReadLimiter nbtreadlimiter) throws IOException {
+        if (i > 512) {
+            throw new RuntimeException("Tried to read NBT tag with too high complexity, depth > 512");
+        }
+        clear();
+
+        byte type;
+        while ((type = datainput.readByte()) != 0) {
+            String key = datainput.readUTF();
+            nbtreadlimiter.a(16L * key.length());
+            switch (type) {
+                case NBT.TAG_BYTE:
+                    nbtreadlimiter.a(8L);
+                    setByte(key, datainput.readByte());
+                    break;
+                case NBT.TAG_SHORT:
+                    nbtreadlimiter.a(16L);
+                    setShort(key, datainput.readShort());
+                    break;
+                case NBT.TAG_INT:
+                    nbtreadlimiter.a(32L);
+                    setInteger(key, datainput.readInt());
+                    break;
+                case NBT.TAG_LONG:
+                    nbtreadlimiter.a(64L);
+                    setLong(key, datainput.readLong());
+                    break;
+                case NBT.TAG_FLOAT:
+                    nbtreadlimiter.a(32L);
+                    setFloat(key, datainput.readFloat());
+                    break;
+                case NBT.TAG_DOUBLE:
+                    nbtreadlimiter.a(64L);
+                    setDouble(key, datainput.readDouble());
+                    break;
+                default: {
+                    NBTBase tag = type == NBT.TAG_COMPOUND ? new CompactNBTTagCompound() : NBTBase.createTag(type);
+                    if (tag == null) {
+                        throw new IOException("Unknown NBT tag type " + type);
+                    }
+                    tag.load(datainput, i + 1, nbtreadlimiter);
+                    setTag(key, tag);
+                }
+            }
+        }
+    }
+
+    private void clear() {
+        keys = NO_KEYS;
+        types = NO_TYPES;
+        numbers = NO_NUMBERS;
+        objects = NO_OBJECTS;
+        size = 0;
+    }
+
+    /**
+     * A snapshot of the keys, in sorted order. Unlike with {@link NBTTagCompound}
+     * it does not reflect later changes and cannot be used to remove entries.
+     */
+    public Set<String> getKeySet() {
+        return Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(keys).subList(0, size)));
+    }
+
+    public void setTag(String s, NBTBase nbtbase) {
+        if (nbtbase instanceof NBTTagByte) {
+            setByte(s, ((NBTTagByte) nbtbase).getByte());
+        } else if (nbtbase instanceof NBTTagShort) {
+            setShort(s, ((NBTTagShort) nbtbase).getShort());
+        } else if (nbtbase instanceof NBTTagInt) {
+            setInteger(s, ((NBTTagInt) nbtbase).getInt());
+        } else if (nbtbase instanceof NBTTagLong) {
+            setLong(s, ((NBTTagLong) nbtbase).getLong());
+        } else if (nbtbase instanceof NBTTagFloat) {
+            setFloat(s, ((NBTTagFloat) nbtbase).getFloat());
+        } else if (nbtbase instanceof NBTTagDouble) {
+            setDouble(s, ((NBTTagDouble) nbtbase).getDouble());
+        } else if (nbtbase instanceof NBTTagString) {
+            setString(s, nbtbase.getString());
+        } else if (nbtbase instanceof NBTTagByteArray) {
+            setByteArray(s, ((NBTTagByteArray) nbtbase).getByteArray());
+        } else if (nbtbase instanceof NBTTagIntArray) {
+            setIntArray(s, ((NBTTagIntArray) nbtbase).getIntArray());
+        } else {
+            int index = slot(s, nbtbase != null ? nbtbase.getId() : 0);
+            objects[index] = nbtbase;
+        }
+    }
+
+    public void setByte(String s, byte b0) {
+        int index = slot(s, (byte) NBT.TAG_BYTE);
+        numbers[index] = b0;
+    }
+
+    public void setShort(String s, short short1) {
+        int index = slot(s, (byte) NBT.TAG_SHORT);
+        numbers[index] = short1;
+    }
+
+    public void setInteger(String s, int i) {
+        int index = slot(s, (byte) NBT.TAG_INT);
+        numbers[index] = i;
+    }
+
+    public void setLong(String s, long i) {
+        int index = slot(s, (byte) NBT.TAG_LONG);
+        numbers[index] = i;
+    }
+
+    public void setFloat(String s, float f) {
+        int index = slot(s, (byte) NBT.TAG_FLOAT);
+        numbers[index] = Float.floatToIntBits(f);
+    }
+
+    public void setDouble(String s, double d0) {
+        int index = slot(s, (byte) NBT.TAG_DOUBLE);
+        numbers[index] = Double.doubleToLongBits(d0);
+    }
+
+    public void setString(String s, String s1) {
+        int index = slot(s, (byte) NBT.TAG_STRING);
+        objects[index] = s1;
+    }
+
+    public void setByteArray(String s, byte[] abyte) {
+        int index = slot(s, (byte) NBT.TAG_BYTE_ARRAY);
+        objects[index] = abyte;
+    }
+
+    public void setIntArray(String s, int[] aint) {
+        int index = slot(s, (byte) NBT.TAG_INT_ARRAY);
+        objects[index] = aint;
+    }
+
+    public void setTagList(String s, List<NBTBase> list) {
+        NBTTagList tagList = new NBTTagList();
+        tagList.appendAll(list);
+        int index = slot(s, (byte) NBT.TAG_LIST);
+        objects[index] = tagList;
+    }
+
+    public NBTBase getTag(String s) {
+        int index = indexOf(s);
+        return index < 0 ? null : tag(index);
+    }
+
+    public byte getTagType(String s) {
+        int index = indexOf(s);
+        return index < 0 ? 0 : types[index];
+    }
+
+    public boolean hasKey(String s) {
+        return indexOf(s) >= 0;
+    }
+
+    public byte getByte(String s) {
+        int index = indexOf(s);
+        if (index >= 0 && isIntegral(types[index])) return (byte) numbers[index];
+        NBTNumber number = number(s);
+        return number == null ? 0 : number.getByte();
+    }
+
+    public short getShort(String s) {
+        int index = indexOf(s);
+        if (index >= 0 && isIntegral(types[index])) return (short) numbers[index];
+        NBTNumber number = number(s);
+        return number == null ? 0 : number.getShort();
+    }
+
+    public int getInteger(String s) {
+        int index = indexOf(s);
+        if (index >= 0 && isIntegral(types[index])) return (int) numbers[index];
+        NBTNumber number = number(s);
+        return number == null ? 0 : number.getInt();
+    }
+
+    public long getLong(String s) {
+        int index = indexOf(s);
+        if (index >= 0 && isIntegral(types[index])) return numbers[index];
+        NBTNumber number = number(s);
+        return number == null ? 0L : number.getLong();
+    }
+
+    public float getFloat(String s) {
+        int index = indexOf(s);
+        if (index >= 0 && types[index] == NBT.TAG_FLOAT) return Float.intBitsToFloat((int) numbers[index]);
+        NBTNumber number = number(s);
+        return number == null ? 0.0F : number.getFloat();
+    }
+
+    public double getDouble(String s) {
+        int index = indexOf(s);
+        if (index >= 0 && types[index] == NBT.TAG_DOUBLE) return Double.longBitsToDouble(numbers[index]);
+        NBTNumber number = number(s);
+        return number == null ? 0.0D : number.getDouble();
+    }
+
+    public String getString(String s) {
+        int index = indexOf(s);
+        if (index < 0) return "";
+        if (types[index] == NBT.TAG_STRING) return (String) objects[index];
+        NBTBase tag = tag(index);
+        return tag != null ? tag.getString() : "";
+    }
+
+    public byte[] getByteArray(String s) {
+        int index = indexOf(s);
+        if (index < 0) return new byte[0];
+        if (types[index] != NBT.TAG_BYTE_ARRAY) throw new ClassCastException("Tag " + s + " is not a byte array");
+        return (byte[]) decoded(index);
+    }
+
+    public int[] getIntArray(String s) {
+        int index = indexOf(s);
+        if (index < 0) return new int[0];
+        if (types[index] != NBT.TAG_INT_ARRAY) throw new ClassCastException("Tag " + s + " is not an int array");
+        return (int[]) decoded(index);
+    }
+
+    public NBTTagCompound getCompoundTag(String s) {
+        int index = indexOf(s);
+        return index < 0 ? new CompactNBTTagCompound() : (NBTTagCompound) tag(index);
+    }
+
+    public NBTTagList getTagList(String s, int type) {
+        int index = indexOf(s);
+        if (index < 0 || types[index] != NBT.TAG_LIST) {
+            return new NBTTagList();
+        } else {
+            NBTTagList nbttaglist = (NBTTagList) decoded(index);
+
+            return nbttaglist.tagCount() > 0 && nbttaglist.getType() != type ? new NBTTagList() : nbttaglist;
+        }
+    }
+
+    public void removeTag(String s) {
+        int index = indexOf(s);
+        if (index < 0) return;
+        int tail = size - index - 1;
+        System.arraycopy(keys, index + 1, keys, index, tail);
+        System.arraycopy(types, index + 1, types, index, tail);
+        System.arraycopy(numbers, index + 1, numbers, index, tail);
+        System.arraycopy(objects, index + 1, objects, index, tail);
+        size--;
+        keys[size] = null;
+        objects[size] = null;
+    }
+
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            builder.append(keys[i]).append(':').append(tag(i)).append(',');
+        }
+        return builder.append('}').toString();
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public NBTBase clone() {
+        CompactNBTTagCompound result = new CompactNBTTagCompound();
+        result.keys = Arrays.copyOf(keys, size);
+        result.types = Arrays.copyOf(types, size);
+        result.numbers = Arrays.copyOf(numbers, size);
+        result.objects = new Object[size];
+        result.size = size;
+        for (int i = 0; i < size; i++) {
+            Object value = objects[i];
+            if (value instanceof byte[]) {
+                value = ((byte[]) value).clone();
+            } else if (value instanceof int[]) {
+                value = ((int[]) value).clone();
+            } else if (value instanceof NBTBase) {
+                value = ((NBTBase) value).clone();
+            }
+            // strings are immutable, slices are never written to
+            result.objects[i] = value;
+        }
+        return result;
+    }
+
+    public boolean equals(Object object) {
+        if (!(object instanceof NBTTagCompound)) {
+            return false;
+        }
+        NBTTagCompound nbttagcompound = (NBTTagCompound) object;
+        if (!getKeySet().equals(nbttagcompound.getKeySet())) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!Objects.equals(tag(i), nbttagcompound.getTag(keys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int hashCode() {
+        // same as NBTTagCompound, so that equal compounds of either kind hash the same
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            hash += keys[i].hashCode() ^ Objects.hashCode(tag(i));
+        }
+        return getId() ^ hash;
+    }
+}
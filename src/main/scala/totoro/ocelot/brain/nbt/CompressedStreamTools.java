@@ -1,28 +1,55 @@
 package totoro.ocelot.brain.nbt;
 
+import org.apache.commons.io.IOUtils;
+
 import java.io.*;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class CompressedStreamTools {
 
     public static NBTTagCompound readCompressed(InputStream inputstream) throws IOException {
         NBTTagCompound nbttagcompound;
-        try (DataInputStream datainputstream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(inputstream)))) {
+        try (DataInputStream datainputstream = new DataInputStream(new BufferedInputStream(CompressionCodec.decompress(inputstream)))) {
             nbttagcompound = read(datainputstream, NBTReadLimiter.INFINITE);
         }
         return nbttagcompound;
     }
 
+    /**
+     * Same as {@link #readCompressed(InputStream)}, but returns a {@link CompactNBTTagCompound}
+     * whose large nested tags are only decoded when they are accessed.
+     */
+    public static CompactNBTTagCompound readCompressedCompact(InputStream inputstream) throws IOException {
+        byte[] data;
+        try (InputStream decompressed = CompressionCodec.decompress(inputstream)) {
+            data = IOUtils.toByteArray(decompressed);
+        }
+        return CompactNBTTagCompound.view(data);
+    }
+
     public static void writeCompressed(NBTTagCompound nbttagcompound, OutputStream outputstream) throws IOException {
-        try (DataOutputStream dataoutputstream = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(outputstream)))) {
+        try (DataOutputStream dataoutputstream = new DataOutputStream(new BufferedOutputStream(CompressionCodec.getDefault().compress(outputstream)))) {
             write(nbttagcompound, dataoutputstream);
         }
     }
 
+    /**
+     * Opens a streaming writer producing the same format as {@link #writeCompressed(NBTTagCompound, OutputStream)}.
+     * The root compound is finished when the writer is closed.
+     */
+    public static NBTStreamWriter openCompressedWriter(OutputStream outputstream) throws IOException {
+        return new NBTStreamWriter(new DataOutputStream(new BufferedOutputStream(CompressionCodec.getDefault().compress(outputstream))));
+    }
+
+    /**
+     * Opens a streaming reader for data written by {@link #writeCompressed(NBTTagCompound, OutputStream)}.
+     */
+    public static NBTStreamReader openCompressedReader(InputStream inputstream) throws IOException {
+        return new NBTStreamReader(new DataInputStream(new BufferedInputStream(CompressionCodec.decompress(inputstream))));
+    }
+
     public static NBTTagCompound read(byte[] abyte, NBTReadLimiter nbtreadlimiter) throws IOException {
         NBTTagCompound nbttagcompound;
-        try (DataInputStream datainputstream = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new ByteArrayInputStream(abyte))))) {
+        try (DataInputStream datainputstream = new DataInputStream(new BufferedInputStream(CompressionCodec.decompress(new ByteArrayInputStream(abyte))))) {
             nbttagcompound = read(datainputstream, nbtreadlimiter);
         }
         return nbttagcompound;
@@ -30,7 +57,7 @@ public class CompressedStreamTools {
 
     public static byte[] write(NBTTagCompound nbttagcompound) throws IOException {
         ByteArrayOutputStream bytearrayoutputstream = new ByteArrayOutputStream();
-        try (DataOutputStream dataoutputstream = new DataOutputStream(new GZIPOutputStream(bytearrayoutputstream))) {
+        try (DataOutputStream dataoutputstream = new DataOutputStream(new BufferedOutputStream(CompressionCodec.getDefault().compress(bytearrayoutputstream)))) {
             write(nbttagcompound, dataoutputstream);
         }
         return bytearrayoutputstream.toByteArray();
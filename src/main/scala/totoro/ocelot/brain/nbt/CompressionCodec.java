@@ -0,0 +1,194 @@
+package totoro.ocelot.brain.nbt;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * A compression format for saved data (workspace NBT, drive and tape images).
+ * <p>
+ * Gzip output is written as plain gzip, exactly as before codecs were introduced. All other codecs
+ * prefix their output with a four byte header (the magic {@code OCZ} followed by the codec id).
+ * {@link #decompress(InputStream)} uses the header to pick the right codec, so data written with
+ * any codec can be read back regardless of the codec currently configured.
+ */
+public abstract class CompressionCodec {
+    private static final byte[] MAGIC = {'O', 'C', 'Z'};
+
+    private static final byte ID_DEFLATE = 1;
+    private static final byte ID_NONE = 2;
+    private static final byte ID_LZ = 3;
+
+    /**
+     * Uncompressed data, split into checksummed frames.
+     */
+    public static final CompressionCodec NONE = new BlockCodec("none", ID_NONE) {
+        int encode(byte[] src, int length, byte[] dst) {
+            return -1;
+        }
+
+        void decode(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+            throw new IOException("Frame is not stored uncompressed");
+        }
+    };
+
+    /**
+     * A fast LZ77 codec, trading compression ratio for speed.
+     */
+    public static final CompressionCodec LZ = new LZCodec("lz", ID_LZ);
+
+    private static volatile CompressionCodec defaultCodec = gzip(Deflater.DEFAULT_COMPRESSION);
+
+    private final String name;
+
+    CompressionCodec(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * The id written into the header, or -1 if the codec's own format is recognizable without it.
+     */
+    abstract byte getId();
+
+    abstract OutputStream wrapOutput(OutputStream outputstream) throws IOException;
+
+    abstract InputStream wrapInput(InputStream inputstream) throws IOException;
+
+    /**
+     * Wraps the stream so that everything written to it is compressed with this codec.
+     * Closing the returned stream finishes the compressed data and closes the underlying stream.
+     */
+    public OutputStream compress(OutputStream outputstream) throws IOException {
+        if (getId() >= 0) {
+            outputstream.write(MAGIC);
+            outputstream.write(getId());
+        }
+        return wrapOutput(outputstream);
+    }
+
+    /**
+     * Wraps the stream to decompress data written by any of the codecs, detected by its header.
+     */
+    public static InputStream decompress(InputStream inputstream) throws IOException {
+        InputStream input = inputstream.markSupported() ? inputstream : new BufferedInputStream(inputstream);
+        byte[] header = new byte[4];
+        input.mark(header.length);
+        int read = 0;
+        while (read < header.length) {
+            int count = input.read(header, read, header.length - read);
+            if (count < 0) break;
+            read += count;
+        }
+
+        if (read >= 2 && (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B) {
+            input.reset();
+            return new GZIPInputStream(input);
+        }
+        if (read == header.length && header[0] == MAGIC[0] && header[1] == MAGIC[1] && header[2] == MAGIC[2]) {
+            switch (header[3]) {
+                case ID_DEFLATE:
+                    return deflate(Deflater.DEFAULT_COMPRESSION).wrapInput(input);
+                case ID_NONE:
+                    return NONE.wrapInput(input);
+                case ID_LZ:
+                    return LZ.wrapInput(input);
+            }
+        }
+        throw new IOException("Unknown compression format");
+    }
+
+    /**
+     * Gzip with the given level, from 0 (store) to 9 (best), or -1 for the default level.
+     */
+    public static CompressionCodec gzip(int level) {
+        return new CompressionCodec("gzip") {
+            byte getId() {
+                return -1;
+            }
+
+            OutputStream wrapOutput(OutputStream outputstream) throws IOException {
+                return new GZIPOutputStream(outputstream, 8192) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            }
+
+            InputStream wrapInput(InputStream inputstream) throws IOException {
+                return new GZIPInputStream(inputstream);
+            }
+        };
+    }
+
+    /**
+     * Raw deflate with the given level, from 0 (store) to 9 (best), or -1 for the default level.
+     * Like gzip, but without the gzip header, trailer and checksum.
+     */
+    public static CompressionCodec deflate(int level) {
+        return new CompressionCodec("deflate") {
+            byte getId() {
+                return ID_DEFLATE;
+            }
+
+            OutputStream wrapOutput(OutputStream outputstream) {
+                return new DeflaterOutputStream(outputstream, new Deflater(level, true), 8192) {
+                    public void close() throws IOException {
+                        try {
+                            super.close();
+                        } finally {
+                            def.end();
+                        }
+                    }
+                };
+            }
+
+            InputStream wrapInput(InputStream inputstream) {
+                return new InflaterInputStream(inputstream, new Inflater(true)) {
+                    public void close() throws IOException {
+                        super.close();
+                        inf.end();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Looks up a codec by name ({@code gzip}, {@code deflate}, {@code none} or {@code lz}).
+     * The level is only used by gzip and deflate.
+     *
+     * @return the codec, or {@code null} if there is no codec with that name.
+     */
+    public static CompressionCodec byName(String name, int level) {
+        switch (name.toLowerCase()) {
+            case "gzip":
+                return gzip(level);
+            case "deflate":
+                return deflate(level);
+            case "none":
+                return NONE;
+            case "lz":
+                return LZ;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * The codec used for newly saved data.
+     */
+    public static CompressionCodec getDefault() {
+        return defaultCodec;
+    }
+
+    public static void setDefault(CompressionCodec codec) {
+        defaultCodec = codec;
+    }
+}
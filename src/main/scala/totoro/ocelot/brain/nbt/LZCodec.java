@@ -0,0 +1,152 @@
+package totoro.ocelot.brain.nbt;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A byte-oriented LZ77 block codec in the style of LZ4.
+ * <p>
+ * A block is a sequence of tokens. The high nibble of a token is the number of literal bytes that
+ * follow it, the low nibble the length of the match after them, minus four. A nibble value of 15
+ * is continued by extra length bytes (255 meaning "more follows"). Literals are followed by a two
+ * byte little-endian back reference offset, except in the last sequence of the block.
+ * <p>
+ * Matches are found with a single hash table lookup per position, which makes compression
+ * several times faster than deflate, at the cost of a somewhat larger output.
+ */
+final class LZCodec extends BlockCodec {
+    private static final int HASH_BITS = 14;
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final ThreadLocal<int[]> hashTables = ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+
+    LZCodec(String name, byte id) {
+        super(name, id);
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    int encode(byte[] src, int length, byte[] dst) {
+        int[] table = hashTables.get();
+        Arrays.fill(table, -1);
+
+        int anchor = 0;
+        int position = 0;
+        int dp = 0;
+        int limit = length - MIN_MATCH;
+        while (position <= limit) {
+            int sequence = readInt(src, position);
+            int h = hash(sequence);
+            int reference = table[h];
+            table[h] = position;
+            if (reference < 0 || position - reference > MAX_OFFSET || readInt(src, reference) != sequence) {
+                position++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < length && src[reference + matchLength] == src[position + matchLength]) {
+                matchLength++;
+            }
+            dp = writeSequence(src, anchor, position - anchor, dst, dp, position - reference, matchLength);
+            position += matchLength;
+            anchor = position;
+        }
+        if (anchor < length) {
+            dp = writeSequence(src, anchor, length - anchor, dst, dp, 0, 0);
+        }
+        return dp;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int dp,
+                                     int offset, int matchLength) {
+        int tokenPosition = dp++;
+        int token = Math.min(literalLength, 15) << 4;
+        if (literalLength >= 15) dp = writeLength(dst, dp, literalLength - 15);
+        System.arraycopy(src, literalStart, dst, dp, literalLength);
+        dp += literalLength;
+
+        if (matchLength > 0) {
+            dst[dp++] = (byte) offset;
+            dst[dp++] = (byte) (offset >>> 8);
+            int extra = matchLength - MIN_MATCH;
+            token |= Math.min(extra, 15);
+            if (extra >= 15) dp = writeLength(dst, dp, extra - 15);
+        }
+        dst[tokenPosition] = (byte) token;
+        return dp;
+    }
+
+    private static int writeLength(byte[] dst, int dp, int value) {
+        while (value >= 255) {
+            dst[dp++] = (byte) 255;
+            value -= 255;
+        }
+        dst[dp++] = (byte) value;
+        return dp;
+    }
+
+    void decode(byte[] src, int length, byte[] dst, int rawLength) throws IOException {
+        int sp = 0;
+        int dp = 0;
+        try {
+            while (sp < length) {
+                int token = src[sp++] & 0xFF;
+
+                int literalLength = token >>> 4;
+                if (literalLength == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        literalLength += b;
+                    } while (b == 255);
+                }
+                if (literalLength > length - sp || literalLength > rawLength - dp) {
+                    throw new IOException("Corrupted LZ block");
+                }
+                System.arraycopy(src, sp, dst, dp, literalLength);
+                sp += literalLength;
+                dp += literalLength;
+                if (sp >= length) break;
+
+                int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+                sp += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[sp++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                if (offset == 0 || offset > dp || matchLength > rawLength - dp) {
+                    throw new IOException("Corrupted LZ block");
+                }
+
+                int from = dp - offset;
+                if (offset >= matchLength) {
+                    System.arraycopy(dst, from, dst, dp, matchLength);
+                    dp += matchLength;
+                } else {
+                    // overlapping match, repeats the last `offset` bytes
+                    for (int i = 0; i < matchLength; i++) {
+                        dst[dp++] = dst[from + i];
+                    }
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted LZ block", e);
+        }
+        if (dp != rawLength) {
+            throw new IOException("Corrupted LZ block");
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package totoro.ocelot.brain.nbt;
+
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pull-based NBT reader.
+ * <p>
+ * Reads the format written by {@link CompressedStreamTools#write(NBTTagCompound, DataOutput)} one entry at a time.
+ * {@link #nextEntry()} announces the next entry of the innermost open compound or list, which then has to be
+ * consumed with {@link #readTag()}, {@link #beginCompound()}, {@link #beginList()} or {@link #skip()}.
+ * Once a compound or list is exhausted, {@link #nextEntry()} returns {@code false} and the reader
+ * continues with the enclosing one.
+ */
+public class NBTStreamReader implements Closeable {
+    private static final byte NO_LIST = -1;
+    private static final byte NO_ENTRY = -1;
+
+    private static final class Frame {
+        final byte listType;
+        int remaining;
+
+        Frame(byte listType, int remaining) {
+            this.listType = listType;
+            this.remaining = remaining;
+        }
+
+        boolean isList() {
+            return listType != NO_LIST;
+        }
+    }
+
+    private final DataInput input;
+    private final NBTReadLimiter limiter;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+
+    private byte entryType = NO_ENTRY;
+    private String entryName = null;
+
+    public NBTStreamReader(DataInput input) throws IOException {
+        this(input, NBTReadLimiter.INFINITE);
+    }
+
+    public NBTStreamReader(DataInput input, NBTReadLimiter limiter) throws IOException {
+        this.input = input;
+        this.limiter = limiter;
+        if (input.readByte() != NBT.TAG_COMPOUND) {
+            throw new IOException("Root tag must be a named compound tag");
+        }
+        input.readUTF();
+        frames.push(new Frame(NO_LIST, 0));
+    }
+
+    /**
+     * Advances to the next entry of the innermost open compound or list.
+     * An entry that was announced, but not consumed, is skipped.
+     *
+     * @return {@code false} if the compound or list has no more entries.
+     */
+    public boolean nextEntry() throws IOException {
+        if (entryType != NO_ENTRY) {
+            skip();
+        }
+        Frame frame = frames.peek();
+        if (frame == null) {
+            return false;
+        }
+        if (frame.isList()) {
+            if (frame.remaining <= 0) {
+                frames.pop();
+                return false;
+            }
+            frame.remaining--;
+            entryType = frame.listType;
+            entryName = null;
+        } else {
+            byte type = input.readByte();
+            if (type == NBT.TAG_END) {
+                frames.pop();
+                return false;
+            }
+            entryType = type;
+            entryName = input.readUTF();
+            limiter.a(16L * entryName.length());
+        }
+        return true;
+    }
+
+    /**
+     * The type of the current entry, see {@link NBT}.
+     */
+    public byte getType() {
+        return entryType;
+    }
+
+    /**
+     * The name of the current entry, {@code null} for list elements.
+     */
+    public String getName() {
+        return entryName;
+    }
+
+    private void consume(int expectedType) {
+        if (entryType == NO_ENTRY) {
+            throw new IllegalStateException("No current entry, call nextEntry() first");
+        }
+        if (expectedType != NO_ENTRY && entryType != expectedType) {
+            throw new IllegalStateException("Current entry has type " + entryType + ", expected " + expectedType);
+        }
+        entryType = NO_ENTRY;
+        entryName = null;
+    }
+
+    /**
+     * Reads the whole current entry into memory.
+     */
+    public NBTBase readTag() throws IOException {
+        byte type = entryType;
+        consume(NO_ENTRY);
+        NBTBase tag = NBTBase.createTag(type);
+        if (tag == null) {
+            throw new IOException("Unknown NBT tag type: " + type);
+        }
+        tag.load(input, frames.size(), limiter);
+        return tag;
+    }
+
+    public NBTTagCompound readCompound() throws IOException {
+        if (entryType != NBT.TAG_COMPOUND) {
+            throw new IllegalStateException("Current entry is not a compound");
+        }
+        return (NBTTagCompound) readTag();
+    }
+
+    public void skip() throws IOException {
+        readTag();
+    }
+
+    /**
+     * Enters the current compound entry, its entries are then returned by {@link #nextEntry()}.
+     */
+    public void beginCompound() {
+        consume(NBT.TAG_COMPOUND);
+        frames.push(new Frame(NO_LIST, 0));
+    }
+
+    /**
+     * Enters the current list entry, its elements are then returned by {@link #nextEntry()}.
+     *
+     * @return the number of elements in the list.
+     */
+    public int beginList() throws IOException {
+        consume(NBT.TAG_LIST);
+        limiter.a(8L);
+        byte type = input.readByte();
+        int size = input.readInt();
+        frames.push(new Frame(type, size));
+        return size;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input instanceof Closeable) {
+            ((Closeable) input).close();
+        }
+    }
+}
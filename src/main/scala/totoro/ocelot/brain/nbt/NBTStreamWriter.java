@@ -0,0 +1,133 @@
+package totoro.ocelot.brain.nbt;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Push-based NBT writer.
+ * <p>
+ * Produces exactly the same format as {@link CompressedStreamTools#write(NBTTagCompound, DataOutput)},
+ * but lets the caller emit the root compound piece by piece, so large structures never have to be
+ * materialized as a single tag tree.
+ * <p>
+ * Inside compounds every entry needs a name; inside lists names are ignored and may be {@code null}.
+ * Closing the writer finishes the root compound and closes the underlying output, if it is closeable.
+ */
+public class NBTStreamWriter implements Closeable {
+    private static final byte NO_LIST = -1;
+
+    private static final class Frame {
+        final byte listType;
+        int remaining;
+
+        Frame(byte listType, int remaining) {
+            this.listType = listType;
+            this.remaining = remaining;
+        }
+
+        boolean isList() {
+            return listType != NO_LIST;
+        }
+    }
+
+    private final DataOutput output;
+    private final Deque<Frame> frames = new ArrayDeque<>();
+
+    public NBTStreamWriter(DataOutput output) throws IOException {
+        this.output = output;
+        output.writeByte(NBT.TAG_COMPOUND);
+        output.writeUTF("");
+        frames.push(new Frame(NO_LIST, 0));
+    }
+
+    private void beginEntry(int type, String name) throws IOException {
+        Frame frame = frames.peek();
+        if (frame == null) {
+            throw new IllegalStateException("Root compound is already closed");
+        }
+        if (frame.isList()) {
+            if (frame.listType != type) {
+                throw new IllegalStateException("Mismatching tag type in list: expected " + frame.listType + ", got " + type);
+            }
+            if (frame.remaining <= 0) {
+                throw new IllegalStateException("Too many elements written to list");
+            }
+            frame.remaining--;
+        } else {
+            output.writeByte(type);
+            output.writeUTF(name);
+        }
+    }
+
+    public void writeTag(String name, NBTBase tag) throws IOException {
+        beginEntry(tag.getId(), name);
+        tag.write(output);
+    }
+
+    public void writeInteger(String name, int value) throws IOException {
+        beginEntry(NBT.TAG_INT, name);
+        output.writeInt(value);
+    }
+
+    public void writeBoolean(String name, boolean value) throws IOException {
+        beginEntry(NBT.TAG_BYTE, name);
+        output.writeByte(value ? 1 : 0);
+    }
+
+    public void writeString(String name, String value) throws IOException {
+        beginEntry(NBT.TAG_STRING, name);
+        output.writeUTF(value);
+    }
+
+    public void beginCompound(String name) throws IOException {
+        beginEntry(NBT.TAG_COMPOUND, name);
+        frames.push(new Frame(NO_LIST, 0));
+    }
+
+    public void endCompound() throws IOException {
+        Frame frame = frames.peek();
+        if (frame == null || frame.isList() || frames.size() == 1) {
+            throw new IllegalStateException("No open compound to end");
+        }
+        frames.pop();
+        output.writeByte(NBT.TAG_END);
+    }
+
+    /**
+     * Starts a list with a known number of elements, all of which have to be of the same type.
+     */
+    public void beginList(String name, int elementType, int size) throws IOException {
+        beginEntry(NBT.TAG_LIST, name);
+        output.writeByte(elementType);
+        output.writeInt(size);
+        frames.push(new Frame((byte) elementType, size));
+    }
+
+    public void endList() {
+        Frame frame = frames.peek();
+        if (frame == null || !frame.isList()) {
+            throw new IllegalStateException("No open list to end");
+        }
+        if (frame.remaining != 0) {
+            throw new IllegalStateException(frame.remaining + " list elements were announced but not written");
+        }
+        frames.pop();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (frames.size() > 1) {
+            throw new IllegalStateException("Unclosed compounds or lists left in NBT stream");
+        }
+        if (frames.size() == 1) {
+            frames.pop();
+            output.writeByte(NBT.TAG_END);
+        }
+        if (output instanceof Closeable) {
+            ((Closeable) output).close();
+        }
+    }
+}
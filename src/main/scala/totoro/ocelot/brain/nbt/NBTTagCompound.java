@@ -6,14 +6,25 @@ import java.io.IOException;
 import java.util.*;
 
 public class NBTTagCompound extends NBTBase {
-    private final Map<String, NBTBase> map = new HashMap<>();
+    // Allocated on the first write, so that empty compounds and subclasses keeping their entries
+    // elsewhere (see CompactNBTTagCompound) do not carry an empty hash map around.
+    private Map<String, NBTBase> map;
 
     public NBTTagCompound() {}
 
+    private Map<String, NBTBase> entries() {
+        return this.map != null ? this.map : Collections.emptyMap();
+    }
+
+    private Map<String, NBTBase> writableEntries() {
+        if (this.map == null) this.map = new HashMap<>();
+        return this.map;
+    }
+
     void write(DataOutput dataoutput) throws IOException {
 
-        for (String o : this.map.keySet()) {
-            NBTBase nbtbase = this.map.get(o);
+        for (String o : this.entries().keySet()) {
+            NBTBase nbtbase = this.entries().get(o);
             a(o, nbtbase, dataoutput);
         }
 
@@ -24,7 +35,7 @@ public class NBTTagCompound extends NBTBase {
         if (i > 512) {
             throw new RuntimeException("Tried to read NBT tag with too high complexity, depth > 512");
         } else {
-            this.map.clear();
+            this.map = null;
 
             byte b0;
 
@@ -34,13 +45,13 @@ public class NBTTagCompound extends NBTBase {
                 nbtreadlimiter.a(16L * s.length());
                 NBTBase nbtbase = a(b0, s, datainput, i + 1, nbtreadlimiter);
 
-                this.map.put(s, nbtbase);
+                this.writableEntries().put(s, nbtbase);
             }
         }
     }
 
     public Set<String> getKeySet() {
-        return this.map.keySet();
+        return this.entries().keySet();
     }
 
     public byte getId() {
@@ -48,43 +59,43 @@ public class NBTTagCompound extends NBTBase {
     }
 
     public void setTag(String s, NBTBase nbtbase) {
-        this.map.put(s, nbtbase);
+        this.writableEntries().put(s, nbtbase);
     }
 
     public void setByte(String s, byte b0) {
-        this.map.put(s, new NBTTagByte(b0));
+        this.writableEntries().put(s, new NBTTagByte(b0));
     }
 
     public void setShort(String s, short short1) {
-        this.map.put(s, new NBTTagShort(short1));
+        this.writableEntries().put(s, new NBTTagShort(short1));
     }
 
     public void setInteger(String s, int i) {
-        this.map.put(s, new NBTTagInt(i));
+        this.writableEntries().put(s, new NBTTagInt(i));
     }
 
     public void setLong(String s, long i) {
-        this.map.put(s, new NBTTagLong(i));
+        this.writableEntries().put(s, new NBTTagLong(i));
     }
 
     public void setFloat(String s, float f) {
-        this.map.put(s, new NBTTagFloat(f));
+        this.writableEntries().put(s, new NBTTagFloat(f));
     }
 
     public void setDouble(String s, double d0) {
-        this.map.put(s, new NBTTagDouble(d0));
+        this.writableEntries().put(s, new NBTTagDouble(d0));
     }
 
     public void setString(String s, String s1) {
-        this.map.put(s, new NBTTagString(s1));
+        this.writableEntries().put(s, new NBTTagString(s1));
     }
 
     public void setByteArray(String s, byte[] abyte) {
-        this.map.put(s, new NBTTagByteArray(abyte));
+        this.writableEntries().put(s, new NBTTagByteArray(abyte));
     }
 
     public void setIntArray(String s, int[] aint) {
-        this.map.put(s, new NBTTagIntArray(aint));
+        this.writableEntries().put(s, new NBTTagIntArray(aint));
     }
 
     public void setBoolean(String s, boolean flag) {
@@ -94,21 +105,21 @@ public class NBTTagCompound extends NBTBase {
     public void setTagList(String s, List<NBTBase> list) {
         NBTTagList tagList = new NBTTagList();
         tagList.appendAll(list);
-        this.map.put(s, tagList);
+        this.writableEntries().put(s, tagList);
     }
 
     public NBTBase getTag(String s) {
-        return this.map.get(s);
+        return this.entries().get(s);
     }
 
     public byte getTagType(String s) {
-        NBTBase nbtbase = this.map.get(s);
+        NBTBase nbtbase = this.entries().get(s);
 
         return nbtbase != null ? nbtbase.getId() : 0;
     }
 
     public boolean hasKey(String s) {
-        return this.map.containsKey(s);
+        return this.entries().containsKey(s);
     }
 
     public boolean hasKeyOfType(String s, int i) {
@@ -119,7 +130,7 @@ public class NBTTagCompound extends NBTBase {
 
     public byte getByte(String s) {
         try {
-            return !this.map.containsKey(s) ? 0 : ((NBTNumber) this.map.get(s)).getByte();
+            return !this.entries().containsKey(s) ? 0 : ((NBTNumber) this.entries().get(s)).getByte();
         } catch (ClassCastException classcastexception) {
             return (byte) 0;
         }
@@ -127,7 +138,7 @@ public class NBTTagCompound extends NBTBase {
 
     public short getShort(String s) {
         try {
-            return !this.map.containsKey(s) ? 0 : ((NBTNumber) this.map.get(s)).getShort();
+            return !this.entries().containsKey(s) ? 0 : ((NBTNumber) this.entries().get(s)).getShort();
         } catch (ClassCastException classcastexception) {
             return (short) 0;
         }
@@ -135,7 +146,7 @@ public class NBTTagCompound extends NBTBase {
 
     public int getInteger(String s) {
         try {
-            return !this.map.containsKey(s) ? 0 : ((NBTNumber) this.map.get(s)).getInt();
+            return !this.entries().containsKey(s) ? 0 : ((NBTNumber) this.entries().get(s)).getInt();
         } catch (ClassCastException classcastexception) {
             return 0;
         }
@@ -143,7 +154,7 @@ public class NBTTagCompound extends NBTBase {
 
     public long getLong(String s) {
         try {
-            return !this.map.containsKey(s) ? 0L : ((NBTNumber) this.map.get(s)).getLong();
+            return !this.entries().containsKey(s) ? 0L : ((NBTNumber) this.entries().get(s)).getLong();
         } catch (ClassCastException classcastexception) {
             return 0L;
         }
@@ -151,7 +162,7 @@ public class NBTTagCompound extends NBTBase {
 
     public float getFloat(String s) {
         try {
-            return !this.map.containsKey(s) ? 0.0F : ((NBTNumber) this.map.get(s)).getFloat();
+            return !this.entries().containsKey(s) ? 0.0F : ((NBTNumber) this.entries().get(s)).getFloat();
         } catch (ClassCastException classcastexception) {
             return 0.0F;
         }
@@ -159,7 +170,7 @@ public class NBTTagCompound extends NBTBase {
 
     public double getDouble(String s) {
         try {
-            return !this.map.containsKey(s) ? 0.0D : ((NBTNumber) this.map.get(s)).getDouble();
+            return !this.entries().containsKey(s) ? 0.0D : ((NBTNumber) this.entries().get(s)).getDouble();
         } catch (ClassCastException classcastexception) {
             return 0.0D;
         }
@@ -167,29 +178,29 @@ public class NBTTagCompound extends NBTBase {
 
     public String getString(String s) {
         try {
-            return !this.map.containsKey(s) ? "" : this.map.get(s).getString();
+            return !this.entries().containsKey(s) ? "" : this.entries().get(s).getString();
         } catch (ClassCastException classcastexception) {
             return "";
         }
     }
 
     public byte[] getByteArray(String s) {
-        return !this.map.containsKey(s) ? new byte[0] : ((NBTTagByteArray) this.map.get(s)).getByteArray();
+        return !this.entries().containsKey(s) ? new byte[0] : ((NBTTagByteArray) this.entries().get(s)).getByteArray();
     }
 
     public int[] getIntArray(String s) {
-        return !this.map.containsKey(s) ? new int[0] : ((NBTTagIntArray) this.map.get(s)).getIntArray();
+        return !this.entries().containsKey(s) ? new int[0] : ((NBTTagIntArray) this.entries().get(s)).getIntArray();
     }
 
     public NBTTagCompound getCompoundTag(String s) {
-        return !this.map.containsKey(s) ? new NBTTagCompound() : (NBTTagCompound) this.map.get(s);
+        return !this.entries().containsKey(s) ? new NBTTagCompound() : (NBTTagCompound) this.entries().get(s);
     }
 
     public NBTTagList getTagList(String s, int type) {
         if (this.getTagType(s) != NBT.TAG_LIST) {
             return new NBTTagList();
         } else {
-            NBTTagList nbttaglist = (NBTTagList) this.map.get(s);
+            NBTTagList nbttaglist = (NBTTagList) this.entries().get(s);
 
             return nbttaglist.tagCount() > 0 && nbttaglist.getType() != type ? new NBTTagList() : nbttaglist;
         }
@@ -200,7 +211,7 @@ public class NBTTagCompound extends NBTBase {
     }
 
     public void removeTag(String s) {
-        this.map.remove(s);
+        if (this.map != null) this.map.remove(s);
     }
 
     public String toString() {
@@ -208,7 +219,7 @@ public class NBTTagCompound extends NBTBase {
 
         String s1;
 
-        for (Iterator<String> iterator = this.map.keySet().iterator(); iterator.hasNext(); s = s + s1 + ':' + this.map.get(s1) + ',') {
+        for (Iterator<String> iterator = this.entries().keySet().iterator(); iterator.hasNext(); s = s + s1 + ':' + this.entries().get(s1) + ',') {
             s1 = iterator.next();
         }
 
@@ -216,7 +227,7 @@ public class NBTTagCompound extends NBTBase {
     }
 
     public boolean isEmpty() {
-        return this.map.isEmpty();
+        return this.entries().isEmpty();
     }
 
     public boolean hasNoTags() {
@@ -226,8 +237,8 @@ public class NBTTagCompound extends NBTBase {
     public NBTBase clone() {
         NBTTagCompound nbttagcompound = new NBTTagCompound();
 
-        for (String o : this.map.keySet()) {
-            nbttagcompound.setTag(o, this.map.get(o).clone());
+        for (String o : this.entries().keySet()) {
+            nbttagcompound.setTag(o, this.entries().get(o).clone());
         }
 
         return nbttagcompound;
@@ -238,17 +249,19 @@ public class NBTTagCompound extends NBTBase {
     }
 
     public boolean equals(Object object) {
-        if (super.equals(object)) {
+        if (object instanceof CompactNBTTagCompound) {
+            return object.equals(this);
+        } else if (super.equals(object)) {
             NBTTagCompound nbttagcompound = (NBTTagCompound) object;
 
-            return this.map.entrySet().equals(nbttagcompound.map.entrySet());
+            return this.entries().entrySet().equals(nbttagcompound.entries().entrySet());
         } else {
             return false;
         }
     }
 
     public int hashCode() {
-        return super.hashCode() ^ this.map.hashCode();
+        return super.hashCode() ^ this.entries().hashCode();
     }
 
     private static void a(String s, NBTBase nbtbase, DataOutput dataoutput) throws IOException {
@@ -274,6 +287,6 @@ public class NBTTagCompound extends NBTBase {
     }
 
     static Map<String, NBTBase> a(NBTTagCompound nbttagcompound) {
-        return nbttagcompound.map;
+        return nbttagcompound.entries();
     }
 }
@@ -1,14 +1,16 @@
 package totoro.ocelot.brain.nbt.persistence
 
-import totoro.ocelot.brain.Ocelot
+import totoro.ocelot.brain.{Ocelot, Settings}
 import totoro.ocelot.brain.entity.Memory
 import totoro.ocelot.brain.entity.traits.TieredPersistable
-import totoro.ocelot.brain.nbt.NBTTagCompound
+import totoro.ocelot.brain.nbt.{NBTStreamReader, NBTStreamWriter, NBTTagCompound}
 import totoro.ocelot.brain.util.ExtendedTier.ExtendedTier
 import totoro.ocelot.brain.util.Tier.Tier
-import totoro.ocelot.brain.util.{ExtendedTier, Persistable, Tier}
-import totoro.ocelot.brain.workspace.Workspace
+import totoro.ocelot.brain.util.{ExtendedTier, Persistable, ThreadPoolFactory, Tier}
+import totoro.ocelot.brain.workspace.{BlobStore, Workspace}
 
+import java.lang.invoke.{MethodHandle, MethodHandles, MethodType}
+import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutionException, ExecutorService, Future}
 import scala.collection.mutable
 
 /**
@@ -43,6 +45,53 @@ object NBTPersistence {
     constructors.remove(className)
   }
 
+  private val constructorHandles = new ConcurrentHashMap[String, MethodHandle]()
+
+  /**
+    * Finds the public constructor of the named class with the given parameter types.
+    * The lookup is cached, so every class is only resolved once.
+    */
+  def constructorHandle(className: String, parameterTypes: Class[_]*): MethodHandle =
+    constructorHandles.computeIfAbsent(className + parameterTypes.map(_.getName).mkString("(", ",", ")"), _ =>
+      MethodHandles.publicLookup().findConstructor(Class.forName(className), MethodType.methodType(Void.TYPE, parameterTypes.toArray))
+    )
+
+  private lazy val workers: ExecutorService = ThreadPoolFactory.create("Persistence", Settings.get.persistenceThreads)
+
+  /**
+    * Whether `saveAll` and `loadAll` process objects concurrently (see `misc.persistenceThreads`).
+    */
+  def isParallel: Boolean = Settings.get.persistenceThreads > 1
+
+  private def runAll[A, B](items: Iterable[A])(f: A => B): Seq[B] = {
+    if (!isParallel) items.map(f).toSeq
+    else {
+      val blobs = BlobStore.active
+      val futures: Seq[Future[B]] = items.map(item => workers.submit(new Callable[B] {
+        override def call(): B = BlobStore.withActive(blobs)(f(item))
+      })).toSeq
+      try futures.map(_.get)
+      catch {
+        case e: ExecutionException => throw e.getCause
+      }
+    }
+  }
+
+  /**
+    * Serializes independent objects, on the worker pool if `isParallel`. The order of the results is kept.
+    */
+  def saveAll(persistables: Iterable[Persistable]): Seq[NBTTagCompound] = runAll(persistables)(p => save(p))
+
+  /**
+    * Deserializes independent objects, on the worker pool if `isParallel`. The order of the results is kept.
+    *
+    * All objects are constructed and loaded before the caller gets any of them, so the `load` of one
+    * object cannot rely on another one of them being loaded or initialized already. Callers that need
+    * this for the sequential case (like `Workspace.load`) load one object at a time instead.
+    */
+  def loadAll(tags: Iterable[NBTTagCompound], workspace: Workspace): Seq[Persistable] =
+    runAll(tags)(nbt => load(nbt, workspace))
+
   def save(persistable: Persistable, nbt: NBTTagCompound): Unit = {
     nbt.setString(TypeTag, persistable.getClass.getName)
     val data = new NBTTagCompound()
@@ -56,15 +105,31 @@ object NBTPersistence {
     nbt
   }
 
+  /**
+    * Writes the serialized object as the next entry of the writer's current compound or list.
+    * Only this object's own tag tree is held in memory at a time.
+    */
+  def save(persistable: Persistable, name: String, writer: NBTStreamWriter): Unit = {
+    writer.beginCompound(name)
+    writer.writeString(TypeTag, persistable.getClass.getName)
+    val data = new NBTTagCompound()
+    persistable.save(data)
+    writer.writeTag(DataTag, data)
+    writer.endCompound()
+  }
+
+  /**
+    * Reads the current entry of the reader (which must be a compound) as a serialized object.
+    */
+  def load(reader: NBTStreamReader, workspace: Workspace): Persistable = load(reader.readCompound(), workspace)
+
   def load(nbt: NBTTagCompound, workspace: Workspace): Persistable = {
     val className = nbt.getString(TypeTag)
     val persistable = try {
       if (constructors.contains(className)) {
         constructors(className).construct(nbt, className, workspace)
       } else {
-        val clazz = Class.forName(className)
-        val constructor = clazz.getConstructor()
-        constructor.newInstance().asInstanceOf[Persistable]
+        constructorHandle(className).invokeWithArguments().asInstanceOf[Persistable]
       }
     } catch {
       case exc: Exception =>
@@ -87,28 +152,23 @@ object NBTPersistence {
 
   class TieredConstructor extends InstanceConstructor {
     override def construct(nbt: NBTTagCompound, className: String, workspace: Workspace): Persistable = {
-      val clazz = Class.forName(className)
-      val constructor = clazz.getConstructor(classOf[Tier])
       val tier: Tier = Tier(nbt.getCompoundTag(DataTag).getByte(TieredPersistable.TierTag))
-      constructor.newInstance(tier).asInstanceOf[Persistable]
+      constructorHandle(className, classOf[Tier]).invokeWithArguments(tier).asInstanceOf[Persistable]
     }
   }
 
   class MemoryConstructor extends InstanceConstructor {
     override def construct(nbt: NBTTagCompound, className: String, workspace: Workspace): Persistable = {
-      val clazz = Class.forName(className)
-      val constructor = clazz.getConstructor(classOf[ExtendedTier])
       val tier: ExtendedTier = ExtendedTier(nbt.getCompoundTag(DataTag).getByte(Memory.TierTag))
-      constructor.newInstance(tier).asInstanceOf[Persistable]
+      constructorHandle(className, classOf[ExtendedTier]).invokeWithArguments(tier).asInstanceOf[Persistable]
     }
   }
 
   class WorkspaceAwareConstructor extends InstanceConstructor {
     override def construct(nbt: NBTTagCompound, className: String, workspace: Workspace): Persistable = {
-      val clazz = Class.forName(className)
-      val constructor = clazz.getConstructor(classOf[Int], classOf[Workspace])
       val tier: Int = nbt.getCompoundTag(DataTag).getInteger(TieredPersistable.TierTag)
-      constructor.newInstance(tier, workspace).asInstanceOf[Persistable]
+      constructorHandle(className, classOf[Int], classOf[Workspace])
+        .invokeWithArguments(Int.box(tier), workspace).asInstanceOf[Persistable]
     }
   }
 }
@@ -1,6 +1,8 @@
 package totoro.ocelot.brain.network
 
 import totoro.ocelot.brain.entity.machine._
+import totoro.ocelot.brain.entity.fs.FileSystem
+import totoro.ocelot.brain.entity.traits.Entity
 import totoro.ocelot.brain.nbt.NBTTagCompound
 
 /**
@@ -152,7 +154,13 @@ trait Component extends Node {
     */
   def invoke(method: String, context: Context, arguments: AnyRef*): Array[AnyRef] = callbacks.get(method) match {
     case Some(callback) => hosts(method) match {
-      case Some(environment) => Registry.convert(callback(environment, context, new Arguments(Seq(arguments: _*))))
+      case Some(environment) =>
+        if (!callback.annotation.readOnly) environment match {
+          case entity: Entity => entity.markModified()
+          case fileSystem: FileSystem => fileSystem.owner.foreach(_.markModified())
+          case _ =>
+        }
+        Registry.convert(callback(environment, context, new Arguments(Seq(arguments: _*))))
       case _ => throw new NoSuchMethodException()
     }
     case _ => throw new NoSuchMethodException()
@@ -0,0 +1,131 @@
+package totoro.ocelot.brain.util
+
+import java.util
+import scala.collection.mutable
+
+/**
+  * A growable array of bytes, stored in pages of primitive `byte[]`s.
+  *
+  * Pages that were never written to are not allocated and read as zeros, so data written after
+  * seeking past the end does not allocate the gap. The last page of short data only grows as far
+  * as needed. `copy()` shares all pages between the original and the copy, a shared page is only
+  * duplicated once either of them writes to it.
+  *
+  * Instances are not thread safe.
+  */
+class ChunkedByteArray {
+  import ChunkedByteArray._
+
+  private var pages: Array[Array[Byte]] = NoPages
+  private var shared = mutable.BitSet.empty
+  private var _length = 0
+
+  def length: Int = _length
+
+  def apply(index: Int): Byte = {
+    if (index < 0 || index >= _length) throw new IndexOutOfBoundsException(s"$index is not in [0, ${_length})")
+    val page = pages(index >>> PageBits)
+    val offset = index & PageMask
+    if (page == null || offset >= page.length) 0 else page(offset)
+  }
+
+  /**
+    * Copies up to `count` bytes, starting at `position`, into `into` at `offset`.
+    *
+    * @return the number of bytes copied, zero if `position` is at or past the end.
+    */
+  def read(position: Int, into: Array[Byte], offset: Int, count: Int): Int = {
+    val total = math.max(0, math.min(count, _length - position))
+    var done = 0
+    while (done < total) {
+      val index = position + done
+      val pageOffset = index & PageMask
+      val chunk = math.min(total - done, PageSize - pageOffset)
+      val page = pages(index >>> PageBits)
+      val available = if (page == null) 0 else math.max(0, math.min(chunk, page.length - pageOffset))
+      if (available > 0) System.arraycopy(page, pageOffset, into, offset + done, available)
+      if (available < chunk) util.Arrays.fill(into, offset + done + available, offset + done + chunk, 0: Byte)
+      done += chunk
+    }
+    total
+  }
+
+  /**
+    * Writes `count` bytes from `from` at `offset` to `position`, growing the array as needed.
+    */
+  def write(position: Int, from: Array[Byte], offset: Int, count: Int): Unit = {
+    val end = position.toLong + count
+    if (position < 0 || end > Int.MaxValue) throw new IndexOutOfBoundsException(s"cannot write $count bytes at $position")
+    val pageCount = ((end + PageMask) >>> PageBits).toInt
+    if (pageCount > pages.length) {
+      pages = util.Arrays.copyOf(pages, math.max(pageCount, pages.length * 2))
+    }
+
+    var done = 0
+    while (done < count) {
+      val index = position + done
+      val pageOffset = index & PageMask
+      val chunk = math.min(count - done, PageSize - pageOffset)
+      System.arraycopy(from, offset + done, writablePage(index >>> PageBits, pageOffset + chunk), pageOffset, chunk)
+      done += chunk
+    }
+    if (end > _length) _length = end.toInt
+  }
+
+  // the page, allocated, unshared and large enough to hold `size` bytes
+  private def writablePage(index: Int, size: Int): Array[Byte] = {
+    var page = pages(index)
+    if (page == null) {
+      page = new Array[Byte](if (index == 0) size else PageSize)
+    }
+    else if (page.length < size) {
+      page = util.Arrays.copyOf(page, math.min(PageSize, math.max(size, page.length * 2)))
+    }
+    else if (shared(index)) {
+      page = page.clone()
+    }
+    else return page
+
+    pages(index) = page
+    shared -= index
+    page
+  }
+
+  def clear(): Unit = {
+    pages = NoPages
+    shared = mutable.BitSet.empty
+    _length = 0
+  }
+
+  def toArray: Array[Byte] = {
+    val result = new Array[Byte](_length)
+    read(0, result, 0, _length)
+    result
+  }
+
+  /**
+    * A copy of the data that shares all pages with this one until either is written to.
+    */
+  def copy(): ChunkedByteArray = {
+    for (index <- pages.indices if pages(index) != null) shared += index
+    val result = new ChunkedByteArray()
+    result.pages = pages.clone()
+    result.shared = shared.clone()
+    result._length = _length
+    result
+  }
+}
+
+object ChunkedByteArray {
+  final val PageBits = 12
+  final val PageSize: Int = 1 << PageBits
+  final val PageMask: Int = PageSize - 1
+
+  private val NoPages = new Array[Array[Byte]](0)
+
+  def apply(data: Array[Byte]): ChunkedByteArray = {
+    val result = new ChunkedByteArray()
+    result.write(0, data, 0, data.length)
+    result
+  }
+}
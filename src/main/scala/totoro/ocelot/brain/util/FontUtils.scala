@@ -7,13 +7,63 @@ import java.nio.charset.StandardCharsets
 import scala.collection.mutable
 
 object FontUtils {
-  private val defined_double_wide: mutable.BitSet = mutable.BitSet()
-
   // theoretical Unicode maximum
   val codepoint_limit: Int = 0x110000
-  def wcwidth(charCode: Int): Int = if (defined_double_wide(charCode)) 2 else 1
+
+  /**
+    * Double-wide glyphs are stored as a two-level bitmap: `pageIndex` maps every 256 code point page
+    * to an offset in `pages`, which holds 4 longs (256 bits) per distinct page.
+    * Identical pages (most of them are either empty or full) are shared.
+    *
+    * Both arrays are published together in one immutable table, so a lookup running while
+    * `init` replaces the table never pairs the index of one table with the pages of another.
+    */
+  private final val PageShift = 8
+  private final val PageLongs = 1 << (PageShift - 6)
+
+  private[util] final class WidthTable(val pageIndex: Array[Int], val pages: Array[Long]) {
+    def wcwidth(charCode: Int): Int = {
+      if (charCode < 0 || charCode >= codepoint_limit) 1
+      else {
+        val word = pages(pageIndex(charCode >>> PageShift) + ((charCode >>> 6) & (PageLongs - 1)))
+        if (((word >>> (charCode & 63)) & 1L) != 0) 2 else 1
+      }
+    }
+  }
+
+  @volatile private var widthTable = new WidthTable(new Array[Int](codepoint_limit >> PageShift), new Array[Long](PageLongs))
+
+  def wcwidth(charCode: Int): Int = widthTable.wcwidth(charCode)
+
+  private[util] def buildWidthTable(doubleWide: mutable.BitSet): WidthTable = {
+    val index = new Array[Int](codepoint_limit >> PageShift)
+    val pages = mutable.ArrayBuffer.empty[Long]
+    val known = mutable.HashMap.empty[Seq[Long], Int]
+
+    val bits = doubleWide.toBitMask
+    for (page <- index.indices) {
+      val words = (0 until PageLongs).map { i =>
+        val w = page * PageLongs + i
+        if (w < bits.length) bits(w) else 0L
+      }
+      index(page) = known.getOrElseUpdate(words, {
+        val offset = pages.length
+        pages ++= words
+        offset
+      })
+    }
+
+    new WidthTable(index, pages.toArray)
+  }
 
   def init(): Unit = {
+    widthTable = buildWidthTable(doubleWideCodePoints())
+  }
+
+  /**
+    * The code points that are double-wide, from the wcwidth of musl and the glyphs of font.hex.
+    */
+  private[brain] def doubleWideCodePoints(): mutable.BitSet = {
     /**
       * musl wcwidth implementation starts here:
       *
@@ -220,6 +270,8 @@ object FontUtils {
     }
     /* musl wcwidth implementation ends here. */
 
+    val defined_double_wide = mutable.BitSet()
+
     {
       Ocelot.log.info("Initializing font glyph width cache...")
       val time = System.currentTimeMillis()
@@ -264,5 +316,7 @@ object FontUtils {
     } catch {
       case ex: Throwable => Ocelot.log.error(s"Error parsing glyphs to determine widths: $ex")
     }
+
+    defined_double_wide
   }
 }
@@ -26,12 +26,16 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
 
   private var packed = PackedColor.pack(_foreground, _background, _format)
 
+  /** Called after every change of the contents or the current colors, e.g. to mark the owner modified. */
+  var onModified: () => Unit = () => {}
+
   def foreground: PackedColor.Color = _foreground
 
   def foreground_=(value: PackedColor.Color): GenericTextBuffer = {
     format.validate(value)
     _foreground = value
     packed = PackedColor.pack(_foreground, _background, _format)
+    onModified()
     this
   }
 
@@ -41,6 +45,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
     format.validate(value)
     _background = value
     packed = PackedColor.pack(_foreground, _background, _format)
+    onModified()
     this
   }
 
@@ -59,6 +64,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
       }
       _format = value
       packed = PackedColor.pack(_foreground, _background, _format)
+      markDirty()
       true
     }
     else false
@@ -68,6 +74,34 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
 
   var buffer: Array[Array[Int]] = Array.fill(height, width)(0x20)
 
+  // Row-level change tracking: every modification increments `modificationCount`
+  // and stamps the affected rows with it, so consumers (e.g. bitblt) can ask
+  // which rows were touched since a modification count they remembered.
+  private var modificationCount: Long = 0
+
+  private var rowModified: Array[Long] = Array.fill(height)(0L)
+
+  /** The current modification count, increments every time any row changes. */
+  def modifications: Long = modificationCount
+
+  /** Mark the rows in range `[fromRow, untilRow)` as changed. */
+  def markDirty(fromRow: Int, untilRow: Int): Unit = {
+    val from = math.max(fromRow, 0)
+    val until = math.min(untilRow, height)
+    if (from < until) {
+      modificationCount += 1
+      java.util.Arrays.fill(rowModified, from, until, modificationCount)
+      onModified()
+    }
+  }
+
+  /** Mark the whole buffer as changed. */
+  def markDirty(): Unit = markDirty(0, height)
+
+  /** Whether the given row was changed after the specified modification count. */
+  def isRowModifiedSince(row: Int, since: Long): Boolean =
+    row < 0 || row >= height || rowModified(row) > since
+
   /** The current buffer size in columns by rows. */
   def size: (Int, Int) = (width, height)
 
@@ -92,6 +126,8 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
       color = newColor
       width = w
       height = h
+      rowModified = new Array[Long](h)
+      markDirty()
       true
     }
     else false
@@ -120,6 +156,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
           setChar(line, lineColor, col, c)
           cx = s.offsetByCodePoints(cx, 1)
         }
+        if (changed) markDirty(row, row + sLength)
         changed
       }
     }
@@ -138,6 +175,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
           bx += math.max(1, FontUtils.wcwidth(c))
           cx = s.offsetByCodePoints(cx, 1)
         }
+        if (changed) markDirty(row, row + 1)
         changed
       }
     }
@@ -159,6 +197,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
         bx += math.max(1, FontUtils.wcwidth(c))
       }
     }
+    if (changed) markDirty(row, row + h)
     changed
   }
 
@@ -210,6 +249,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
         case _ => /* Got no source row. */
       }
     }
+    if (changed) markDirty(math.min(dy0, dy1), math.max(dy0, dy1) + 1)
     changed
   }
 
@@ -219,6 +259,7 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
     val col_index = col - 1
     val row_index = row - 1
     for (yOffset <- 0 until h) {
+      var rowChanged = false
       val dstCharLine = buffer(row_index + yOffset)
       val dstColorLine = color(row_index + yOffset)
       for (xOffset <- 0 until w) {
@@ -232,11 +273,15 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
         }
 
         if (srcChar != dstCharLine(col_index + xOffset) || srcColor != dstColorLine(col_index + xOffset)) {
-          changed = true
+          rowChanged = true
           dstCharLine(col_index + xOffset) = srcChar
           dstColorLine(col_index + xOffset) = srcColor
         }
       }
+      if (rowChanged) {
+        changed = true
+        markDirty(row_index + yOffset, row_index + yOffset + 1)
+      }
     }
 
     changed
@@ -285,6 +330,8 @@ class GenericTextBuffer(var width: Int, var height: Int, initialFormat: PackedCo
     if (!NbtDataStream.getShortArray(nbt, "colors", color, w, h)) {
       NbtDataStream.getIntArrayLegacy(nbt, "color", color, w, h)
     }
+
+    markDirty()
   }
 
   def save(nbt: NBTTagCompound): Unit = {
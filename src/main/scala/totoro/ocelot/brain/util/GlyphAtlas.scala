@@ -0,0 +1,98 @@
+package totoro.ocelot.brain.util
+
+import totoro.ocelot.brain.Ocelot
+
+import java.io.{BufferedReader, InputStreamReader}
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.atomic.AtomicReferenceArray
+
+/**
+  * Lazily populated cache of decoded unifont glyphs.
+  *
+  * The raw hex data of `font.hex` is indexed on first use, individual glyphs
+  * are only decoded into bitmaps when they are rendered for the first time.
+  * Lookups take no locks: two threads decoding the same glyph at once simply both do it.
+  */
+object GlyphAtlas {
+  final val GlyphWidth = 8
+  final val GlyphHeight = 16
+
+  /**
+    * A decoded glyph. Each element of `rows` is one line of pixels, the leftmost
+    * pixel being the most significant of the `width` lower bits.
+    */
+  class Glyph(val width: Int, val rows: Array[Int]) {
+    def isSet(x: Int, y: Int): Boolean = ((rows(y) >>> (width - 1 - x)) & 1) != 0
+  }
+
+  // a hollow box, used for code points missing from the font
+  private val missingGlyph: Glyph = new Glyph(GlyphWidth, Array.tabulate(GlyphHeight) {
+    case 0 | 15 => 0xFF
+    case _ => 0x81
+  })
+
+  // the hex encoded bitmaps of font.hex, in pages of 256 code points
+  private lazy val hexData: Array[Array[String]] = {
+    val result = new Array[Array[String]](FontUtils.codepoint_limit >> 8)
+    val font = GlyphAtlas.getClass.getResourceAsStream("/assets/opencomputers/font.hex")
+    if (font == null) {
+      Ocelot.log.warn("Could not find font.hex, text will be rendered with placeholder glyphs.")
+    } else {
+      try {
+        val input = new BufferedReader(new InputStreamReader(font, StandardCharsets.UTF_8))
+        var line: String = null
+        while ({line = input.readLine; line != null}) {
+          val separator = line.indexOf(':')
+          if (separator > 0) {
+            val charCode = Integer.parseInt(line.substring(0, separator), 16)
+            if (charCode >= 0 && charCode < FontUtils.codepoint_limit) {
+              if (result(charCode >> 8) == null) result(charCode >> 8) = new Array[String](256)
+              result(charCode >> 8)(charCode & 0xFF) = line.substring(separator + 1)
+            }
+          }
+        }
+      } catch {
+        case ex: Exception => Ocelot.log.error(s"Error reading font.hex: $ex")
+      } finally {
+        font.close()
+      }
+    }
+    result
+  }
+
+  private def hex(charCode: Int): Option[String] = {
+    val page = hexData(charCode >> 8)
+    if (page == null) None else Option(page(charCode & 0xFF))
+  }
+
+  // decoded glyphs, split into pages of 256 code points
+  private val pages = new AtomicReferenceArray[AtomicReferenceArray[Glyph]](FontUtils.codepoint_limit >> 8)
+
+  private def decode(hex: String): Option[Glyph] = {
+    val bytesPerRow = hex.length / 2 / GlyphHeight
+    if (bytesPerRow < 1 || bytesPerRow > 2 || hex.length != bytesPerRow * 2 * GlyphHeight) None
+    else {
+      val digits = bytesPerRow * 2
+      val rows = Array.tabulate(GlyphHeight)(y => Integer.parseInt(hex.substring(y * digits, (y + 1) * digits), 16))
+      Some(new Glyph(bytesPerRow * 8, rows))
+    }
+  }
+
+  /**
+    * Get the glyph for the specified code point, decoding it on first access.
+    */
+  def glyph(charCode: Int): Glyph = {
+    if (charCode < 0 || charCode >= FontUtils.codepoint_limit) return missingGlyph
+    var page = pages.get(charCode >> 8)
+    if (page == null) {
+      pages.compareAndSet(charCode >> 8, null, new AtomicReferenceArray[Glyph](256))
+      page = pages.get(charCode >> 8)
+    }
+    var glyph = page.get(charCode & 0xFF)
+    if (glyph == null) {
+      glyph = hex(charCode).flatMap(decode).getOrElse(missingGlyph)
+      page.set(charCode & 0xFF, glyph)
+    }
+    glyph
+  }
+}
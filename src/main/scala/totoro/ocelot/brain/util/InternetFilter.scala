@@ -0,0 +1,93 @@
+package totoro.ocelot.brain.util
+
+import totoro.ocelot.brain.util.InternetFilteringRule.{HostKey, RangeKey}
+
+import java.net.InetAddress
+import java.util
+
+/**
+  * The internet filtering rules, compiled for fast lookups.
+  *
+  * Rules with `ip:` or `domain:` filters are indexed by them: address ranges go into a binary
+  * prefix trie per address length, host names into a map. A lookup only evaluates the rules that
+  * may match, i.e. those found for the address or host name plus all rules without index, in the
+  * order of the configuration. So the first matching rule still decides, as before.
+  *
+  * Instances are immutable after construction and may be used from any thread.
+  */
+class InternetFilter(rules: Array[InternetFilteringRule]) {
+  private val unindexed = new util.BitSet(rules.length)
+  private val ranges = Map(4 -> new InternetFilter.PrefixTrie, 16 -> new InternetFilter.PrefixTrie)
+  private val hosts = new util.HashMap[String, util.BitSet]
+
+  for ((rule, i) <- rules.zipWithIndex) rule.index match {
+    case Some(keys) => keys.foreach {
+      case HostKey(host) => hosts.computeIfAbsent(host, _ => new util.BitSet(rules.length)).set(i)
+      case RangeKey(address, prefix) => ranges.get(address.length) match {
+        case Some(trie) => trie.add(address, prefix, i)
+        case None => // never matches, as no address has this length
+      }
+    }
+    case None => unindexed.set(i)
+  }
+
+  /**
+    * The verdict of the first rule matching the address and host name, if any.
+    */
+  def apply(inetAddress: InetAddress, host: String): Option[Boolean] = {
+    val candidates = unindexed.clone().asInstanceOf[util.BitSet]
+    val address = inetAddress.getAddress
+    ranges.get(address.length).foreach(_.collect(address, candidates))
+    val byHost = hosts.get(host)
+    if (byHost != null) candidates.or(byHost)
+
+    var i = candidates.nextSetBit(0)
+    while (i >= 0) {
+      val verdict = rules(i)(inetAddress, host)
+      if (verdict.isDefined) return verdict
+      i = candidates.nextSetBit(i + 1)
+    }
+    None
+  }
+}
+
+object InternetFilter {
+
+  /**
+    * A binary trie over the bits of addresses of one length. Every node holds the rules whose range
+    * is the prefix leading to it, so the rules of all ranges containing an address are found on the
+    * path of its bits.
+    */
+  private class PrefixTrie {
+    private class Node {
+      val children = new Array[Node](2)
+      var rules: List[Int] = Nil
+    }
+
+    private val root = new Node
+
+    def add(address: Array[Byte], prefix: Int, rule: Int): Unit = {
+      // same as InetAddressRange: prefixes are clamped to the length of the address
+      val bits = math.max(0, math.min(prefix, address.length * 8))
+      var node = root
+      for (i <- 0 until bits) {
+        val bit = bitAt(address, i)
+        if (node.children(bit) == null) node.children(bit) = new Node
+        node = node.children(bit)
+      }
+      node.rules ::= rule
+    }
+
+    def collect(address: Array[Byte], into: util.BitSet): Unit = {
+      var node = root
+      var i = 0
+      while (node != null) {
+        node.rules.foreach(into.set)
+        node = if (i < address.length * 8) node.children(bitAt(address, i)) else null
+        i += 1
+      }
+    }
+
+    private def bitAt(address: Array[Byte], i: Int): Int = (address(i >> 3) >> (7 - (i & 7))) & 1
+  }
+}
@@ -8,6 +8,14 @@ import scala.collection.mutable
 
 class InternetFilteringRule(val ruleString: String) {
   private var _invalid: Boolean = false
+  private var _index: Option[Seq[InternetFilteringRule.IndexKey]] = None
+
+  // The rule can only match if one of these keys does. It is taken from the first predicate that
+  // has keys, as all predicates have to match.
+  private def indexBy(keys: Seq[InternetFilteringRule.IndexKey]): Unit = {
+    if (_index.isEmpty) _index = Some(keys)
+  }
+
   private val validator: (InetAddress, String) => Option[Boolean] = {
     try {
       val ruleParts = ruleString.split(' ')
@@ -55,6 +63,7 @@ class InternetFilteringRule(val ruleString: String) {
               case "domain" =>
                 val domain = filter(1)
                 val addresses = InetAddress.getAllByName(domain)
+                indexBy(InternetFilteringRule.HostKey(domain) +: addresses.toSeq.map(InternetFilteringRule.RangeKey(_)))
                 predicates += ((inetAddress: InetAddress, host: String) => {
                   host == domain || addresses.exists(a => a.equals(inetAddress))
                 })
@@ -62,9 +71,11 @@ class InternetFilteringRule(val ruleString: String) {
                 val ipStringParts = filter(1).split("/", 2)
                 if (ipStringParts.length == 2) {
                   val ipRange = InetAddressRange.parse(ipStringParts(0), ipStringParts(1))
+                  indexBy(Seq(InternetFilteringRule.RangeKey(InetAddresses.forString(ipStringParts(0)).getAddress, ipStringParts(1).toInt)))
                   predicates += ((inetAddress: InetAddress, _: String) => ipRange.matches(inetAddress))
                 } else {
                   val ipAddress = InetAddresses.forString(ipStringParts(0))
+                  indexBy(Seq(InternetFilteringRule.RangeKey(ipAddress)))
                   predicates += ((inetAddress: InetAddress, _: String) => ipAddress.equals(inetAddress))
                 }
                 predicates += ((inetAddress: InetAddress, _: String) => {
@@ -87,16 +98,38 @@ class InternetFilteringRule(val ruleString: String) {
       case t: Throwable =>
         Ocelot.log.error("Invalid Internet filteringRules rule in configuration: \"" + ruleString + "\".", t)
         _invalid = true
+        _index = None
         (_: InetAddress, _: String) => Some(false)
     }
   }
 
   def invalid(): Boolean = _invalid
 
+  /**
+    * Keys of which at least one has to match for the rule to match, if the rule has any.
+    */
+  def index: Option[Seq[InternetFilteringRule.IndexKey]] = _index
+
   def apply(inetAddress: InetAddress, host: String): Option[Boolean] = validator(inetAddress, host)
 }
 
 object InternetFilteringRule {
+  sealed trait IndexKey
+
+  /**
+    * Matches the host name exactly.
+    */
+  case class HostKey(host: String) extends IndexKey
+
+  /**
+    * Matches addresses of the same length whose first `prefix` bits are the ones of `address`.
+    */
+  case class RangeKey(address: Array[Byte], prefix: Int) extends IndexKey
+
+  object RangeKey {
+    def apply(address: InetAddress): RangeKey = RangeKey(address.getAddress, address.getAddress.length * 8)
+  }
+
   private val defaultRules = Array(
     new InternetFilteringRule("deny private"),
     new InternetFilteringRule("deny bogon"),
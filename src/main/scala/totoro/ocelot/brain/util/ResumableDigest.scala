@@ -0,0 +1,370 @@
+package totoro.ocelot.brain.util
+
+import totoro.ocelot.brain.nbt.NBTTagCompound
+
+/**
+  * A hash function that is fed incrementally, and whose intermediate state can be saved and
+  * restored. `java.security.MessageDigest` and `java.util.zip.Checksum` cannot do the latter.
+  *
+  * Instances are not thread safe.
+  */
+sealed abstract class ResumableDigest {
+  def update(data: Array[Byte], offset: Int, length: Int): Unit
+
+  def update(data: Array[Byte]): Unit = update(data, 0, data.length)
+
+  /**
+    * Completes the computation and returns the hash. The digest is reset afterwards.
+    */
+  def digest(): Array[Byte]
+
+  def reset(): Unit
+
+  def load(nbt: NBTTagCompound): Unit
+
+  def save(nbt: NBTTagCompound): Unit
+}
+
+object ResumableDigest {
+  final val Names: Seq[String] = Seq("crc32", "md5", "sha256")
+
+  def apply(name: String): Option[ResumableDigest] = name match {
+    case "crc32" => Some(new CRC32)
+    case "md5" => Some(new MD5)
+    case "sha256" => Some(new SHA256)
+    case _ => None
+  }
+
+  private final val StateTag = "state"
+  private final val BufferTag = "buffer"
+  private final val LengthTag = "length"
+
+  /**
+    * CRC-32, as used by ZIP. The hash is the checksum in little-endian byte order, as Guava returns it.
+    */
+  class CRC32 extends ResumableDigest {
+    private var crc = 0xffffffff
+
+    override def update(data: Array[Byte], offset: Int, length: Int): Unit = {
+      var c = crc
+      var i = offset
+      while (i < offset + length) {
+        c = CRC32.Table((c ^ data(i)) & 0xff) ^ (c >>> 8)
+        i += 1
+      }
+      crc = c
+    }
+
+    def value: Int = ~crc
+
+    override def digest(): Array[Byte] = {
+      val result = value
+      reset()
+      Array(result.toByte, (result >>> 8).toByte, (result >>> 16).toByte, (result >>> 24).toByte)
+    }
+
+    override def reset(): Unit = crc = 0xffffffff
+
+    override def load(nbt: NBTTagCompound): Unit = crc = ~nbt.getInteger(StateTag)
+
+    override def save(nbt: NBTTagCompound): Unit = nbt.setInteger(StateTag, value)
+  }
+
+  object CRC32 {
+    private val Table = Array.tabulate(256)(n => {
+      var c = n
+      for (_ <- 0 until 8) {
+        c = if ((c & 1) != 0) 0xedb88320 ^ (c >>> 1) else c >>> 1
+      }
+      c
+    })
+  }
+
+  /**
+    * Adler-32, as used by zlib. The hash is the checksum in big-endian byte order.
+    */
+  class Adler32 extends ResumableDigest {
+    private var a = 1
+    private var b = 0
+
+    override def update(data: Array[Byte], offset: Int, length: Int): Unit = {
+      var i = offset
+      val end = offset + length
+      while (i < end) {
+        // a run of bytes the sums cannot overflow in
+        val runEnd = math.min(end, i + 3800)
+        while (i < runEnd) {
+          a += data(i) & 0xff
+          b += a
+          i += 1
+        }
+        a %= 65521
+        b %= 65521
+      }
+    }
+
+    def value: Int = b << 16 | a
+
+    override def digest(): Array[Byte] = {
+      val result = value
+      reset()
+      Array((result >>> 24).toByte, (result >>> 16).toByte, (result >>> 8).toByte, result.toByte)
+    }
+
+    override def reset(): Unit = {
+      a = 1
+      b = 0
+    }
+
+    override def load(nbt: NBTTagCompound): Unit = {
+      val state = nbt.getInteger(StateTag)
+      a = state & 0xffff
+      b = state >>> 16
+    }
+
+    override def save(nbt: NBTTagCompound): Unit = nbt.setInteger(StateTag, value)
+  }
+
+  /**
+    * A Merkle-Damgard hash over 64-byte blocks with a 64-bit length, i.e. MD5 or SHA-256.
+    */
+  private abstract class BlockDigest(initialState: Array[Int], bigEndian: Boolean) extends ResumableDigest {
+    protected val state: Array[Int] = initialState.clone()
+    private val buffer = new Array[Byte](64)
+    private var buffered = 0
+    private var length = 0L
+
+    protected def compress(data: Array[Byte], offset: Int): Unit
+
+    protected def readInt(data: Array[Byte], offset: Int): Int =
+      if (bigEndian)
+        (data(offset) & 0xff) << 24 | (data(offset + 1) & 0xff) << 16 | (data(offset + 2) & 0xff) << 8 | data(offset + 3) & 0xff
+      else
+        data(offset) & 0xff | (data(offset + 1) & 0xff) << 8 | (data(offset + 2) & 0xff) << 16 | (data(offset + 3) & 0xff) << 24
+
+    private def writeInt(value: Int, data: Array[Byte], offset: Int): Unit = {
+      for (i <- 0 until 4) {
+        data(offset + i) = (if (bigEndian) value >>> (24 - 8 * i) else value >>> (8 * i)).toByte
+      }
+    }
+
+    override def update(data: Array[Byte], offset: Int, length: Int): Unit = {
+      this.length += length
+      var position = offset
+      val end = offset + length
+
+      if (buffered > 0) {
+        val count = math.min(64 - buffered, end - position)
+        System.arraycopy(data, position, buffer, buffered, count)
+        buffered += count
+        position += count
+        if (buffered == 64) {
+          compress(buffer, 0)
+          buffered = 0
+        }
+      }
+
+      while (end - position >= 64) {
+        compress(data, position)
+        position += 64
+      }
+
+      if (position < end) {
+        System.arraycopy(data, position, buffer, 0, end - position)
+        buffered = end - position
+      }
+    }
+
+    override def digest(): Array[Byte] = {
+      val bits = length * 8
+      val padding = new Array[Byte](if (buffered < 56) 64 - buffered else 128 - buffered)
+      padding(0) = 0x80.toByte
+      writeInt((if (bigEndian) bits >>> 32 else bits).toInt, padding, padding.length - 8)
+      writeInt((if (bigEndian) bits else bits >>> 32).toInt, padding, padding.length - 4)
+      update(padding)
+
+      val result = new Array[Byte](state.length * 4)
+      for (i <- state.indices) writeInt(state(i), result, i * 4)
+      reset()
+      result
+    }
+
+    override def reset(): Unit = {
+      System.arraycopy(initialState, 0, state, 0, state.length)
+      buffered = 0
+      length = 0
+    }
+
+    override def load(nbt: NBTTagCompound): Unit = {
+      reset()
+      val savedState = nbt.getIntArray(StateTag)
+      val savedBuffer = nbt.getByteArray(BufferTag)
+      if (savedState.length == state.length && savedBuffer.length < 64) {
+        System.arraycopy(savedState, 0, state, 0, state.length)
+        System.arraycopy(savedBuffer, 0, buffer, 0, savedBuffer.length)
+        buffered = savedBuffer.length
+        length = nbt.getLong(LengthTag)
+      }
+    }
+
+    override def save(nbt: NBTTagCompound): Unit = {
+      nbt.setIntArray(StateTag, state.clone())
+      nbt.setByteArray(BufferTag, buffer.take(buffered))
+      nbt.setLong(LengthTag, length)
+    }
+  }
+
+  private class MD5 extends BlockDigest(Array(0x67452301, 0xefcdab89, 0x98badcfe, 0x10325476), bigEndian = false) {
+    private val words = new Array[Int](16)
+
+    override protected def compress(data: Array[Byte], offset: Int): Unit = {
+      var i = 0
+      while (i < 16) {
+        words(i) = readInt(data, offset + i * 4)
+        i += 1
+      }
+
+      var a = state(0)
+      var b = state(1)
+      var c = state(2)
+      var d = state(3)
+      i = 0
+      while (i < 64) {
+        var f = 0
+        var g = 0
+        if (i < 16) {
+          f = (b & c) | (~b & d)
+          g = i
+        } else if (i < 32) {
+          f = (d & b) | (~d & c)
+          g = (5 * i + 1) & 15
+        } else if (i < 48) {
+          f = b ^ c ^ d
+          g = (3 * i + 5) & 15
+        } else {
+          f = c ^ (b | ~d)
+          g = (7 * i) & 15
+        }
+        val next = d
+        d = c
+        c = b
+        b += Integer.rotateLeft(a + f + MD5.K(i) + words(g), MD5.S(i))
+        a = next
+        i += 1
+      }
+
+      state(0) += a
+      state(1) += b
+      state(2) += c
+      state(3) += d
+    }
+  }
+
+  private object MD5 {
+    private val S = Array(
+      7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+      5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+      4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+      6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    )
+
+    private val K = Array(
+      0xd76aa478, 0xe8c7b756, 0x242070db, 0xc1bdceee,
+      0xf57c0faf, 0x4787c62a, 0xa8304613, 0xfd469501,
+      0x698098d8, 0x8b44f7af, 0xffff5bb1, 0x895cd7be,
+      0x6b901122, 0xfd987193, 0xa679438e, 0x49b40821,
+      0xf61e2562, 0xc040b340, 0x265e5a51, 0xe9b6c7aa,
+      0xd62f105d, 0x02441453, 0xd8a1e681, 0xe7d3fbc8,
+      0x21e1cde6, 0xc33707d6, 0xf4d50d87, 0x455a14ed,
+      0xa9e3e905, 0xfcefa3f8, 0x676f02d9, 0x8d2a4c8a,
+      0xfffa3942, 0x8771f681, 0x6d9d6122, 0xfde5380c,
+      0xa4beea44, 0x4bdecfa9, 0xf6bb4b60, 0xbebfbc70,
+      0x289b7ec6, 0xeaa127fa, 0xd4ef3085, 0x04881d05,
+      0xd9d4d039, 0xe6db99e5, 0x1fa27cf8, 0xc4ac5665,
+      0xf4292244, 0x432aff97, 0xab9423a7, 0xfc93a039,
+      0x655b59c3, 0x8f0ccc92, 0xffeff47d, 0x85845dd1,
+      0x6fa87e4f, 0xfe2ce6e0, 0xa3014314, 0x4e0811a1,
+      0xf7537e82, 0xbd3af235, 0x2ad7d2bb, 0xeb86d391
+    )
+  }
+
+  private class SHA256 extends BlockDigest(Array(
+    0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a,
+    0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19
+  ), bigEndian = true) {
+    private val words = new Array[Int](64)
+
+    override protected def compress(data: Array[Byte], offset: Int): Unit = {
+      var i = 0
+      while (i < 16) {
+        words(i) = readInt(data, offset + i * 4)
+        i += 1
+      }
+      while (i < 64) {
+        val w15 = words(i - 15)
+        val w2 = words(i - 2)
+        val s0 = Integer.rotateRight(w15, 7) ^ Integer.rotateRight(w15, 18) ^ (w15 >>> 3)
+        val s1 = Integer.rotateRight(w2, 17) ^ Integer.rotateRight(w2, 19) ^ (w2 >>> 10)
+        words(i) = words(i - 16) + s0 + words(i - 7) + s1
+        i += 1
+      }
+
+      var a = state(0)
+      var b = state(1)
+      var c = state(2)
+      var d = state(3)
+      var e = state(4)
+      var f = state(5)
+      var g = state(6)
+      var h = state(7)
+      i = 0
+      while (i < 64) {
+        val s1 = Integer.rotateRight(e, 6) ^ Integer.rotateRight(e, 11) ^ Integer.rotateRight(e, 25)
+        val ch = (e & f) ^ (~e & g)
+        val t1 = h + s1 + ch + SHA256.K(i) + words(i)
+        val s0 = Integer.rotateRight(a, 2) ^ Integer.rotateRight(a, 13) ^ Integer.rotateRight(a, 22)
+        val maj = (a & b) ^ (a & c) ^ (b & c)
+        val t2 = s0 + maj
+        h = g
+        g = f
+        f = e
+        e = d + t1
+        d = c
+        c = b
+        b = a
+        a = t1 + t2
+        i += 1
+      }
+
+      state(0) += a
+      state(1) += b
+      state(2) += c
+      state(3) += d
+      state(4) += e
+      state(5) += f
+      state(6) += g
+      state(7) += h
+    }
+  }
+
+  private object SHA256 {
+    private val K = Array(
+      0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5,
+      0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+      0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3,
+      0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+      0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc,
+      0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+      0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7,
+      0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+      0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13,
+      0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+      0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3,
+      0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+      0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5,
+      0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+      0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208,
+      0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2
+    )
+  }
+}
@@ -0,0 +1,197 @@
+package totoro.ocelot.brain.util
+
+import java.io.{File, IOException, InputStream}
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, StandardCopyOption, StandardOpenOption}
+import java.nio.{ByteBuffer, MappedByteBuffer}
+import java.util
+import scala.collection.mutable
+import scala.util.Using
+
+/**
+  * The contents of a block device of `capacity` bytes, split into sectors of `sectorSize` bytes.
+  *
+  * The saved image is a plain, sparse sector file, which is mapped into memory read-only, so the
+  * OS pages sectors in as they are read. Writes go to copies of the written sectors on the heap,
+  * which are tracked in a dirty bitmap. `save` writes only those sectors to the file and drops
+  * the copies again. Sectors that were never written take up no memory and no disk space.
+  *
+  * Instances are not thread safe.
+  */
+class SectorStorage(val capacity: Int, val sectorSize: Int) {
+  val sectorCount: Int = capacity / sectorSize
+
+  private val dirty = new util.BitSet(sectorCount)
+  private val sectors = mutable.LongMap.empty[Array[Byte]]
+
+  // the file the clean sectors are read from, and its mapping
+  private var source: Option[File] = None
+  private var mapped: MappedByteBuffer = _
+
+  // ----------------------------------------------------------------------- //
+
+  def readByte(offset: Int): Byte = {
+    checkRange(offset, 1)
+    val sector = offset / sectorSize
+    sectors.get(sector) match {
+      case Some(data) => data(offset - sector * sectorSize)
+      case None => if (mapped != null && offset < mapped.capacity) mapped.get(offset) else 0
+    }
+  }
+
+  def writeByte(offset: Int, value: Byte): Unit = {
+    checkRange(offset, 1)
+    val sector = offset / sectorSize
+    writableSector(sector)(offset - sector * sectorSize) = value
+  }
+
+  /**
+    * Copies `count` bytes, starting at `offset`, into `into` at `intoOffset`.
+    */
+  def read(offset: Int, into: Array[Byte], intoOffset: Int, count: Int): Unit = {
+    checkRange(offset, count)
+    var done = 0
+    while (done < count) {
+      val position = offset + done
+      val sector = position / sectorSize
+      val sectorOffset = position - sector * sectorSize
+      val chunk = math.min(count - done, sectorSize - sectorOffset)
+      sectors.get(sector) match {
+        case Some(data) => System.arraycopy(data, sectorOffset, into, intoOffset + done, chunk)
+        case None => readClean(position, into, intoOffset + done, chunk)
+      }
+      done += chunk
+    }
+  }
+
+  /**
+    * Copies `count` bytes from `from` at `fromOffset` to `offset`.
+    */
+  def write(offset: Int, from: Array[Byte], fromOffset: Int, count: Int): Unit = {
+    checkRange(offset, count)
+    var done = 0
+    while (done < count) {
+      val position = offset + done
+      val sector = position / sectorSize
+      val sectorOffset = position - sector * sectorSize
+      val chunk = math.min(count - done, sectorSize - sectorOffset)
+      System.arraycopy(from, fromOffset + done, writableSector(sector), sectorOffset, chunk)
+      done += chunk
+    }
+  }
+
+  private def checkRange(offset: Int, count: Int): Unit = {
+    if (offset < 0 || count < 0 || offset.toLong + count > sectorCount.toLong * sectorSize)
+      throw new IndexOutOfBoundsException(s"cannot access $count bytes at $offset")
+  }
+
+  private def readClean(position: Int, into: Array[Byte], intoOffset: Int, count: Int): Unit = {
+    val available = if (mapped == null) 0 else math.max(0, math.min(count, mapped.capacity - position))
+    if (available > 0) {
+      val view = mapped.duplicate()
+      view.position(position)
+      view.get(into, intoOffset, available)
+    }
+    if (available < count) util.Arrays.fill(into, intoOffset + available, intoOffset + count, 0: Byte)
+  }
+
+  private def writableSector(sector: Int): Array[Byte] = sectors.getOrElseUpdate(sector, {
+    val data = new Array[Byte](sectorSize)
+    readClean(sector * sectorSize, data, 0, sectorSize)
+    dirty.set(sector)
+    data
+  })
+
+  // ----------------------------------------------------------------------- //
+
+  /**
+    * Discards all unsaved changes and reads the sectors from `file`, if it exists.
+    *
+    * Otherwise, if `legacy` is given, it is read as a complete, compressed image in the format of
+    * older versions. Its non-empty sectors count as changed, so the next `save` writes them.
+    */
+  def load(file: File, legacy: => Option[InputStream] = None): Unit = {
+    dirty.clear()
+    sectors.clear()
+    source = None
+    mapped = null
+
+    if (file.isFile) open(file)
+    else legacy.foreach(stream => Using.resource(stream)(importImage))
+  }
+
+  private def importImage(stream: InputStream): Unit = {
+    val data = new Array[Byte](sectorSize)
+    var sector = 0
+    while (sector < sectorCount) {
+      var filled = 0
+      var read = 0
+      while (read >= 0 && filled < sectorSize) {
+        read = stream.read(data, filled, sectorSize - filled)
+        if (read > 0) filled += read
+      }
+      if (filled == 0) return
+      util.Arrays.fill(data, filled, sectorSize, 0: Byte)
+      if (data.exists(_ != 0)) {
+        sectors(sector) = data.clone()
+        dirty.set(sector)
+      }
+      sector += 1
+    }
+  }
+
+  private def open(file: File): Unit = {
+    mapped = Using.resource(FileChannel.open(file.toPath, StandardOpenOption.READ)) { channel =>
+      channel.map(FileChannel.MapMode.READ_ONLY, 0, math.min(channel.size(), capacity.toLong))
+    }
+    source = Some(file)
+  }
+
+  /**
+    * Writes the sectors changed since the last `load` or `save` to `file`.
+    *
+    * If the sectors were read from another file (or from none at all), `file` is replaced with a
+    * complete image first, and used as the source of the clean sectors from then on.
+    */
+  def save(file: File): Unit = {
+    val relocated = !source.exists(_.getAbsoluteFile == file.getAbsoluteFile)
+    if (relocated) {
+      file.getParentFile.mkdirs()
+      source match {
+        case Some(previous) if previous.isFile =>
+          Files.copy(previous.toPath, file.toPath, StandardCopyOption.REPLACE_EXISTING)
+        case _ =>
+          Files.deleteIfExists(file.toPath)
+      }
+    }
+    else if (dirty.isEmpty) return
+
+    Using.resource(FileChannel.open(file.toPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) { channel =>
+      // unwritten sectors at the end stay a hole in the file
+      if (capacity > 0 && channel.size() < capacity) {
+        channel.write(ByteBuffer.wrap(new Array[Byte](1)), capacity - 1L)
+      }
+
+      var sector = dirty.nextSetBit(0)
+      while (sector >= 0) {
+        val buffer = ByteBuffer.wrap(sectors(sector))
+        val position = sector.toLong * sectorSize
+        while (buffer.hasRemaining) {
+          if (channel.write(buffer, position + buffer.position()) < 0)
+            throw new IOException(s"could not write sector $sector of '$file'")
+        }
+        sector = dirty.nextSetBit(sector + 1)
+      }
+    }
+
+    // the mapping of the file shows the written sectors now
+    if (relocated || mapped == null || mapped.capacity < capacity) open(file)
+    dirty.clear()
+    sectors.clear()
+  }
+
+  /**
+    * Whether there are changes that were not saved yet.
+    */
+  def isDirty: Boolean = !dirty.isEmpty
+}
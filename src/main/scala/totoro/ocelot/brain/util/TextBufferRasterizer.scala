@@ -0,0 +1,107 @@
+package totoro.ocelot.brain.util
+
+import totoro.ocelot.brain.entity.TextBuffer
+import totoro.ocelot.brain.entity.traits.TextBufferProxy
+
+import java.awt.image.{BufferedImage, DataBufferInt}
+import java.io.OutputStream
+import javax.imageio.ImageIO
+
+/**
+  * Renders the contents of a text buffer into an RGB image, server side.
+  *
+  * Only the rows that changed since the previous call to `render()` are drawn again,
+  * so keeping one rasterizer per buffer and calling `render()` every frame is cheap.
+  * The rasterizer is not thread safe and should be used from the thread that updates the buffer.
+  */
+class TextBufferRasterizer(val buffer: TextBufferProxy) {
+  private var image: BufferedImage = _
+  private var pixels: Array[Int] = _
+  private var renderedData: GenericTextBuffer = _
+  private var renderedModifications: Long = -1
+
+  private def columns: Int = buffer match {
+    case screen: TextBuffer => screen.viewport._1 min buffer.data.width
+    case _ => buffer.data.width
+  }
+
+  private def rows: Int = buffer match {
+    case screen: TextBuffer => screen.viewport._2 min buffer.data.height
+    case _ => buffer.data.height
+  }
+
+  /**
+    * Bring the image up to date with the buffer.
+    *
+    * @return the number of text rows that had to be drawn again.
+    */
+  def render(): Int = {
+    val data = buffer.data
+    val width = columns * GlyphAtlas.GlyphWidth
+    val height = rows * GlyphAtlas.GlyphHeight
+
+    val full = image == null || image.getWidth != width || image.getHeight != height || (renderedData ne data)
+    if (full) {
+      image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB)
+      pixels = image.getRaster.getDataBuffer.asInstanceOf[DataBufferInt].getData
+      renderedData = data
+    }
+
+    var count = 0
+    for (row <- 0 until rows) {
+      if (full || data.isRowModifiedSince(row, renderedModifications)) {
+        renderRow(data, row)
+        count += 1
+      }
+    }
+    renderedModifications = data.modifications
+    count
+  }
+
+  private def renderRow(data: GenericTextBuffer, row: Int): Unit = {
+    val line = data.buffer(row)
+    val lineColor = data.color(row)
+    val stride = columns * GlyphAtlas.GlyphWidth
+    var col = 0
+    while (col < columns) {
+      val c = line(col)
+      val span = math.max(1, math.min(FontUtils.wcwidth(c), columns - col))
+      val foreground = PackedColor.unpackForeground(lineColor(col), data.format)
+      val background = PackedColor.unpackBackground(lineColor(col), data.format)
+      val glyph = GlyphAtlas.glyph(c)
+      val glyphWidth = math.min(glyph.width, span * GlyphAtlas.GlyphWidth)
+
+      for (y <- 0 until GlyphAtlas.GlyphHeight) {
+        val offset = (row * GlyphAtlas.GlyphHeight + y) * stride + col * GlyphAtlas.GlyphWidth
+        for (x <- 0 until span * GlyphAtlas.GlyphWidth) {
+          pixels(offset + x) = if (x < glyphWidth && glyph.isSet(x, y)) foreground else background
+        }
+      }
+      col += span
+    }
+  }
+
+  /**
+    * The rendered image. It is updated in place by subsequent calls to `render()`.
+    */
+  def toImage: BufferedImage = {
+    if (image == null) render()
+    image
+  }
+
+  /**
+    * The rendered pixels, in `0xRRGGBB` format, row by row.
+    */
+  def toRGB: Array[Int] = {
+    if (image == null) render()
+    pixels.clone()
+  }
+
+  /**
+    * Render the buffer and write it out as a PNG image.
+    */
+  def writePng(output: OutputStream): Unit = {
+    render()
+    ImageIO.write(image, "png", output)
+  }
+}
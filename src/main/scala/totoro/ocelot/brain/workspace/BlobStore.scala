@@ -0,0 +1,217 @@
+package totoro.ocelot.brain.workspace
+
+import com.google.common.cache.{Cache, CacheBuilder}
+import com.google.common.hash.Hashing
+import totoro.ocelot.brain.Ocelot
+import totoro.ocelot.brain.nbt.NBTTagCompound
+
+import java.io.IOException
+import java.nio.file.{Files, NoSuchFileException, Path, StandardCopyOption}
+import java.util.concurrent.ConcurrentHashMap
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+/**
+  * Content-addressed storage for large byte arrays of a workspace, kept in the `blobs` directory
+  * next to the other workspace files.
+  *
+  * While a workspace is saved or loaded, `BlobStore.setByteArray` and `BlobStore.getByteArray` put large
+  * arrays into the store and only keep their hash in the NBT. Every distinct array is written once,
+  * no matter how many entities or saves refer to it.
+  *
+  * A full save of the workspace ends with a garbage collection, which removes the blobs that were
+  * referenced neither since the previous collection nor by the previous full save. The latter keeps
+  * an older save loadable until it has been replaced for good.
+  */
+class BlobStore(val workspace: Workspace) {
+  // blobs used since the last garbage collection, and the ones used before that
+  private val referenced = ConcurrentHashMap.newKeySet[String]()
+  @volatile private var retained = Set.empty[String]
+
+  def directory: Path = workspace.path.resolve(BlobStore.DirectoryName)
+
+  private def blobPath(hash: String): Path = directory.resolve(hash.substring(0, 2)).resolve(hash)
+
+  /**
+    * Stores the data, unless an identical blob is present already.
+    *
+    * @return the hash the data can be retrieved with.
+    */
+  def put(data: Array[Byte]): String = {
+    val hash = BlobStore.hashes.get(data, () => Hashing.sha256().hashBytes(data).toString)
+    val path = blobPath(hash)
+    if (!Files.exists(path)) {
+      Files.createDirectories(path.getParent)
+      val temp = Files.createTempFile(path.getParent, hash, ".tmp")
+      try {
+        Files.write(temp, data)
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE)
+      } catch {
+        // another thread has stored the same blob in the meantime
+        case _: IOException if Files.exists(path) => Files.deleteIfExists(temp)
+      }
+    }
+    referenced.add(hash)
+    hash
+  }
+
+  /**
+    * Marks a blob stored before as used, if it is still present.
+    *
+    * @return whether the blob is present.
+    */
+  def reference(hash: String): Boolean = {
+    if (!Files.isRegularFile(blobPath(hash))) false
+    else {
+      referenced.add(hash)
+      true
+    }
+  }
+
+  /**
+    * Reads a blob stored before, and marks it as used.
+    *
+    * The blob is read into the heap with a plain read: it is copied into an array by the callers
+    * anyway, and a mapping would keep the file open until it is collected, which prevents deleting
+    * it on some systems.
+    */
+  def get(hash: String): Option[Array[Byte]] = {
+    val path = blobPath(hash)
+    try {
+      val data = Files.readAllBytes(path)
+      referenced.add(hash)
+      Some(data)
+    } catch {
+      case _: NoSuchFileException => None
+    }
+  }
+
+  /**
+    * Removes the blobs that were neither used since the last collection, nor before it.
+    *
+    * @return the number of deleted blobs.
+    */
+  def collectGarbage(): Int = {
+    val live = referenced.asScala.toSet
+    referenced.clear()
+    val keep = live ++ retained
+    retained = live
+
+    if (!Files.isDirectory(directory)) return 0
+    var deleted = 0
+    Using.resource(Files.walk(directory)) { paths =>
+      paths.iterator().asScala.toSeq
+        .filter(path => Files.isRegularFile(path) && !keep.contains(path.getFileName.toString))
+        .foreach(path => {
+          try {
+            if (Files.deleteIfExists(path)) deleted += 1
+          } catch {
+            case e: IOException => Ocelot.log.warn(s"Could not delete unused blob $path", e)
+          }
+        })
+    }
+    deleted
+  }
+}
+
+object BlobStore {
+  final val DirectoryName = "blobs"
+
+  /**
+    * Arrays smaller than this are kept in the NBT, where they cost less than a separate file.
+    */
+  final val MinBlobSize = 1024
+
+  private final val ReferenceSuffix = "_blob"
+
+  private val current = new ThreadLocal[BlobStore]()
+
+  // Hashes of the arrays stored lately, by identity, so that saving an unchanged array again does
+  // not hash it again. Arrays must not be modified after they were stored.
+  private val hashes: Cache[Array[Byte], String] = CacheBuilder.newBuilder().
+    weakKeys().
+    asInstanceOf[CacheBuilder[Array[Byte], String]].
+    build[Array[Byte], String]()
+
+  /**
+    * The store of the workspace that is being saved or loaded on this thread, if any.
+    */
+  def active: Option[BlobStore] = Option(current.get())
+
+  /**
+    * Runs `f` with the given store active on the current thread.
+    */
+  def withActive[T](store: Option[BlobStore])(f: => T): T = {
+    val previous = current.get()
+    current.set(store.orNull)
+    try f
+    finally current.set(previous)
+  }
+
+  /**
+    * Like `nbt.setByteArray`, but moves large arrays into the active store, if there is one.
+    * The array must not be modified afterwards.
+    *
+    * @return the hash of the blob, if the array was moved into the store.
+    */
+  def setByteArray(nbt: NBTTagCompound, key: String, data: Array[Byte]): Option[String] = {
+    active match {
+      case Some(store) if data.length >= MinBlobSize =>
+        val hash = store.put(data)
+        setBlob(nbt, key, hash)
+        Some(hash)
+      case _ =>
+        nbt.setByteArray(key, data)
+        nbt.removeTag(key + ReferenceSuffix)
+        None
+    }
+  }
+
+  /**
+    * Like `setByteArray`, for an array that was stored with the given hash before. This spares
+    * owners of unchanged data converting and hashing it again.
+    *
+    * @return false if there is no active store, or the blob is gone. Then nothing is written.
+    */
+  def setStoredByteArray(nbt: NBTTagCompound, key: String, hash: String): Boolean = {
+    if (!active.exists(_.reference(hash))) false
+    else {
+      setBlob(nbt, key, hash)
+      true
+    }
+  }
+
+  private def setBlob(nbt: NBTTagCompound, key: String, hash: String): Unit = {
+    nbt.setString(key + ReferenceSuffix, hash)
+    nbt.removeTag(key)
+  }
+
+  /**
+    * Like `nbt.hasKey`, for arrays written by `setByteArray`.
+    */
+  def hasByteArray(nbt: NBTTagCompound, key: String): Boolean =
+    nbt.hasKey(key) || nbt.hasKey(key + ReferenceSuffix)
+
+  /**
+    * Like `nbt.removeTag`, for arrays written by `setByteArray`.
+    */
+  def removeByteArray(nbt: NBTTagCompound, key: String): Unit = {
+    nbt.removeTag(key)
+    nbt.removeTag(key + ReferenceSuffix)
+  }
+
+  /**
+    * Like `nbt.getByteArray`, for arrays written by `setByteArray`.
+    * Missing blobs are logged and read as an empty array.
+    */
+  def getByteArray(nbt: NBTTagCompound, key: String): Array[Byte] = {
+    if (!nbt.hasKey(key + ReferenceSuffix)) nbt.getByteArray(key)
+    else {
+      val hash = nbt.getString(key + ReferenceSuffix)
+      active.flatMap(_.get(hash)).getOrElse {
+        Ocelot.log.warn(s"Could not find blob $hash for '$key'.")
+        Array.empty[Byte]
+      }
+    }
+  }
+}
@@ -1,10 +1,11 @@
 package totoro.ocelot.brain.workspace
 
+import totoro.ocelot.brain.Ocelot
 import totoro.ocelot.brain.entity.tape.StorageManager
 import totoro.ocelot.brain.entity.traits.{Entity, Environment, SidedEnvironment, WorkspaceAware}
 import totoro.ocelot.brain.nbt.ExtendedNBT._
 import totoro.ocelot.brain.nbt.persistence.NBTPersistence
-import totoro.ocelot.brain.nbt.{NBT, NBTBase, NBTTagCompound}
+import totoro.ocelot.brain.nbt.{NBT, NBTBase, NBTNumber, NBTStreamReader, NBTStreamWriter, NBTTagCompound, NBTTagList}
 import totoro.ocelot.brain.network.Node
 import totoro.ocelot.brain.util.Direction
 
@@ -25,6 +26,11 @@ class Workspace(var path: Path) {
 
   val tapeStorage = new StorageManager(this)
 
+  /**
+    * Storage for large binary data of the entities, see `BlobStore`.
+    */
+  val blobs = new BlobStore(this)
+
   // Internal emulator time in Minecraft ticks
   // ----------------------------------------------------------------------- //
   private var ingameTime: Int = 0
@@ -136,7 +142,7 @@ class Workspace(var path: Path) {
     edgeNbt
   }
 
-  private def collectEdges(): ListBuffer[NBTBase] = {
+  private[workspace] def collectEdges(): ListBuffer[NBTBase] = {
     entities.flatMap {
       case s: SidedEnvironment =>
         Direction.values.unsorted.flatMap { d: Direction.Value =>
@@ -149,48 +155,119 @@ class Workspace(var path: Path) {
     }
   }
 
-  private val TimeTag = "time"
-  private val TimePausedTag = "time_paused"
-  private val EdgesTag = "edges"
-  private val EntitiesTag = "entities"
+  private[workspace] val TimeTag = "time"
+  private[workspace] val TimePausedTag = "time_paused"
+  private[workspace] val EdgesTag = "edges"
+  private[workspace] val EntitiesTag = "entities"
 
-  def save(nbt: NBTTagCompound): Unit = {
+  def save(nbt: NBTTagCompound): Unit = BlobStore.withActive(Some(blobs)) {
     // save global state
     nbt.setInteger(TimeTag, ingameTime)
     nbt.setBoolean(TimePausedTag, ingameTimePaused)
     lastTickNanoTime = System.nanoTime()
 
     // save entities
-    val nbtEntities: ListBuffer[NBTBase] = entities.map(entity => {
-      NBTPersistence.save(entity)
-    })
+    // (entities are serialized independently, in parallel if `misc.persistenceThreads` allows it)
+    val nbtEntities: Seq[NBTBase] = NBTPersistence.saveAll(entities)
     nbt.setTagList(EntitiesTag, nbtEntities.asJava)
 
     // save network relations
     val nbtEdges: ListBuffer[NBTBase] = collectEdges()
     nbt.setTagList(EdgesTag, nbtEdges.asJava)
+
+    collectUnusedBlobs()
   }
 
-  def load(nbt: NBTTagCompound): Unit = {
+  def load(nbt: NBTTagCompound): Unit = BlobStore.withActive(Some(blobs)) {
     ingameTime = nbt.getInteger(TimeTag)
     ingameTimePaused = nbt.getBoolean(TimePausedTag)
 
     // load entities
     entities.foreach(_.dispose())
     entities.clear()
-    nbt.getTagList(EntitiesTag, NBT.TAG_COMPOUND).foreach((nbt: NBTTagCompound) => {
-      val entity = NBTPersistence.load(nbt, this).asInstanceOf[Entity]
-      add(entity)
-    })
+    // Entities are loaded and added one after another, so the `load` of an entity sees all
+    // entities before it loaded and initialized, the same as with `load(reader)`. Only when
+    // persisting in parallel, all entities are loaded first and then added in their original
+    // order, so their `load` must not depend on other entities (see `NBTPersistence.loadAll`).
+    val nbtEntities = nbt.getTagList(EntitiesTag, NBT.TAG_COMPOUND).map((nbt: NBTTagCompound) => nbt)
+    if (NBTPersistence.isParallel) {
+      NBTPersistence.loadAll(nbtEntities, this).foreach(entity => add(entity.asInstanceOf[Entity]))
+    } else {
+      nbtEntities.foreach(nbt => add(NBTPersistence.load(nbt, this).asInstanceOf[Entity]))
+    }
 
     // load network relations
-    nbt.getTagList(EdgesTag, NBT.TAG_COMPOUND).map((nbt: NBTTagCompound) => {
-      val left = nodeByAddress(nbt.getString(LeftTag))
-      val right = nodeByAddress(nbt.getString(RightTag))
-      if (left.isDefined && right.isDefined) {
-        if (!left.get.isNeighborOf(right.get))
-          left.get.connect(right.get)
+    nbt.getTagList(EdgesTag, NBT.TAG_COMPOUND).foreach((nbt: NBTTagCompound) => restoreEdge(nbt))
+  }
+
+  private def collectUnusedBlobs(): Unit = {
+    try blobs.collectGarbage()
+    catch {
+      case e: Exception => Ocelot.log.warn("Could not remove unused blobs.", e)
+    }
+  }
+
+  private def restoreEdge(nbt: NBTTagCompound): Unit = {
+    val left = nodeByAddress(nbt.getString(LeftTag))
+    val right = nodeByAddress(nbt.getString(RightTag))
+    if (left.isDefined && right.isDefined) {
+      if (!left.get.isNeighborOf(right.get))
+        left.get.connect(right.get)
+    }
+  }
+
+  /**
+    * Same as `save(nbt)`, but streams the entities to the writer one at a time,
+    * instead of building the tag tree of the whole workspace in memory.
+    */
+  def save(writer: NBTStreamWriter): Unit = BlobStore.withActive(Some(blobs)) {
+    // save global state
+    writer.writeInteger(TimeTag, ingameTime)
+    writer.writeBoolean(TimePausedTag, ingameTimePaused)
+    lastTickNanoTime = System.nanoTime()
+
+    // save entities
+    writer.beginList(EntitiesTag, NBT.TAG_COMPOUND, entities.size)
+    for (entity <- entities) {
+      NBTPersistence.save(entity, null, writer)
+    }
+    writer.endList()
+
+    // save network relations
+    val nbtEdges: ListBuffer[NBTBase] = collectEdges()
+    writer.beginList(EdgesTag, NBT.TAG_COMPOUND, nbtEdges.size)
+    nbtEdges.foreach(writer.writeTag(null, _))
+    writer.endList()
+
+    collectUnusedBlobs()
+  }
+
+  /**
+    * Same as `load(nbt)`, but reads the entities from the reader one at a time.
+    * Accepts data written by both `save(nbt)` and `save(writer)`.
+    */
+  def load(reader: NBTStreamReader): Unit = BlobStore.withActive(Some(blobs)) {
+    entities.foreach(_.dispose())
+    entities.clear()
+
+    // edges may come before the entities, so they are restored last
+    var edges: Option[NBTTagList] = None
+
+    while (reader.nextEntry()) {
+      reader.getName match {
+        case TimeTag => ingameTime = reader.readTag().asInstanceOf[NBTNumber].getInt
+        case TimePausedTag => ingameTimePaused = reader.readTag().asInstanceOf[NBTNumber].getByte != 0
+        case EntitiesTag if reader.getType == NBT.TAG_LIST =>
+          reader.beginList()
+          while (reader.nextEntry()) {
+            add(NBTPersistence.load(reader, this).asInstanceOf[Entity])
+          }
+        case EdgesTag if reader.getType == NBT.TAG_LIST => edges = Some(reader.readTag().asInstanceOf[NBTTagList])
+        case _ => reader.skip()
       }
-    })
+    }
+
+    // load network relations
+    edges.foreach(_.foreach((nbt: NBTTagCompound) => restoreEdge(nbt)))
   }
 }
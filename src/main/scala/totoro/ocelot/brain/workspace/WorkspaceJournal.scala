@@ -0,0 +1,208 @@
+package totoro.ocelot.brain.workspace
+
+import totoro.ocelot.brain.Ocelot
+import totoro.ocelot.brain.nbt.ExtendedNBT._
+import totoro.ocelot.brain.nbt.persistence.NBTPersistence
+import totoro.ocelot.brain.nbt.{CompressedStreamTools, NBT, NBTBase, NBTTagCompound, NBTTagList, NBTTagString}
+
+import java.io.{ByteArrayInputStream, DataInputStream, EOFException, IOException}
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.{Files, Path, StandardCopyOption, StandardOpenOption}
+import java.util.UUID
+import java.util.zip.CRC32
+import scala.collection.mutable
+
+/**
+  * Incremental persistence for a workspace.
+  *
+  * A checkpoint either writes a full base image of the workspace, or appends a record
+  * to the journal that contains only the entities modified since the previous checkpoint
+  * (see `Entity.isModified`). After `compactionThreshold` journal records the next
+  * checkpoint writes a new base image and drops the journal.
+  *
+  * Both files are replaced or appended in a crash-safe way: the base image is moved into place
+  * atomically, journal records carry a checksum, and a journal left over from an older base
+  * image (recognized by its generation) is ignored. A torn record at the end of the journal,
+  * as left by a crash during a checkpoint, is discarded on load.
+  */
+class WorkspaceJournal(val workspace: Workspace, val directory: Path, val compactionThreshold: Int = 64) {
+  private val basePath = directory.resolve("base.dat")
+  private val journalPath = directory.resolve("journal.dat")
+
+  private val GenerationTag = "journal_generation"
+  private val EntityIdsTag = "entity_ids"
+  private val EntityIdTag = "id"
+  private val EntityTag = "entity"
+
+  // generation of the current base image, journal records of other generations are stale
+  private var generation: Option[Long] = None
+  private var records = 0
+
+  /**
+    * Persists the current state of the workspace, writing only modified entities where possible.
+    */
+  def checkpoint(): Unit = {
+    if (generation.isEmpty || records >= compactionThreshold || !Files.exists(basePath)) compact()
+    else append()
+  }
+
+  /**
+    * Writes a full base image and discards the journal.
+    */
+  def compact(): Unit = {
+    Files.createDirectories(directory)
+    val newGeneration = UUID.randomUUID().getMostSignificantBits
+
+    // the flags are taken before saving: a change made by a direct callback meanwhile is
+    // either in the image or marked again for the next checkpoint
+    val entities = workspace.getEntitiesIter.toSeq
+    val modified = entities.filter(_.testAndClearModified())
+    try {
+      val nbt = new NBTTagCompound()
+      workspace.save(nbt)
+      nbt.setNewTagList(EntityIdsTag, entities.map(e => new NBTTagString(e.entityId.toString): NBTBase))
+      nbt.setLong(GenerationTag, newGeneration)
+
+      // the data must be on disk before the move, or a crash could leave an incomplete image
+      val temp = directory.resolve("base.dat.tmp")
+      writeDurably(temp, ByteBuffer.wrap(CompressedStreamTools.write(nbt)),
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+      Files.move(temp, basePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    } catch {
+      case e: Throwable =>
+        modified.foreach(_.markModified())
+        throw e
+    }
+
+    Files.deleteIfExists(journalPath)
+    generation = Some(newGeneration)
+    records = 0
+  }
+
+  private def append(): Unit = BlobStore.withActive(Some(workspace.blobs)) {
+    val entities = workspace.getEntitiesIter.toSeq
+    val modified = entities.filter(_.testAndClearModified())
+    try {
+      val record = new NBTTagCompound()
+      record.setLong(GenerationTag, generation.get)
+      record.setInteger(workspace.TimeTag, workspace.getIngameTime)
+      record.setBoolean(workspace.TimePausedTag, workspace.isIngameTimePaused)
+
+      record.setNewTagList(EntityIdsTag, entities.map(e => new NBTTagString(e.entityId.toString): NBTBase))
+      record.setNewTagList(workspace.EntitiesTag, modified.map(entity => {
+        val entry = new NBTTagCompound()
+        entry.setString(EntityIdTag, entity.entityId.toString)
+        entry.setTag(EntityTag, NBTPersistence.save(entity))
+        entry: NBTBase
+      }))
+      record.setNewTagList(workspace.EdgesTag, workspace.collectEdges())
+
+      val data = CompressedStreamTools.write(record)
+      val crc = new CRC32()
+      crc.update(data)
+      val frame = ByteBuffer.allocate(12 + data.length)
+      frame.putInt(data.length).putLong(crc.getValue).put(data).flip()
+
+      writeDurably(journalPath, frame, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+    } catch {
+      case e: Throwable =>
+        modified.foreach(_.markModified())
+        throw e
+    }
+
+    records += 1
+  }
+
+  private def writeDurably(path: Path, data: ByteBuffer, options: StandardOpenOption*): Unit = {
+    val channel = FileChannel.open(path, options: _*)
+    try {
+      while (data.hasRemaining) channel.write(data)
+      channel.force(true)
+    } finally channel.close()
+  }
+
+  /**
+    * Reads the journal records that belong to the base image with the given generation.
+    * Stops at the first incomplete or corrupted record and cuts the journal there.
+    */
+  private def readJournal(baseGeneration: Long): Seq[NBTTagCompound] = {
+    if (!Files.exists(journalPath)) return Seq.empty
+
+    val bytes = Files.readAllBytes(journalPath)
+    val input = new DataInputStream(new ByteArrayInputStream(bytes))
+    val result = mutable.ArrayBuffer.empty[NBTTagCompound]
+    var validLength = 0
+    var stale = false
+    try {
+      while (validLength < bytes.length) {
+        val length = input.readInt()
+        val checksum = input.readLong()
+        if (length < 0 || length > bytes.length - validLength - 12) throw new EOFException()
+        val data = new Array[Byte](length)
+        input.readFully(data)
+        val crc = new CRC32()
+        crc.update(data)
+        if (crc.getValue != checksum) throw new IOException("checksum mismatch")
+        val record = CompressedStreamTools.readCompressed(new ByteArrayInputStream(data))
+        if (record.getLong(GenerationTag) == baseGeneration) result += record
+        else stale = true
+        validLength += 12 + length
+      }
+    } catch {
+      case _: IOException =>
+        Ocelot.log.warn(s"Discarding incomplete workspace journal record at offset $validLength")
+    }
+
+    if (stale) {
+      Files.deleteIfExists(journalPath)
+      Seq.empty
+    } else {
+      if (validLength < bytes.length) {
+        val channel = FileChannel.open(journalPath, StandardOpenOption.WRITE)
+        try channel.truncate(validLength)
+        finally channel.close()
+      }
+      result.toSeq
+    }
+  }
+
+  /**
+    * Restores the workspace from the base image with all journal records replayed on top of it.
+    *
+    * @return `false` if there was no base image to load.
+    */
+  def load(): Boolean = {
+    if (!Files.exists(basePath)) return false
+
+    val input = Files.newInputStream(basePath)
+    val base = try CompressedStreamTools.readCompressed(input) finally input.close()
+    val baseGeneration = base.getLong(GenerationTag)
+
+    val entities = mutable.HashMap.empty[String, NBTBase]
+    var order = base.getTagList(EntityIdsTag, NBT.TAG_STRING).map((id: NBTTagString) => id.getString)
+    order.zip(base.getTagList(workspace.EntitiesTag, NBT.TAG_COMPOUND).map((nbt: NBTTagCompound) => nbt))
+      .foreach { case (id, nbt) => entities(id) = nbt }
+
+    val journal = readJournal(baseGeneration)
+    for (record <- journal) {
+      base.setInteger(workspace.TimeTag, record.getInteger(workspace.TimeTag))
+      base.setBoolean(workspace.TimePausedTag, record.getBoolean(workspace.TimePausedTag))
+      base.setTag(workspace.EdgesTag, record.getTagList(workspace.EdgesTag, NBT.TAG_COMPOUND))
+      record.getTagList(workspace.EntitiesTag, NBT.TAG_COMPOUND).foreach((entry: NBTTagCompound) => {
+        entities(entry.getString(EntityIdTag)) = entry.getCompoundTag(EntityTag)
+      })
+      order = record.getTagList(EntityIdsTag, NBT.TAG_STRING).map((id: NBTTagString) => id.getString)
+    }
+
+    val merged = new NBTTagList()
+    order.flatMap(entities.get).foreach(merged.appendTag)
+    base.setTag(workspace.EntitiesTag, merged)
+    workspace.load(base)
+
+    generation = Some(baseGeneration)
+    records = journal.size
+    workspace.getEntitiesIter.foreach(_.clearModified())
+    true
+  }
+}
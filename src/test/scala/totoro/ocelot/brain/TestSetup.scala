@@ -0,0 +1,48 @@
+package totoro.ocelot.brain
+
+import totoro.ocelot.brain.entity.{HologramProjector, Screen}
+import totoro.ocelot.brain.nbt.persistence.NBTPersistence
+import totoro.ocelot.brain.nbt.persistence.NBTPersistence.TieredConstructor
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+import java.util.Comparator
+
+/**
+  * The parts of `Ocelot.initialize` that tests need, without native libraries or thread pools.
+  */
+object TestSetup {
+  private lazy val initialized: Unit = {
+    Settings.load(None)
+    val tieredConstructor = new TieredConstructor()
+    NBTPersistence.registerConstructor(classOf[Screen].getName, tieredConstructor)
+    NBTPersistence.registerConstructor(classOf[HologramProjector].getName, tieredConstructor)
+  }
+
+  def init(): Unit = initialized
+
+  /**
+    * Runs `f` with a new temporary directory, which is deleted afterwards.
+    */
+  def withTempDirectory[T](f: Path => T): T = {
+    val directory = Files.createTempDirectory("ocelot-test")
+    try f(directory)
+    finally Files.walk(directory).sorted(Comparator.reverseOrder()).forEach(path => Files.delete(path))
+  }
+
+  /**
+    * Runs `f` with the default configuration changed by `overrides`, given as HOCON paths
+    * below `opencomputers` (e.g. `internet.filteringRules: ["allow all"]`).
+    */
+  def withSettings[T](overrides: String)(f: => T): T = {
+    init()
+    withTempDirectory { directory =>
+      val defaults = new String(classOf[Settings].getResourceAsStream("/application.conf").readAllBytes(), StandardCharsets.UTF_8)
+      val file = directory.resolve("ocelot.conf")
+      Files.writeString(file, defaults + "\nopencomputers {\n" + overrides + "\n}\n")
+      Settings.load(Some(file.toFile))
+      try f
+      finally Settings.load(None)
+    }
+  }
+}
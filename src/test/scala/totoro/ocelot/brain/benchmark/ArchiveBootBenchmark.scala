@@ -0,0 +1,76 @@
+package totoro.ocelot.brain.benchmark
+
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.entity.fs.{FileSystemTrait, Mode, ZipFileInputStreamFileSystem}
+
+import java.io.FileOutputStream
+import java.nio.file.Files
+import java.util.concurrent.{CountDownLatch, Executors}
+import java.util.zip.{ZipEntry, ZipOutputStream}
+import scala.util.{Random, Using}
+
+/**
+  * Many machines booting from the same ZIP file system at once: each one opens the file system,
+  * walks all directories and reads every file, as booting OpenOS roughly does.
+  */
+object ArchiveBootBenchmark {
+  private val directories = 12
+  private val filesPerDirectory = 20
+
+  // reads everything below `path`, returning the number of bytes read
+  private def walk(fs: FileSystemTrait, path: String, buffer: Array[Byte]): Long = {
+    fs.list(path).map(name => {
+      val child = path + name
+      if (name.endsWith("/")) walk(fs, child, buffer)
+      else {
+        val handle = fs.open(child, Mode.Read)
+        var total = 0L
+        var read = 0
+        while (read >= 0) {
+          read = fs.getHandle(handle).read(buffer, 0, buffer.length)
+          if (read > 0) total += read
+        }
+        fs.getHandle(handle).close()
+        total
+      }
+    }).sum
+  }
+
+  def main(args: Array[String]): Unit = {
+    TestSetup.init()
+    TestSetup.withTempDirectory { directory =>
+      val zip = directory.resolve("loot.zip")
+      val random = new Random(40)
+      Using.resource(new ZipOutputStream(new FileOutputStream(zip.toFile))) { output =>
+        output.putNextEntry(new ZipEntry("openos/"))
+        for (d <- 0 until directories) {
+          output.putNextEntry(new ZipEntry(s"openos/dir$d/"))
+          for (f <- 0 until filesPerDirectory) {
+            output.putNextEntry(new ZipEntry(s"openos/dir$d/file$f.lua"))
+            output.write(Array.fill(1000 + random.nextInt(9000))(('a' + random.nextInt(26)).toByte))
+            output.closeEntry()
+          }
+        }
+      }
+      println(s"archive: ${directories * filesPerDirectory} files, ${Files.size(zip) / 1024} KiB compressed")
+
+      for (machines <- Seq(1, 8, 64)) {
+        Benchmark.section(s"$machines machines booting at once")
+        val pool = Executors.newFixedThreadPool(machines)
+        try {
+          Benchmark.measure("open, list and read everything", machines, warmup = 3, iterations = 10) {
+            val start = new CountDownLatch(1)
+            val boots = (0 until machines).map(_ => pool.submit(() => {
+              start.await()
+              val fs = ZipFileInputStreamFileSystem.fromFile(zip.toFile, "openos")
+              walk(fs, "", new Array[Byte](2048))
+            }))
+            start.countDown()
+            boots.map(_.get).sum
+          }
+        }
+        finally pool.shutdown()
+      }
+    }
+  }
+}
@@ -0,0 +1,32 @@
+package totoro.ocelot.brain.benchmark
+
+/**
+  * A small harness for the benchmarks in this package, which are plain applications
+  * run with `sbt "Test/runMain totoro.ocelot.brain.benchmark.<name>"`.
+  *
+  * Each case is run a few times to warm up the JIT, then measured over several iterations,
+  * of which the median is reported.
+  */
+object Benchmark {
+  // results of the measured code go here, so the JIT cannot remove it
+  @volatile var sink: Long = 0
+
+  /**
+    * Measures `f`, which performs `operations` operations per run, and prints the time per operation.
+    *
+    * @return the median time per operation in nanoseconds.
+    */
+  def measure(name: String, operations: Long, warmup: Int = 5, iterations: Int = 10)(f: => Long): Double = {
+    for (_ <- 0 until warmup) sink += f
+    val times = (0 until iterations).map { _ =>
+      val start = System.nanoTime()
+      sink += f
+      System.nanoTime() - start
+    }.sorted
+    val median = times(times.length / 2).toDouble / operations
+    println(f"$name%-48s $median%12.2f ns/op")
+    median
+  }
+
+  def section(title: String): Unit = println(s"\n== $title")
+}
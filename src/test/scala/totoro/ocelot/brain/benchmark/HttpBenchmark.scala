@@ -0,0 +1,108 @@
+package totoro.ocelot.brain.benchmark
+
+import com.sun.net.httpserver.{HttpExchange, HttpServer}
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.entity.InternetCard
+import totoro.ocelot.brain.entity.machine.{Arguments, Context}
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.net.{InetSocketAddress, URL}
+import java.util.concurrent.Executors
+
+/**
+  * Requests per second and latency of `InternetCard.HTTPRequest`, against a local stand-in HTTP server.
+  *
+  * Requests are driven through the `read` callback the way a program polls it, until the body is read
+  * completely. Responses with `Connection: close` show the cost of opening a connection every time.
+  */
+object HttpBenchmark {
+  private val context = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Context]), new InvocationHandler {
+    override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+      if (method.getReturnType == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE else null
+  }).asInstanceOf[Context]
+
+  private val noArguments = new Arguments(Seq.empty)
+
+  private def serve(server: HttpServer, path: String, body: Array[Byte], keepAlive: Boolean = true): Unit =
+    server.createContext(path, (exchange: HttpExchange) => {
+      exchange.getRequestBody.readAllBytes()
+      if (!keepAlive) exchange.getResponseHeaders.set("Connection", "close")
+      exchange.sendResponseHeaders(200, body.length)
+      exchange.getResponseBody.write(body)
+      exchange.close()
+    })
+
+  // performs a request and reads its body, returning the number of bytes read
+  private def request(card: InternetCard, url: URL): Long = {
+    val request = new InternetCard.HTTPRequest(card, url, None, Map.empty, None)
+    var total = 0L
+    var done = false
+    while (!done) {
+      request.read(context, noArguments)(0) match {
+        case data: Array[Byte] =>
+          if (data.isEmpty) Thread.`yield`()
+          total += data.length
+        case _ => done = true
+      }
+    }
+    request.close()
+    total
+  }
+
+  private def latencies(name: String, count: Int)(f: => Long): Unit = {
+    val times = Array.fill(count) {
+      val start = System.nanoTime()
+      Benchmark.sink += f
+      System.nanoTime() - start
+    }.sorted
+    def percentile(p: Double) = times(((times.length - 1) * p).toInt) / 1000.0
+    println(f"$name%-48s p50 ${percentile(0.5)}%9.1f us   p99 ${percentile(0.99)}%9.1f us")
+  }
+
+  def main(args: Array[String]): Unit = TestSetup.withSettings("""internet.filteringRules: ["allow all"]""") {
+    // the server writes headers and body separately, which Nagle's algorithm would delay by the client's delayed ACK
+    System.setProperty("sun.net.httpserver.nodelay", "true")
+    val server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64)
+    server.setExecutor(Executors.newFixedThreadPool(8))
+    serve(server, "/small", Array.fill[Byte](256)('x'))
+    serve(server, "/close", Array.fill[Byte](256)('x'), keepAlive = false)
+    serve(server, "/large", Array.fill[Byte](1 << 20)('x'))
+    server.start()
+
+    try {
+      val base = s"http://127.0.0.1:${server.getAddress.getPort}"
+      val small = new URL(base + "/small")
+      val closed = new URL(base + "/close")
+      val large = new URL(base + "/large")
+      val card = new InternetCard
+      val count = 200
+
+      Benchmark.section("requests of 256 bytes, one after another")
+      for ((name, url) <- Seq("keep-alive" -> small, "Connection: close" -> closed)) {
+        val time = Benchmark.measure(name, count, warmup = 3, iterations = 5) {
+          (0 until count).map(_ => request(card, url)).sum
+        }
+        println(f"${""}%-48s ${1e9 / time}%12.0f req/s")
+        latencies(s"$name latency", count)(request(card, url))
+      }
+
+      Benchmark.section("requests of 256 bytes, 4 at a time")
+      val pool = Executors.newFixedThreadPool(4)
+      try {
+        val time = Benchmark.measure("keep-alive", count, warmup = 3, iterations = 5) {
+          val futures = (0 until count).map(_ => pool.submit(() => request(card, small)))
+          futures.map(_.get).sum
+        }
+        println(f"${""}%-48s ${1e9 / time}%12.0f req/s")
+      }
+      finally pool.shutdown()
+
+      Benchmark.section("requests of 1 MiB")
+      val time = Benchmark.measure("keep-alive", 10, warmup = 2, iterations = 5) {
+        (0 until 10).map(_ => request(card, large)).sum
+      }
+      println(f"${""}%-48s ${1e9 / time}%12.1f MiB/s")
+    }
+    finally server.stop(0)
+  }
+}
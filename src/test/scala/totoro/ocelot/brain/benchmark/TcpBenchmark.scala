@@ -0,0 +1,106 @@
+package totoro.ocelot.brain.benchmark
+
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.entity.InternetCard
+import totoro.ocelot.brain.entity.machine.{Arguments, Context}
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.net.{InetSocketAddress, URI}
+import java.nio.ByteBuffer
+import java.nio.channels.{SelectionKey, Selector, ServerSocketChannel, SocketChannel}
+
+/**
+  * Round trips of `InternetCard.TCPSocket`s against a local echo server, with many connections open
+  * at once, all of which are registered with the selector loop of the cards.
+  *
+  * Each round writes a message to every socket and reads all of them back through the callbacks.
+  */
+object TcpBenchmark {
+  private val context = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Context]), new InvocationHandler {
+    override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+      if (method.getReturnType == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE else null
+  }).asInstanceOf[Context]
+
+  private val noArguments = new Arguments(Seq.empty)
+
+  private val message = Array.fill[Byte](64)('x')
+
+  // an echo server on its own thread and selector
+  private class EchoServer extends Thread {
+    val server: ServerSocketChannel = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0), 4096)
+    private val selector = Selector.open()
+    server.configureBlocking(false)
+    server.register(selector, SelectionKey.OP_ACCEPT)
+    setDaemon(true)
+
+    override def run(): Unit = {
+      val buffer = ByteBuffer.allocate(64 * 1024)
+      while (selector.isOpen) {
+        selector.select()
+        val keys = selector.selectedKeys.iterator
+        while (keys.hasNext) {
+          val key = keys.next()
+          keys.remove()
+          if (key.isAcceptable) {
+            val channel = server.accept()
+            if (channel != null) {
+              channel.configureBlocking(false)
+              channel.register(selector, SelectionKey.OP_READ)
+            }
+          }
+          else if (key.isReadable) {
+            val channel = key.channel.asInstanceOf[SocketChannel]
+            buffer.clear()
+            if (channel.read(buffer) < 0) channel.close()
+            else {
+              buffer.flip()
+              while (buffer.hasRemaining) channel.write(buffer)
+            }
+          }
+        }
+      }
+    }
+  }
+
+  def main(args: Array[String]): Unit = TestSetup.withSettings("""internet.filteringRules: ["allow all"]""") {
+    val echo = new EchoServer
+    echo.start()
+    val port = echo.server.socket.getLocalPort
+    val uri = new URI(s"oc://127.0.0.1:$port")
+    val card = new InternetCard
+
+    for (connections <- Seq(10, 100, 1000, 4000)) {
+      Benchmark.section(s"$connections connections")
+      val start = System.nanoTime()
+      val sockets = Array.fill(connections)(new InternetCard.TCPSocket(card, uri, port))
+      var pending = sockets.toSeq
+      while (pending.nonEmpty) {
+        pending = pending.filterNot(_.finishConnect(context, noArguments)(0) == java.lang.Boolean.TRUE)
+        if (pending.nonEmpty) Thread.`yield`()
+      }
+      println(f"${"connect all"}%-48s ${(System.nanoTime() - start) / 1e6}%12.1f ms")
+
+      val received = new Array[Int](connections)
+      Benchmark.measure("write and read back 64 bytes", connections, warmup = 3, iterations = 10) {
+        for (socket <- sockets) socket.write(context, new Arguments(Seq(message)))
+        java.util.Arrays.fill(received, 0)
+        var done = 0
+        while (done < connections) {
+          var i = 0
+          while (i < connections) {
+            if (received(i) < message.length) {
+              received(i) += sockets(i).read(context, noArguments)(0).asInstanceOf[Array[Byte]].length
+              if (received(i) >= message.length) done += 1
+            }
+            i += 1
+          }
+        }
+        done
+      }
+
+      val closing = System.nanoTime()
+      sockets.foreach(_.close())
+      println(f"${"close all"}%-48s ${(System.nanoTime() - closing) / 1e6}%12.1f ms")
+    }
+  }
+}
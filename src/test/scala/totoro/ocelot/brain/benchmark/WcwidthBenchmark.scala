@@ -0,0 +1,50 @@
+package totoro.ocelot.brain.benchmark
+
+import totoro.ocelot.brain.util.FontUtils
+
+import scala.util.Random
+
+/**
+  * Compares `FontUtils.wcwidth` with the former lookup in a `mutable.BitSet` of double-wide code points.
+  */
+object WcwidthBenchmark {
+  def main(args: Array[String]): Unit = {
+    val doubleWide = FontUtils.doubleWideCodePoints()
+    FontUtils.init()
+
+    val random = new Random(1)
+    val length = 1 << 16
+    val texts = Seq(
+      "ASCII" -> Array.fill(length)(0x20 + random.nextInt(0x5f)),
+      "CJK" -> Array.fill(length)(0x4e00 + random.nextInt(0x5200)),
+      "mixed" -> Array.fill(length)(random.nextInt(4) match {
+        case 0 => 0x4e00 + random.nextInt(0x5200)
+        case 1 => 0x400 + random.nextInt(0x100)
+        case 2 => 0x1f300 + random.nextInt(0x300)
+        case _ => 0x20 + random.nextInt(0x5f)
+      }),
+    )
+
+    for ((name, text) <- texts) {
+      Benchmark.section(s"$name text")
+      Benchmark.measure("BitSet (before)", length) {
+        var sum = 0L
+        var i = 0
+        while (i < text.length) {
+          sum += (if (doubleWide(text(i))) 2 else 1)
+          i += 1
+        }
+        sum
+      }
+      Benchmark.measure("two-level bitmap", length) {
+        var sum = 0L
+        var i = 0
+        while (i < text.length) {
+          sum += FontUtils.wcwidth(text(i))
+          i += 1
+        }
+        sum
+      }
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package totoro.ocelot.brain.entity
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.entity.machine.{Arguments, Context}
+import totoro.ocelot.brain.nbt.{CompressedStreamTools, NBTTagCompound}
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.util.zip.InflaterOutputStream
+import scala.util.Random
+
+class DataCardTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  // a context that allows everything, as the streams only charge their call budget
+  private val context = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Context]), new InvocationHandler {
+    override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+      if (method.getReturnType == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE else null
+  }).asInstanceOf[Context]
+
+  private def bytes(values: Array[AnyRef]): Array[Byte] = values(0).asInstanceOf[Array[Byte]]
+
+  private def reloaded(stream: DataCard.DeflateStream): DataCard.DeflateStream = {
+    val nbt = new NBTTagCompound
+    stream.save(nbt)
+    val data = new ByteArrayOutputStream()
+    CompressedStreamTools.writeCompressed(nbt, data)
+    val result = new DataCard.DeflateStream
+    result.load(CompressedStreamTools.readCompressed(new ByteArrayInputStream(data.toByteArray)), null)
+    result
+  }
+
+  private def inflate(data: Array[Byte]): Array[Byte] = {
+    val output = new ByteArrayOutputStream()
+    val inflater = new InflaterOutputStream(output)
+    inflater.write(data)
+    inflater.close()
+    output.toByteArray
+  }
+
+  // text with repetitions across chunks, so that compression refers back to earlier chunks
+  private def input(random: Random, length: Int): Array[Byte] = {
+    val words = Seq("ocelot", "brain", "computer", "deflate", "stream", "window", "\n", " ", " ")
+    val builder = new StringBuilder
+    while (builder.length < length) builder ++= words(random.nextInt(words.size))
+    builder.toString.take(length).getBytes("UTF-8")
+  }
+
+  private def deflate(data: Array[Byte], random: Random, reload: (Int, DataCard.DeflateStream) => DataCard.DeflateStream): Array[Byte] = {
+    val output = new ByteArrayOutputStream()
+    var stream = new DataCard.DeflateStream
+    var position = 0
+    var chunkIndex = 0
+    while (position < data.length) {
+      val chunk = math.min(data.length - position, random.nextInt(3000) + 1)
+      output.write(bytes(stream.update(context, new Arguments(Seq(data.slice(position, position + chunk))))))
+      position += chunk
+      stream = reload(chunkIndex, stream)
+      chunkIndex += 1
+    }
+    output.write(bytes(stream.finish(context, new Arguments(Seq.empty))))
+    output.toByteArray
+  }
+
+  test("a deflate stream produces data the inflate callback can read") {
+    val random = new Random(1)
+    val data = input(random, 50000)
+    inflate(deflate(data, random, (_, stream) => stream)) shouldBe data
+  }
+
+  test("a deflate stream saved and loaded mid-stream still produces valid data") {
+    val random = new Random(2)
+    for (_ <- 0 until 5) {
+      val data = input(random, random.nextInt(100000) + 1)
+      val compressed = deflate(data, random, (index, stream) => if (index % 2 == 0) reloaded(stream) else stream)
+      inflate(compressed) shouldBe data
+    }
+  }
+
+  test("a deflate stream keeps working after it was saved without being loaded") {
+    val random = new Random(3)
+    val data = input(random, 40000)
+    val compressed = deflate(data, random, (_, stream) => {
+      stream.save(new NBTTagCompound)
+      stream
+    })
+    inflate(compressed) shouldBe data
+  }
+
+  test("a deflate stream loaded before any data was passed to it") {
+    val random = new Random(4)
+    val data = input(random, 10000)
+    val output = new ByteArrayOutputStream()
+    val stream = reloaded(new DataCard.DeflateStream)
+    output.write(bytes(stream.update(context, new Arguments(Seq(data)))))
+    output.write(bytes(reloaded(stream).finish(context, new Arguments(Seq.empty))))
+    inflate(output.toByteArray) shouldBe data
+  }
+}
@@ -0,0 +1,128 @@
+package totoro.ocelot.brain.entity
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.entity.machine.{Arguments, Context}
+import totoro.ocelot.brain.event.{EventBus, HologramVolumeChangeEvent}
+import totoro.ocelot.brain.nbt.NBTTagCompound
+import totoro.ocelot.brain.util.Tier
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import scala.util.Random
+
+class HologramProjectorTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def roundTrip(hologram: HologramProjector): HologramProjector = {
+    val nbt = new NBTTagCompound()
+    hologram.save(nbt)
+    val loaded = new HologramProjector(Tier.Two)
+    loaded.load(nbt, null)
+    loaded
+  }
+
+  test("an empty volume is saved as a single run") {
+    val nbt = new NBTTagCompound()
+    new HologramProjector(Tier.Two).save(nbt)
+    nbt.hasKey("volume") shouldBe false
+    nbt.getIntArray("volumeRle") shouldBe Array(2 * 48 * 48, 0)
+    roundTrip(new HologramProjector(Tier.Two)).volume.forall(_ == 0) shouldBe true
+  }
+
+  test("sparse and dense volumes survive saving and loading") {
+    val random = new Random(42)
+    for (density <- Seq(0.001, 0.05, 0.5, 1.0)) {
+      val hologram = new HologramProjector(Tier.Two)
+      for (x <- 0 until hologram.width; y <- 0 until hologram.height; z <- 0 until hologram.width) {
+        if (random.nextDouble() < density) hologram.setColor(x, y, z, 1 + random.nextInt(3))
+      }
+      roundTrip(hologram).volume shouldBe hologram.volume
+    }
+  }
+
+  test("runs reaching the end of the volume and full columns are kept") {
+    val hologram = new HologramProjector(Tier.Two)
+    java.util.Arrays.fill(hologram.volume, hologram.volume.length - 100, hologram.volume.length, -1)
+    hologram.volume(0) = -1
+    roundTrip(hologram).volume shouldBe hologram.volume
+  }
+
+  test("the other settings are saved next to the volume") {
+    val hologram = new HologramProjector(Tier.Two)
+    hologram.setColor(1, 2, 3, 2)
+    hologram.scale = 2.5f
+    hologram.translationY = 0.25f
+    hologram.rotationSpeed = 12f
+    val loaded = roundTrip(hologram)
+    loaded.getColor(1, 2, 3) shouldBe 2
+    loaded.scale shouldBe 2.5f
+    loaded.translationY shouldBe 0.25f
+    loaded.rotationSpeed shouldBe 12f
+  }
+
+  test("volumes saved by older versions are imported") {
+    val legacy = new Array[Int](2 * 48 * 48)
+    val random = new Random(7)
+    for (i <- legacy.indices if random.nextInt(10) == 0) legacy(i) = random.nextInt()
+    val nbt = new NBTTagCompound()
+    nbt.setIntArray("volume", legacy)
+
+    val hologram = new HologramProjector(Tier.Two)
+    hologram.setColor(0, 0, 0, 3)
+    hologram.load(nbt, null)
+    hologram.volume shouldBe legacy
+
+    // and saved in the new format from then on
+    val saved = new NBTTagCompound()
+    hologram.save(saved)
+    saved.hasKey("volume") shouldBe false
+    roundTrip(hologram).volume shouldBe legacy
+  }
+
+  test("a truncated run-length encoding leaves the rest of the volume empty") {
+    val nbt = new NBTTagCompound()
+    nbt.setIntArray("volumeRle", Array(10, 5, 3))
+    val hologram = new HologramProjector(Tier.Two)
+    hologram.volume(100) = 1
+    hologram.load(nbt, null)
+    hologram.volume.take(10).forall(_ == 5) shouldBe true
+    hologram.volume.drop(10).forall(_ == 0) shouldBe true
+  }
+
+  test("voxels set by another thread while updating all reach the change events") {
+    val context = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Context]), new InvocationHandler {
+      override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+        if (method.getReturnType == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE else null
+    }).asInstanceOf[Context]
+
+    val hologram = new HologramProjector(Tier.Two)
+    // the volume as seen by a renderer applying the events
+    val rendered = new Array[Int](hologram.volume.length)
+    val subscription = EventBus.subscribe {
+      case event: HologramVolumeChangeEvent if event.address == hologram.node.address =>
+        for (i <- event.columns.indices) {
+          rendered(event.columns(i)) = event.lowerBits(i)
+          rendered(event.columns(i) + hologram.width * hologram.width) = event.upperBits(i)
+        }
+    }
+
+    try {
+      // sets every voxel a few times, column after column, so that the last change of a column
+      // may happen at any point of an update
+      val machine = new Thread(() => {
+        val random = new Random(3)
+        for (_ <- 0 until 5; x <- 1 to hologram.width; z <- 1 to hologram.width; y <- 1 to hologram.height) {
+          hologram.set(context, new Arguments(Seq(x, y, z, random.nextInt(4)).map(Int.box)))
+        }
+      })
+      machine.start()
+      while (machine.isAlive) hologram.update()
+      machine.join()
+      hologram.update()
+    } finally subscription.cancel()
+
+    hologram.needUpdate shouldBe false
+    rendered shouldBe hologram.volume
+  }
+}
@@ -0,0 +1,135 @@
+package totoro.ocelot.brain.entity
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.entity.InternetCard.TCPNotifier
+import totoro.ocelot.brain.entity.machine.{Arguments, Context}
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.net.{InetSocketAddress, URI}
+import java.nio.ByteBuffer
+import java.nio.channels.{SelectionKey, ServerSocketChannel, SocketChannel}
+import java.util.concurrent.{LinkedBlockingQueue, TimeUnit}
+
+class InternetCardTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val context = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Context]), new InvocationHandler {
+    override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+      if (method.getReturnType == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE else null
+  }).asInstanceOf[Context]
+
+  // a loopback server, of which `f` gets both ends of one connection
+  private def withConnection[T](f: (SocketChannel, SocketChannel) => T): T = {
+    val server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))
+    try {
+      val client = SocketChannel.open(server.getLocalAddress)
+      client.configureBlocking(false)
+      val remote = server.accept()
+      try f(client, remote)
+      finally {
+        client.close()
+        remote.close()
+      }
+    }
+    finally server.close()
+  }
+
+  private def await(condition: => Boolean): Boolean = {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+    while (!condition && System.nanoTime() < deadline) Thread.sleep(5)
+    condition
+  }
+
+  test("a socket armed for reading is signalled once per arming") {
+    withConnection { (client, remote) =>
+      val signals = new LinkedBlockingQueue[Integer]()
+      val callback: () => Unit = () => signals.offer(1)
+
+      TCPNotifier.arm(client, SelectionKey.OP_READ, callback)
+      signals.poll(200, TimeUnit.MILLISECONDS) shouldBe null
+      remote.write(ByteBuffer.wrap("ping".getBytes))
+      signals.poll(5, TimeUnit.SECONDS) should not be null
+
+      // the interest was dropped, so more data does not signal until armed again
+      remote.write(ByteBuffer.wrap("pong".getBytes))
+      signals.poll(200, TimeUnit.MILLISECONDS) shouldBe null
+      TCPNotifier.arm(client, SelectionKey.OP_READ, callback)
+      signals.poll(5, TimeUnit.SECONDS) should not be null
+
+      val buffer = ByteBuffer.allocate(16)
+      await({ client.read(buffer); buffer.position() == 8 }) shouldBe true
+      new String(buffer.array, 0, 8) shouldBe "pingpong"
+    }
+  }
+
+  test("a socket armed for writing is signalled once the send buffer drains") {
+    withConnection { (client, remote) =>
+      val signals = new LinkedBlockingQueue[Integer]()
+      val chunk = ByteBuffer.allocate(64 * 1024)
+      var written = 0L
+      var full = false
+      while (!full) {
+        chunk.clear()
+        val count = client.write(chunk)
+        written += count
+        full = count == 0
+      }
+
+      TCPNotifier.arm(client, SelectionKey.OP_WRITE, () => signals.offer(1))
+      signals.poll(200, TimeUnit.MILLISECONDS) shouldBe null
+
+      val sink = ByteBuffer.allocate(64 * 1024)
+      var drained = 0L
+      while (drained < written) {
+        sink.clear()
+        drained += remote.read(sink)
+      }
+      signals.poll(5, TimeUnit.SECONDS) should not be null
+      drained shouldBe written
+    }
+  }
+
+  test("closing a socket deregisters it and ends the connection right away") {
+    withConnection { (client, remote) =>
+      TCPNotifier.arm(client, SelectionKey.OP_READ, () => ())
+      await(client.isRegistered) shouldBe true
+
+      TCPNotifier.close(client)
+      await(!client.isRegistered) shouldBe true
+      remote.socket.setSoTimeout(5000)
+      remote.socket.getInputStream.read() shouldBe -1
+    }
+  }
+
+  test("TCP sockets of a card echo through a loopback server") {
+    TestSetup.withSettings("""internet.filteringRules: ["allow all"]""") {
+      val server = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0))
+      try {
+        val port = server.socket.getLocalPort
+        val socket = new InternetCard.TCPSocket(new InternetCard, new URI(s"oc://127.0.0.1:$port"), port)
+        await(socket.finishConnect(context, new Arguments(Seq.empty))(0) == java.lang.Boolean.TRUE) shouldBe true
+        val remote = server.accept()
+
+        socket.write(context, new Arguments(Seq("hello".getBytes)))(0) shouldBe 5
+        val received = ByteBuffer.allocate(5)
+        while (received.hasRemaining) remote.read(received)
+        remote.write(received.flip())
+
+        var echoed = Array.emptyByteArray
+        await({
+          echoed ++= socket.read(context, new Arguments(Seq.empty))(0).asInstanceOf[Array[Byte]]
+          echoed.length == 5
+        }) shouldBe true
+        new String(echoed) shouldBe "hello"
+
+        socket.close()
+        remote.socket.setSoTimeout(5000)
+        remote.socket.getInputStream.read() shouldBe -1
+        remote.close()
+      }
+      finally server.close()
+    }
+  }
+}
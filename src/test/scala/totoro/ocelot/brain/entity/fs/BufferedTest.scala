@@ -0,0 +1,58 @@
+package totoro.ocelot.brain.entity.fs
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+
+import java.nio.charset.StandardCharsets
+import java.nio.file.{Files, Path}
+
+class BufferedTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def fileSystem(directory: Path): Buffered =
+    FileSystemAPI.fromDirectory(directory.toFile, 1024 * 1024, buffered = true).asInstanceOf[Buffered]
+
+  private def write(fs: Buffered, handle: Int, text: String): Unit =
+    fs.getHandle(handle).write(text.getBytes(StandardCharsets.UTF_8))
+
+  // saving waits for the writes of the previous save to complete
+  private def saveAndWait(fs: Buffered): Unit = {
+    fs.saveFiles()
+    fs.saveFiles()
+  }
+
+  private def hostText(directory: Path, name: String): String =
+    new String(Files.readAllBytes(directory.resolve(name)), StandardCharsets.UTF_8)
+
+  test("writes to a file are saved") {
+    withTempDirectory { directory =>
+      val fs = fileSystem(directory)
+      val handle = fs.open("file", Mode.Write)
+      write(fs, handle, "hello")
+      fs.getHandle(handle).close()
+      saveAndWait(fs)
+      hostText(directory, "file") shouldBe "hello"
+    }
+  }
+
+  test("writes through a handle that stays open over a save are saved by the next one") {
+    withTempDirectory { directory =>
+      val fs = fileSystem(directory)
+      val handle = fs.open("file", Mode.Write)
+      write(fs, handle, "first")
+      saveAndWait(fs)
+      hostText(directory, "file") shouldBe "first"
+
+      write(fs, handle, " second")
+      saveAndWait(fs)
+      hostText(directory, "file") shouldBe "first second"
+
+      write(fs, handle, " third")
+      fs.getHandle(handle).close()
+      saveAndWait(fs)
+      hostText(directory, "file") shouldBe "first second third"
+    }
+  }
+}
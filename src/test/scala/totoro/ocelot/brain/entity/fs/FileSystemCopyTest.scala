@@ -0,0 +1,90 @@
+package totoro.ocelot.brain.entity.fs
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.{Settings, TestSetup}
+
+import java.io.IOException
+
+class FileSystemCopyTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val data = Array.tabulate[Byte](200 * 1024 + 17)(i => (i * 31).toByte)
+
+  private def writeFile(fs: FileSystemTrait, path: String, bytes: Array[Byte]): Unit = {
+    val handle = fs.open(path, Mode.Write)
+    fs.getHandle(handle).write(bytes)
+    fs.getHandle(handle).close()
+  }
+
+  private def readFile(fs: FileSystemTrait, path: String): Array[Byte] = {
+    val handle = fs.open(path, Mode.Read)
+    val result = new Array[Byte](fs.size(path).toInt)
+    var filled = 0
+    var read = 0
+    while (read >= 0 && filled < result.length) {
+      read = fs.getHandle(handle).read(result, filled, result.length - filled)
+      if (read > 0) filled += read
+    }
+    fs.getHandle(handle).close()
+    result
+  }
+
+  test("a file is copied completely without a limit") {
+    val source = FileSystemAPI.fromMemory(1024 * 1024)
+    val target = FileSystemAPI.fromMemory(1024 * 1024)
+    writeFile(source, "file", data)
+    source.copy("file", target, "copy") shouldBe data.length
+    readFile(target, "copy") shouldBe data
+  }
+
+  test("a file is copied in limited steps when continuing at the offset") {
+    val fs = FileSystemAPI.fromMemory(1024 * 1024)
+    writeFile(fs, "file", data)
+    writeFile(fs, "copy", Array.fill[Byte](10)(1))
+
+    val limit = 64 * 1024 + 5
+    var offset = 0L
+    var steps = 0
+    var copied = -1L
+    while (copied != 0) {
+      copied = fs.copy("file", fs, "copy", offset, limit)
+      copied should be <= limit.toLong
+      offset += copied
+      steps += 1
+    }
+    offset shouldBe data.length
+    steps shouldBe 5
+    readFile(fs, "copy") shouldBe data
+  }
+
+  test("a whole file copied between memory file systems is charged and kept apart from the original") {
+    val source = FileSystemAPI.fromMemory(1024 * 1024)
+    val target = FileSystemAPI.fromMemory(1024 * 1024)
+    writeFile(source, "file", data)
+    val used = target.spaceUsed
+
+    source.copy("file", target, "copy", 0, data.length) shouldBe data.length
+    target.spaceUsed shouldBe used + Settings.get.fileCost + data.length
+    readFile(target, "copy") shouldBe data
+
+    val handle = source.open("file", Mode.Append)
+    source.getHandle(handle).write(Array.fill[Byte](10)(1))
+    source.getHandle(handle).close()
+    writeFile(target, "copy", Array.fill[Byte](5)(2))
+    readFile(source, "file") shouldBe data ++ Array.fill[Byte](10)(1)
+    readFile(target, "copy") shouldBe Array.fill[Byte](5)(2)
+
+    source.copy("file", source, "again") shouldBe data.length + 10
+    readFile(source, "again") shouldBe data ++ Array.fill[Byte](10)(1)
+  }
+
+  test("a whole file copy fails if the target has not enough space") {
+    val source = FileSystemAPI.fromMemory(1024 * 1024)
+    val target = FileSystemAPI.fromMemory(data.length / 2)
+    writeFile(source, "file", data)
+    an[IOException] should be thrownBy source.copy("file", target, "copy")
+    target.spaceUsed should be <= target.spaceTotal
+    target.size("copy") shouldBe 0
+  }
+}
@@ -0,0 +1,157 @@
+package totoro.ocelot.brain.entity.fs
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+
+import java.io.FileOutputStream
+import java.nio.charset.StandardCharsets
+import java.nio.file.Path
+import java.util.zip.{ZipEntry, ZipOutputStream}
+import scala.util.Using
+
+class ZipFileInputStreamFileSystemTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val time = 1700000000000L
+
+  // writes a ZIP file with the given entries, directories end with a slash and have no contents
+  private def writeZip(path: Path, entries: (String, String)*): Path = {
+    Using.resource(new ZipOutputStream(new FileOutputStream(path.toFile))) { zip =>
+      for ((name, contents) <- entries) {
+        val entry = new ZipEntry(name)
+        entry.setTime(time)
+        zip.putNextEntry(entry)
+        if (!name.endsWith("/")) zip.write(contents.getBytes(StandardCharsets.UTF_8))
+        zip.closeEntry()
+      }
+    }
+    path
+  }
+
+  private def read(fs: FileSystemTrait, path: String): String = {
+    val handle = fs.open(path, Mode.Read)
+    try {
+      val buffer = new Array[Byte](fs.size(path).toInt)
+      var filled = 0
+      var count = 0
+      while (count >= 0 && filled < buffer.length) {
+        count = fs.getHandle(handle).read(buffer, filled, buffer.length - filled)
+        if (count > 0) filled += count
+      }
+      new String(buffer, 0, filled, StandardCharsets.UTF_8)
+    }
+    finally fs.getHandle(handle).close()
+  }
+
+  private val layout = Seq(
+    "other/" -> "",
+    "other/file" -> "not part of the file system",
+    "root/" -> "",
+    "root/init.lua" -> "print('hello')",
+    "root/bin/" -> "",
+    "root/bin/ls.lua" -> "-- ls",
+    "root/bin/cat.lua" -> "-- cat, a bit longer",
+    "root/lib/" -> "",
+    "root/lib/empty/" -> "",
+  )
+
+  test("directories are listed with a trailing slash and files without") {
+    withTempDirectory { directory =>
+      val fs = ZipFileInputStreamFileSystem.fromFile(writeZip(directory.resolve("a.zip"), layout: _*).toFile, "root")
+      fs.list("").toSet shouldBe Set("init.lua", "bin/", "lib/")
+      fs.list("/bin/").toSet shouldBe Set("ls.lua", "cat.lua")
+      fs.list("lib").toSet shouldBe Set("empty/")
+      fs.list("lib/empty") shouldBe empty
+      fs.list("init.lua") shouldBe null
+      fs.list("missing") shouldBe null
+
+      fs.exists("bin") shouldBe true
+      fs.exists("bin/") shouldBe true
+      fs.isDirectory("bin/") shouldBe true
+      fs.isDirectory("bin/ls.lua") shouldBe false
+      fs.exists("file") shouldBe false
+      fs.exists("../other/file") shouldBe false
+    }
+  }
+
+  test("sizes and contents of files are those in the archive") {
+    withTempDirectory { directory =>
+      val fs = ZipFileInputStreamFileSystem.fromFile(writeZip(directory.resolve("a.zip"), layout: _*).toFile, "/root/")
+      fs.size("init.lua") shouldBe "print('hello')".length
+      fs.size("bin/cat.lua") shouldBe "-- cat, a bit longer".length
+      fs.size("bin") shouldBe 0
+      fs.size("missing") shouldBe 0
+      fs.spaceUsed shouldBe "print('hello')".length + "-- ls".length + "-- cat, a bit longer".length
+      fs.spaceTotal shouldBe fs.spaceUsed
+      fs.lastModified("bin/ls.lua") shouldBe time +- 2000
+
+      read(fs, "init.lua") shouldBe "print('hello')"
+      read(fs, "/bin/cat.lua") shouldBe "-- cat, a bit longer"
+      // a second read is served from the cache
+      read(fs, "/bin/cat.lua") shouldBe "-- cat, a bit longer"
+    }
+  }
+
+  test("directories without entries of their own are implied by their contents") {
+    withTempDirectory { directory =>
+      val zip = writeZip(directory.resolve("a.zip"),
+        "root/init.lua" -> "init",
+        "root/lib/core/boot.lua" -> "boot",
+        "root/lib/package.lua" -> "package",
+      ).toFile
+      val fs = ZipFileInputStreamFileSystem.fromFile(zip, "root")
+      fs should not be null
+      fs.list("").toSet shouldBe Set("init.lua", "lib/")
+      fs.list("lib").toSet shouldBe Set("core/", "package.lua")
+      fs.list("lib/core").toSet shouldBe Set("boot.lua")
+      fs.isDirectory("lib/core") shouldBe true
+      fs.lastModified("lib") shouldBe 0
+      read(fs, "lib/core/boot.lua") shouldBe "boot"
+
+      ZipFileInputStreamFileSystem.fromFile(zip, "root/lib").list("").toSet shouldBe Set("core/", "package.lua")
+    }
+  }
+
+  test("roots that do not exist in the archive are rejected") {
+    withTempDirectory { directory =>
+      val zip = writeZip(directory.resolve("a.zip"), layout: _*).toFile
+      ZipFileInputStreamFileSystem.fromFile(zip, "missing") shouldBe null
+      ZipFileInputStreamFileSystem.fromFile(zip, "roo") shouldBe null
+      ZipFileInputStreamFileSystem.fromFile(directory.resolve("missing.zip").toFile, "root") shouldBe null
+    }
+  }
+
+  test("file systems of the same archive share the index until it is no longer used") {
+    withTempDirectory { directory =>
+      val path = directory.resolve("a.zip")
+      writeZip(path, layout: _*)
+      var fs = ZipFileInputStreamFileSystem.fromFile(path.toFile, "root")
+      fs.exists("init.lua") shouldBe true
+
+      writeZip(path, "root/replaced.lua" -> "new")
+      ZipFileInputStreamFileSystem.fromFile(path.toFile, "root").exists("init.lua") shouldBe true
+
+      fs = null
+      val evicted = (0 until 50).exists { _ =>
+        System.gc()
+        Thread.sleep(10)
+        ZipFileInputStreamFileSystem.fromFile(path.toFile, "root").exists("replaced.lua")
+      }
+      evicted shouldBe true
+    }
+  }
+
+  test("files larger than the content cache are still read") {
+    withTempDirectory { directory =>
+      val large = "x" * (ZipFileInputStreamFileSystem.MaxCachedBytes.toInt + 1000)
+      val zip = writeZip(directory.resolve("a.zip"), "root/large" -> large, "root/small" -> "small").toFile
+      val fs = ZipFileInputStreamFileSystem.fromFile(zip, "root")
+      fs.size("large") shouldBe large.length
+      read(fs, "large") shouldBe large
+      read(fs, "large") shouldBe large
+      read(fs, "small") shouldBe "small"
+    }
+  }
+}
@@ -0,0 +1,191 @@
+package totoro.ocelot.brain.entity.sound_card
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.entity.sound_card.Instruction._
+import totoro.ocelot.brain.event.{EventBus, SoundCardAudioEvent}
+import totoro.ocelot.brain.{Settings, TestSetup}
+
+import scala.collection.mutable
+
+/**
+  * Compares the output of the sound board with the one of the engine that generated each sample
+  * of each channel separately, before channels were rendered in blocks.
+  */
+class SoundBoardTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private case class Output(data: Seq[Byte], cleanData: Seq[Seq[Float]])
+
+  // the former SoundBoard.sendSound, generating one sample of all channels after another
+  private def generateReference(process: AudioProcess, instructions: Array[Instruction]): Output = {
+    val sampleRate = Settings.get.soundCardSampleRate
+    val data = new mutable.ArrayBuffer[Byte]
+    val cleanData = Array.fill(process.channels.length) {
+      new mutable.ArrayBuffer[Float]
+    }
+
+    var i = 0
+    while (i < instructions.length || process.delay > 0) {
+      if (process.delay > 0) {
+        val sampleCount = process.delay * sampleRate / 1000
+        for (_ <- 0 until sampleCount) {
+          var sample = 0f
+          for ((channel, i) <- process.channels.zipWithIndex) {
+            val x = channel.generate(process)
+            sample += x
+            cleanData(i) += x
+          }
+
+          val value = sample.min(1).max(-1) * 127 + process.error
+          process.error = value - value.floor
+
+          data += (value.floor.toByte ^ 0x80).toByte
+        }
+        process.delay = 0
+      } else {
+        val inst = instructions(i)
+        i += 1
+        if (inst.isValid) inst.execute(process)
+      }
+    }
+
+    Output(data.toSeq, cleanData.map(_.toSeq).toSeq)
+  }
+
+  private def render(board: SoundBoard, instructions: Array[Instruction]): Output = {
+    var output: Option[Output] = None
+    val address = "sound-board-test"
+    val subscription = EventBus.subscribe {
+      case event: SoundCardAudioEvent if event.address == address =>
+        val data = new Array[Byte](event.data.remaining())
+        event.data.get(data)
+        output = Some(Output(data.toSeq, event.cleanData.map(_.toSeq).toSeq))
+    }
+    try {
+      instructions.foreach(board.tryAdd)
+      board.startProcess()
+      board.update(address)
+    } finally subscription.cancel()
+    output.getOrElse(Output(Seq.empty, Seq.empty))
+  }
+
+  /**
+    * Plays the bursts of instructions on both engines, one after another, so that state carried
+    * over between bursts is compared as well. Instructions are created separately for each engine,
+    * as some of them (like LFSR generators) hold state.
+    */
+  private def assertSameOutput(bursts: (() => Seq[Instruction])*): Unit = {
+    val board = new SoundBoard
+    val process = new AudioProcess
+    for (burst <- bursts) {
+      val expected = generateReference(process, burst().toArray)
+      val actual = render(board, burst().toArray)
+      expected.data should not be empty
+      actual.data shouldBe expected.data
+      actual.cleanData shouldBe expected.cleanData
+    }
+  }
+
+  test("frequency modulation") {
+    assertSameOutput(() => Seq(
+      new SetGenerator(0, SignalGenerator.Sine),
+      new SetFrequency(0, 440),
+      new SetGenerator(1, SignalGenerator.Sine),
+      new SetFrequency(1, 5),
+      new SetFM(0, new FrequencyModulator(1, 100)),
+      new Open(0),
+      new Open(1),
+      new Delay(100),
+      new SetFrequency(1, 17),
+      new Delay(57),
+    ))
+  }
+
+  test("amplitude modulation") {
+    assertSameOutput(() => Seq(
+      new SetGenerator(0, SignalGenerator.Square),
+      new SetFrequency(0, 220),
+      new SetGenerator(1, SignalGenerator.Triangle),
+      new SetFrequency(1, 3),
+      new SetAM(0, new AmplitudeModulator(1)),
+      new Open(0),
+      new Open(1),
+      new SetGenerator(2, SignalGenerator.Sawtooth),
+      new SetFrequency(2, 330),
+      new SetVolume(2, 0.5f),
+      new Open(2),
+      new Delay(120),
+    ))
+  }
+
+  test("a modulator shared by several carriers") {
+    assertSameOutput(() => Seq(
+      new SetGenerator(0, SignalGenerator.Sine),
+      new SetFrequency(0, 440),
+      new SetGenerator(1, SignalGenerator.Sawtooth),
+      new SetFrequency(1, 7),
+      new SetGenerator(2, SignalGenerator.Triangle),
+      new SetFrequency(2, 660),
+      new SetGenerator(3, SignalGenerator.Square),
+      new SetFrequency(3, 110),
+      new SetFM(0, new FrequencyModulator(1, 50)),
+      new SetFM(2, new FrequencyModulator(1, 80)),
+      new SetAM(3, new AmplitudeModulator(1)),
+      new Open(0),
+      new Open(1),
+      new Open(2),
+      new Open(3),
+      new Delay(150),
+    ))
+  }
+
+  test("an envelope closing in the middle of a block") {
+    assertSameOutput(
+      () => Seq(
+        new SetGenerator(0, SignalGenerator.Sawtooth),
+        new SetFrequency(0, 300),
+        new SetEnvelope(0, 5, 5, 0.5f, 7),
+        new SetGenerator(1, new SignalGenerator.LFSR(0x1234, 0x8016)),
+        new SetFrequency(1, 2000),
+        new SetVolume(1, 0.25f),
+        new Open(0),
+        new Open(1),
+        new Delay(30),
+        new Close(0),
+        new Delay(40),
+      ),
+      // the envelope is triggered again, and released while the next burst starts
+      () => Seq(
+        new Open(0),
+        new Delay(11),
+        new Close(0),
+        new Delay(3),
+      ),
+      () => Seq(
+        new Delay(25),
+      ),
+    )
+  }
+
+  test("a modulator that was reset by another carrier (Computronics bug)") {
+    assertSameOutput(() => Seq(
+      new SetGenerator(0, SignalGenerator.Sine),
+      new SetFrequency(0, 440),
+      new SetGenerator(1, SignalGenerator.Sine),
+      new SetFrequency(1, 9),
+      new SetGenerator(2, SignalGenerator.Square),
+      new SetFrequency(2, 220),
+      new SetFM(0, new FrequencyModulator(1, 60)),
+      new SetFM(2, new FrequencyModulator(1, 40)),
+      new Open(0),
+      new Open(1),
+      new Open(2),
+      new Delay(50),
+      // channel 1 is no longer marked as a modulator, but still modulates channel 2,
+      // so it is advanced both as a channel of its own and by its carrier
+      new ResetFM(0),
+      new Delay(80),
+    ))
+  }
+}
@@ -0,0 +1,230 @@
+package totoro.ocelot.brain.entity.tape
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.entity.tape.DfpwmTest.ReferenceDfpwm
+
+import java.nio.ByteBuffer
+import scala.util.Random
+
+class DfpwmTest extends AnyFunSuite with Matchers {
+  private def randomBytes(random: Random, length: Int): Array[Byte] = {
+    val data = new Array[Byte](length)
+    random.nextBytes(data)
+    data
+  }
+
+  // signed 8-bit samples of two mixed sine waves
+  private def signal(length: Int): Array[Byte] =
+    Array.tabulate(length)(i => (math.sin(i * 0.05) * 70 + math.sin(i * 0.013) * 40).round.toByte)
+
+  private def referenceDecompress(data: Array[Byte]): Array[Byte] = {
+    val result = ByteBuffer.allocate(data.length * 8)
+    new ReferenceDfpwm().decompress(result, ByteBuffer.wrap(data))
+    result.array()
+  }
+
+  // the ways a buffer for the codec may be backed
+  private val bufferKinds: Seq[(String, Int => ByteBuffer)] = Seq(
+    "heap" -> (size => ByteBuffer.allocate(size)),
+    "direct" -> (size => ByteBuffer.allocateDirect(size)),
+    "positioned" -> (size => ByteBuffer.wrap(new Array[Byte](size + 8), 5, size)),
+    "offset" -> (size => ByteBuffer.wrap(new Array[Byte](size + 8), 5, size).slice()),
+  )
+
+  private def bufferOf(kind: Int => ByteBuffer, data: Array[Byte]): ByteBuffer = {
+    val buffer = kind(data.length)
+    val start = buffer.position()
+    buffer.put(data)
+    buffer.position(start)
+    buffer
+  }
+
+  // runs `f` on the buffer and returns what it wrote
+  private def written(buffer: ByteBuffer)(f: ByteBuffer => Unit): Array[Byte] = {
+    val start = buffer.position()
+    f(buffer)
+    buffer.hasRemaining shouldBe false
+    buffer.position(start)
+    contents(buffer)
+  }
+
+  private def contents(buffer: ByteBuffer): Array[Byte] = {
+    val data = new Array[Byte](buffer.remaining())
+    buffer.get(data)
+    data
+  }
+
+  test("array decompression matches the per-byte decoder, over arbitrary chunks") {
+    val random = new Random(1)
+    for (_ <- 0 until 20) {
+      val data = randomBytes(random, random.nextInt(5000) + 1)
+      val expected = referenceDecompress(data)
+
+      val codec = new Dfpwm
+      val actual = new Array[Byte](data.length * 8)
+      var done = 0
+      while (done < data.length) {
+        val chunk = math.min(data.length - done, random.nextInt(300) + 1)
+        codec.decompress(data, done, actual, done * 8, chunk)
+        done += chunk
+      }
+      actual shouldBe expected
+      Dfpwm.decompress(data) shouldBe expected
+    }
+  }
+
+  for ((srcName, srcKind) <- bufferKinds; (dstName, dstKind) <- bufferKinds) {
+    test(s"buffer decompression from $srcName into $dstName buffers matches the per-byte decoder") {
+      val random = new Random(srcName.hashCode * 31 + dstName.hashCode)
+      val data = randomBytes(random, 3000)
+      val expected = referenceDecompress(data)
+
+      val codec = new Dfpwm
+      val out = new Array[Byte](expected.length)
+      var done = 0
+      while (done < data.length) {
+        val chunk = math.min(data.length - done, random.nextInt(1500) + 1)
+        val src = bufferOf(srcKind, data.slice(done, done + chunk))
+        val decoded = written(dstKind(chunk * 8))(codec.decompress(_, src))
+        src.hasRemaining shouldBe false
+        System.arraycopy(decoded, 0, out, done * 8, chunk * 8)
+        done += chunk
+      }
+      out shouldBe expected
+    }
+  }
+
+  test("encoded audio decodes the same with the per-byte decoder and resembles the input") {
+    val samples = signal(64000)
+    val encoded = Dfpwm.compress(samples)
+    encoded.length shouldBe samples.length / 8
+
+    val decoded = Dfpwm.decompress(encoded)
+    decoded shouldBe referenceDecompress(encoded)
+
+    // the decoder lags behind a little, due to its low-pass filter
+    val error = samples.indices.drop(1000).map(i => math.abs(samples(i) - decoded(i))).sum.toDouble / (samples.length - 1000)
+    error should be < 12.0
+  }
+
+  test("encoding over arbitrary chunks is the same as encoding at once") {
+    val random = new Random(2)
+    val samples = signal(8 * 4000)
+    val expected = Dfpwm.compress(samples)
+
+    val codec = new Dfpwm
+    val actual = new Array[Byte](expected.length)
+    var done = 0
+    while (done < actual.length) {
+      val chunk = math.min(actual.length - done, random.nextInt(200) + 1)
+      codec.compress(samples, done * 8, actual, done, chunk)
+      done += chunk
+    }
+    actual shouldBe expected
+  }
+
+  for ((srcName, srcKind) <- bufferKinds; (dstName, dstKind) <- bufferKinds) {
+    test(s"buffer compression from $srcName into $dstName buffers matches array compression") {
+      val samples = signal(8 * 2500)
+      val expected = Dfpwm.compress(samples)
+
+      val src = bufferOf(srcKind, samples)
+      written(dstKind(expected.length))(new Dfpwm().compress(_, src)) shouldBe expected
+      src.hasRemaining shouldBe false
+    }
+  }
+
+  test("the decoder of a drive decodes packets as one stream, like decoding them one by one did") {
+    val random = new Random(3)
+    val packets = Seq(4000, 100, 2500, 0, 4000, 1).map(length => AudioPacketDfpwm(127, 32768, randomBytes(random, length)))
+
+    // the former AudioPacketDfpwm.decode, into unsigned samples
+    val reference = new ReferenceDfpwm
+    val expected = packets.map(packet => {
+      val audio = ByteBuffer.allocate(packet.data.length * 8)
+      reference.decompress(audio, ByteBuffer.wrap(packet.data))
+      audio.array().mapInPlace(b => ((b & 0xff) ^ 0x80).toByte)
+    })
+
+    val decoder = new DfpwmDecoder
+    for ((packet, samples) <- packets.zip(expected)) {
+      contents(decoder.decode(packet)) shouldBe samples
+    }
+
+    val into = new Array[Byte](expected.map(_.length).sum + 7)
+    val arrayDecoder = new DfpwmDecoder
+    var offset = 7
+    for (packet <- packets) offset += arrayDecoder.decode(packet, into, offset)
+    into.drop(7) shouldBe expected.flatten.toArray
+  }
+}
+
+object DfpwmTest {
+
+  /**
+    * The decoder as it was before array based decoding and the encoder were added.
+    */
+  private class ReferenceDfpwm {
+    private val RESP_PREC = 10
+    private val LPF_STRENGTH = 140
+
+    private var response = 0
+    private var level = 0
+    private var lastBit = false
+
+    private var lastLevel = 0
+    private var lpfLevel = 0
+
+    private def update(curBit: Boolean): Unit = {
+      val target = if (curBit) 127 else -128
+      var nextLevel = level + ((response * (target - level) + (1 << RESP_PREC - 1)) >> RESP_PREC)
+
+      if (nextLevel == level && level != target) {
+        nextLevel += (if (curBit) 1 else -1)
+      }
+
+      val responseTarget =
+        if (curBit == lastBit) (1 << RESP_PREC) - 1
+        else 0
+
+      var nextResponse = response
+
+      if (response != responseTarget) {
+        nextResponse += (if (curBit == lastBit) 1 else -1)
+      }
+
+      if (RESP_PREC > 8) {
+        nextResponse = nextResponse max 2 << RESP_PREC - 8
+      }
+
+      response = nextResponse
+      lastBit = curBit
+      level = nextLevel
+    }
+
+    def decompress(dst: ByteBuffer, src: ByteBuffer): Unit = {
+      for (_ <- 0 until src.remaining()) {
+        var byte = src.get()
+
+        for (_ <- 0 until 8) {
+          val curBit = (byte & 1) != 0
+          val lastBit = this.lastBit
+          update(curBit)
+          byte = (byte >> 1).toByte
+
+          // noise shaping (averages out bit changes)
+          val bitLevel =
+            if (curBit == lastBit) level
+            else lastLevel + level + 1 >> 1
+          lastLevel = level
+
+          // low-pass filtering
+          lpfLevel += LPF_STRENGTH * (bitLevel - lpfLevel) + 0x80 >> 8
+
+          dst.put(lpfLevel.toByte)
+        }
+      }
+    }
+  }
+}
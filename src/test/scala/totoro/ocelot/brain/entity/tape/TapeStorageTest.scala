@@ -0,0 +1,152 @@
+package totoro.ocelot.brain.entity.tape
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+import totoro.ocelot.brain.nbt.CompressionCodec
+
+import java.io.{File, FileOutputStream}
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import scala.util.Using
+
+class TapeStorageTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val Size = 3 * TapeStorage.BlockSize + 1234
+
+  // an image in the format used before tapes were stored in blocks
+  private def writeLegacyImage(file: File, position: Int, data: Array[Byte]): Unit = {
+    Using.resource(CompressionCodec.getDefault.compress(new FileOutputStream(file))) { stream =>
+      stream.write(1)
+      stream.write(position & 0xff)
+      stream.write(position >>> 8 & 0xff)
+      stream.write(position >>> 16 & 0xff)
+      stream.write(position >>> 24 & 0xff)
+      stream.write(data)
+    }
+  }
+
+  private def legacyData: Array[Byte] = {
+    val data = new Array[Byte](Size)
+    for (i <- data.indices by 7) data(i) = (i / 7).toByte
+    data
+  }
+
+  private def contents(tape: TapeStorage): Array[Byte] = {
+    tape.setPosition(0)
+    val data = new Array[Byte](Size)
+    tape.read(data, simulate = true)
+    data
+  }
+
+  private def isBlocked(file: File): Boolean =
+    new String(Files.readAllBytes(file.toPath).take(3), StandardCharsets.US_ASCII) == "OCT"
+
+  test("an image in the older format is only converted once the tape is saved after a change") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("tape.dsk").toFile
+      writeLegacyImage(file, 42, legacyData)
+      val original = Files.readAllBytes(file.toPath)
+
+      val tape = new TapeStorage("tape", file, Size, 0)
+      tape.position shouldBe 42
+      contents(tape).dropRight(1) shouldBe legacyData.dropRight(1)
+      tape.save()
+      Files.readAllBytes(file.toPath) shouldBe original
+
+      tape.setPosition(TapeStorage.BlockSize + 5)
+      tape.write("changed".getBytes(StandardCharsets.US_ASCII))
+      tape.save()
+      isBlocked(file) shouldBe true
+
+      val expected = legacyData
+      System.arraycopy("changed".getBytes(StandardCharsets.US_ASCII), 0, expected, TapeStorage.BlockSize + 5, 7)
+      val reopened = new TapeStorage("tape", file, Size, 0)
+      reopened.position shouldBe TapeStorage.BlockSize + 12
+      contents(reopened).dropRight(1) shouldBe expected.dropRight(1)
+    }
+  }
+
+  test("changes appended to an image survive reopening it") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("tape.dsk").toFile
+      val tape = new TapeStorage("tape", file, Size, 0)
+      tape.write("first".getBytes(StandardCharsets.US_ASCII))
+      tape.save()
+      tape.setPosition(2 * TapeStorage.BlockSize)
+      tape.write("second".getBytes(StandardCharsets.US_ASCII))
+      tape.save()
+
+      val reopened = new TapeStorage("tape", file, Size, 0)
+      val data = contents(reopened)
+      new String(data, 0, 5, StandardCharsets.US_ASCII) shouldBe "first"
+      new String(data, 2 * TapeStorage.BlockSize, 6, StandardCharsets.US_ASCII) shouldBe "second"
+    }
+  }
+
+  private def text(tape: TapeStorage, offset: Int, length: Int): String =
+    new String(contents(tape), offset, length, StandardCharsets.US_ASCII)
+
+  // saves "first" and then "second" at the start of a new tape, and returns the image
+  private def writeTwice(file: File): Array[Byte] = {
+    val tape = new TapeStorage("tape", file, Size, 0)
+    tape.write("first".getBytes(StandardCharsets.US_ASCII))
+    tape.save()
+    tape.setPosition(0)
+    tape.write("second".getBytes(StandardCharsets.US_ASCII))
+    tape.save()
+    Files.readAllBytes(file.toPath)
+  }
+
+  private def reopen(file: File, image: Array[Byte]): TapeStorage = {
+    Files.write(file.toPath, image)
+    new TapeStorage("tape", file, Size, 0)
+  }
+
+  test("a save interrupted while writing the header leaves the previous one readable") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("tape.dsk").toFile
+      val image = writeTwice(file)
+      val opened = (0 until TapeStorage.SlotCount).map { slot =>
+        val damaged = image.clone()
+        java.util.Arrays.fill(damaged, slot * TapeStorage.SlotSize + 8, (slot + 1) * TapeStorage.SlotSize, 0xff.toByte)
+        text(reopen(file, damaged), 0, 6)
+      }
+      opened.toSet shouldBe Set("second", "first\u0000")
+    }
+  }
+
+  test("data appended by an interrupted save is ignored and overwritten") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("tape.dsk").toFile
+      val image = writeTwice(file)
+
+      val tape = reopen(file, image ++ Array.fill[Byte](3000)(0x5a))
+      text(tape, 0, 6) shouldBe "second"
+      tape.setPosition(TapeStorage.BlockSize)
+      tape.write("third".getBytes(StandardCharsets.US_ASCII))
+      tape.save()
+
+      val reopened = new TapeStorage("tape", file, Size, 0)
+      text(reopened, 0, 6) shouldBe "second"
+      text(reopened, TapeStorage.BlockSize, 5) shouldBe "third"
+    }
+  }
+
+  test("a header whose index is incomplete falls back to the previous save") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("tape.dsk").toFile
+      val image = writeTwice(file)
+
+      // the newest index is at the end of the image
+      val tape = reopen(file, image.dropRight(1))
+      text(tape, 0, 5) shouldBe "first"
+      tape.setPosition(0)
+      tape.write("again".getBytes(StandardCharsets.US_ASCII))
+      tape.save()
+      text(new TapeStorage("tape", file, Size, 0), 0, 5) shouldBe "again"
+    }
+  }
+}
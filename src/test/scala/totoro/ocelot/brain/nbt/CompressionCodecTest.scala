@@ -0,0 +1,192 @@
+package totoro.ocelot.brain.nbt
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, IOException}
+import java.util.zip.{Deflater, GZIPOutputStream}
+import scala.util.{Random, Using}
+
+class CompressionCodecTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val codecs = Seq(
+    CompressionCodec.gzip(Deflater.DEFAULT_COMPRESSION),
+    CompressionCodec.deflate(Deflater.DEFAULT_COMPRESSION),
+    CompressionCodec.NONE,
+    CompressionCodec.LZ,
+  )
+
+  private val random = new Random(34)
+
+  private def incompressible(length: Int): Array[Byte] = {
+    val data = new Array[Byte](length)
+    random.nextBytes(data)
+    data
+  }
+
+  // a few short phrases repeated in random order, with matches at all kinds of offsets
+  private def text(length: Int): Array[Byte] = {
+    val words = Seq("local ", "component", ".invoke(", "return ", "end\n", "  ", "function ", "gpu", "(x, y)")
+    val builder = new StringBuilder
+    while (builder.length < length) builder.append(words(random.nextInt(words.length)))
+    builder.result().take(length).getBytes("UTF-8")
+  }
+
+  private val inputs: Seq[(String, Array[Byte])] = Seq(
+    "empty" -> Array.emptyByteArray,
+    "a single byte" -> Array[Byte](42),
+    "shorter than a match" -> Array[Byte](1, 2, 3),
+    "incompressible" -> incompressible(5000),
+    "a long run" -> Array.fill[Byte](100000)(7),
+    "a short repeating pattern" -> Array.tabulate[Byte](70000)(i => (i % 3).toByte),
+    "text" -> text(20000),
+    "exactly one block" -> text(BlockCodec.BLOCK_SIZE),
+    "more than 64 KiB of text" -> text(3 * BlockCodec.BLOCK_SIZE + 1234),
+    "more than 64 KiB of noise" -> incompressible(2 * BlockCodec.BLOCK_SIZE + 17),
+  )
+
+  private def compress(codec: CompressionCodec, data: Array[Byte]): Array[Byte] = {
+    val bytes = new ByteArrayOutputStream()
+    Using.resource(codec.compress(bytes))(_.write(data))
+    bytes.toByteArray
+  }
+
+  private def decompress(data: Array[Byte]): Array[Byte] =
+    Using.resource(CompressionCodec.decompress(new ByteArrayInputStream(data)))(_.readAllBytes())
+
+  for (codec <- codecs; (name, data) <- inputs) {
+    test(s"$codec round trips $name") {
+      decompress(compress(codec, data)) shouldBe data
+    }
+  }
+
+  test("data written byte by byte and read byte by byte round trips") {
+    val data = text(BlockCodec.BLOCK_SIZE + 100)
+    for (codec <- codecs) {
+      val bytes = new ByteArrayOutputStream()
+      Using.resource(codec.compress(bytes))(output => data.foreach(output.write(_)))
+      Using.resource(CompressionCodec.decompress(new ByteArrayInputStream(bytes.toByteArray))) { input =>
+        val result = Iterator.continually(input.read()).takeWhile(_ >= 0).map(_.toByte).toArray
+        result shouldBe data
+      }
+    }
+  }
+
+  test("LZ compresses runs and repeated text") {
+    compress(CompressionCodec.LZ, Array.fill[Byte](100000)(7)).length should be < 1000
+    val data = text(20000)
+    compress(CompressionCodec.LZ, data).length should be < data.length / 2
+  }
+
+  test("incompressible blocks are stored with a bounded overhead") {
+    val data = incompressible(2 * BlockCodec.BLOCK_SIZE + 17)
+    for (codec <- Seq(CompressionCodec.NONE, CompressionCodec.LZ)) {
+      // header, three block headers and the end marker
+      compress(codec, data).length shouldBe data.length + 4 + 3 * 12 + 4
+    }
+  }
+
+  test("plain gzip from older saves is still detected") {
+    val data = text(10000)
+    val bytes = new ByteArrayOutputStream()
+    Using.resource(new GZIPOutputStream(bytes))(_.write(data))
+    decompress(bytes.toByteArray) shouldBe data
+
+    val nbt = new NBTTagCompound
+    nbt.setString("name", "old save")
+    nbt.setByteArray("data", data)
+    val saved = new ByteArrayOutputStream()
+    Using.resource(new GZIPOutputStream(saved)) { output =>
+      CompressedStreamTools.write(nbt, new java.io.DataOutputStream(output))
+    }
+    val loaded = CompressedStreamTools.readCompressed(new ByteArrayInputStream(saved.toByteArray))
+    loaded.getString("name") shouldBe "old save"
+    loaded.getByteArray("data") shouldBe data
+  }
+
+  test("data written with any codec is read regardless of the default") {
+    val previous = CompressionCodec.getDefault
+    try {
+      val nbt = new NBTTagCompound
+      nbt.setString("name", "value")
+      for (codec <- codecs) {
+        CompressionCodec.setDefault(codec)
+        val bytes = CompressedStreamTools.write(nbt)
+        CompressionCodec.setDefault(CompressionCodec.byName("gzip", 1))
+        CompressedStreamTools.readCompressed(new ByteArrayInputStream(bytes)).getString("name") shouldBe "value"
+      }
+    } finally {
+      CompressionCodec.setDefault(previous)
+    }
+  }
+
+  test("unknown headers are rejected") {
+    an[IOException] should be thrownBy decompress(Array.emptyByteArray)
+    an[IOException] should be thrownBy decompress("OCZ".getBytes("UTF-8"))
+    an[IOException] should be thrownBy decompress(Array[Byte]('O', 'C', 'Z', 99, 0, 0, 0, 0))
+    an[IOException] should be thrownBy decompress("plain text".getBytes("UTF-8"))
+  }
+
+  test("truncated data raises an IOException") {
+    for (codec <- codecs) {
+      val compressed = compress(codec, text(BlockCodec.BLOCK_SIZE + 5000))
+      for (length <- 0 until compressed.length by 97) {
+        withClue(s"$codec cut at $length of ${compressed.length}: ") {
+          an[IOException] should be thrownBy decompress(compressed.take(length))
+        }
+      }
+      // the end marker, or the gzip trailer, is missing
+      an[IOException] should be thrownBy decompress(compressed.dropRight(1))
+    }
+  }
+
+  // a changed back reference may point at an identical copy of the data, which is harmless;
+  // anything that decodes differently must be caught
+  test("corrupted blocks raise an IOException") {
+    for (codec <- Seq(CompressionCodec.NONE, CompressionCodec.LZ); data <- Seq(text(30000), incompressible(3000))) {
+      val compressed = compress(codec, data)
+      // every byte of the first block header, then bytes spread over the block contents
+      for (position <- (4 until 16) ++ (16 until compressed.length - 4 by 13); flip <- Seq(0x01, 0x80, 0xFF)) {
+        val corrupted = compressed.clone()
+        corrupted(position) = (corrupted(position) ^ flip).toByte
+        withClue(s"$codec with byte $position changed: ") {
+          try decompress(corrupted) shouldBe data
+          catch {
+            case _: IOException =>
+          }
+        }
+      }
+    }
+  }
+
+  test("LZ rejects malformed blocks without reading out of bounds") {
+    val lz = CompressionCodec.LZ.asInstanceOf[LZCodec]
+    val target = new Array[Byte](1000)
+    val malformed = Seq(
+      Array[Byte](0x00, 0x00, 0x00), // a match at offset 0
+      Array[Byte](0x10, 1, 0x05, 0x00), // a match before the start of the block
+      Array[Byte](0xF0.toByte), // a literal length continued past the end
+      Array[Byte](0xF0.toByte, 0xFF.toByte, 0xFF.toByte), // a literal length continued past the end
+      Array[Byte](0x50, 1, 2), // fewer literals than announced
+      Array[Byte](0x10, 1, 0x01), // an offset cut in half
+      Array[Byte](0x1F, 1, 0x01, 0x00), // a match length continued past the end
+      Array[Byte](0x1F, 1, 0x01, 0x00, 0xFF.toByte, 0xFF.toByte, 0xFF.toByte, 0xFF.toByte, 0xFF.toByte), // too long
+      Array[Byte](0x10, 1), // too short
+    )
+    for (block <- malformed) {
+      withClue(s"block ${block.mkString(" ")}: ") {
+        an[IOException] should be thrownBy lz.decode(block, block.length, target, 100)
+      }
+    }
+
+    for (_ <- 0 until 20000) {
+      val block = incompressible(1 + random.nextInt(64))
+      try lz.decode(block, block.length, target, 1 + random.nextInt(target.length))
+      catch {
+        case _: IOException =>
+      }
+    }
+  }
+}
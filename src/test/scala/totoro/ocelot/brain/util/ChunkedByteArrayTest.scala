@@ -0,0 +1,116 @@
+package totoro.ocelot.brain.util
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.util.ChunkedByteArray.PageSize
+
+import scala.util.Random
+
+class ChunkedByteArrayTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def bytes(length: Int, seed: Int): Array[Byte] = Array.tabulate[Byte](length)(i => (i * 31 + seed).toByte)
+
+  private def contents(array: ChunkedByteArray): Array[Byte] = array.toArray
+
+  test("data written past the end leaves a gap of zeros") {
+    val array = new ChunkedByteArray()
+    array.write(0, bytes(10, 1), 0, 10)
+    val position = 3 * PageSize + 100
+    array.write(position, bytes(20, 2), 0, 20)
+
+    array.length shouldBe position + 20
+    val expected = new Array[Byte](position + 20)
+    System.arraycopy(bytes(10, 1), 0, expected, 0, 10)
+    System.arraycopy(bytes(20, 2), 0, expected, position, 20)
+    contents(array) shouldBe expected
+    array(PageSize + 5) shouldBe 0
+    array(position + 19) shouldBe bytes(20, 2)(19)
+  }
+
+  test("a partial last page grows as it is written to") {
+    val array = new ChunkedByteArray()
+    array.write(0, bytes(100, 3), 0, 100)
+    array.length shouldBe 100
+    array.write(100, bytes(1000, 4), 0, 1000)
+    array.write(PageSize - 10, bytes(30, 5), 0, 30)
+
+    val expected = new Array[Byte](PageSize + 20)
+    System.arraycopy(bytes(100, 3), 0, expected, 0, 100)
+    System.arraycopy(bytes(1000, 4), 0, expected, 100, 1000)
+    System.arraycopy(bytes(30, 5), 0, expected, PageSize - 10, 30)
+    contents(array) shouldBe expected
+  }
+
+  test("reads stop at the end") {
+    val array = ChunkedByteArray(bytes(PageSize + 7, 6))
+    val into = Array.fill[Byte](100)(-1)
+    array.read(PageSize, into, 10, 100) shouldBe 7
+    into.slice(10, 17) shouldBe bytes(PageSize + 7, 6).slice(PageSize, PageSize + 7)
+    into(17) shouldBe -1
+    array.read(PageSize + 7, into, 0, 100) shouldBe 0
+    array.read(PageSize + 1000, into, 0, 100) shouldBe 0
+    an[IndexOutOfBoundsException] should be thrownBy array(PageSize + 7)
+  }
+
+  test("bulk reads and writes across pages match a plain array") {
+    val random = new Random(37)
+    val size = 10 * PageSize + 123
+    val expected = new Array[Byte](size)
+    val array = new ChunkedByteArray()
+    var length = 0
+    for (_ <- 0 until 500) {
+      val position = random.nextInt(size - 1)
+      val count = random.nextInt(math.min(3 * PageSize, size - position))
+      val data = new Array[Byte](count)
+      random.nextBytes(data)
+      val offset = random.nextInt(10)
+      val from = new Array[Byte](count + offset)
+      System.arraycopy(data, 0, from, offset, count)
+      array.write(position, from, offset, count)
+      System.arraycopy(data, 0, expected, position, count)
+      length = math.max(length, position + count)
+      array.length shouldBe length
+
+      val readPosition = random.nextInt(length + 1)
+      val readCount = random.nextInt(3 * PageSize)
+      val into = new Array[Byte](readCount + 5)
+      val read = array.read(readPosition, into, 5, readCount)
+      read shouldBe math.min(readCount, length - readPosition)
+      into.slice(5, 5 + read) shouldBe expected.slice(readPosition, readPosition + read)
+    }
+    contents(array) shouldBe expected.take(length)
+  }
+
+  test("a copy and its original do not see each other's writes") {
+    val original = new ChunkedByteArray()
+    original.write(0, bytes(2 * PageSize + 50, 7), 0, 2 * PageSize + 50)
+    original.write(5 * PageSize, bytes(10, 8), 0, 10)
+    val before = contents(original)
+
+    val copy = original.copy()
+    contents(copy) shouldBe before
+
+    copy.write(10, bytes(20, 9), 0, 20)
+    copy.write(2 * PageSize + 40, bytes(100, 10), 0, 100) // grows the partial page
+    copy.write(4 * PageSize, bytes(5, 11), 0, 5) // fills the gap
+    contents(original) shouldBe before
+
+    original.write(PageSize - 3, bytes(6, 12), 0, 6)
+    val changed = before.clone()
+    System.arraycopy(bytes(6, 12), 0, changed, PageSize - 3, 6)
+    contents(original) shouldBe changed
+
+    val expectedCopy = before.clone()
+    System.arraycopy(bytes(20, 9), 0, expectedCopy, 10, 20)
+    System.arraycopy(bytes(100, 10), 0, expectedCopy, 2 * PageSize + 40, 100)
+    System.arraycopy(bytes(5, 11), 0, expectedCopy, 4 * PageSize, 5)
+    contents(copy) shouldBe expectedCopy
+
+    val second = copy.copy()
+    copy.clear()
+    copy.length shouldBe 0
+    contents(second) shouldBe expectedCopy
+  }
+}
@@ -0,0 +1,57 @@
+package totoro.ocelot.brain.util
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+
+import scala.collection.mutable
+import scala.util.Random
+
+class FontUtilsTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def assertSameWidths(doubleWide: mutable.BitSet, wcwidth: Int => Int): Unit = {
+    for (charCode <- 0 until FontUtils.codepoint_limit) {
+      val expected = if (doubleWide(charCode)) 2 else 1
+      if (wcwidth(charCode) != expected) fail(f"width of U+$charCode%04X is ${wcwidth(charCode)}, expected $expected")
+    }
+  }
+
+  test("the bitmap gives the same widths as looking up the set of double-wide code points") {
+    val doubleWide = FontUtils.doubleWideCodePoints()
+    FontUtils.init()
+    assertSameWidths(doubleWide, FontUtils.wcwidth)
+    FontUtils.wcwidth('A') shouldBe 1
+    FontUtils.wcwidth(0x4e00) shouldBe 2
+    FontUtils.wcwidth(0x20000) shouldBe 2
+  }
+
+  test("ranges across page and word boundaries, single code points and the last code point") {
+    val doubleWide = mutable.BitSet()
+    doubleWide ++= 0x3f to 0x41
+    doubleWide ++= 0xff to 0x100
+    doubleWide ++= 0x1000 until 0x3000
+    doubleWide ++= Seq(0x5555, 0xabcd, 0x10000, FontUtils.codepoint_limit - 1)
+    assertSameWidths(doubleWide, FontUtils.buildWidthTable(doubleWide).wcwidth)
+  }
+
+  test("random sets of code points") {
+    val random = new Random(1)
+    for (density <- Seq(0.0, 0.001, 0.5, 1.0)) {
+      val doubleWide = mutable.BitSet()
+      // dense in some pages only, so there are shared and distinct pages
+      for (page <- 0 until FontUtils.codepoint_limit >> 8 if random.nextInt(8) == 0; offset <- 0 until 256) {
+        if (random.nextDouble() < density) doubleWide += page * 256 + offset
+      }
+      assertSameWidths(doubleWide, FontUtils.buildWidthTable(doubleWide).wcwidth)
+    }
+  }
+
+  test("code points out of range are single-width") {
+    val table = FontUtils.buildWidthTable(mutable.BitSet(0, FontUtils.codepoint_limit - 1))
+    table.wcwidth(-1) shouldBe 1
+    table.wcwidth(Int.MinValue) shouldBe 1
+    table.wcwidth(FontUtils.codepoint_limit) shouldBe 1
+    table.wcwidth(Int.MaxValue) shouldBe 1
+  }
+}
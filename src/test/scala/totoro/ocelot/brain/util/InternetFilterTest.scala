@@ -0,0 +1,118 @@
+package totoro.ocelot.brain.util
+
+import com.google.common.net.InetAddresses
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+
+import java.net.InetAddress
+import scala.util.Random
+
+/**
+  * Compares the indexed filter with evaluating all rules one after another, as it was done before.
+  */
+class InternetFilterTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val addresses = Seq(
+    "0.0.0.0", "127.0.0.1", "127.255.0.1", "10.0.0.1", "10.1.127.255", "10.1.128.0", "10.1.255.1",
+    "100.64.0.1", "169.254.3.4", "172.16.5.4", "172.32.0.1", "192.168.1.5", "192.168.2.5",
+    "1.2.3.4", "8.8.8.8", "203.0.113.7", "224.0.0.1", "255.255.255.255",
+    "::", "::1", "fe80::1", "fd00::1", "fec0::2", "2001:db8::5", "2606:4700::1111", "ff02::1",
+    // IPv4 embedded in IPv6: compatible, 6to4 and Teredo addresses
+    "::1.2.3.4", "::10.0.0.1", "2002:102:304::1", "2002:a00:1::1", "2001:0:4136:e378:8000:63bf:3fff:fdd2",
+  ).map(InetAddresses.forString)
+
+  private val hosts = Seq("localhost", "example.com", "ocelot.test", "")
+
+  private val ruleSets: Seq[(String, Seq[String])] = Seq(
+    "the default configuration" -> Seq("removeme", "deny private", "deny bogon", "allow default"),
+    "allow default" -> Seq("allow default"),
+    "deny default" -> Seq("deny default", "allow all"),
+    "ranges" -> Seq(
+      "allow ip:10.1.128.0/17", "deny ip:10.0.0.0/8", "allow ip:127.0.0.0/8",
+      "deny ip:0.0.0.0/0", "allow all",
+    ),
+    "nested and overlapping ranges in both orders" -> Seq(
+      "deny ip:192.168.0.0/16", "allow ip:192.168.1.0/24", "allow ip:172.16.0.0/12",
+      "deny ip:172.16.0.0/16", "allow ip:fe80::/10", "deny ip:fd00::/8", "allow ip:fc00::/7",
+    ),
+    "single addresses" -> Seq(
+      "allow ip:127.0.0.1", "deny ip:10.0.0.1", "allow ip:::1", "deny ip:fe80::1", "deny ip:8.8.8.8",
+    ),
+    "domains" -> Seq("deny domain:localhost", "allow domain:127.0.0.1", "allow domain:example.com", "deny all"),
+    "private and bogon" -> Seq("allow private", "deny bogon", "allow ipv6", "deny ipv4"),
+    "mixed filters in one rule" -> Seq(
+      "allow ipv4 ip:10.0.0.0/8", "deny ipv6 ip:fe80::/10", "allow domain:localhost ip:127.0.0.0/8",
+      "deny ip:192.168.0.0/16 private", "allow bogon ipv6", "deny private default", "allow ipv4 default",
+    ),
+    "IPv4 embedded in IPv6" -> Seq(
+      "deny ipv4-embedded-ipv6 ip:::/96", "allow ipv4-embedded-ipv6", "allow ip:2002::/16",
+      "deny ip:2001::/32", "deny ipv6", "allow all",
+    ),
+    "invalid and ignored rules" -> Seq(
+      "removeme", "allow ip:not-an-address/8", "deny ip:10.0.0.1/40", "frobnicate all", "allow all",
+    ),
+    "no rules" -> Seq.empty,
+  )
+
+  // the former lookup in `Settings.internetFilteringRules`
+  private def linear(rules: Array[InternetFilteringRule], address: InetAddress, host: String): Option[Boolean] =
+    rules.map(r => r.apply(address, host)).collectFirst({ case Some(r) => r })
+
+  private def assertSameVerdicts(ruleStrings: Seq[String], addresses: Seq[InetAddress]): Unit = {
+    val rules = ruleStrings.map(new InternetFilteringRule(_)).toArray
+    val filter = new InternetFilter(rules)
+    for (address <- addresses; host <- hosts :+ address.getHostAddress) {
+      withClue(s"${address.getHostAddress} ($host): ") {
+        filter(address, host) shouldBe linear(rules, address, host)
+      }
+    }
+  }
+
+  for ((name, ruleStrings) <- ruleSets) {
+    test(s"$name: the filter matches evaluating all rules in order") {
+      assertSameVerdicts(ruleStrings, addresses)
+    }
+  }
+
+  test("random ranges: the filter matches evaluating all rules in order") {
+    val random = new Random(1)
+
+    def randomAddress(length: Int): InetAddress = {
+      val bytes = new Array[Byte](length)
+      random.nextBytes(bytes)
+      // mostly private ones, as `ip:` filters only match those
+      if (length == 4) bytes(0) = Seq(10, 127, 192, 172, 8)(random.nextInt(5)).toByte
+      else if (random.nextBoolean()) bytes(0) = 0xfd.toByte
+      InetAddress.getByAddress(bytes)
+    }
+
+    // the address with one bit flipped, if there is that bit
+    def flipped(address: InetAddress, bit: Int): Seq[InetAddress] = {
+      val bytes = address.getAddress
+      if (bit < 0 || bit >= bytes.length * 8) Seq.empty
+      else {
+        bytes(bit >> 3) = (bytes(bit >> 3) ^ (0x80 >> (bit & 7))).toByte
+        Seq(InetAddress.getByAddress(bytes))
+      }
+    }
+
+    for (_ <- 0 until 20) {
+      val ranges = Seq.fill(15) {
+        val address = randomAddress(if (random.nextBoolean()) 4 else 16)
+        (address, random.nextInt(address.getAddress.length * 8 + 1))
+      }
+      val rules = ranges.map { case (address, prefix) =>
+        val verdict = if (random.nextBoolean()) "allow" else "deny"
+        s"$verdict ip:${address.getHostAddress}/$prefix"
+      }
+      // addresses just inside and just outside of the ranges, and random ones
+      val boundaries = ranges.flatMap { case (address, prefix) =>
+        address +: (flipped(address, prefix - 1) ++ flipped(address, prefix))
+      }
+      val probes = Seq.fill(100)(randomAddress(if (random.nextBoolean()) 4 else 16))
+      assertSameVerdicts(rules :+ "deny all", boundaries ++ probes ++ addresses)
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package totoro.ocelot.brain.util
+
+import com.google.common.hash.Hashing
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.nbt.{CompressedStreamTools, NBTTagCompound}
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import scala.util.Random
+
+class ResumableDigestTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val algorithms: Seq[(String, () => ResumableDigest, Array[Byte] => Array[Byte])] = Seq(
+    ("crc32", () => ResumableDigest("crc32").get, data => Hashing.crc32().hashBytes(data).asBytes()),
+    ("adler32", () => new ResumableDigest.Adler32, data => {
+      val adler = new java.util.zip.Adler32
+      adler.update(data)
+      ByteBuffer.allocate(4).putInt(adler.getValue.toInt).array()
+    }),
+    ("md5", () => ResumableDigest("md5").get, data => MessageDigest.getInstance("MD5").digest(data)),
+    ("sha256", () => ResumableDigest("sha256").get, data => MessageDigest.getInstance("SHA-256").digest(data)),
+  )
+
+  // around the block and padding boundaries of MD5 and SHA-256, and longer
+  private val lengths = Seq(0, 1, 3, 55, 56, 57, 63, 64, 65, 119, 120, 127, 128, 129, 1000, 4099, 20000)
+
+  // saves the digest and loads it into a new one, through the serialized form of the NBT
+  private def reloaded(digest: ResumableDigest, create: () => ResumableDigest): ResumableDigest = {
+    val nbt = new NBTTagCompound
+    digest.save(nbt)
+    val bytes = new ByteArrayOutputStream()
+    CompressedStreamTools.writeCompressed(nbt, bytes)
+    val result = create()
+    result.load(CompressedStreamTools.readCompressed(new ByteArrayInputStream(bytes.toByteArray)))
+    result
+  }
+
+  for ((name, create, expected) <- algorithms) {
+    test(s"$name matches the reference implementation over random chunkings") {
+      val random = new Random(name.hashCode)
+      for (length <- lengths; _ <- 0 until 5) {
+        val data = new Array[Byte](length)
+        random.nextBytes(data)
+
+        var digest = create()
+        var position = 0
+        while (position < length) {
+          val chunk = math.min(length - position, random.nextInt(150) + 1)
+          digest.update(data, position, chunk)
+          position += chunk
+          if (random.nextInt(3) == 0) digest = reloaded(digest, create)
+        }
+        withClue(s"length $length: ") {
+          digest.digest() shouldBe expected(data)
+        }
+      }
+    }
+
+    test(s"$name can be saved before anything was hashed, and is reset by digest") {
+      val data = "The quick brown fox jumps over the lazy dog".getBytes("UTF-8")
+      val digest = reloaded(create(), create)
+      digest.digest() shouldBe expected(Array.emptyByteArray)
+      digest.update(data)
+      digest.digest() shouldBe expected(data)
+      digest.update(data)
+      digest.digest() shouldBe expected(data)
+    }
+  }
+
+  test("adler32 does not overflow on long runs of large bytes") {
+    val data = Array.fill[Byte](100000)(0xff.toByte)
+    val digest = new ResumableDigest.Adler32
+    digest.update(data)
+    val adler = new java.util.zip.Adler32
+    adler.update(data)
+    digest.value shouldBe adler.getValue.toInt
+  }
+}
@@ -0,0 +1,189 @@
+package totoro.ocelot.brain.util
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+import totoro.ocelot.brain.entity.HDDUnmanaged
+import totoro.ocelot.brain.entity.machine.{Arguments, Context}
+import totoro.ocelot.brain.nbt.NBTTagCompound
+import totoro.ocelot.brain.workspace.Workspace
+
+import java.io.{ByteArrayInputStream, FileOutputStream, RandomAccessFile}
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import java.nio.file.Files
+import java.util.zip.GZIPOutputStream
+import scala.util.{Random, Using}
+
+class SectorStorageTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private val SectorSize = 512
+  private val Capacity = 64 * SectorSize
+
+  private def contents(storage: SectorStorage): Array[Byte] = {
+    val data = new Array[Byte](storage.capacity)
+    storage.read(0, data, 0, data.length)
+    data
+  }
+
+  private def randomBytes(random: Random, length: Int): Array[Byte] = {
+    val data = new Array[Byte](length)
+    random.nextBytes(data)
+    data
+  }
+
+  test("written sectors survive saving and loading") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("drive.img").toFile
+      val random = new Random(1)
+      val storage = new SectorStorage(Capacity, SectorSize)
+      val expected = new Array[Byte](Capacity)
+      for (_ <- 0 until 20) {
+        // unaligned writes, some of them across sector boundaries
+        val offset = random.nextInt(Capacity - 2000)
+        val data = randomBytes(random, 1 + random.nextInt(2000))
+        storage.write(offset, data, 0, data.length)
+        System.arraycopy(data, 0, expected, offset, data.length)
+      }
+      storage.writeByte(Capacity - 1, 42)
+      expected(Capacity - 1) = 42
+      contents(storage) shouldBe expected
+
+      storage.save(file)
+      storage.isDirty shouldBe false
+      contents(storage) shouldBe expected
+      Files.size(file.toPath) shouldBe Capacity
+
+      val loaded = new SectorStorage(Capacity, SectorSize)
+      loaded.load(file)
+      contents(loaded) shouldBe expected
+      loaded.readByte(Capacity - 1) shouldBe 42
+    }
+  }
+
+  test("sectors that were never written read as zeros") {
+    withTempDirectory { directory =>
+      val storage = new SectorStorage(Capacity, SectorSize)
+      contents(storage).forall(_ == 0) shouldBe true
+      storage.readByte(SectorSize * 3 + 5) shouldBe 0
+
+      storage.writeByte(SectorSize * 2 + 7, 1)
+      val file = directory.resolve("drive.img").toFile
+      storage.save(file)
+
+      // a file shorter than the drive, as left by a drive whose capacity was increased
+      Using.resource(new RandomAccessFile(file, "rw"))(_.setLength(SectorSize * 3))
+      val loaded = new SectorStorage(Capacity, SectorSize)
+      loaded.load(file)
+      val data = contents(loaded)
+      data(SectorSize * 2 + 7) shouldBe 1
+      data.count(_ != 0) shouldBe 1
+
+      val partial = new Array[Byte](SectorSize)
+      java.util.Arrays.fill(partial, 9: Byte)
+      loaded.read(SectorSize * 3 - 10, partial, 0, SectorSize)
+      partial.forall(_ == 0) shouldBe true
+    }
+  }
+
+  test("only changed sectors are written to the file") {
+    withTempDirectory { directory =>
+      val file = directory.resolve("drive.img").toFile
+      val storage = new SectorStorage(Capacity, SectorSize)
+      storage.writeByte(0, 1)
+      storage.save(file)
+
+      // a marker in a sector the storage did not change, which a full rewrite would overwrite
+      Using.resource(new RandomAccessFile(file, "rw")) { raf =>
+        raf.seek(SectorSize * 5)
+        raf.write(Array[Byte](7, 7, 7))
+      }
+
+      storage.isDirty shouldBe false
+      storage.save(file)
+      storage.writeByte(SectorSize * 2, 2)
+      storage.isDirty shouldBe true
+      storage.save(file)
+
+      val bytes = Files.readAllBytes(file.toPath)
+      bytes(0) shouldBe 1
+      bytes(SectorSize * 2) shouldBe 2
+      bytes.slice(SectorSize * 5, SectorSize * 5 + 3) shouldBe Array[Byte](7, 7, 7)
+    }
+  }
+
+  test("saving to another file writes a complete image") {
+    withTempDirectory { directory =>
+      val first = directory.resolve("first.img").toFile
+      val second = directory.resolve("second.img").toFile
+      val storage = new SectorStorage(Capacity, SectorSize)
+      storage.writeByte(10, 1)
+      storage.save(first)
+      storage.writeByte(SectorSize * 4, 2)
+      storage.save(second)
+
+      val loaded = new SectorStorage(Capacity, SectorSize)
+      loaded.load(second)
+      loaded.readByte(10) shouldBe 1
+      loaded.readByte(SectorSize * 4) shouldBe 2
+    }
+  }
+
+  test("a compressed image in the older format is imported, and its sectors saved") {
+    withTempDirectory { directory =>
+      val random = new Random(2)
+      val legacy = new Array[Byte](Capacity)
+      for (sector <- Seq(0, 3, 63)) System.arraycopy(randomBytes(random, SectorSize), 0, legacy, sector * SectorSize, SectorSize)
+
+      val file = directory.resolve("drive.img").toFile
+      val storage = new SectorStorage(Capacity, SectorSize)
+      storage.load(file, Some(new ByteArrayInputStream(legacy)))
+      contents(storage) shouldBe legacy
+      storage.isDirty shouldBe true
+
+      storage.save(file)
+      val loaded = new SectorStorage(Capacity, SectorSize)
+      loaded.load(file, Some(new ByteArrayInputStream(new Array[Byte](Capacity))))
+      contents(loaded) shouldBe legacy
+    }
+  }
+
+  test("a drive imports its .bin image and replaces it with a sector file on save") {
+    withTempDirectory { directory =>
+      val context = Proxy.newProxyInstance(getClass.getClassLoader, Array(classOf[Context]), new InvocationHandler {
+        override def invoke(proxy: Any, method: Method, args: Array[AnyRef]): AnyRef =
+          if (method.getReturnType == java.lang.Boolean.TYPE) java.lang.Boolean.FALSE else null
+      }).asInstanceOf[Context]
+
+      def readSector(drive: HDDUnmanaged, sector: Int): Array[Byte] =
+        drive.readSector(context, new Arguments(Seq(Int.box(sector + 1))))(0).asInstanceOf[Array[Byte]]
+
+      val workspace = new Workspace(directory)
+      val drive = workspace.add(new HDDUnmanaged(Tier.One))
+      val address = drive.node.address
+      val legacy = new Array[Byte](drive.capacity)
+      val sector = randomBytes(new Random(3), SectorSize)
+      System.arraycopy(sector, 0, legacy, 5 * SectorSize, SectorSize)
+
+      val nbt = new NBTTagCompound()
+      drive.save(nbt)
+      // as saved by an older version: only the compressed image
+      Files.deleteIfExists(directory.resolve(address + ".img"))
+      Using.resource(new GZIPOutputStream(new FileOutputStream(directory.resolve(address + ".bin").toFile)))(_.write(legacy))
+
+      val imported = new HDDUnmanaged(Tier.One)
+      imported.load(nbt, workspace)
+      readSector(imported, 5) shouldBe sector
+
+      imported.save(new NBTTagCompound())
+      Files.exists(directory.resolve(address + ".bin")) shouldBe false
+      Files.exists(directory.resolve(address + ".img")) shouldBe true
+
+      val reloaded = new HDDUnmanaged(Tier.One)
+      reloaded.load(nbt, workspace)
+      readSector(reloaded, 5) shouldBe sector
+      readSector(reloaded, 6).forall(_ == 0) shouldBe true
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package totoro.ocelot.brain.workspace
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+import totoro.ocelot.brain.nbt.NBTTagCompound
+
+import java.nio.file.{Files, Path}
+import scala.jdk.CollectionConverters._
+import scala.util.Using
+
+class BlobStoreTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def data(length: Int, seed: Int): Array[Byte] = Array.tabulate[Byte](length)(i => (i * 13 + seed).toByte)
+
+  private def blobFiles(store: BlobStore): Set[String] =
+    if (!Files.isDirectory(store.directory)) Set.empty
+    else Using.resource(Files.walk(store.directory)) { paths =>
+      paths.iterator().asScala.filter(Files.isRegularFile(_)).map(_.getFileName.toString).toSet
+    }
+
+  private def withStore[T](f: BlobStore => T): T = withTempDirectory { directory: Path =>
+    f(new Workspace(directory).blobs)
+  }
+
+  test("equal arrays are stored once") {
+    withStore { store =>
+      val first = store.put(data(5000, 1))
+      val second = store.put(data(5000, 1))
+      val other = store.put(data(5000, 2))
+      first shouldBe second
+      other should not be first
+      blobFiles(store) shouldBe Set(first, other)
+      store.get(first).get shouldBe data(5000, 1)
+      store.get(other).get shouldBe data(5000, 2)
+    }
+  }
+
+  test("missing blobs are not found") {
+    withStore { store =>
+      store.get("0" * 64) shouldBe None
+      store.reference("0" * 64) shouldBe false
+
+      val hash = store.put(data(2000, 3))
+      Files.delete(store.directory.resolve(hash.substring(0, 2)).resolve(hash))
+      store.get(hash) shouldBe None
+
+      val nbt = new NBTTagCompound
+      BlobStore.withActive(Some(store)) {
+        BlobStore.setStoredByteArray(nbt, "data", hash) shouldBe false
+      }
+      nbt.hasKey("data_blob") shouldBe false
+    }
+  }
+
+  test("only large arrays are moved into the active store") {
+    withStore { store =>
+      val small = data(BlobStore.MinBlobSize - 1, 4)
+      val large = data(BlobStore.MinBlobSize, 5)
+      val nbt = new NBTTagCompound
+      BlobStore.withActive(Some(store)) {
+        BlobStore.setByteArray(nbt, "small", small) shouldBe None
+        BlobStore.setByteArray(nbt, "large", large) shouldBe defined
+        BlobStore.hasByteArray(nbt, "large") shouldBe true
+        nbt.hasKey("large") shouldBe false
+        BlobStore.getByteArray(nbt, "small") shouldBe small
+        BlobStore.getByteArray(nbt, "large") shouldBe large
+      }
+      nbt.getByteArray("small") shouldBe small
+
+      // without a store, the array is kept in the tag and replaces the reference
+      BlobStore.setByteArray(nbt, "large", large) shouldBe None
+      nbt.getByteArray("large") shouldBe large
+      nbt.hasKey("large_blob") shouldBe false
+      BlobStore.setStoredByteArray(nbt, "large", "0" * 64) shouldBe false
+    }
+  }
+
+  test("garbage collection keeps blobs used since the previous collection") {
+    withStore { store =>
+      val kept = store.put(data(2000, 6))
+      val dropped = store.put(data(2000, 7))
+      store.collectGarbage() shouldBe 0
+
+      // only `kept` is used by the next save, `dropped` is still referenced by the previous one
+      store.reference(kept) shouldBe true
+      store.collectGarbage() shouldBe 0
+      blobFiles(store) shouldBe Set(kept, dropped)
+
+      store.get(kept) shouldBe defined
+      store.collectGarbage() shouldBe 1
+      blobFiles(store) shouldBe Set(kept)
+
+      store.collectGarbage() shouldBe 0
+      store.collectGarbage() shouldBe 1
+      blobFiles(store) shouldBe empty
+    }
+  }
+
+  test("blobs read while loading are kept by the next collection") {
+    withStore { store =>
+      val nbt = new NBTTagCompound
+      val array = data(3000, 8)
+      BlobStore.withActive(Some(store))(BlobStore.setByteArray(nbt, "data", array))
+      store.collectGarbage()
+      store.collectGarbage()
+      store.collectGarbage() shouldBe 1
+
+      BlobStore.withActive(Some(store))(BlobStore.setByteArray(nbt, "data", array))
+      store.collectGarbage()
+      store.collectGarbage()
+      BlobStore.withActive(Some(store))(BlobStore.getByteArray(nbt, "data")) shouldBe array
+      store.collectGarbage() shouldBe 0
+      blobFiles(store) should have size 1
+    }
+  }
+}
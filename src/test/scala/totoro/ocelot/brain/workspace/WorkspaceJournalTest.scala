@@ -0,0 +1,264 @@
+package totoro.ocelot.brain.workspace
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+import totoro.ocelot.brain.entity.traits.{Entity, Environment}
+import totoro.ocelot.brain.entity.{HologramProjector, Relay, Screen}
+import totoro.ocelot.brain.nbt.ExtendedNBT._
+import totoro.ocelot.brain.nbt.{CompressedStreamTools, NBT, NBTTagCompound}
+import totoro.ocelot.brain.network.{Component, Network, Node, Visibility}
+import totoro.ocelot.brain.util.Tier
+import totoro.ocelot.brain.workspace.WorkspaceJournalTest.ChangingProbe
+
+import java.io.{ByteArrayInputStream, DataInputStream}
+import java.nio.file.{Files, Path, StandardOpenOption}
+import scala.collection.mutable
+
+class WorkspaceJournalTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def journalFile(directory: Path): Path = directory.resolve("journal").resolve("journal.dat")
+
+  // the records of the journal, without checking their checksums
+  private def records(directory: Path): Seq[NBTTagCompound] = {
+    val bytes = Files.readAllBytes(journalFile(directory))
+    val input = new DataInputStream(new ByteArrayInputStream(bytes))
+    val result = mutable.ArrayBuffer.empty[NBTTagCompound]
+    while (input.available() > 0) {
+      val data = new Array[Byte](input.readInt())
+      input.readLong()
+      input.readFully(data)
+      result += CompressedStreamTools.readCompressed(new ByteArrayInputStream(data))
+    }
+    result.toSeq
+  }
+
+  private def journaledIds(record: NBTTagCompound): Seq[String] =
+    record.getTagList("entities", NBT.TAG_COMPOUND).map((entry: NBTTagCompound) => entry.getString("id"))
+
+  private def text(screen: Screen, length: Int): String = (0 until length).map(screen.get(_, 0)).mkString
+
+  private def restore(directory: Path): Workspace = {
+    val workspace = new Workspace(directory)
+    new WorkspaceJournal(workspace, directory.resolve("journal")).load() shouldBe true
+    workspace
+  }
+
+  private def restoredScreen(workspace: Workspace): Screen =
+    workspace.getEntitiesIter.collectFirst { case screen: Screen => screen }.get
+
+  test("base image and journal restore changes made without callbacks of the changed entity") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+
+      // the same way a GPU writes to a screen
+      screen.set(0, 0, "hello", vertical = false)
+      journal.checkpoint()
+      journaledIds(records(directory).last) should contain(screen.entityId.toString)
+
+      val restored = restoredScreen(restore(directory))
+      restored.entityId shouldBe screen.entityId
+      text(restored, 5) shouldBe "hello"
+    }
+  }
+
+  test("idle entities are not journaled") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val relay = workspace.add(new Relay)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+
+      for (_ <- 0 until 10) workspace.update()
+      screen.set(0, 0, "x", vertical = false)
+      journal.checkpoint()
+
+      val ids = journaledIds(records(directory).last)
+      ids should contain(screen.entityId.toString)
+      ids should not contain relay.entityId.toString
+    }
+  }
+
+  test("later records override earlier ones") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+      screen.set(0, 0, "first", vertical = false)
+      journal.checkpoint()
+      screen.set(0, 0, "later", vertical = false)
+      workspace.setIngameTime(1234)
+      journal.checkpoint()
+
+      val restored = restore(directory)
+      text(restoredScreen(restored), 5) shouldBe "later"
+      restored.getIngameTime shouldBe 1234
+    }
+  }
+
+  test("a torn record at the end of the journal is discarded and cut off") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+      screen.set(0, 0, "saved", vertical = false)
+      journal.checkpoint()
+      val validLength = Files.size(journalFile(directory))
+
+      // the beginning of a record whose write was interrupted
+      Files.write(journalFile(directory), Array[Byte](0, 0, 1, 0, 1, 2, 3), StandardOpenOption.APPEND)
+
+      text(restoredScreen(restore(directory)), 5) shouldBe "saved"
+      Files.size(journalFile(directory)) shouldBe validLength
+    }
+  }
+
+  test("a record with a wrong checksum is discarded with all records after it") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+      screen.set(0, 0, "first", vertical = false)
+      journal.checkpoint()
+      val firstLength = Files.size(journalFile(directory)).toInt
+      screen.set(0, 0, "later", vertical = false)
+      journal.checkpoint()
+
+      val bytes = Files.readAllBytes(journalFile(directory))
+      bytes(bytes.length - 1) = (bytes(bytes.length - 1) ^ 0xff).toByte
+      Files.write(journalFile(directory), bytes)
+
+      text(restoredScreen(restore(directory)), 5) shouldBe "first"
+      Files.size(journalFile(directory)) shouldBe firstLength
+    }
+  }
+
+  test("a journal of an older base image is ignored") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+      screen.set(0, 0, "stale", vertical = false)
+      journal.checkpoint()
+      val staleJournal = Files.readAllBytes(journalFile(directory))
+
+      screen.set(0, 0, "fresh", vertical = false)
+      journal.compact()
+      Files.exists(journalFile(directory)) shouldBe false
+
+      // as if the crash happened after the new base image was moved into place, but before the
+      // old journal was deleted
+      Files.write(journalFile(directory), staleJournal)
+
+      text(restoredScreen(restore(directory)), 5) shouldBe "fresh"
+      Files.exists(journalFile(directory)) shouldBe false
+    }
+  }
+
+  test("compaction happens after the configured number of records") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val screen = workspace.add(new Screen(Tier.One))
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"), compactionThreshold = 2)
+      journal.checkpoint()
+      for (i <- 0 until 2) {
+        screen.set(0, 0, i.toString, vertical = false)
+        journal.checkpoint()
+      }
+      records(directory) should have size 2
+
+      screen.set(0, 0, "c", vertical = false)
+      journal.checkpoint()
+      Files.exists(journalFile(directory)) shouldBe false
+      text(restoredScreen(restore(directory)), 1) shouldBe "c"
+    }
+  }
+
+  test("a change made while a checkpoint saves the entity is journaled with the next one") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val probe = workspace.add(new ChangingProbe)
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+
+      // as a direct callback running on another thread would do
+      probe.value = 1
+      probe.markModified()
+      probe.onSave = () => {
+        probe.value = 2
+        probe.markModified()
+      }
+      journal.checkpoint()
+      probe.onSave = () => ()
+      probe.isModified shouldBe true
+
+      journal.checkpoint()
+      restore(directory).getEntitiesIter.collectFirst { case p: ChangingProbe => p.value } shouldBe Some(2)
+    }
+  }
+
+  test("entities of a failed checkpoint stay modified") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      val probe = workspace.add(new ChangingProbe)
+      val journal = new WorkspaceJournal(workspace, directory.resolve("journal"))
+      journal.checkpoint()
+
+      probe.value = 3
+      probe.markModified()
+      probe.onSave = () => throw new IllegalStateException("failed to save")
+      an[IllegalStateException] should be thrownBy journal.checkpoint()
+      probe.onSave = () => ()
+      probe.isModified shouldBe true
+
+      journal.checkpoint()
+      journaledIds(records(directory).last) should contain(probe.entityId.toString)
+      restore(directory).getEntitiesIter.collectFirst { case p: ChangingProbe => p.value } shouldBe Some(3)
+    }
+  }
+
+  test("read-only callbacks do not mark their entity as modified") {
+    val hologram = new HologramProjector(Tier.Two)
+    val component = hologram.node.asInstanceOf[Component]
+    hologram.clearModified()
+
+    component.invoke("getScale", null)
+    component.invoke("get", null, Int.box(1), Int.box(1), Int.box(1))
+    hologram.isModified shouldBe false
+
+    component.invoke("set", null, Int.box(1), Int.box(1), Int.box(1), Int.box(1))
+    hologram.isModified shouldBe true
+  }
+}
+
+object WorkspaceJournalTest {
+  class ChangingProbe extends Entity with Environment {
+    override val node: Node = Network.newNode(this, Visibility.None).create()
+
+    var value = 0
+
+    // runs after the value was written, while the entity is being saved
+    var onSave: () => Unit = () => ()
+
+    override def save(nbt: NBTTagCompound): Unit = {
+      super.save(nbt)
+      nbt.setInteger("value", value)
+      onSave()
+    }
+
+    override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+      super.load(nbt, workspace)
+      value = nbt.getInteger("value")
+    }
+  }
+}
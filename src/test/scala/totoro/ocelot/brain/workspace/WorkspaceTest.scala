@@ -0,0 +1,60 @@
+package totoro.ocelot.brain.workspace
+
+import org.scalatest.funsuite.AnyFunSuite
+import org.scalatest.matchers.should.Matchers
+import totoro.ocelot.brain.TestSetup
+import totoro.ocelot.brain.TestSetup.withTempDirectory
+import totoro.ocelot.brain.entity.traits.{Entity, Environment}
+import totoro.ocelot.brain.nbt.{CompressedStreamTools, NBTTagCompound}
+import totoro.ocelot.brain.network.{Network, Node, Visibility}
+import totoro.ocelot.brain.workspace.WorkspaceTest.LoadOrderProbe
+
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream}
+
+class WorkspaceTest extends AnyFunSuite with Matchers {
+  TestSetup.init()
+
+  private def probes(workspace: Workspace): Seq[LoadOrderProbe] =
+    workspace.getEntitiesIter.collect { case probe: LoadOrderProbe => probe }.toSeq
+
+  test("entities loaded from a tag see all entities before them added") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      for (_ <- 0 until 3) workspace.add(new LoadOrderProbe)
+      val nbt = new NBTTagCompound()
+      workspace.save(nbt)
+
+      val loaded = new Workspace(directory)
+      loaded.load(nbt)
+      probes(loaded).map(_.entitiesWhenLoaded) shouldBe Seq(0, 1, 2)
+    }
+  }
+
+  test("entities loaded from a stream see all entities before them added") {
+    withTempDirectory { directory =>
+      val workspace = new Workspace(directory)
+      for (_ <- 0 until 3) workspace.add(new LoadOrderProbe)
+      val bytes = new ByteArrayOutputStream()
+      val writer = CompressedStreamTools.openCompressedWriter(bytes)
+      workspace.save(writer)
+      writer.close()
+
+      val loaded = new Workspace(directory)
+      loaded.load(CompressedStreamTools.openCompressedReader(new ByteArrayInputStream(bytes.toByteArray)))
+      probes(loaded).map(_.entitiesWhenLoaded) shouldBe Seq(0, 1, 2)
+    }
+  }
+}
+
+object WorkspaceTest {
+  class LoadOrderProbe extends Entity with Environment {
+    override val node: Node = Network.newNode(this, Visibility.None).create()
+
+    var entitiesWhenLoaded: Int = -1
+
+    override def load(nbt: NBTTagCompound, workspace: Workspace): Unit = {
+      super.load(nbt, workspace)
+      entitiesWhenLoaded = workspace.getEntitiesIter.size
+    }
+  }
+}